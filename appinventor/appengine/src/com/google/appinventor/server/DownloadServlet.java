@@ -11,8 +11,8 @@ import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.util.CacheHeaders;
 import com.google.appinventor.server.util.CacheHeadersImpl;
+import com.google.appinventor.server.util.LazyOutputStream;
 import com.google.appinventor.shared.rpc.ServerLayout;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
 
@@ -20,6 +20,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
@@ -126,10 +127,14 @@ public class DownloadServlet extends OdeServlet {
         // project in the export
         boolean includeYail = userInfoProvider.getIsAdmin();
         boolean includeScreenShots = includeYail;
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
-          projectId, includeProjectHistory, false, zipName, includeYail,
-          includeScreenShots, false, false);
-        downloadableFile = zipFile.getRawFile();
+        if (zipName == null) {
+          zipName = fileExporter.getProjectSourceZipName(userId, projectId);
+        }
+        OutputStream out = streamingResponse(resp, zipName);
+        fileExporter.exportProjectSourceZip(userId, projectId, includeProjectHistory, false,
+            includeYail, includeScreenShots, false, false, out);
+        out.close();
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_USER_PROJECT_SOURCE)) {
         if (!userInfoProvider.getIsAdmin()) {
@@ -182,15 +187,18 @@ public class DownloadServlet extends OdeServlet {
         } else {
           zipName = "u" + projectUserId + "_p" + projectId + ".aia";
         }
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(projectUserId,
-          projectId, /* include history*/ true, /* include keystore */ true, zipName, true, true, false, false);
-        downloadableFile = zipFile.getRawFile();
+        OutputStream out = streamingResponse(resp, zipName);
+        fileExporter.exportProjectSourceZip(projectUserId, projectId, /* include history*/ true,
+            /* include keystore */ true, true, true, false, false, out);
+        out.close();
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
         // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        OutputStream out = streamingResponse(resp, "all-projects.zip");
+        fileExporter.exportAllProjectsSourceZip(userId, out);
+        out.close();
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
@@ -231,4 +239,22 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  /*
+   * Returns a stream that sends a download as it is written, without a content length, so that it
+   * is never held in memory. The response headers are set when the first bytes are written, so
+   * that an export that fails before then is reported like any other error.
+   */
+  private static OutputStream streamingResponse(final HttpServletResponse resp,
+      final String fileName) {
+    return new LazyOutputStream() {
+      @Override
+      protected OutputStream open() throws IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+        resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+        return resp.getOutputStream();
+      }
+    };
+  }
 }
@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -57,6 +58,41 @@ public interface FileExporter {
     boolean includeScreenShots,
     boolean fatalError, boolean forGallery) throws IOException;
 
+  /**
+   * Exports the project source files as a zip written to the given stream,
+   * one file at a time, so that large projects are never held in memory.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param fatalError set to true to cause missing GCS file to throw exception
+   * @param outputStream the stream to write the zip to; it is not closed
+   * @return the number of zipped files
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files), in which case nothing has been written
+   * @throws IOException if files cannot be written
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError, boolean forGallery,
+    OutputStream outputStream) throws IOException;
+
+  /**
+   * Returns the name that {@link #exportProjectSourceZip(String, long, boolean,
+   * boolean, String, boolean, boolean, boolean, boolean)} gives the zip of a
+   * project's source files when no name is asked for.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @return the name of the zip
+   */
+  String getProjectSourceZipName(String userId, long projectId);
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
@@ -69,6 +105,21 @@ public interface FileExporter {
    */
   ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
 
+  /**
+   * Exports all of the user's projects' source files as a zip of zips written
+   * to the given stream, one project at a time, so that only a few of their
+   * files are held in memory. Projects that can't be read before any of their
+   * files are written are left out.
+   *
+   * @param userId the userId
+   * @param outputStream the stream to write the zip to; it is not closed
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no projects), in which case nothing has been written
+   * @throws IOException if files cannot be written
+   */
+  int exportAllProjectsSourceZip(String userId, OutputStream outputStream) throws IOException;
+
   /**
    * Exports a specific project file.
    *
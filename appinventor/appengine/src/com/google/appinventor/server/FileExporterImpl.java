@@ -10,15 +10,21 @@ import com.google.common.base.Strings;
 import com.google.appinventor.server.storage.ObjectifyStorageIo;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.server.util.LazyOutputStream;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.storage.StorageUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nullable;
@@ -75,52 +81,109 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError,
+    boolean forGallery,
+    OutputStream outputStream) throws IOException {
+    // Stream project source files as a zip.
+    if (storageIo instanceof ObjectifyStorageIo) {
+      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
+        includeProjectHistory, includeAndroidKeystore, includeYail, includeScreenShots, forGallery,
+        fatalError, outputStream);
+    } else {
+      throw new IllegalArgumentException("Objectify only");
+    }
+  }
+
+  @Override
+  public String getProjectSourceZipName(String userId, long projectId) {
+    return storageIo.getProjectName(userId, projectId) + ".aia";
+  }
+
   @Override
   public ProjectSourceZip exportAllProjectsSourceZip(String userId,
       String zipName) throws IOException {
-    // Create a zip file for each project's sources.
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    StringBuilder metadata = new StringBuilder();
+    int count = writeAllProjectsSourceZip(userId, zipFile, metadata);
+
+    // Package the big zip file up as a ProjectSourceZip and return it.
+    byte[] content = zipFile.toByteArray();
+    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
+    projectSourceZip.setMetadata(metadata.toString());
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportAllProjectsSourceZip(String userId, OutputStream outputStream)
+      throws IOException {
+    return writeAllProjectsSourceZip(userId, outputStream, new StringBuilder());
+  }
+
+  /*
+   * Writes a zip file with each project's sources to outputStream. Each project's zip is
+   * written straight into its entry, so only the few files that are being read ahead are held in
+   * memory. Nothing is written to outputStream if there is nothing to download. outputStream is
+   * not closed.
+   */
+  private int writeAllProjectsSourceZip(String userId, OutputStream outputStream,
+      StringBuilder metadata) throws IOException {
     List<Long> projectIds = storageIo.getProjects(userId);
     if (projectIds.size() == 0) {
       throw new IllegalArgumentException("No projects to download");
     }
+    Map<Long, String> projectNames = new HashMap<Long, String>();
+    for (UserProject project : storageIo.getUserProjects(userId, projectIds)) {
+      projectNames.put(project.getProjectId(), project.getProjectName());
+    }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
+    final ZipOutputStream out = new ZipOutputStream(outputStream);
     int count = 0;
-    String metadata = "";
     for (Long projectId : projectIds) {
+      final String projectName = projectNames.get(projectId);
+      // The project's entry is only started once its zip is being written.
+      LazyOutputStream entry = new LazyOutputStream() {
+        @Override
+        protected OutputStream open() throws IOException {
+          String name = projectName + ".aia";
+          // If necessary, rename duplicate projects
+          while (true) {
+            try {
+              out.putNextEntry(new ZipEntry(name));
+              return out;
+            } catch (ZipException e) {
+              name = "duplicate-" + name;
+            }
+          }
+        }
+      };
       try {
         // Note: We never include Yail files when exporting all source projects
         // even for Admins. If you are an admin and want to debug a project, download
         // it explicitly.
-        ProjectSourceZip projectSourceZip =
-          exportProjectSourceZip(userId, projectId, false, false, null, false, false, false, false);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
-
-        // If necessary, rename duplicate projects
-        while (true) {
-          try {
-            out.putNextEntry(new ZipEntry(name));
-            break;
-          } catch (IOException e) {
-            name = "duplicate-" + name;
-          }
-        }
-        metadata += projectSourceZip.getMetadata() + "\n";
-
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        count++;
+        exportProjectSourceZip(userId, projectId, false, false, false, false, false, false,
+            entry);
       } catch (IllegalArgumentException e) {
         System.err.println("No files found for userid: " + userId +
             " for projectid: " + projectId);
         continue;
       } catch (IOException e) {
+        if (entry.isOpened()) {
+          // Part of the project has been sent, so it can't be left out.
+          throw e;
+        }
         System.err.println("IOException while reading files found for userid: " +
             userId + " for projectid: " + projectId);
         continue;
       }
+      out.closeEntry();
+      metadata.append(projectName).append("\n");
+      count++;
     }
     if (count == 0) {
       throw new IllegalArgumentException("No files to download");
@@ -138,13 +201,8 @@ public final class FileExporterImpl implements FileExporter {
       }
     }
 
-    out.close();
-
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
+    out.finish();
+    return count;
   }
 
   @Override
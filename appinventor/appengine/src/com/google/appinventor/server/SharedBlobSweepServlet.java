@@ -0,0 +1,40 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * SharedBlobSweepServlet -- Delete shared content no project uses anymore
+ *
+ * Assets are stored once for all the projects that have them, such as a
+ * project and its copies, and kept until no file refers to them. This
+ * Servlet is called by cron (see cron.xml) and deletes the content that
+ * has not been referred to for a day, which leaves time for a copy that
+ * is in progress to take its references. It is restricted to admin users
+ * only, as cron operates with admin privileges.
+ *
+ */
+public class SharedBlobSweepServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(SharedBlobSweepServlet.class.getName());
+  private static final long MIN_UNREFERENCED_MILLIS = 24 * 3600 * 1000; // 24 hours
+  private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    int swept = storageIo.sweepSharedBlobs(MIN_UNREFERENCED_MILLIS);
+    LOG.info("Swept " + swept + " unreferenced shared blobs");
+  }
+}
@@ -17,7 +17,10 @@ import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.util.Base64Util;
 
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -264,6 +267,29 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the contents of several files of a project at once. Like
+   * {@link #save(String, long, String, String)}, this always sets force to true.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param contents  contents to be saved, by file id
+   * @return modification date for project
+   */
+  public long save(String userId, long projectId, Map<String, String> contents) {
+    Charset charset = Charset.forName(StorageUtil.DEFAULT_CHARSET);
+    Map<String, byte[]> rawContents = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, String> entry : contents.entrySet()) {
+      rawContents.put(entry.getKey(), entry.getValue().getBytes(charset));
+    }
+    try {
+      return storageIo.uploadRawFiles(projectId, userId, true, rawContents);
+    } catch (BlocksTruncatedException e) {
+      // Won't happen because it isn't thrown when the force argument is true
+      return 0;
+    }
+  }
+
   /**
    * Saves the content of the file associated with a node in the project tree.
    * if force is false, an error is thrown if an attempt is made to save a
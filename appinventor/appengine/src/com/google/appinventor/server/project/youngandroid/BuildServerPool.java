@@ -0,0 +1,381 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The build servers that builds can be sent to, and the order in which to try them.
+ *
+ * <p>The status of each build server is read from its /buildserver/health and /buildserver/vars
+ * pages when it is needed and the last status is older than {@link #STATUS_MAX_AGE_MILLIS}.
+ * App Engine doesn't let us poll in the background, so the status is refreshed by the build
+ * requests themselves, and each App Engine instance has its own view of the pool. A request
+ * reads the out of date build servers all at once, on threads that can't outlive it, and waits
+ * at most {@link #STATUS_REFRESH_DEADLINE_MILLIS} for them; a build server that is already being
+ * read by another request, or that doesn't answer in time, keeps its last status, and is read
+ * again by the next request that needs it.</p>
+ *
+ * <p>Each user prefers the build servers in an order of their own (rendezvous hashing), so their
+ * builds keep going to the same build server, whose caches already hold the user's libraries and
+ * compiled screens, and only move when that build server is full or gone. Adding or removing a
+ * build server only moves the users who preferred it.</p>
+ */
+final class BuildServerPool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildServerPool.class.getName());
+
+  // How long the status of a build server is used before it is read again.
+  static final long STATUS_MAX_AGE_MILLIS = 30 * 1000;
+
+  // How long a build request waits for the status of the build servers.
+  static final long STATUS_REFRESH_DEADLINE_MILLIS = 3000;
+
+  // Timeouts for reading each page of the status of a build server. Both pages are read in
+  // 2 * (500 + 900) = 2800 milliseconds at most, within STATUS_REFRESH_DEADLINE_MILLIS.
+  private static final int CONNECT_TIMEOUT_MILLIS = 500;
+  private static final int READ_TIMEOUT_MILLIS = 900;
+
+  // The variables of the /buildserver/vars page, which is HTML with one "<b>name</b> value<br>"
+  // per variable.
+  private static final Pattern VARIABLE = Pattern.compile("<b>([^<]+)</b> ([^<]*)<br>");
+
+  /**
+   * What is known about a build server.
+   */
+  static final class Status {
+    // Whether the build server's health check passed.
+    final boolean healthy;
+    // The build server's GitBuildId version, or null if unknown.
+    final String version;
+    // The builds that are running or queued.
+    final int builds;
+    // The number of builds that can run at the same time.
+    final int capacity;
+    final long time;
+
+    Status(boolean healthy, String version, int builds, int capacity, long time) {
+      this.healthy = healthy;
+      this.version = version;
+      this.builds = builds;
+      this.capacity = Math.max(1, capacity);
+      this.time = time;
+    }
+
+    boolean isFull() {
+      return builds >= capacity;
+    }
+
+    double getLoad() {
+      return builds / (double) capacity;
+    }
+  }
+
+  private final List<String> hosts;
+  // The version that build servers must have, or null if any version will do.
+  private final String requiredVersion;
+  // Creates the threads that read the status of build servers.
+  private final ThreadFactory threadFactory;
+  private final Map<String, Status> statuses = new ConcurrentHashMap<String, Status>();
+  // The build servers whose status is being read.
+  private final Set<String> refreshing =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Creates a pool of build servers whose status is read by daemon threads.
+   *
+   * @param hosts  the host[:port] of each build server
+   * @param requiredVersion  the GitBuildId version that the build servers must have, or
+   *     {@code null} if any version will do
+   */
+  BuildServerPool(List<String> hosts, String requiredVersion) {
+    this(hosts, requiredVersion, new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("build-server-status-%d").build());
+  }
+
+  /**
+   * Creates a pool of build servers.
+   *
+   * @param hosts  the host[:port] of each build server
+   * @param requiredVersion  the GitBuildId version that the build servers must have, or
+   *     {@code null} if any version will do
+   * @param threadFactory  creates the threads that read the status of build servers
+   */
+  BuildServerPool(List<String> hosts, String requiredVersion, ThreadFactory threadFactory) {
+    Preconditions.checkArgument(!hosts.isEmpty(), "No build server");
+    this.hosts = Collections.unmodifiableList(Lists.newArrayList(hosts));
+    this.requiredVersion = requiredVersion;
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Parses a comma-separated list of host[:port].
+   */
+  static List<String> parseHosts(String hosts) {
+    return Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(hosts));
+  }
+
+  List<String> getHosts() {
+    return hosts;
+  }
+
+  /**
+   * Returns the build servers to try for a build of the given user, best first.
+   *
+   * <p>Healthy build servers with the required version come first. Among those, the ones with
+   * room for another build come first, in the user's order of preference, followed by the full
+   * ones, least loaded first. Build servers that are down come last, since their status may be
+   * out of date. Build servers with another version are left out, because they would refuse the
+   * build anyway. If none of them has the required version, as can happen while they are being
+   * updated, they are all returned, so that the one that is tried can tell the user why it
+   * refuses the build.</p>
+   */
+  List<String> getServersFor(final String userId) {
+    final Map<String, Status> current = getStatuses(hosts);
+    List<String> servers = Lists.newArrayList();
+    for (String host : hosts) {
+      Status status = current.get(host);
+      if (requiredVersion == null || status.version == null
+          || requiredVersion.equals(status.version)) {
+        servers.add(host);
+      }
+    }
+    if (servers.isEmpty()) {
+      LOG.warning("No build server has version " + requiredVersion);
+      servers.addAll(hosts);
+    }
+    Collections.sort(servers, new Comparator<String>() {
+      @Override
+      public int compare(String host1, String host2) {
+        Status status1 = current.get(host1);
+        Status status2 = current.get(host2);
+        if (status1.healthy != status2.healthy) {
+          return status1.healthy ? -1 : 1;
+        }
+        if (status1.healthy && status1.isFull() != status2.isFull()) {
+          return status1.isFull() ? 1 : -1;
+        }
+        if (status1.healthy && status1.isFull()) {
+          int byLoad = Double.compare(status1.getLoad(), status2.getLoad());
+          if (byLoad != 0) {
+            return byLoad;
+          }
+        }
+        return Long.compare(preference(userId, host2), preference(userId, host1));
+      }
+    });
+    return servers;
+  }
+
+  /*
+   * Returns how much the user prefers the build server. Each user has their own order.
+   */
+  private static long preference(String userId, String host) {
+    return Hashing.md5().newHasher()
+        .putString(userId, Charsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(host, Charsets.UTF_8)
+        .hash().asLong();
+  }
+
+  /**
+   * Records that the build server refused a build because it is full, so that it isn't tried
+   * first until its status is read again.
+   */
+  void reportRejected(String host) {
+    Status status = statuses.get(host);
+    int capacity = status == null ? 1 : status.capacity;
+    statuses.put(host, new Status(true, status == null ? null : status.version, capacity,
+        capacity, System.currentTimeMillis()));
+  }
+
+  /**
+   * Records that the build server could not be reached.
+   */
+  void reportUnreachable(String host) {
+    Status status = statuses.get(host);
+    statuses.put(host, new Status(false, status == null ? null : status.version, 0, 1,
+        System.currentTimeMillis()));
+  }
+
+  /**
+   * Returns the status of a build server, reading it first if it is out of date.
+   */
+  Status getStatus(String host) {
+    return getStatuses(Collections.singletonList(host)).get(host);
+  }
+
+  /*
+   * Returns the status of the given build servers, reading the ones that are out of date, at the
+   * same time, for at most STATUS_REFRESH_DEADLINE_MILLIS. A build server that has no status yet
+   * and isn't read in time is taken to be down.
+   */
+  private Map<String, Status> getStatuses(List<String> hostsToCheck) {
+    long now = System.currentTimeMillis();
+    List<String> outOfDate = Lists.newArrayList();
+    for (String host : hostsToCheck) {
+      Status status = statuses.get(host);
+      if ((status == null || now - status.time > STATUS_MAX_AGE_MILLIS)
+          && refreshing.add(host)) {
+        outOfDate.add(host);
+      }
+    }
+    if (!outOfDate.isEmpty()) {
+      refresh(outOfDate, now + STATUS_REFRESH_DEADLINE_MILLIS);
+    }
+    Map<String, Status> current = new HashMap<String, Status>();
+    for (String host : hostsToCheck) {
+      Status status = statuses.get(host);
+      current.put(host, status != null ? status : new Status(false, null, 0, 1, now));
+    }
+    return current;
+  }
+
+  /*
+   * Reads the status of the given build servers, which the caller has added to refreshing, until
+   * the deadline. The reads that are still going on then are cancelled, because their threads
+   * end with the request, and their build servers are left for the next request to read.
+   */
+  private void refresh(List<String> outOfDate, long deadline) {
+    ExecutorService executor = Executors.newFixedThreadPool(outOfDate.size(), threadFactory);
+    List<Future<?>> reads = Lists.newArrayList();
+    try {
+      for (int i = 0; i < outOfDate.size(); i++) {
+        final String host = outOfDate.get(i);
+        try {
+          reads.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                statuses.put(host, readStatus(host));
+              } finally {
+                refreshing.remove(host);
+              }
+            }
+          }));
+        } catch (RuntimeException e) {
+          // No thread for the read, e.g. the request has too many.
+          LOG.log(Level.WARNING, "Unable to read the status of build server " + host, e);
+          refreshing.removeAll(outOfDate.subList(i, outOfDate.size()));
+          break;
+        }
+      }
+      for (Future<?> read : reads) {
+        try {
+          read.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // The build server keeps its last status for now.
+        } catch (ExecutionException e) {
+          LOG.log(Level.WARNING, "Unable to read the status of a build server", e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    } finally {
+      for (int i = 0; i < reads.size(); i++) {
+        if (reads.get(i).cancel(true)) {
+          refreshing.remove(outOfDate.get(i));
+        }
+      }
+      executor.shutdown();
+    }
+  }
+
+  private static Status readStatus(String host) {
+    long now = System.currentTimeMillis();
+    try {
+      if (fetch(host, "health") == null) {
+        return new Status(false, null, 0, 1, now);
+      }
+      String vars = fetch(host, "vars");
+      if (vars == null) {
+        return new Status(false, null, 0, 1, now);
+      }
+      Map<String, String> variables = new HashMap<String, String>();
+      Matcher matcher = VARIABLE.matcher(vars);
+      while (matcher.find()) {
+        variables.put(matcher.group(1), matcher.group(2));
+      }
+      int processors = parseInt(variables.get("num-processors"), 1);
+      int capacity = parseInt(variables.get("maximum-simultaneous-build-tasks-allowed"),
+          processors);
+      int builds = parseInt(variables.get("active-build-tasks"), 0)
+          + parseInt(variables.get("build-queue-depth"), 0);
+      return new Status(true, variables.get("buildserver-version"), builds, capacity, now);
+    } catch (IOException e) {
+      LOG.log(Level.INFO, "Unable to read the status of build server " + host, e);
+      return new Status(false, null, 0, 1, now);
+    }
+  }
+
+  /*
+   * Returns the content of a /buildserver page, or null if the build server didn't respond
+   * with OK.
+   */
+  private static String fetch(String host, String page) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://" + host + "/buildserver/" + page).openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+    try {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        return null;
+      }
+      InputStream in = connection.getInputStream();
+      try {
+        return CharStreams.toString(new InputStreamReader(in, "UTF-8"));
+      } finally {
+        in.close();
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  // "unlimited" and missing variables get the default.
+  private static int parseInt(String value, int defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
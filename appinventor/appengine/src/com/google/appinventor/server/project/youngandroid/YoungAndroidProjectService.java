@@ -6,6 +6,10 @@
 
 package com.google.appinventor.server.project.youngandroid;
 
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.common.utils.StringUtils;
@@ -28,8 +32,6 @@ import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
-import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidAssetNode;
@@ -52,6 +54,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -60,6 +63,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Serializable;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -70,6 +74,9 @@ import java.text.DecimalFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -80,7 +87,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -111,11 +117,65 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // Build folder path
   private static final String BUILD_FOLDER = "build";
 
+  // The build server's response header with the estimated time until the build starts, in
+  // milliseconds. Must match BuildServer.ESTIMATED_WAIT_HEADER.
+  private static final String ESTIMATED_WAIT_HEADER = "Build-Estimated-Wait-Ms";
+
+  // The size of the chunks in which the project source is streamed to the build server.
+  private static final int BUILD_REQUEST_CHUNK_SIZE = 64 * 1024;
+
+  // How long getBuildResult waits for the build server to report progress, in seconds. Each
+  // second spent waiting holds a request thread, so a longer wait trades fewer polls for fewer
+  // requests served at once. The value of this flag can be changed in appengine-web.xml, but it
+  // is capped at MAX_BUILD_PROGRESS_WAIT_SECONDS, well below the App Engine request deadline.
+  private static final Flag<Integer> buildProgressWaitSeconds =
+      Flag.createFlag("build.progress.wait.secs", 5);
+  private static final int MAX_BUILD_PROGRESS_WAIT_SECONDS = 10;
+
+  // How long the build id of a build in progress is remembered, in seconds.
+  private static final int BUILD_PROGRESS_EXPIRATION_SECONDS = 60 * 60;
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  /*
+   * What getBuildResult knows about a build in progress. It is kept in memcache, keyed by user,
+   * project and target, so that each poll only waits for what it hasn't seen yet.
+   */
+  private static final class BuildInProgress implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    final String buildServer;
+    final String buildId;
+    final int seenStages;
+    final int progress;
+    final boolean finished;
+
+    BuildInProgress(String buildServer, String buildId, int seenStages, int progress,
+        boolean finished) {
+      this.buildServer = buildServer;
+      this.buildId = buildId;
+      this.seenStages = seenStages;
+      this.progress = progress;
+      this.finished = finished;
+    }
+  }
+
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
-  // host[:port] to use for connecting to the build server
+  // host[:port] to use for connecting to the build server. A comma-separated list of them
+  // spreads the builds over several build servers.
   private static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
+  private static final BuildServerPool buildServers = new BuildServerPool(
+      BuildServerPool.parseHosts(buildServerHost.get()),
+      sendGitVersion.get() ? GitBuildId.getVersion() : null,
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          // App Engine only lets a request use threads that belong to it.
+          return ThreadManager.currentRequestThreadFactory().newThread(runnable);
+        }
+      });
   // host[:port] to tell build server app host url
   private static final Flag<String> appengineHost =
       Flag.createFlag("appengine.host", "");
@@ -361,44 +421,42 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     newProject.setProjectHistory(oldProjectHistory);
 
     // Get the old project's source files and add them to new project, modifying where necessary.
+    // Only the project properties file is created with the project. The other files are copied
+    // by the storage layer, which copies shared content, such as assets, by reference.
+    Map<String, String> copiedFileNames = Maps.newLinkedHashMap();
     for (String oldSourceFileName : storageIo.getProjectSourceFiles(userId, oldProjectId)) {
-      String newSourceFileName;
-
-      String newContents = null;
       if (oldSourceFileName.equals(PROJECT_PROPERTIES_FILE_NAME)) {
         // This is the project properties file. The name of the file doesn't contain the old
         // project name.
-        newSourceFileName = oldSourceFileName;
         // For the contents of the project properties file, generate the file with the new project
         // name and qualified name.
         String qualifiedFormName = StringUtils.getQualifiedFormName(
             storageIo.getUser(userId).getUserEmail(), newName);
-        newContents = getProjectPropertiesFileContents(newName, qualifiedFormName, icon, vcode,
-                                                       vname, useslocation, aname, sizing, showListsAsJson);
+        String newContents = getProjectPropertiesFileContents(newName, qualifiedFormName, icon,
+            vcode, vname, useslocation, aname, sizing, showListsAsJson);
+        newProject.addTextFile(new TextFile(oldSourceFileName, newContents));
       } else {
         // This is some file other than the project properties file.
         // oldSourceFileName may contain the old project name as a path segment, surrounded by /.
         // Replace the old name with the new name.
-        newSourceFileName = StringUtils.replaceLastOccurrence(oldSourceFileName,
+        String newSourceFileName = StringUtils.replaceLastOccurrence(oldSourceFileName,
             "/" + oldName + "/", "/" + newName + "/");
-      }
-
-      if (newContents != null) {
-        // We've determined (above) that the contents of the file must change for the new project.
-        // Use newContents when adding the file to the new project.
-        newProject.addTextFile(new TextFile(newSourceFileName, newContents));
-      } else {
-        // If we get here, we know that the contents of the file can just be copied from the old
-        // project. Since it might be a binary file, we copy it as a raw file (that works for both
-        // text and binary files).
-        byte[] contents = storageIo.downloadRawFile(userId, oldProjectId, oldSourceFileName);
-        newProject.addRawFile(new RawFile(newSourceFileName, contents));
+        // The contents of the file can just be copied from the old project.
+        copiedFileNames.put(oldSourceFileName, newSourceFileName);
       }
     }
 
     // Create the new project and return the new project's id.
-    return storageIo.createProject(userId, newProject, getProjectSettings(icon, vcode, vname,
-        useslocation, aname, sizing, showListsAsJson));
+    long newProjectId = storageIo.createProject(userId, newProject, getProjectSettings(icon,
+        vcode, vname, useslocation, aname, sizing, showListsAsJson));
+    try {
+      storageIo.copySourceFiles(userId, oldProjectId, newProjectId, copiedFileNames);
+    } catch (RuntimeException e) {
+      // Don't leave a partial copy behind.
+      storageIo.deleteProject(userId, newProjectId);
+      throw e;
+    }
+    return newProjectId;
   }
 
   @Override
@@ -573,28 +631,65 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    CountingOutputStream zipOutputStream = null;
+    long estimatedWaitMillis = 0;
+    String buildId = UUID.randomUUID().toString();
+    // Try the build servers in the order the pool suggests, moving on to the next one when a
+    // build server is full or can't be reached.
+    List<String> buildServerHosts = buildServers.getServersFor(userId);
+    String buildServer = null;
     try {
-      buildServerUrl = new URL(getBuildServerUrlStr(
-          user.getUserEmail(),
-          userId,
-          projectId,
-          outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-      FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-        projectName + ".aia", true, false, true, false);
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
-
-      int responseCode = 0;
-      responseCode = connection.getResponseCode();
+      HttpURLConnection connection;
+      int responseCode;
+      for (int attempt = 0; ; attempt++) {
+        buildServer = buildServerHosts.get(attempt);
+        boolean lastAttempt = attempt == buildServerHosts.size() - 1;
+        buildServerUrl = new URL(getBuildServerUrlStr(
+            buildServer,
+            user.getUserEmail(),
+            userId,
+            projectId,
+            outputFileDir) + "&buildId=" + buildId);
+        connection = (HttpURLConnection) buildServerUrl.openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        // Stream the project source to the build server as it is zipped, instead of holding the
+        // whole zip in memory and letting HttpURLConnection buffer another copy of it.
+        connection.setChunkedStreamingMode(BUILD_REQUEST_CHUNK_SIZE);
+
+        zipOutputStream = null;
+        try {
+          zipOutputStream = new CountingOutputStream(
+              new BufferedOutputStream(connection.getOutputStream(), BUILD_REQUEST_CHUNK_SIZE));
+          FileExporter fileExporter = new FileExporterImpl();
+          fileExporter.exportProjectSourceZip(userId, projectId, false,
+              /* includeAndroidKeystore */ true, true, false, true, false, zipOutputStream);
+          zipOutputStream.flush();
+          zipOutputStream.close();
+
+          responseCode = connection.getResponseCode();
+        } catch (IOException e) {
+          // A project that is too large would fail on any build server.
+          if (lastAttempt || (zipOutputStream != null
+              && zipOutputStream.getCount() >= (5 * 1024 * 1024) /* 5 MB */)) {
+            throw e;
+          }
+          LOG.log(Level.WARNING, "Build server " + buildServer + " can't be reached, trying "
+              + buildServerHosts.get(attempt + 1), e);
+          buildServers.reportUnreachable(buildServer);
+          releaseConnection(connection);
+          continue;
+        }
+        if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE && !lastAttempt) {
+          LOG.info("Build server " + buildServer + " is busy, trying "
+              + buildServerHosts.get(attempt + 1));
+          buildServers.reportRejected(buildServer);
+          releaseConnection(connection);
+          continue;
+        }
+        break;
+      }
+
       if (responseCode != HttpURLConnection.HTTP_OK) {
         // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
         // can provide an appropriate error message to the user.
@@ -628,6 +723,14 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
         return new RpcResult(responseCode, "", StringUtils.escape(error));
       }
+      String estimatedWait = connection.getHeaderField(ESTIMATED_WAIT_HEADER);
+      if (estimatedWait != null) {
+        try {
+          estimatedWaitMillis = Long.parseLong(estimatedWait);
+        } catch (NumberFormatException e) {
+          // Not worth failing the build for.
+        }
+      }
     } catch (MalformedURLException e) {
       CrashReport.createAndLogError(LOG, null,
           buildErrorMsg("MalformedURLException", buildServerUrl, userId, projectId), e);
@@ -635,7 +738,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile == null ? -1 : zipFile.getContent().length;
+      long zipFileLength = zipOutputStream == null ? -1 : zipOutputStream.getCount();
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -653,8 +756,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // In particular, we often see RequestTooLargeException (if the zip is too
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+      if (e instanceof ApiProxy.RequestTooLargeException && zipOutputStream != null) {
+        long zipFileLength = zipOutputStream.getCount();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
@@ -669,22 +772,31 @@ public final class YoungAndroidProjectService extends CommonProjectService {
           buildErrorMsg("RuntimeException", buildServerUrl, userId, projectId), wrappedException);
       return new RpcResult(false, "", wrappedException.getMessage());
     }
-    return new RpcResult(true, "Building " + projectName, "");
+    memcache.put(buildProgressKey(userId, projectId, target),
+        new BuildInProgress(buildServer, buildId, 0, 10, false),
+        Expiration.byDeltaSeconds(BUILD_PROGRESS_EXPIRATION_SECONDS));
+    String output = "Building " + projectName;
+    if (estimatedWaitMillis > 0) {
+      // The build server is busy and has queued the build.
+      output += " (waiting for the build server, about " +
+          Math.max(1, estimatedWaitMillis / 60000) + " min)";
+    }
+    return new RpcResult(true, output, "");
   }
 
   private String buildErrorMsg(String exceptionName, URL buildURL, String userId, long projectId) {
     return "Request to build failed with " + exceptionName + ", user=" + userId
         + ", project=" + projectId + ", build URL is " + buildURL
-        + " [" + buildURL.toString().length() + "]";
+        + (buildURL == null ? "" : " [" + buildURL.toString().length() + "]");
   }
 
   // Note that this is a function rather than just a constant because we assume it will get
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
-  private String getBuildServerUrlStr(String userName, String userId,
+  private String getBuildServerUrlStr(String buildServer, String userName, String userId,
                                       long projectId, String fileName)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
+    return "http://" + buildServer + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
@@ -713,6 +825,19 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     }
   }
 
+  /*
+   * Reads and discards what is left of the response to a request that is being abandoned, and
+   * closes the connection, so that it doesn't linger while the next build server is tried.
+   */
+  private static void releaseConnection(HttpURLConnection connection) {
+    try {
+      readContent(connection.getErrorStream());
+    } catch (IOException e) {
+      // Nothing more to read. That's ok.
+    }
+    connection.disconnect();
+  }
+
   /*
    * Reads the UTF-8 content from the given input stream.
    */
@@ -744,9 +869,27 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   @Override
   public RpcResult getBuildResult(User user, long projectId, String target) {
     String userId = user.getUserId();
+    int currentProgress = 0;
+    // Follow the build on the build server while it is in progress, and only look for its
+    // results once it is over.
+    String progressKey = buildProgressKey(userId, projectId, target);
+    BuildInProgress build = (BuildInProgress) memcache.get(progressKey);
+    if (build != null) {
+      currentProgress = build.progress;
+      BuildInProgress update = waitForBuildProgress(build);
+      if (update == null || update.finished) {
+        // The build is over, or the build server no longer knows it.
+        memcache.delete(progressKey);
+      } else if (update != build) {
+        memcache.put(progressKey, update,
+            Expiration.byDeltaSeconds(BUILD_PROGRESS_EXPIRATION_SECONDS));
+        return new RpcResult(-1, "" + update.progress, ""); // Build not finished
+      }
+      // Otherwise the build server couldn't be asked this time. The build is still followed by
+      // the next poll, but its results are looked for in case it is over.
+    }
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
     RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
@@ -760,56 +903,53 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         } catch (JSONException e) {
           buildResult = new RpcResult(1, "", "");
         }
+        memcache.delete(progressKey);
         break;
       }
     }
     return buildResult;
   }
 
-  /**
-   * Check if there are any build progress available for the given user's project
-   *
-   * @param user the User that owns the {@code projectId}.
-   * @param projectId  project id to be built
-   * @param target  build target (optional, implementation dependent)
+  /*
+   * Waits, for a limited time, for the build server to report that the build entered a new stage
+   * or is over. Returns what is then known about the build, or null if the build server doesn't
+   * know the build, for example because it was restarted. If the build server can't be asked
+   * right now, because of a timeout or an error, the given build is returned as it is.
    */
-  public void updateCurrentProgress(User user, long projectId, String target) {
+  private BuildInProgress waitForBuildProgress(BuildInProgress build) {
+    int waitSeconds = Math.max(0,
+        Math.min(buildProgressWaitSeconds.get(), MAX_BUILD_PROGRESS_WAIT_SECONDS));
     try {
-      String userId = user.getUserId();
-      String projectName = storageIo.getProjectName(userId, projectId);
-      String outputFileDir = BUILD_FOLDER + '/' + target;
-      URL buildServerUrl = null;
-      ProjectSourceZip zipFile = null;
-
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
-        userId, projectId, outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
+      URL progressUrl = new URL("http://" + build.buildServer + "/buildserver/progress"
+          + "?buildId=" + URLEncoder.encode(build.buildId, "UTF-8")
+          + "&seen=" + build.seenStages
+          + "&wait=" + waitSeconds);
+      HttpURLConnection connection = (HttpURLConnection) progressUrl.openConnection();
+      connection.setReadTimeout((waitSeconds + 10) * 1000);
       int responseCode = connection.getResponseCode();
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-          try {
-            String content = readContent(connection.getInputStream());
-            if (content != null && !content.isEmpty()) {
-              if (DEBUG) {
-                LOG.info("The current progress is " + content + "%.");
-              }
-              currentProgress = Integer.parseInt(content);
-            }
-          } catch (IOException e) {
-            // No content. That's ok.
-          }
-         }
-      } catch (MalformedURLException e) {
-        // that's ok, nothing to do
-      } catch (IOException e) {
-        // that's ok, nothing to do
-      } catch (EncryptionException e) {
-        // that's ok, nothing to do
-      } catch (RuntimeException e) {
-        // that's ok, nothing to do
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        releaseConnection(connection);
+        return responseCode == HttpURLConnection.HTTP_NOT_FOUND ? null : build;
       }
+      JSONObject progress = new JSONObject(readContent(connection.getInputStream()));
+      if (DEBUG) {
+        LOG.info("The current progress is " + progress.getInt("progress") + "%.");
+      }
+      return new BuildInProgress(build.buildServer, build.buildId,
+          progress.getJSONArray("events").length(),
+          progress.getInt("progress"), progress.getBoolean("finished"));
+    } catch (IOException e) {
+      // that's ok, nothing to do
+    } catch (JSONException e) {
+      // that's ok, nothing to do
+    } catch (RuntimeException e) {
+      // that's ok, nothing to do
+    }
+    return build;
+  }
+
+  private static String buildProgressKey(String userId, long projectId, String target) {
+    return "build-progress:" + userId + ":" + projectId + ":" + target;
   }
 
   // Nicely format floating number using only two decimal places
@@ -0,0 +1,189 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers, in the memory of this instance, what authenticating a request
+ * looks up: the user and whether their email is on the whitelist.
+ *
+ * <p>Other instances may change a user, so users are only remembered for a
+ * short while, and this instance forgets the users that it changes. The
+ * whitelist is reloaded periodically by one request at a time, while the
+ * others keep using the whitelist as it was last loaded; an email that is
+ * missing from it is still looked up in the datastore, so that users who
+ * have just been added get in right away.</p>
+ */
+final class AuthCache {
+
+  private final Cache<String, User> users;
+  private final long whiteListRefreshMillis;
+
+  // The lower case emails on the whitelist, or null until they are loaded.
+  private volatile Set<String> whiteList = null;
+  private volatile long whiteListLoadedTime = 0;
+  // Whether a request is reloading the whitelist
+  private final AtomicBoolean whiteListReloading = new AtomicBoolean(false);
+
+  private final AtomicLong userDatastoreReads = new AtomicLong();
+  private final AtomicLong whiteListHits = new AtomicLong();
+  private final AtomicLong whiteListQueries = new AtomicLong();
+  private final AtomicLong whiteListLoads = new AtomicLong();
+
+  /**
+   * @param maxUsers  the most users to remember
+   * @param userSeconds  how long to remember a user, or 0 not to
+   * @param whiteListRefreshSeconds  how often to reload the whitelist
+   */
+  AuthCache(int maxUsers, int userSeconds, int whiteListRefreshSeconds) {
+    users = CacheBuilder.newBuilder()
+        .maximumSize(userSeconds > 0 ? maxUsers : 0)
+        .expireAfterWrite(Math.max(userSeconds, 0), TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    whiteListRefreshMillis = TimeUnit.SECONDS.toMillis(whiteListRefreshSeconds);
+  }
+
+  /**
+   * Returns a copy of the remembered user with the given id, or null if the
+   * user isn't remembered or has a different email.
+   *
+   * @param email  the email the user must have, or null if any will do
+   */
+  User getUser(String userId, String email) {
+    User user = users.getIfPresent(userId);
+    if (user == null) {
+      return null;
+    }
+    if (email != null && !email.equals(user.getUserEmail())) {
+      return null;              // Looked up again to record the new email
+    }
+    return copy(user);
+  }
+
+  /**
+   * Remembers a user that was read from memcache or the datastore. Only
+   * users who have accepted the terms of service are remembered, as they
+   * are in memcache, because accepting changes the user.
+   */
+  void putUser(String userId, User user) {
+    if (user.getUserTosAccepted()) {
+      users.put(userId, copy(user));
+    }
+  }
+
+  /**
+   * Forgets the user with the given id, which is about to change.
+   */
+  void invalidateUser(String userId) {
+    users.invalidate(userId);
+  }
+
+  /**
+   * Counts a read of a user from the datastore.
+   */
+  void countUserDatastoreRead() {
+    userDatastoreReads.incrementAndGet();
+  }
+
+  /**
+   * Returns whether the whitelist must be (re)loaded and no other request is
+   * doing it. The caller that gets true must call {@link #setWhiteList} or
+   * {@link #abandonWhiteListReload}.
+   */
+  boolean claimWhiteListReload() {
+    if (whiteList != null
+        && System.currentTimeMillis() - whiteListLoadedTime <= whiteListRefreshMillis) {
+      return false;
+    }
+    return whiteListReloading.compareAndSet(false, true);
+  }
+
+  /**
+   * Lets another request reload the whitelist, after loading it failed.
+   */
+  void abandonWhiteListReload() {
+    whiteListReloading.set(false);
+  }
+
+  /**
+   * Returns whether the given lower case email is on the whitelist as it
+   * was last loaded, even if it is due to be reloaded.
+   *
+   * @return true if it is, or false if the datastore must be asked, such as
+   *     when the whitelist hasn't been loaded yet
+   */
+  boolean isWhiteListed(String emailLower) {
+    Set<String> emails = whiteList;
+    if (emails != null && emails.contains(emailLower)) {
+      whiteListHits.incrementAndGet();
+      return true;
+    }
+    whiteListQueries.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Replaces the whitelist with the given lower case emails.
+   */
+  void setWhiteList(Collection<String> emailsLower) {
+    Set<String> emails = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    emails.addAll(emailsLower);
+    whiteList = emails;
+    whiteListLoadedTime = System.currentTimeMillis();
+    whiteListLoads.incrementAndGet();
+    whiteListReloading.set(false);
+  }
+
+  /**
+   * Adds a lower case email that the datastore says is on the whitelist.
+   */
+  void addToWhiteList(String emailLower) {
+    Set<String> emails = whiteList;
+    if (emails != null) {
+      emails.add(emailLower);
+    }
+  }
+
+  /**
+   * Returns the counters, including the hit rate of the user cache.
+   */
+  Map<String, Long> getCounters() {
+    CacheStats stats = users.stats();
+    Map<String, Long> counters = Maps.newLinkedHashMap();
+    counters.put("userCacheHits", stats.hitCount());
+    counters.put("userCacheMisses", stats.missCount());
+    counters.put("userCacheHitPercent", Math.round(stats.hitRate() * 100));
+    counters.put("userCacheSize", users.size());
+    counters.put("userCacheEvictions", stats.evictionCount());
+    counters.put("userDatastoreReads", userDatastoreReads.get());
+    counters.put("whiteListHits", whiteListHits.get());
+    counters.put("whiteListQueries", whiteListQueries.get());
+    counters.put("whiteListLoads", whiteListLoads.get());
+    return counters;
+  }
+
+  // Callers change the users they get, e.g. to mark them as read only.
+  private static User copy(User user) {
+    User copy = user.copy();
+    copy.setPassword(user.getPassword());
+    return copy;
+  }
+}
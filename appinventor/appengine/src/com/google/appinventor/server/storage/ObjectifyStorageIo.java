@@ -12,6 +12,7 @@ import com.google.appengine.api.appidentity.AppIdentityServiceFailureException;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreInputStream;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.api.memcache.ErrorHandlers;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
@@ -32,6 +33,7 @@ import com.google.appinventor.server.storage.StoredData.MotdData;
 import com.google.appinventor.server.storage.StoredData.NonceData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
 import com.google.appinventor.server.storage.StoredData.PWData;
+import com.google.appinventor.server.storage.StoredData.SharedBlobData;
 import com.google.appinventor.server.storage.StoredData.SplashData;
 import com.google.appinventor.server.storage.StoredData.UserData;
 import com.google.appinventor.server.storage.StoredData.UserFileData;
@@ -56,11 +58,14 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyOpts;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Query;
 
@@ -85,10 +90,19 @@ import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -109,6 +123,9 @@ import org.json.JSONObject;
  */
 public class ObjectifyStorageIo implements  StorageIo {
   static final Flag<Boolean> requireTos = Flag.createFlag("require.tos", false);
+  // Whether to compress text sources when they are saved. Compressed files
+  // are readable either way.
+  static final Flag<Boolean> compressSources = Flag.createFlag("compress.sources", true);
 
   private static final Logger LOG = Logger.getLogger(ObjectifyStorageIo.class.getName());
 
@@ -119,18 +136,37 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   // TODO(user): need a way to modify this. Also, what is really a good value?
   private static final int MAX_JOB_RETRIES = 10;
+  // The most entity groups that a cross group transaction may span.
+  private static final int MAX_CROSS_GROUP_ENTITIES = 25;
+  // How much of a GCS object an export reads per request.
+  private static final int GCS_READ_BUFFER_SIZE = 1024 * 1024;
+  // Where the GCS objects holding shared content go.
+  private static final String SHARED_GCS_PREFIX = "shared/";
+  // The most unreferenced shared objects that one sweep looks at.
+  private static final int SHARED_BLOB_SWEEP_LIMIT = 100;
+  // The most users that an instance remembers for authenticating requests.
+  private static final int MAX_CACHED_USERS = 10000;
+  // The most whitelisted emails that an instance remembers.
+  private static final int MAX_CACHED_WHITELIST = 50000;
 
   private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
+  // Users and the whitelist, as looked up on every authenticated request.
+  private final AuthCache authCache = new AuthCache(MAX_CACHED_USERS,
+      Flag.createFlag("user.cache.seconds", 30).get(),
+      Flag.createFlag("whitelist.refresh.seconds", 300).get());
+
   private final GcsService gcsService;
 
   private static final String GCS_BUCKET_NAME;
 
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
-  private final boolean useGcs = Flag.createFlag("use.gcs", true).get();
+  @VisibleForTesting
+  boolean useGcs = Flag.createFlag("use.gcs", true).get();
 
-  private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
+  @VisibleForTesting
+  boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
   // Use this class to define the work of a job that can be
@@ -170,6 +206,13 @@ public class ObjectifyStorageIo implements  StorageIo {
     public IOException getIOException() {
       return exception;
     }
+    /*
+     * Jobs whose transaction spans several entity groups (at most
+     * MAX_CROSS_GROUP_ENTITIES) override this to return true.
+     */
+    public boolean isCrossGroup() {
+      return false;
+    }
   }
 
   // Create a final object of this class to hold a modifiable result value that
@@ -193,6 +236,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(CorruptionRecord.class);
     ObjectifyService.register(PWData.class);
     ObjectifyService.register(SplashData.class);
+    ObjectifyService.register(SharedBlobData.class);
 
     // Learn GCS Bucket from App Configuration or App Engine Default
     String gcsBucket = Flag.createFlag("gcs.bucket", "").get();
@@ -246,6 +290,10 @@ public class ObjectifyStorageIo implements  StorageIo {
    */
   @Override
   public User getUser(final String userId, final String email) {
+    User cachedUser = authCache.getUser(userId, email);
+    if (cachedUser != null) {
+      return cachedUser;
+    }
     String cachekey = User.usercachekey + "|" + userId;
     User tuser = (User) memcache.get(cachekey);
     if (tuser != null && tuser.getUserTosAccepted() && ((email == null) || (tuser.getUserEmail().equals(email)))) {
@@ -253,6 +301,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         setUserName(userId,tuser.getDefaultName());
         tuser.setUserName(tuser.getDefaultName());
       }
+      authCache.putUser(userId, tuser);
       return tuser;
     } else {                    // If not in memcache, or tos
                                 // not yet accepted, fetch from datastore
@@ -263,6 +312,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          authCache.countUserDatastoreRead();
           UserData userData = datastore.find(userKey(userId));
           boolean viaemail = false; // Which datastore copy did we find it with...
           Objectify qDatastore = null;
@@ -329,6 +379,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     // unreasonable to hit the datastore again. By pruning memcache ourselves, we have a
     // bit more control (maybe) of how things are flushed from memcache. Otherwise we are
     // at the whim of whatever algorithm App Engine employs now or in the future.
+    authCache.putUser(userId, user);
     return user;
   }
 
@@ -392,6 +443,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    authCache.invalidateUser(userId);
   }
 
   @Override
@@ -411,6 +463,8 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    memcache.delete(User.usercachekey + "|" + userId);
+    authCache.invalidateUser(userId);
   }
 
   @Override
@@ -434,7 +488,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
-
+    authCache.invalidateUser(userId);
   }
 
   @Override
@@ -458,6 +512,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    authCache.invalidateUser(userId);
   }
 
   @Override
@@ -481,6 +536,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    authCache.invalidateUser(userId);
   }
 
   @Override
@@ -501,6 +557,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
     memcache.delete(cachekey);  // Flush cached copy because it changed
+    authCache.invalidateUser(userId);
   }
 
   @Override
@@ -521,6 +578,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
     memcache.delete(cachekey);  // Flush cached copy because it changed
+    authCache.invalidateUser(userId);
   }
 
   @Override
@@ -631,8 +689,27 @@ public class ObjectifyStorageIo implements  StorageIo {
       final String projectSettings) {
     final Result<Long> projectId = new Result<Long>();
     final List<FileData> addedFiles = new ArrayList<FileData>();
+    final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+    Map<String, SharedBlob> sharedBlobs = Collections.emptyMap();
+    boolean filesStored = false;
 
     try {
+      for (TextFile file : project.getSourceFiles()) {
+        try {
+          contents.put(file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING));
+        } catch (UnsupportedEncodingException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+            collectUserErrorInfo(userId, file.getFileName()), e);
+        }
+      }
+      for (RawFile file : project.getRawSourceFiles()) {
+        contents.put(file.getFileName(), file.getContent());
+      }
+      // Assets whose content is already stored, e.g. in the project this
+      // one is remixed from, are not stored again.
+      sharedBlobs = acquireSharedBlobs(contents);
+      final Map<String, SharedBlob> blobs = sharedBlobs;
+
       // first job is on the project entity, creating the ProjectData object
       // and the associated files.
       runJobWithRetries(new JobRetryHelper() {
@@ -660,22 +737,13 @@ public class ObjectifyStorageIo implements  StorageIo {
           // written in this job, reading the assigned id from pd should work.
 
           Key<ProjectData> projectKey = projectKey(projectId.t);
-          for (TextFile file : project.getSourceFiles()) {
+          for (Map.Entry<String, byte[]> file : contents.entrySet()) {
             try {
               addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, userId,
-                  file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING)));
+                  file.getKey(), file.getValue(), blobs.get(file.getKey())));
             } catch (IOException e) { // GCS throws this
               throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId.t, file.getFileName()), e);
-            }
-          }
-          for (RawFile file : project.getRawSourceFiles()) {
-            try {
-              addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, userId, file.getFileName(),
-                  file.getContent()));
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId.t, file.getFileName()), e);
+                collectProjectErrorInfo(userId, projectId.t, file.getKey()), e);
             }
           }
           datastore.put(addedFiles);  // batch put
@@ -694,6 +762,8 @@ public class ObjectifyStorageIo implements  StorageIo {
                                        // We can use a transaction in production between the
                                        // production implementation of GCS does not touch the
                                        // datastore
+      filesStored = true;
+      markSharedBlobsWritten(sharedBlobs.values());
 
       // second job is on the user entity
       runJobWithRetries(new JobRetryHelper() {
@@ -709,7 +779,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       }, true);
     } catch (ObjectifyException e) {
       for (FileData addedFile : addedFiles) {
-        if (isTrue(addedFile.isGCS)) {  // Do something
+        // Shared objects may be in use by other files, so they are left for
+        // the sweeper.
+        if (isTrue(addedFile.isGCS) && addedFile.contentHash == null) {  // Do something
           if (addedFile.gcsName != null) {
             try {
               gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, addedFile.gcsName));
@@ -724,6 +796,10 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId.t), e);
       }
+    } finally {
+      if (!filesStored) {
+        releaseSharedBlobs(sharedBlobHashes(sharedBlobs.values()));
+      }
     }
     return projectId.t;
   }
@@ -731,23 +807,37 @@ public class ObjectifyStorageIo implements  StorageIo {
   /*
    *  Creates and returns a new FileData object with the specified fields.
    *  Does not check for the existence of the object and does not update
-   *  the database.
+   *  the database. If sharedBlob is not null, the file refers to it, and
+   *  content may be null if the object already holds it.
    */
   private FileData createRawFile(Key<ProjectData> projectKey, FileData.RoleEnum role,
-    String userId, String fileName, byte[] content) throws ObjectifyException, IOException {
+    String userId, String fileName, byte[] content, @Nullable SharedBlob sharedBlob)
+    throws ObjectifyException, IOException {
     validateGCS();
     FileData file = new FileData();
     file.fileName = fileName;
     file.projectKey = projectKey;
     file.role = role;
     file.userId = userId;
-    if (useGCSforFile(fileName, content.length)) {
+    if (sharedBlob == null) {
+      StorageCodec.Encoded stored = encodeContent(fileName, content);
+      file.codec = stored.codec;
+      content = stored.bytes;
+    }
+    if (sharedBlob != null || useGCSforFile(fileName, content.length)) {
       file.isGCS = true;
-      file.gcsName = makeGCSfileName(fileName, projectKey.getId());
-      GcsOutputChannel outputChannel =
-        gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, file.gcsName), GcsFileOptions.getDefaultInstance());
-      outputChannel.write(ByteBuffer.wrap(content));
-      outputChannel.close();
+      if (sharedBlob != null) {
+        file.gcsName = sharedBlob.gcsName;
+        file.contentHash = sharedBlob.hash;
+      } else {
+        file.gcsName = makeGCSfileName(fileName, projectKey.getId());
+      }
+      if (content != null && (sharedBlob == null || !sharedBlob.written)) {
+        GcsOutputChannel outputChannel =
+          gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, file.gcsName), GcsFileOptions.getDefaultInstance());
+        outputChannel.write(ByteBuffer.wrap(content));
+        outputChannel.close();
+      }
     } else {
       file.content = content;
     }
@@ -760,6 +850,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     // blobs associated with the project
     final List<String> blobKeys = new ArrayList<String>();
     final List<String> gcsPaths = new ArrayList<String>();
+    final List<String> sharedHashes = new ArrayList<String>();
     try {
       // first job deletes the UserProjectData in the user's entity group
       runJobWithRetries(new JobRetryHelper() {
@@ -776,10 +867,13 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          sharedHashes.clear();
           Key<ProjectData> projectKey = projectKey(projectId);
           Query<FileData> fdq = datastore.query(FileData.class).ancestor(projectKey);
           for (FileData fd: fdq) {
-            if (isTrue(fd.isGCS)) {
+            if (fd.contentHash != null) {
+              sharedHashes.add(fd.contentHash);
+            } else if (isTrue(fd.isGCS)) {
               gcsPaths.add(fd.gcsName);
             } else if (fd.isBlob) {
               blobKeys.add(fd.blobKey);
@@ -802,6 +896,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           LOG.log(Level.WARNING, "Unable to delete " + gcsName + " from GCS while deleting project", e);
         }
       }
+      releaseSharedBlobs(sharedHashes);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
@@ -1395,37 +1490,47 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void removeSourceFilesFromProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
+    final List<String> sharedHashes = new ArrayList<String>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate,
+              sharedHashes, fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    releaseSharedBlobs(sharedHashes);
   }
 
   @Override
   public void removeOutputFilesFromProject(final String userId, final long projectId,
       final String... fileNames) {
+    final List<String> sharedHashes = new ArrayList<String>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false,
+              sharedHashes, fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    releaseSharedBlobs(sharedHashes);
   }
 
+  // Adds the hashes of the shared content of the removed files to
+  // sharedHashes, for the caller to release once the job commits.
   private void removeFilesFromProject(Objectify datastore, long projectId,
-      FileData.RoleEnum role, boolean changeModDate, String... fileNames) {
+      FileData.RoleEnum role, boolean changeModDate, List<String> sharedHashes,
+      String... fileNames) {
+    sharedHashes.clear();
     Key<ProjectData> projectKey = projectKey(projectId);
     List<Key<FileData>> filesToRemove = new ArrayList<Key<FileData>>();
     for (String fileName : fileNames) {
@@ -1435,6 +1540,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (fd != null) {
         if (fd.role.equals(role)) {
           filesToRemove.add(projectFileKey(projectKey, fileName));
+          if (fd.contentHash != null) {
+            sharedHashes.add(fd.contentHash);
+          }
         } else {
           throw CrashReport.createAndLogError(LOG, null,
               collectProjectErrorInfo(null, projectId, fileName),
@@ -1557,143 +1665,630 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private long uploadRawFile(final long projectId, final String fileName, final String userId,
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
+    return uploadRawFiles(projectId, userId, force, Collections.singletonMap(fileName, content),
+        doingConversion);
+  }
+
+  @Override
+  public long uploadRawFiles(final long projectId, final String userId, final boolean force,
+      final Map<String, byte[]> contents) throws BlocksTruncatedException {
+    return uploadRawFiles(projectId, userId, force, contents, false);
+  }
+
+  // Saves several files of a project with one memcache lookup, one datastore
+  // get and one datastore put, writes their GCS objects concurrently and
+  // updates the project's modification date once.
+  private long uploadRawFiles(final long projectId, final String userId, final boolean force,
+      final Map<String, byte[]> contents, final boolean doingConversion)
+      throws BlocksTruncatedException {
+    if (contents.isEmpty()) {
+      return getProjectDateModified(userId, projectId);
+    }
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
-    final boolean useGCS = useGCSforFile(fileName, content.length);
-    final Result<String> oldBlobstoreKey = new Result<String>();
-    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
-        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
-        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
-      :false);
+    final List<String> oldBlobstoreKeys = new ArrayList<String>();
+    // Objects that the files no longer use. They are only let go of once the
+    // new contents are saved, as shared objects are never overwritten.
+    final List<String> oldGcsNames = new ArrayList<String>();
+    final List<String> oldContentHashes = new ArrayList<String>();
+    Map<String, SharedBlob> sharedBlobs = Collections.emptyMap();
+    boolean saved = false;
 
     try {
+      sharedBlobs = acquireSharedBlobs(contents);
+      final Map<String, SharedBlob> blobs = sharedBlobs;
       runJobWithRetries(new JobRetryHelper() {
-        FileData fd;
+        final List<FileData> fds = new ArrayList<FileData>();
 
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
-          Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
-          fd = (FileData) memcache.get(key.getString());
-          if (fd == null) {
-            fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
-          } else {
-            if (DEBUG) {
-              LOG.log(Level.INFO, "Fetched " + key.getString() + " from memcache.");
+          fds.clear();
+          oldBlobstoreKeys.clear();
+          oldGcsNames.clear();
+          oldContentHashes.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          List<Key<FileData>> keys = new ArrayList<Key<FileData>>();
+          List<String> keyStrings = new ArrayList<String>();
+          for (String fileName : contents.keySet()) {
+            Key<FileData> key = projectFileKey(projectKey, fileName);
+            keys.add(key);
+            keyStrings.add(key.getString());
+          }
+          Map<String, Object> cached = memcache.getAll(keyStrings);
+          List<Key<FileData>> uncachedKeys = new ArrayList<Key<FileData>>();
+          for (int i = 0; i < keys.size(); i++) {
+            if (cached.get(keyStrings.get(i)) == null) {
+              uncachedKeys.add(keys.get(i));
+            } else if (DEBUG) {
+              LOG.log(Level.INFO, "Fetched " + keyStrings.get(i) + " from memcache.");
             }
           }
+          Map<Key<FileData>, FileData> stored = uncachedKeys.isEmpty()
+              ? Collections.<Key<FileData>, FileData>emptyMap()
+              : datastore.get(uncachedKeys);
+
+          // Check every file before writing any of them.
+          List<Callable<Void>> gcsCalls = new ArrayList<Callable<Void>>();
+          Set<String> writtenGcsNames = new HashSet<String>();
+          Map<String, FileData> updated = new HashMap<String, FileData>();
+          int i = 0;
+          for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            String fileName = entry.getKey();
+            byte[] content = entry.getValue();
+            Key<FileData> key = keys.get(i);
+            String keyString = keyStrings.get(i);
+            i++;
+            FileData fd = (FileData) cached.get(keyString);
+            if (fd == null) {
+              fd = stored.get(key);
+            }
 
-          // <Screen>.yail files are missing when user converts AI1 project to AI2
-          // instead of blowing up, just create a <Screen>.yail file
-          if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))){
-            fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
-            fd.userId = userId;
-          }
+            // <Screen>.yail files are missing when user converts AI1 project to AI2
+            // instead of blowing up, just create a <Screen>.yail file
+            if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))){
+              fd = createProjectFile(datastore, projectKey, FileData.RoleEnum.SOURCE, fileName);
+              fd.userId = userId;
+            }
 
-          Preconditions.checkState(fd != null);
+            Preconditions.checkState(fd != null);
 
-          if (fd.userId != null && !fd.userId.equals("")) {
-            if (!fd.userId.equals(userId)) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectUserProjectErrorInfo(userId, projectId),
-                new UnauthorizedAccessException(userId, projectId, null));
+            if (fd.userId != null && !fd.userId.equals("")) {
+              if (!fd.userId.equals(userId)) {
+                throw CrashReport.createAndLogError(LOG, null,
+                  collectUserProjectErrorInfo(userId, projectId),
+                  new UnauthorizedAccessException(userId, projectId, null));
+              }
             }
-          }
 
-          if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
-            if (!force) {            // force is true if we *really* want to save it!
-              checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
+            if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
+              if (!force) {            // force is true if we *really* want to save it!
+                checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
+              }
             }
-          }
 
-          if (fd.isBlob) {
-            // mark the old blobstore blob for deletion
-           oldBlobstoreKey.t = fd.blobKey;
-          }
-          if (useGCS) {
-            fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
-            try {
-              GcsOutputChannel outputChannel =
-                gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
-              outputChannel.write(ByteBuffer.wrap(content));
-              outputChannel.close();
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
+            if (fd.isBlob) {
+              // mark the old blobstore blob for deletion
+              oldBlobstoreKeys.add(fd.blobKey);
             }
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-            fd.isBlob = false;  // in case we are converting from a blob
-            fd.blobstorePath = null;
-          } else {
-            if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
+            SharedBlob sharedBlob = blobs.get(fileName);
+            StorageCodec.Encoded encoded = encodeContent(fileName, content);
+            String gcsName = null;
+            if (sharedBlob != null) {
+              gcsName = sharedBlob.gcsName;
+            } else if (useGCSforFile(fileName, encoded.bytes.length)) {
+              gcsName = makeGCSfileName(fileName, projectId);
+            }
+            if (fd.contentHash != null) {
+              oldContentHashes.add(fd.contentHash);
+            } else if (isTrue(fd.isGCS) && fd.gcsName != null && !fd.gcsName.equals(gcsName)) {
+              // Was a GCS file of its own, which is either now stored in the
+              // data store because it got smaller, or now shared
+              oldGcsNames.add(fd.gcsName);
+            }
+            if (gcsName != null) {
+              fd.isGCS = true;
+              fd.gcsName = gcsName;
+              if (sharedBlob == null) {
+                fd.contentHash = null;
+                fd.codec = encoded.codec;
+                gcsCalls.add(writeGcsObject(gcsName, encoded.bytes,
+                    collectProjectErrorInfo(userId, projectId, fileName)));
+              } else {
+                fd.contentHash = sharedBlob.hash;
+                fd.codec = null;
+                if (!sharedBlob.written && writtenGcsNames.add(gcsName)) {
+                  gcsCalls.add(writeGcsObject(gcsName, content,
+                      collectProjectErrorInfo(userId, projectId, fileName)));
+                }
               }
+              // If the content was previously stored in the datastore, clear it out.
+              fd.content = null;
+              fd.isBlob = false;  // in case we are converting from a blob
+              fd.blobstorePath = null;
+            } else {
               fd.isGCS = false;
               fd.gcsName = null;
+              fd.contentHash = null;
+              // Note, Don't have to do anything if the file was in the
+              // Blobstore and shrank because the code above already
+              // handles removing the old contents from the Blobstore.
+              fd.isBlob = false;
+              fd.blobstorePath = null;
+              fd.content = encoded.bytes;
+              fd.codec = encoded.codec;
             }
-            // Note, Don't have to do anything if the file was in the
-            // Blobstore and shrank because the code above (3 lines
-            // into the function) already handles removing the old
-            // contents from the Blobstore.
-            fd.isBlob = false;
-            fd.blobstorePath = null;
-            fd.content = content;
-          }
-          if (considerBackup && !doingConversion) {
-            if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
-              try {
-                String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
-                GcsOutputChannel outputChannel =
-                    gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
-                outputChannel.write(ByteBuffer.wrap(content));
-                outputChannel.close();
-                fd.lastBackup = System.currentTimeMillis();
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
-              }
+            boolean considerBackup = useGcs
+                && fileName.contains("src/")
+                && (fileName.endsWith(".blk")      // AI1 Blocks Files
+                    || fileName.endsWith(".bky")   // Blockly files
+                    || fileName.endsWith(".scm")); // Form Definitions
+            if (considerBackup && !doingConversion
+                && (fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+              String backupName = makeGCSfileName(fileName + "." + formattedTime() + ".backup",
+                  projectId);
+              gcsCalls.add(writeGcsObject(backupName, content,
+                  collectProjectErrorInfo(userId, projectId, fileName + "(backup)")));
+              fd.lastBackup = System.currentTimeMillis();
             }
+            // Old file not marked with ownership, mark it now
+            if (fd.userId == null || fd.userId.equals("")) {
+              fd.userId = userId;
+            }
+            fds.add(fd);
+            updated.put(keyString, fd);
           }
-          // Old file not marked with ownership, mark it now
-          if (fd.userId == null || fd.userId.equals("")) {
-            fd.userId = userId;
-          }
-          datastore.put(fd);
-          memcache.put(key.getString(), fd); // Store the updated data in memcache
+
+          StorageTasks.runAll(gcsCalls);
+          datastore.put(fds);
+          memcache.putAll(updated); // Store the updated data in memcache
           modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
         }
 
         @Override
         public void onNonFatalError() {
-          if (fd != null && fd.blobKey != null) {
-            oldBlobstoreKey.t = fd.blobKey;
+          for (FileData fd : fds) {
+            if (fd.blobKey != null && !oldBlobstoreKeys.contains(fd.blobKey)) {
+              oldBlobstoreKeys.add(fd.blobKey);
+            }
           }
         }
       }, false);        // Use transaction for blobstore, otherwise we don't need one
                                // and without one the caching code comes into play.
+      saved = true;
+      markSharedBlobsWritten(sharedBlobs.values());
+      releaseSharedBlobs(oldContentHashes);
+      for (String oldGcsName : oldGcsNames) {
+        try {
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, oldGcsName));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to delete " + oldGcsName + " from GCS.", e);
+        }
+      }
 
-      // It would have been convenient to delete the old blobstore file within the run() method
+      // It would have been convenient to delete the old blobstore files within the run() method
       // above but that caused an exception where the app engine datastore claimed to be doing
       // operations on multiple entity groups within the same transaction.  Apparently the blobstore
       // operations are, at least partially, also datastore operations.
-      if (oldBlobstoreKey.t != null) {
-        deleteBlobstoreFile(oldBlobstoreKey.t);
+      for (String oldBlobstoreKey : oldBlobstoreKeys) {
+        deleteBlobstoreFile(oldBlobstoreKey);
       }
     } catch (ObjectifyException e) {
       if (e.getMessage().startsWith("Blocks")) { // Convert Exception
         throw new BlocksTruncatedException();
       }
       throw CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
+          collectProjectErrorInfo(userId, projectId, contents.keySet().toString()), e);
+    } finally {
+      if (!saved) {
+        releaseSharedBlobs(sharedBlobHashes(sharedBlobs.values()));
+      }
     }
     return modTime.t;
   }
 
+  // Returns a call that writes content to the named GCS object.
+  private Callable<Void> writeGcsObject(final String gcsName, final byte[] content,
+      final String errorInfo) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() {
+        try {
+          GcsOutputChannel outputChannel =
+            gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, gcsName), GcsFileOptions.getDefaultInstance());
+          outputChannel.write(ByteBuffer.wrap(content));
+          outputChannel.close();
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null, errorInfo, e);
+        }
+        return null;
+      }
+    };
+  }
+
+  // A shared GCS object that files are about to refer to.
+  private static final class SharedBlob {
+    final String hash;
+    final String gcsName;
+    // Whether the object already holds the content
+    final boolean written;
+
+    SharedBlob(String hash, String gcsName, boolean written) {
+      this.hash = hash;
+      this.gcsName = gcsName;
+      this.written = written;
+    }
+  }
+
+  // Takes a reference to the shared object for the content of each file in
+  // contents that is stored in one, and returns the objects by file name.
+  // The caller must write the content of each object that isn't written yet
+  // before a file refers to it, and release the references that no file
+  // ends up holding.
+  private Map<String, SharedBlob> acquireSharedBlobs(Map<String, byte[]> contents)
+      throws ObjectifyException {
+    Map<String, String> hashes = new LinkedHashMap<String, String>();
+    Map<String, Integer> references = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      if (useSharedBlobForFile(entry.getKey(), entry.getValue().length)) {
+        String hash = contentHash(entry.getValue());
+        hashes.put(entry.getKey(), hash);
+        addReference(references, hash);
+      }
+    }
+    Map<String, SharedBlob> blobsByHash = acquireSharedBlobReferences(references);
+    Map<String, SharedBlob> blobs = new HashMap<String, SharedBlob>();
+    for (Map.Entry<String, String> entry : hashes.entrySet()) {
+      blobs.put(entry.getKey(), blobsByHash.get(entry.getValue()));
+    }
+    return blobs;
+  }
+
+  // Takes the given number of references to the shared object for each
+  // content hash, creating the objects' entities if need be, and returns
+  // the objects by hash. The entities are changed in cross group
+  // transactions of up to MAX_CROSS_GROUP_ENTITIES, so that the assets of a
+  // project take a few round trips rather than one each. If a transaction
+  // fails, the references taken by the earlier ones are released.
+  private Map<String, SharedBlob> acquireSharedBlobReferences(Map<String, Integer> references)
+      throws ObjectifyException {
+    final Map<String, SharedBlob> blobs = new HashMap<String, SharedBlob>();
+    Map<String, Integer> acquired = new LinkedHashMap<String, Integer>();
+    boolean succeeded = false;
+    try {
+      for (final Map<String, Integer> batch : sharedBlobBatches(references)) {
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            Map<Key<SharedBlobData>, SharedBlobData> found = datastore.get(sharedBlobKeys(batch));
+            List<SharedBlobData> changed = new ArrayList<SharedBlobData>();
+            for (Map.Entry<String, Integer> entry : batch.entrySet()) {
+              String hash = entry.getKey();
+              SharedBlobData sbd = found.get(sharedBlobKey(hash));
+              if (sbd == null) {
+                sbd = new SharedBlobData();
+                sbd.hash = hash;
+                sbd.gcsName = SHARED_GCS_PREFIX + hash + "/" + UUID.randomUUID().toString();
+              }
+              sbd.refCount += entry.getValue();
+              sbd.unreferencedSince = 0;
+              changed.add(sbd);
+            }
+            datastore.put(changed);  // batch put
+            for (SharedBlobData sbd : changed) {
+              blobs.put(sbd.hash, new SharedBlob(sbd.hash, sbd.gcsName, sbd.written));
+            }
+          }
+          @Override
+          public boolean isCrossGroup() {
+            return true;
+          }
+        }, true);
+        acquired.putAll(batch);
+      }
+      succeeded = true;
+    } finally {
+      if (!succeeded) {
+        releaseSharedBlobReferences(acquired);
+      }
+    }
+    return blobs;
+  }
+
+  // Records that the given objects hold their content, so that the files
+  // that refer to them next don't write it again. This is only an
+  // optimization, so failures are just logged.
+  private void markSharedBlobsWritten(Collection<SharedBlob> blobs) {
+    final Map<String, String> gcsNames = new LinkedHashMap<String, String>();
+    for (SharedBlob blob : blobs) {
+      if (!blob.written) {
+        gcsNames.put(blob.hash, blob.gcsName);
+      }
+    }
+    for (final Map<String, String> batch : sharedBlobBatches(gcsNames)) {
+      try {
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            Map<Key<SharedBlobData>, SharedBlobData> found =
+                datastore.get(sharedBlobKeys(batch));
+            List<SharedBlobData> changed = new ArrayList<SharedBlobData>();
+            for (SharedBlobData sbd : found.values()) {
+              if (sbd.gcsName.equals(batch.get(sbd.hash)) && !sbd.written) {
+                sbd.written = true;
+                changed.add(sbd);
+              }
+            }
+            datastore.put(changed);  // batch put
+          }
+          @Override
+          public boolean isCrossGroup() {
+            return true;
+          }
+        }, true);
+      } catch (ObjectifyException e) {
+        LOG.log(Level.WARNING, "Unable to mark " + batch.values() + " as written", e);
+      }
+    }
+  }
+
+  // Releases one reference to a shared object for each of the given hashes.
+  // Failures are just logged: an object that keeps a reference too many is
+  // never swept, which only wastes space.
+  private void releaseSharedBlobs(Collection<String> hashes) {
+    Map<String, Integer> references = new LinkedHashMap<String, Integer>();
+    for (String hash : hashes) {
+      addReference(references, hash);
+    }
+    releaseSharedBlobReferences(references);
+  }
+
+  // Releases the given number of references to the shared object for each
+  // content hash, in cross group transactions like those that take them.
+  private void releaseSharedBlobReferences(Map<String, Integer> references) {
+    for (final Map<String, Integer> batch : sharedBlobBatches(references)) {
+      try {
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            Map<Key<SharedBlobData>, SharedBlobData> found =
+                datastore.get(sharedBlobKeys(batch));
+            List<SharedBlobData> changed = new ArrayList<SharedBlobData>();
+            for (SharedBlobData sbd : found.values()) {
+              if (sbd.refCount > 0) {
+                sbd.refCount = Math.max(0, sbd.refCount - batch.get(sbd.hash));
+                if (sbd.refCount == 0) {
+                  sbd.unreferencedSince = System.currentTimeMillis();
+                }
+                changed.add(sbd);
+              }
+            }
+            datastore.put(changed);  // batch put
+          }
+          @Override
+          public boolean isCrossGroup() {
+            return true;
+          }
+        }, true);
+      } catch (ObjectifyException e) {
+        LOG.log(Level.WARNING, "Unable to release shared content " + batch.keySet(), e);
+      }
+    }
+  }
+
+  private static void addReference(Map<String, Integer> references, String hash) {
+    Integer count = references.get(hash);
+    references.put(hash, count == null ? 1 : count + 1);
+  }
+
+  // Splits the given map, keyed by content hash, into maps small enough for
+  // a cross group transaction.
+  private static <V> List<Map<String, V>> sharedBlobBatches(Map<String, V> byHash) {
+    List<Map<String, V>> batches = new ArrayList<Map<String, V>>();
+    Map<String, V> batch = null;
+    for (Map.Entry<String, V> entry : byHash.entrySet()) {
+      if (batch == null || batch.size() == MAX_CROSS_GROUP_ENTITIES) {
+        batch = new LinkedHashMap<String, V>();
+        batches.add(batch);
+      }
+      batch.put(entry.getKey(), entry.getValue());
+    }
+    return batches;
+  }
+
+  private List<Key<SharedBlobData>> sharedBlobKeys(Map<String, ?> byHash) {
+    List<Key<SharedBlobData>> keys = new ArrayList<Key<SharedBlobData>>();
+    for (String hash : byHash.keySet()) {
+      keys.add(sharedBlobKey(hash));
+    }
+    return keys;
+  }
+
+  private static List<String> sharedBlobHashes(Collection<SharedBlob> blobs) {
+    List<String> hashes = new ArrayList<String>();
+    for (SharedBlob blob : blobs) {
+      hashes.add(blob.hash);
+    }
+    return hashes;
+  }
+
+  @Override
+  public void copySourceFiles(final String userId, final long fromProjectId,
+      final long toProjectId, final Map<String, String> fileNames) {
+    validateGCS();
+    final Map<Key<FileData>, FileData> sources = new HashMap<Key<FileData>, FileData>();
+    final List<FileData> copies = new ArrayList<FileData>();
+    List<SharedBlob> writtenBlobs = new ArrayList<SharedBlob>();
+    List<String> acquiredHashes = new ArrayList<String>();
+    boolean copied = false;
+    try {
+      final List<Key<FileData>> keys = new ArrayList<Key<FileData>>();
+      for (String fileName : fileNames.keySet()) {
+        keys.add(projectFileKey(projectKey(fromProjectId), fileName));
+      }
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          sources.clear();
+          sources.putAll(datastore.get(keys));
+        }
+      }, false);
+
+      Key<ProjectData> toProjectKey = projectKey(toProjectId);
+      // The files that refer to a shared object, with the hash of their
+      // content, and the content that may have to be written.
+      Map<FileData, String> sharedFiles = new LinkedHashMap<FileData, String>();
+      Map<FileData, byte[]> sharedContents = new HashMap<FileData, byte[]>();
+      Map<String, Integer> references = new LinkedHashMap<String, Integer>();
+      for (Key<FileData> key : keys) {
+        FileData fd = sources.get(key);
+        if (fd == null) {
+          continue;  // deleted since the caller listed it
+        }
+        if (fd.userId != null && !fd.userId.equals("") && !fd.userId.equals(userId)) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectUserProjectErrorInfo(userId, fromProjectId),
+              new UnauthorizedAccessException(userId, fromProjectId, null));
+        }
+        String fileName = fd.fileName;
+        String newFileName = fileNames.get(fileName);
+        if (fd.contentHash != null) {
+          // Copy the reference, not the content.
+          sharedFiles.put(fd, fd.contentHash);
+          addReference(references, fd.contentHash);
+        } else if (fd.content != null && !fd.isBlob && !isTrue(fd.isGCS)
+            && !useGCSforFile(newFileName, fd.content.length)) {
+          // Copy the content as it is stored, in its codec.
+          FileData copy = new FileData();
+          copy.fileName = newFileName;
+          copy.projectKey = toProjectKey;
+          copy.role = FileData.RoleEnum.SOURCE;
+          copy.userId = userId;
+          copy.content = fd.content;
+          copy.codec = fd.codec;
+          copies.add(copy);
+        } else {
+          byte[] content = fd.content != null && !fd.isBlob && !isTrue(fd.isGCS)
+              ? StorageCodec.decode(fd.codec, fd.content)
+              : downloadRawFile(userId, fromProjectId, fileName);
+          if (useSharedBlobForFile(newFileName, content.length)) {
+            String hash = contentHash(content);
+            sharedFiles.put(fd, hash);
+            sharedContents.put(fd, content);
+            addReference(references, hash);
+          } else {
+            copies.add(createRawFile(toProjectKey, FileData.RoleEnum.SOURCE, userId,
+                newFileName, content, null));
+          }
+        }
+      }
+
+      Map<String, SharedBlob> blobs = acquireSharedBlobReferences(references);
+      for (Map.Entry<String, Integer> entry : references.entrySet()) {
+        for (int i = 0; i < entry.getValue(); i++) {
+          acquiredHashes.add(entry.getKey());
+        }
+      }
+      for (Map.Entry<FileData, String> entry : sharedFiles.entrySet()) {
+        FileData fd = entry.getKey();
+        SharedBlob blob = blobs.get(entry.getValue());
+        byte[] content = sharedContents.get(fd);
+        if (content == null && !blob.gcsName.equals(fd.gcsName)) {
+          // The entity was swept and made again, and the new object may
+          // not hold the content yet.
+          content = downloadRawFile(userId, fromProjectId, fd.fileName);
+        }
+        copies.add(createRawFile(toProjectKey, FileData.RoleEnum.SOURCE, userId,
+            fileNames.get(fd.fileName), content, blob));
+        if (content != null) {
+          writtenBlobs.add(blob);
+        }
+      }
+
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          datastore.put(copies);  // batch put
+          updateProjectModDate(datastore, toProjectId, false);
+        }
+      }, true);
+      copied = true;
+      markSharedBlobsWritten(writtenBlobs);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, toProjectId, fileNames.values().toString()), e);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, toProjectId, fileNames.values().toString()), e);
+    } finally {
+      if (!copied) {
+        releaseSharedBlobs(acquiredHashes);
+        for (FileData copy : copies) {
+          if (isTrue(copy.isGCS) && copy.contentHash == null) {
+            try {
+              gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, copy.gcsName));
+            } catch (IOException e) {
+              LOG.log(Level.WARNING, "Unable to delete " + copy.gcsName +
+                  " from GCS while aborting a project copy.", e);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public int sweepSharedBlobs(long minUnreferencedMillis) {
+    long cutoff = System.currentTimeMillis() - minUnreferencedMillis;
+    Objectify datastore = ObjectifyService.begin();
+    List<Key<SharedBlobData>> candidates = datastore.query(SharedBlobData.class)
+        .filter("unreferencedSince >", 0L)
+        .filter("unreferencedSince <=", cutoff)
+        .limit(SHARED_BLOB_SWEEP_LIMIT)
+        .listKeys();
+    int swept = 0;
+    for (final Key<SharedBlobData> key : candidates) {
+      // Counting the files that refer to the content guards against a
+      // reference that was released more than once.
+      final int references = datastore.query(FileData.class)
+          .filter("contentHash", key.getName()).count();
+      final Result<String> gcsName = new Result<String>();
+      try {
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            gcsName.t = null;
+            SharedBlobData sbd = datastore.find(key);
+            if (sbd == null || sbd.refCount > 0 || sbd.unreferencedSince == 0) {
+              return;  // referenced again since the query
+            }
+            if (references > 0) {
+              LOG.log(Level.WARNING, "Repairing the reference count of shared content "
+                  + sbd.hash);
+              sbd.refCount = references;
+              sbd.unreferencedSince = 0;
+              datastore.put(sbd);
+              return;
+            }
+            datastore.delete(key);
+            gcsName.t = sbd.gcsName;
+          }
+        }, true);
+      } catch (ObjectifyException e) {
+        LOG.log(Level.WARNING, "Unable to sweep shared content " + key.getName(), e);
+        continue;
+      }
+      if (gcsName.t != null) {
+        try {
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, gcsName.t));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to delete " + gcsName.t + " from GCS.", e);
+        }
+        swept++;
+      }
+    }
+    return swept;
+  }
+
   protected void deleteBlobstoreFile(String blobKeyString) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1723,6 +2318,17 @@ public class ObjectifyStorageIo implements  StorageIo {
     return false;
   }
 
+  // Assets are stored once for all the files with the same content, since
+  // copies and remixes of a project share them.
+  @VisibleForTesting
+  boolean useSharedBlobForFile(String fileName, int length) {
+    return useGCSforFile(fileName, length) && fileName.contains("assets/");
+  }
+
+  private static String contentHash(byte[] content) {
+    return Hashing.sha256().hashBytes(content).toString();
+  }
+
   // Make a GCS file name
   String makeGCSfileName(String fileName, long projectId) {
     return (projectId + "/" + fileName);
@@ -1734,6 +2340,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     final Result<Long> modTime = new Result<Long>();
     final Result<String> oldBlobKeyString = new Result<String>();
     final Result<String> oldgcsName = new Result<String>();
+    final Result<String> oldContentHash = new Result<String>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -1750,7 +2357,8 @@ public class ObjectifyStorageIo implements  StorageIo {
               }
             }
             oldBlobKeyString.t = fileData.blobKey;
-            if (isTrue(fileData.isGCS)) {
+            oldContentHash.t = fileData.contentHash;
+            if (isTrue(fileData.isGCS) && fileData.contentHash == null) {
               oldgcsName.t = fileData.gcsName;
             }
           }
@@ -1772,6 +2380,9 @@ public class ObjectifyStorageIo implements  StorageIo {
         LOG.log(Level.WARNING, "Unable to delete " + oldgcsName + " from GCS.", e);
       }
     }
+    if (oldContentHash.t != null) {
+      releaseSharedBlobs(Collections.singletonList(oldContentHash.t));
+    }
     return (modTime.t == null) ? 0 : modTime.t;
   }
 
@@ -1865,7 +2476,8 @@ public class ObjectifyStorageIo implements  StorageIo {
                   }
                 }
                 recovered = true;
-                result.t = resultBuffer.array();
+                // Decoded before the downgrade below, which encodes it again
+                result.t = decodeStoredContent(fileData, resultBuffer.array(), userId, projectId);
                 // Should we downgrade to the blobstore (for debugging)?
                 // Note: We only run if we have at least 5 seconds of runtime left in the request
                 long timeRemaining = ApiProxy.getCurrentEnvironment().getRemainingMillis();
@@ -1919,7 +2531,9 @@ public class ObjectifyStorageIo implements  StorageIo {
           if (fileData.blobKey == null) {
             throw new BlobReadException("blobKey is null");
           }
-          result.t = getBlobstoreBytes(fileData.blobKey);
+          // Decoded before the upgrade below, which encodes it again
+          result.t = decodeStoredContent(fileData, getBlobstoreBytes(fileData.blobKey), userId,
+              projectId);
           // Time to consider upgrading this file if we are moving to GCS
           // Note: We only run if we have at least 5 seconds of runtime left in the request
           long timeRemaining = ApiProxy.getCurrentEnvironment().getRemainingMillis();
@@ -1943,7 +2557,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         if (fileData.content == null) {
           result.t = new byte[0];
         } else {
-          result.t = fileData.content;
+          result.t = decodeStoredContent(fileData, fileData.content, userId, projectId);
         }
       }
     } else {
@@ -1951,9 +2565,61 @@ public class ObjectifyStorageIo implements  StorageIo {
           collectProjectErrorInfo(userId, projectId, fileName),
           new FileNotFoundException("No data for " + fileName));
     }
+    if (fileData.codec == null && compressSources.get() && fileData.content != null
+        && !fileData.isBlob && !isTrue(fileData.isGCS) && StorageCodec.isCompressible(fileName)) {
+      // Stored before text sources were compressed, which we can fix now
+      // that we have the content, much like the conversion to GCS above.
+      compressStoredContent(projectId, fileName, fileData.content);
+    }
     return result.t;
   }
 
+  // Returns the content of a file from the bytes stored for it, which are
+  // compressed if the file has a codec.
+  private byte[] decodeStoredContent(FileData fileData, byte[] stored, String userId,
+      long projectId) {
+    try {
+      return StorageCodec.decode(fileData.codec, stored);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileData.fileName), e);
+    }
+  }
+
+  // Compresses the stored content of a file that was saved uncompressed,
+  // unless the file changed since its content was read. This only saves
+  // space, so failures are just logged.
+  private void compressStoredContent(final long projectId, final String fileName,
+      final byte[] content) {
+    final StorageCodec.Encoded stored = StorageCodec.encode(fileName, content);
+    if (stored.codec == null) {
+      return;                   // Not worth compressing
+    }
+    final Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          FileData fd = datastore.find(fileKey);
+          if (fd != null && fd.codec == null && !fd.isBlob && !isTrue(fd.isGCS)
+              && Arrays.equals(fd.content, content)) {
+            fd.content = stored.bytes;
+            fd.codec = stored.codec;
+            datastore.put(fd);
+          }
+        }
+      }, true);
+      memcache.delete(fileKey.getString());
+    } catch (ObjectifyException e) {
+      LOG.log(Level.WARNING, "Unable to compress " + fileName + " in project " + projectId, e);
+    }
+  }
+
+  // Encodes the content of a file for storage.
+  private StorageCodec.Encoded encodeContent(String fileName, byte[] content) {
+    return compressSources.get() ? StorageCodec.encode(fileName, content) : StorageCodec.asIs(content);
+  }
+
   // Note: this must be called outside of any transaction, since getBlobKey()
   // uses the current transaction and it will most likely have the wrong
   // entity group!
@@ -1992,8 +2658,53 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean includeScreenShots,
     final boolean forGallery,
     final boolean fatalError) throws IOException {
+    Result<Integer> fileCount = new Result<Integer>();
+    Result<String> projectName = new Result<String>();
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    writeProjectSourceZip(userId, projectId, includeProjectHistory, includeAndroidKeystore,
+        includeYail, includeScreenShots, forGallery, fatalError, zipFile, fileCount, projectName);
+
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    OutputStream outputStream) throws IOException {
+    Result<Integer> fileCount = new Result<Integer>();
+    writeProjectSourceZip(userId, projectId, includeProjectHistory, includeAndroidKeystore,
+        includeYail, includeScreenShots, forGallery, fatalError, outputStream, fileCount,
+        new Result<String>());
+    return fileCount.t;
+  }
+
+  /*
+   * Writes the project's files as a zip to outputStream, one file at a time, so that only the
+   * file being written is held in memory. Nothing is written to outputStream if the project has no
+   * files. outputStream is not closed.
+   */
+  private void writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    OutputStream outputStream,
+    final Result<Integer> fileCount,
+    final Result<String> projectName) throws IOException {
     validateGCS();
-    final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
     final Result<String> projectHistory = new Result<String>();
     projectHistory.t = null;
@@ -2002,12 +2713,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
+    final ZipOutputStream out = new ZipOutputStream(outputStream);
     out.setComment("Built with MIT App Inventor");
 
     try {
@@ -2059,87 +2768,37 @@ public class ObjectifyStorageIo implements  StorageIo {
         throw error;
       }
       // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data = null;
-        if (fd.isBlob) {
-          try {
-            if (fd.blobKey == null) {
-              throw new BlobReadException("blobKey is null");
+      // blobs in the job. The blobstore and GCS contents of the next few
+      // files are read concurrently while earlier files are written to the
+      // zip, which still gets the files in order.
+      ExecutorService readers = StorageTasks.newExecutor(StorageTasks.MAX_PARALLELISM);
+      try {
+        List<Future<byte[]>> reads = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < fileData.size(); i++) {
+          while (reads.size() < fileData.size()
+              && reads.size() < i + StorageTasks.MAX_PARALLELISM) {
+            FileData next = fileData.get(reads.size());
+            if (next.isBlob || isTrue(next.isGCS)) {
+              reads.add(readers.submit(fileContentReader(userId, projectId, next, fatalError)));
+            } else {
+              reads.add(Futures.immediateFuture(next.content));
             }
-            data = getBlobstoreBytes(fd.blobKey);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
           }
-        } else if (isTrue(fd.isGCS)) {
-          try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      if (DEBUG) {
-                        LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                      }
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
-              }
-            }
-          } catch (IOException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
+          fileName = fileData.get(i).fileName;
+          byte[] data = StorageTasks.getUninterruptibly(reads.get(i));
+          reads.set(i, null);   // Let the content go once it is written
+          if (data == null) {     // This happens if file creation is interrupted
+            data = new byte[0];
+          } else {
+            data = StorageCodec.decode(fileData.get(i).codec, data);
           }
-        } else {
-          data = fd.content;
+          out.putNextEntry(new ZipEntry(fileName));
+          out.write(data, 0, data.length);
+          out.closeEntry();
+          fileCount.t++;
         }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
-        }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        fileCount.t++;
+      } finally {
+        readers.shutdownNow();
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
@@ -2193,15 +2852,76 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
 
-    out.close();
+    out.finish();
+  }
 
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
+  // Returns a call that reads the content of a project file that is stored in
+  // the blobstore or in GCS, for an export.
+  private Callable<byte[]> fileContentReader(final String userId, final long projectId,
+      final FileData fd, final boolean fatalError) {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        if (fd.isBlob) {
+          try {
+            if (fd.blobKey == null) {
+              throw new BlobReadException("blobKey is null");
+            }
+            return getBlobstoreBytes(fd.blobKey);
+          } catch (BlobReadException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectProjectErrorInfo(userId, projectId, fd.fileName), e);
+          }
+        }
+        try {
+          return readGcsFileForExport(fd.gcsName, fatalError);
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, fd.fileName), e);
+        }
+      }
+    };
+  }
+
+  // Reads a GCS object in one pass, without first asking for its size. A
+  // missing object, which older zero length uploads left behind, reads as
+  // empty unless fatalError is set.
+  private byte[] readGcsFileForExport(String gcsName, boolean fatalError) throws IOException {
+    GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, gcsName);
+    boolean npfHappened = false;
+    for (int count = 0; count < 5; count++) {
+      try {
+        GcsInputChannel readChannel =
+            gcsService.openPrefetchingReadChannel(gcsFileName, 0, GCS_READ_BUFFER_SIZE);
+        byte[] data;
+        try {
+          data = ByteStreams.toByteArray(Channels.newInputStream(readChannel));
+        } finally {
+          readChannel.close();
+        }
+        if (npfHappened) {    // We lost at least once
+          LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + gcsName +
+            " count = " + count);
+        }
+        return data;
+      } catch (FileNotFoundException e) {
+        // This happens if the object in GCS is non-existent, which would happen
+        // when people uploaded a zero length object. As of this change, we now
+        // store zero length objects into GCS, but there are plenty of older objects
+        // that are missing in GCS.
+        LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + gcsName);
+        npfHappened = true;
+      } catch (NullPointerException e) {
+        // Older versions of the GCS client fail this way for missing objects.
+        LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + gcsName);
+        npfHappened = true;
+      }
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+    LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + gcsName);
+    if (fatalError) {
+      throw new IOException("FATAL Error reading file from GCS filename = " + gcsName);
+    }
+    return new byte[0];
   }
 
   @Override
@@ -2285,13 +3005,52 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public boolean checkWhiteList(String email) {
+    String emailLower = email.toLowerCase();
+    if (authCache.claimWhiteListReload()) {
+      boolean loaded = false;
+      try {
+        authCache.setWhiteList(loadWhiteList());
+        loaded = true;
+      } finally {
+        if (!loaded) {
+          authCache.abandonWhiteListReload();
+        }
+      }
+    }
+    if (authCache.isWhiteListed(emailLower)) {
+      return true;
+    }
+    // They may have been added since the whitelist was loaded, or another
+    // request may still be loading it.
     Objectify datastore = ObjectifyService.begin();
-    WhiteListData data = datastore.query(WhiteListData.class).filter("emailLower", email.toLowerCase()).get();
+    WhiteListData data = datastore.query(WhiteListData.class).filter("emailLower", emailLower).get();
     if (data == null)
       return false;
+    authCache.addToWhiteList(emailLower);
     return true;
   }
 
+  // Loads at most MAX_CACHED_WHITELIST emails; the others are looked up one
+  // at a time.
+  private List<String> loadWhiteList() {
+    Objectify datastore = ObjectifyService.begin();
+    List<String> emails = new ArrayList<String>();
+    for (WhiteListData data : datastore.query(WhiteListData.class).limit(MAX_CACHED_WHITELIST)) {
+      if (data.emailLower != null) {
+        emails.add(data.emailLower);
+      }
+    }
+    return emails;
+  }
+
+  /**
+   * Returns the counters of the users and whitelist remembered for
+   * authenticating requests, including their hit rates.
+   */
+  public Map<String, Long> getAuthCacheCounters() {
+    return authCache.getCounters();
+  }
+
   @Override
   public void storeFeedback(final String notes, final String foundIn, final String faultData,
     final String comments, final String datestamp, final String email, final String projectId) {
@@ -2493,6 +3252,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     return new Key<FileData>(projectKey, FileData.class, fileName);
   }
 
+  private Key<SharedBlobData> sharedBlobKey(String hash) {
+    return new Key<SharedBlobData>(SharedBlobData.class, hash);
+  }
+
   /**
    * Call job.run() if we get a {@link java.util.ConcurrentModificationException}
    * or {@link com.google.appinventor.server.storage.ObjectifyException}
@@ -2516,7 +3279,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     int tries = 0;
     while (tries <= MAX_JOB_RETRIES) {
       Objectify datastore;
-      if (useTransaction) {
+      if (useTransaction && job.isCrossGroup()) {
+        datastore = ObjectifyService.begin(new ObjectifyOpts().setBeginTransaction(true)
+            .setTransactionOptions(TransactionOptions.Builder.withXG(true)));
+      } else if (useTransaction) {
         datastore = ObjectifyService.beginTransaction();
       } else {
         datastore = ObjectifyService.begin();
@@ -2639,6 +3405,12 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @VisibleForTesting
+  boolean isCompressedFile(long projectId, String fileName) {
+    FileData fd = ObjectifyService.begin().find(projectFileKey(projectKey(projectId), fileName));
+    return fd != null && fd.codec != null;
+  }
+
   @VisibleForTesting
   ProjectData getProject(long projectId) {
     return ObjectifyService.begin().find(projectKey(projectId));
@@ -2665,7 +3437,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   // layer to the client code which will put up a dialog box for the user to review
   // See Ode.java for more information
   private void checkForBlocksTruncation(FileData fd) throws ObjectifyException {
-    if (fd.isBlob || isTrue(fd.isGCS) || fd.content.length > 120)
+    if (fd.isBlob || isTrue(fd.isGCS) || fd.codec != null || fd.content.length > 120)
       throw new ObjectifyException("BlocksTruncated"); // Hack
     // I'm avoiding having to modify every use of runJobWithRetries to handle a new
     // exception, so we use this dodge.
@@ -2876,6 +3648,10 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
       throw CrashReport.createAndLogError(LOG, null, null, e);
     }
+    if (user.getId() != null) {
+      memcache.delete(User.usercachekey + "|" + user.getId());
+      authCache.invalidateUser(user.getId());
+    }
   }
 
 }
@@ -0,0 +1,113 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes the content of project files for storage.
+ *
+ * <p>Blocks, form and YAIL files, and project properties, are text that
+ * compresses about tenfold, so they are stored deflated. The codec of a
+ * file is recorded in {@link StoredData.FileData#codec}, which is null for
+ * content that is stored as is, such as that of assets and of files saved
+ * before compression was introduced.</p>
+ */
+final class StorageCodec {
+
+  // Content compressed with java.util.zip.Deflater, in the zlib format.
+  static final String DEFLATE = "deflate";
+
+  // Shorter content isn't worth compressing. This is more than the length
+  // of an empty blocks workspace, which checkForBlocksTruncation relies on.
+  private static final int MIN_COMPRESSED_LENGTH = 256;
+
+  /**
+   * Content as it is stored, with the codec that encoded it.
+   */
+  static final class Encoded {
+    final String codec;
+    final byte[] bytes;
+
+    private Encoded(String codec, byte[] bytes) {
+      this.codec = codec;
+      this.bytes = bytes;
+    }
+  }
+
+  private StorageCodec() {
+  }
+
+  /**
+   * Returns whether the content of the given file is compressed when it is
+   * long enough.
+   */
+  static boolean isCompressible(String fileName) {
+    return fileName.endsWith(".bky")
+        || fileName.endsWith(".scm")
+        || fileName.endsWith(".yail")
+        || fileName.endsWith("project.properties");
+  }
+
+  /**
+   * Encodes the content of the given file, compressing it if that makes it
+   * smaller.
+   */
+  static Encoded encode(String fileName, byte[] content) {
+    if (isCompressible(fileName) && content.length >= MIN_COMPRESSED_LENGTH) {
+      byte[] deflated = deflate(content);
+      if (deflated.length < content.length) {
+        return new Encoded(DEFLATE, deflated);
+      }
+    }
+    return asIs(content);
+  }
+
+  /**
+   * Returns content that is to be stored as is.
+   */
+  static Encoded asIs(byte[] content) {
+    return new Encoded(null, content);
+  }
+
+  /**
+   * Returns the content that was encoded with the given codec.
+   *
+   * @param codec  the codec, or null if the content is stored as is
+   * @throws IOException if the content is corrupt or the codec is unknown
+   */
+  static byte[] decode(String codec, byte[] stored) throws IOException {
+    if (codec == null || stored == null || stored.length == 0) {
+      return stored;            // e.g. a GCS object that went missing
+    } else if (codec.equals(DEFLATE)) {
+      return ByteStreams.toByteArray(
+          new InflaterInputStream(new ByteArrayInputStream(stored)));
+    }
+    throw new IOException("Unknown storage codec " + codec);
+  }
+
+  private static byte[] deflate(byte[] content) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4);
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+      out.write(content);
+      out.close();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);  // ByteArrayOutputStream doesn't throw
+    } finally {
+      deflater.end();
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -19,8 +19,10 @@ import com.google.appinventor.shared.rpc.user.SplashConfig;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
@@ -184,6 +186,20 @@ public interface StorageIo {
    */
   void deleteProject(String userId, long projectId);
 
+  /**
+   * Copies source files of one project to another. Content that is stored
+   * once for all the files that have it, such as assets, is not copied;
+   * the new files refer to it.
+   *
+   * @param userId user ID
+   * @param fromProjectId the ID of the project to copy from
+   * @param toProjectId the ID of the project to copy to
+   * @param fileIds the IDs of the files to copy, mapped to the IDs of the
+   *        copies
+   */
+  void copySourceFiles(String userId, long fromProjectId, long toProjectId,
+      Map<String, String> fileIds);
+
   /**
    * Returns an array with the user's projects.
    *
@@ -489,6 +505,18 @@ public interface StorageIo {
    */
   long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads several files of a project at once, updating the project's
+   * modification date once.
+   * @param projectId  project ID
+   * @param userId the user who owns the files
+   * @param force write files even if they are trivial workspaces
+   * @param contents  file contents by file ID
+   * @return modification date for project
+   */
+  long uploadRawFiles(long projectId, String userId, boolean force, Map<String, byte[]> contents)
+      throws BlocksTruncatedException;
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -590,6 +618,29 @@ public interface StorageIo {
     final boolean forGallery,
     final boolean fatalError) throws IOException;
 
+  /**
+   *  Exports project files as a zip archive written to the given stream, without holding the
+   *  whole archive in memory
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param outputStream  the stream to write the zip to; it is not closed
+   *
+   * @return  the number of files in the zip
+   * @throws IllegalArgumentException if the project has no files, in which
+   *         case nothing has been written to outputStream
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    OutputStream outputStream) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -644,6 +695,10 @@ public interface StorageIo {
   // Called by the task queue to actually upgrade user's projects
   void doUpgrade(String userId);
 
+  // Deletes shared content that no file has referred to for the given time,
+  // returning the number of objects deleted. Called periodically by cron.
+  int sweepSharedBlobs(long minUnreferencedMillis);
+
   // Retrieve the current Splash Screen Version
   SplashConfig getSplashConfig();
 
@@ -0,0 +1,120 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs blocking storage calls, such as reads and writes of Google Cloud
+ * Storage objects, several at a time.
+ *
+ * <p>App Engine only lets a request use threads that it created itself, and
+ * those threads end with the request, so each batch of calls gets its own
+ * short-lived executor.</p>
+ */
+final class StorageTasks {
+
+  // The most calls that one request runs at a time.
+  static final int MAX_PARALLELISM = 8;
+
+  private StorageTasks() {
+  }
+
+  /**
+   * Returns an executor whose threads belong to the current request. Outside
+   * of App Engine, e.g. in tests without a request, they are ordinary daemon
+   * threads. The caller must shut the executor down.
+   */
+  static ExecutorService newExecutor(int threads) {
+    ThreadFactory threadFactory;
+    if (ApiProxy.getCurrentEnvironment() != null) {
+      threadFactory = ThreadManager.currentRequestThreadFactory();
+    } else {
+      threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("storage-task-%d").build();
+    }
+    return Executors.newFixedThreadPool(Math.max(1, threads), threadFactory);
+  }
+
+  /**
+   * Runs the given calls, at most {@link #MAX_PARALLELISM} at a time, and
+   * returns their results in order. A single call is run on the calling
+   * thread.
+   *
+   * @throws RuntimeException the first exception thrown by a call, or the
+   *     exception wrapped in a RuntimeException if it is checked
+   */
+  static <T> List<T> runAll(List<? extends Callable<T>> calls) {
+    List<T> results = Lists.newArrayListWithCapacity(calls.size());
+    if (calls.size() <= 1) {
+      for (Callable<T> call : calls) {
+        try {
+          results.add(call.call());
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return results;
+    }
+    ExecutorService executor = newExecutor(Math.min(calls.size(), MAX_PARALLELISM));
+    try {
+      List<Future<T>> futures = Lists.newArrayListWithCapacity(calls.size());
+      for (Callable<T> call : calls) {
+        futures.add(executor.submit(call));
+      }
+      for (Future<T> future : futures) {
+        results.add(getUninterruptibly(future));
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Waits for the given call to end and returns its result.
+   *
+   * @throws RuntimeException the exception thrown by the call, or the
+   *     exception wrapped in a RuntimeException if it is checked
+   */
+  static <T> T getUninterruptibly(Future<T> future) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
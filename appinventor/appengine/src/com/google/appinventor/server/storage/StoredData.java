@@ -188,6 +188,15 @@ public class StoredData {
     // The GCS filename, sans bucket name
     String gcsName;
 
+    // The hash of the content, if gcsName is the object of a SharedBlobData,
+    // which other files with the same content may share. That object must
+    // never be overwritten or deleted on behalf of one file.
+    @Indexed String contentHash;
+
+    // How content or the GCS object is encoded (see StorageCodec), or null
+    // if it is stored as is
+    String codec;
+
     // File settings
     String settings;
 
@@ -199,6 +208,29 @@ public class StoredData {
                                 // it yet
   }
 
+  // A GCS object holding content that is shared by all the files with that
+  // content, such as the assets of a project and of its copies. It is swept
+  // some time after the last file stops referring to it.
+  @Unindexed
+  static final class SharedBlobData {
+    // The SHA-256 hash of the content
+    @Id String hash;
+
+    // The GCS filename, sans bucket name. It is different each time an
+    // entity is created for the hash, so that sweeping an old entity never
+    // deletes the object of a new one.
+    String gcsName;
+
+    // The number of files that refer to the content
+    long refCount;
+
+    // Whether the content has been completely written to gcsName
+    boolean written;
+
+    // When refCount last dropped to zero, or 0 while it is positive
+    @Indexed long unreferencedSince;
+  }
+
   // MOTD data.
   @Unindexed
   static final class MotdData {
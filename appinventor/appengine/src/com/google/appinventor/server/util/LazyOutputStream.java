@@ -0,0 +1,65 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that opens the stream it writes to when the first bytes
+ * are written to it. This puts off committing to an output, such as setting
+ * the headers of a download or starting a zip entry, until there is
+ * something to send, so that a failure before then can still be handled
+ * cleanly.
+ */
+public abstract class LazyOutputStream extends OutputStream {
+  private OutputStream out;
+
+  /**
+   * Opens the stream to write to. Called at most once.
+   */
+  protected abstract OutputStream open() throws IOException;
+
+  /**
+   * Returns whether anything has been written.
+   */
+  public boolean isOpened() {
+    return out != null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out().write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len > 0) {
+      out().write(b, off, len);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  private OutputStream out() throws IOException {
+    if (out == null) {
+      out = open();
+    }
+    return out;
+  }
+}
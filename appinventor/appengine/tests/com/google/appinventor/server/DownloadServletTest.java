@@ -6,10 +6,11 @@
 
 package com.google.appinventor.server;
 
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.riq.MockHttpServletRequest;
 import com.riq.MockHttpServletResponse;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -18,11 +19,17 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 
 /**
  * Tests for {@link DownloadServlet}. Mocks out FileExporter. Mainly tests
@@ -40,11 +47,22 @@ public class DownloadServletTest {
   private static final String DUMMY_FILENAME = "filename123";
   private static final String DUMMY_APK_FILENAME = "filename123.apk";
   private static final String DUMMY_ZIP_FILENAME = "filename123.aia";
-  private static final String DUMMY_ZIP_FILENAME_WITH_TITLE = "MyProjectTitle123.aia";
   private static final String DOWNLOAD_URL = "http://localhost/baseUrl/download/";
 
-  private ProjectSourceZip dummyZip;
-  private ProjectSourceZip dummyZipWithTitle;
+  private static final byte[] ZIP_CONTENT = { (byte) 'P', (byte) 'K', (byte) 3, (byte) 4 };
+
+  /*
+   * Writes ZIP_CONTENT to the stream passed to a streaming export.
+   */
+  private static class ZipWriter implements IAnswer<Integer> {
+    @Override
+    public Integer answer() throws Throwable {
+      Object[] arguments = EasyMock.getCurrentArguments();
+      ((OutputStream) arguments[arguments.length - 1]).write(ZIP_CONTENT);
+      return 1;
+    }
+  }
+
   private RawFile dummyApk;
   private RawFile dummyFile;
 
@@ -60,8 +78,6 @@ public class DownloadServletTest {
     exporterMock = PowerMock.createNiceMock(FileExporterImpl.class);
     PowerMock.expectNew(FileExporterImpl.class).andReturn(exporterMock).anyTimes();
 
-    dummyZip = new ProjectSourceZip(DUMMY_ZIP_FILENAME, new byte[] {}, 2);
-    dummyZipWithTitle = new ProjectSourceZip(DUMMY_ZIP_FILENAME_WITH_TITLE, new byte[] {}, 2);
     dummyApk = new RawFile(DUMMY_APK_FILENAME, new byte[] {});
     dummyFile = new RawFile(DUMMY_FILENAME, new byte[] {});
   }
@@ -76,14 +92,18 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithoutTitle() throws Exception {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false, null, false, false, false, false))
-        .andReturn(dummyZip);
+    expect(exporterMock.getProjectSourceZipName(USER_ID, PROJECT_ID))
+        .andReturn(DUMMY_ZIP_FILENAME);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq(false), eq(false), eq(false), eq(false), isA(OutputStream.class)))
+        .andAnswer(new ZipWriter());
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
     download.doGet(request, response);
     checkResponseHeader(response, "attachment; filename=\"filename123.aia\"");
     assertEquals("application/zip; charset=utf-8", response.getContentType());
+    assertTrue(Arrays.equals(ZIP_CONTENT, response.getContentAsByteArray()));
     PowerMock.verifyAll();
   }
 
@@ -91,9 +111,9 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithTitle() throws IOException {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234/My Project Title 123");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false,
-        "MyProjectTitle123.aia", false, false, false, false))
-        .andReturn(dummyZipWithTitle);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq(false), eq(false), eq(false), eq(false), isA(OutputStream.class)))
+        .andAnswer(new ZipWriter());
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -108,16 +128,20 @@ public class DownloadServletTest {
     IllegalArgumentException expectedException = new IllegalArgumentException();
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/12345");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, 12345L, true, false, null, false, false, false, false))
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(12345L), eq(true), eq(false),
+        eq(false), eq(false), eq(false), eq(false), isA(OutputStream.class)))
         .andThrow(expectedException);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
     try {
-      download.doGet(request, new MockHttpServletResponse());
+      download.doGet(request, response);
       fail();
     } catch (IllegalArgumentException ex) {
       assertEquals(expectedException, ex);
     }
+    // The failure came before the download started.
+    assertNull(response.getHeader("content-disposition"));
     PowerMock.verifyAll();
   }
 
@@ -135,6 +135,29 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
+  public void testExportProjectSourceZipToStream() throws IOException {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    int fileCount = exporter.exportProjectSourceZip(USER_ID, projectId,
+      true, false, false, false, false, false, zip);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(
+        new ProjectSourceZip(PROJECT_NAME + ".aia", zip.toByteArray(), fileCount));
+    assertEquals(3, content.size());
+  }
+
+  public void testExportProjectSourceZipToStreamWithNonExistingProject() throws IOException {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try {
+      exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, false, false, false,
+          false, zip);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof IllegalArgumentException ||
+                 e.getCause() instanceof IllegalArgumentException);
+    }
+    // Nothing was sent, so a caller can still report the error.
+    assertEquals(0, zip.size());
+  }
+
   public void testExportProjectOutputFileWithTarget() throws IOException {
     RawFile file = exporter.exportProjectOutputFile(USER_ID, projectId, "target1");
     assertEquals(TARGET1_NAME, file.getFileName());
@@ -167,5 +190,27 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
-  // TODO(user): Add test of exportAllProjectsSourceZip().
+  public void testExportAllProjectsSourceZipToStream() throws IOException {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    assertEquals(1, exporter.exportAllProjectsSourceZip(USER_ID, zip));
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+    ZipEntry zipEntry = zis.getNextEntry();
+    assertEquals(PROJECT_NAME + ".aia", zipEntry.getName());
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(
+        new ProjectSourceZip(zipEntry.getName(), ByteStreams.toByteArray(zis), 2));
+    assertFalse(content.containsKey(FileExporter.REMIX_INFORMATION_FILE_PATH));
+    assertNull(zis.getNextEntry());
+  }
+
+  public void testExportAllProjectsSourceZipToStreamWithoutProjects() throws IOException {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try {
+      exporter.exportAllProjectsSourceZip(USER_ID + "1", zip);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    // Nothing was sent, so a caller can still report the error.
+    assertEquals(0, zip.size());
+  }
 }
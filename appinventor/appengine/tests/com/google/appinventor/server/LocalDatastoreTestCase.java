@@ -22,8 +22,11 @@ import junit.framework.TestCase;
 public abstract class LocalDatastoreTestCase extends TestCase {
   private static final String APPENGINE_GENERATED_DIR = TestUtils.APP_INVENTOR_ROOT_DIR +
       "/appengine/build/tests/appengine-generated";
+  // Like production, the datastore is high replication, which cross group
+  // transactions need, but every write is applied at once.
   private final LocalServiceTestHelper helper =
-      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+          .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
 
   @Override
   protected void setUp() throws Exception {
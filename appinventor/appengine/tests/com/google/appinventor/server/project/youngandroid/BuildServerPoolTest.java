@@ -0,0 +1,240 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link BuildServerPool}, against build servers that run in the test.
+ */
+public class BuildServerPoolTest extends TestCase {
+  private static final String VERSION = "v1";
+
+  private final List<StubBuildServer> buildServers = Lists.newArrayList();
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (StubBuildServer buildServer : buildServers) {
+      buildServer.stop();
+    }
+  }
+
+  public void testEachUserSticksToABuildServer() throws Exception {
+    BuildServerPool pool = createPool(3);
+    Set<String> firstChoices = Sets.newHashSet();
+    for (int i = 0; i < 30; i++) {
+      String userId = "user" + i;
+      String first = pool.getServersFor(userId).get(0);
+      assertEquals(first, pool.getServersFor(userId).get(0));
+      firstChoices.add(first);
+    }
+    // The users are spread over the build servers.
+    assertEquals(3, firstChoices.size());
+  }
+
+  public void testFullBuildServerIsTriedAfterTheOthers() throws Exception {
+    BuildServerPool pool = createPool(2);
+    String preferred = pool.getServersFor("alice").get(0);
+    getStub(preferred).activeBuilds = 4;
+    BuildServerPool refreshed = new BuildServerPool(pool.getHosts(), VERSION);
+
+    List<String> servers = refreshed.getServersFor("alice");
+    assertEquals(2, servers.size());
+    assertEquals(preferred, servers.get(1));
+  }
+
+  public void testRejectingBuildServerIsTriedAfterTheOthers() throws Exception {
+    BuildServerPool pool = createPool(2);
+    String preferred = pool.getServersFor("alice").get(0);
+    pool.reportRejected(preferred);
+    assertEquals(preferred, pool.getServersFor("alice").get(1));
+  }
+
+  public void testUnhealthyBuildServerIsTriedLast() throws Exception {
+    BuildServerPool pool = createPool(3);
+    String preferred = pool.getServersFor("alice").get(0);
+    getStub(preferred).healthy = false;
+    // Full build servers still go before unhealthy ones.
+    for (StubBuildServer buildServer : buildServers) {
+      if (!buildServer.getHost().equals(preferred)) {
+        buildServer.activeBuilds = 4;
+      }
+    }
+    BuildServerPool refreshed = new BuildServerPool(pool.getHosts(), VERSION);
+
+    List<String> servers = refreshed.getServersFor("alice");
+    assertEquals(3, servers.size());
+    assertEquals(preferred, servers.get(2));
+  }
+
+  public void testBuildServerWithAnotherVersionIsLeftOut() throws Exception {
+    BuildServerPool pool = createPool(2);
+    buildServers.get(0).version = "v0";
+    BuildServerPool refreshed = new BuildServerPool(pool.getHosts(), VERSION);
+
+    assertEquals(Lists.newArrayList(buildServers.get(1).getHost()),
+        refreshed.getServersFor("alice"));
+    // Unless the version doesn't matter.
+    assertEquals(2, new BuildServerPool(pool.getHosts(), null).getServersFor("alice").size());
+  }
+
+  public void testAllBuildServersAreTriedIfNoneHasTheVersion() throws Exception {
+    BuildServerPool pool = createPool(2);
+    for (StubBuildServer buildServer : buildServers) {
+      buildServer.version = "v2";
+    }
+    BuildServerPool refreshed = new BuildServerPool(pool.getHosts(), VERSION);
+
+    // The build server that is tried refuses the build and says why.
+    assertEquals(2, refreshed.getServersFor("alice").size());
+  }
+
+  public void testSlowBuildServerKeepsItsLastStatus() throws Exception {
+    BuildServerPool pool = createPool(2);
+    StubBuildServer slow = buildServers.get(0);
+    slow.delayMillis = BuildServerPool.STATUS_REFRESH_DEADLINE_MILLIS + 2000;
+
+    long start = System.currentTimeMillis();
+    List<String> servers = pool.getServersFor("alice");
+    assertTrue(System.currentTimeMillis() - start
+        < BuildServerPool.STATUS_REFRESH_DEADLINE_MILLIS + 1000);
+    // It has no status yet, so it is taken to be down until it answers.
+    assertEquals(2, servers.size());
+    assertEquals(slow.getHost(), servers.get(1));
+    assertFalse(pool.getStatus(slow.getHost()).healthy);
+  }
+
+  public void testUnfinishedReadIsLeftForTheNextRequest() throws Exception {
+    StubBuildServer buildServer = new StubBuildServer();
+    buildServers.add(buildServer);
+    // The first thread never runs its read, like a thread that ended with its request.
+    final AtomicBoolean killed = new AtomicBoolean(false);
+    BuildServerPool pool = new BuildServerPool(Lists.newArrayList(buildServer.getHost()), VERSION,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = killed.compareAndSet(false, true) ? new Thread() : new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
+    assertFalse(pool.getStatus(buildServer.getHost()).healthy);
+    assertTrue(pool.getStatus(buildServer.getHost()).healthy);
+  }
+
+  public void testBuildServerThatIsDownIsStillTried() throws Exception {
+    BuildServerPool pool = createPool(2);
+    buildServers.get(0).stop();
+
+    List<String> servers = pool.getServersFor("alice");
+    assertEquals(2, servers.size());
+    assertEquals(buildServers.get(0).getHost(), servers.get(1));
+    assertFalse(pool.getStatus(buildServers.get(0).getHost()).healthy);
+  }
+
+  public void testParseHosts() {
+    assertEquals(Lists.newArrayList("a:9990", "b:9990"),
+        BuildServerPool.parseHosts(" a:9990, b:9990,"));
+  }
+
+  private BuildServerPool createPool(int size) throws IOException {
+    List<String> hosts = Lists.newArrayList();
+    for (int i = 0; i < size; i++) {
+      StubBuildServer buildServer = new StubBuildServer();
+      buildServers.add(buildServer);
+      hosts.add(buildServer.getHost());
+    }
+    return new BuildServerPool(hosts, VERSION);
+  }
+
+  private StubBuildServer getStub(String host) {
+    for (StubBuildServer buildServer : buildServers) {
+      if (buildServer.getHost().equals(host)) {
+        return buildServer;
+      }
+    }
+    throw new IllegalArgumentException(host);
+  }
+
+  /*
+   * Answers /buildserver/health and /buildserver/vars like a build server that can run 4 builds
+   * at the same time.
+   */
+  private static class StubBuildServer implements HttpHandler {
+    private final HttpServer server;
+    private boolean stopped = false;
+    volatile boolean healthy = true;
+    volatile String version = VERSION;
+    volatile int activeBuilds = 0;
+    volatile long delayMillis = 0;
+
+    StubBuildServer() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/buildserver/", this);
+      server.start();
+    }
+
+    String getHost() {
+      return "localhost:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+      if (!stopped) {
+        server.stop(0);
+        stopped = true;
+      }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      String page = exchange.getRequestURI().getPath();
+      if (page.endsWith("/health")) {
+        respond(exchange, healthy ? 200 : 403, healthy ? "ok" : "Build Server is shutdown");
+      } else if (page.endsWith("/vars")) {
+        respond(exchange, 200, "<html><body><tt>"
+            + "<b>buildserver-version</b> " + version + "<br>"
+            + "<b>num-processors</b> 8<br>"
+            + "<b>maximum-simultaneous-build-tasks-allowed</b> 4<br>"
+            + "<b>active-build-tasks</b> " + activeBuilds + "<br>"
+            + "</tt></body></html>");
+      } else {
+        respond(exchange, 404, "");
+      }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String content)
+        throws IOException {
+      byte[] bytes = content.getBytes("UTF-8");
+      exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+  }
+}
@@ -8,7 +8,10 @@ package com.google.appinventor.server.storage;
 
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.StoredData.FileData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.google.appinventor.server.storage.StoredData.SharedBlobData;
+import com.google.appinventor.server.storage.StoredData.WhiteListData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.component.Component;
 import com.google.appinventor.shared.rpc.project.Project;
@@ -20,8 +23,13 @@ import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -29,8 +37,15 @@ import java.io.UnsupportedEncodingException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.json.JSONObject;
 
@@ -160,8 +175,9 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
   public void testCreateProjectFailFirst() {
     final String USER_ID = "600";
     final String USER_EMAIL = "newuser600@test.com";
-    // fail on first job in createProject (2nd job overall)
-    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(2);
+    // fail on the project job in createProject (3rd job overall, after getUser and
+    // acquiring the shared content of the assets)
+    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(3);
 
     try {
       throwingStorage.getUser(USER_ID, USER_EMAIL);
@@ -177,8 +193,9 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
   public void testCreateProjectFailSecond() {
     final String USER_ID = "700";
     final String USER_EMAIL = "newuser700@test.com";
-    // fail on second job in createProject (3rd job overall)
-    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(3);
+    // fail on the user job in createProject (5th job overall, after getUser, acquiring
+    // the shared content of the assets, the project job and marking the content written)
+    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(5);
 
     try {
       throwingStorage.getUser(USER_ID, USER_EMAIL);
@@ -466,6 +483,330 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
           USER_ID, projectId, BLOCK_FILE_NAME)));
  }
 
+  public void testUploadRawFiles() throws Exception {
+    final String USER_ID = "1320";
+    final String USER_EMAIL = "newuser1320@test.com";
+    final String USER_ID2 = "1321";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, ASSET_FILE_NAME1, BLOCK_FILE_NAME);
+    Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+    contents.put(ASSET_FILE_NAME1, ASSET_FILE_CONTENT1);
+    contents.put(BLOCK_FILE_NAME, BLOCK_FILE_CONTENT);
+    long modificationDate = storage.uploadRawFiles(projectId, USER_ID, true, contents);
+    assertEquals(modificationDate, storage.getProjectDateModified(USER_ID, projectId));
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, ASSET_FILE_NAME1)));
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, BLOCK_FILE_NAME)));
+    assertTrue(storage.isGcsFile(projectId, ASSET_FILE_NAME1));
+    assertFalse(storage.isGcsFile(projectId, BLOCK_FILE_NAME));
+
+    // Another user can't save any of the files.
+    contents.put(ASSET_FILE_NAME1, RAW_FILE_CONTENT3);
+    contents.put(BLOCK_FILE_NAME, RAW_FILE_CONTENT3);
+    try {
+      storage.uploadRawFiles(projectId, USER_ID2, true, contents);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, ASSET_FILE_NAME1)));
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, BLOCK_FILE_NAME)));
+  }
+
+  public void testCopySourceFilesSharesAssets() throws Exception {
+    final String USER_ID = "1330";
+    final String USER_EMAIL = "newuser1330@test.com";
+    final String COPIED_ASSET_FILE_NAME = "assets/copy.jpg";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    long copyId = createProject(USER_ID, "Copy", FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    Map<String, String> fileNames = new LinkedHashMap<String, String>();
+    fileNames.put(FILE_NAME1, FILE_NAME1);
+    fileNames.put(RAW_FILE_NAME1, COPIED_ASSET_FILE_NAME);
+    storage.copySourceFiles(USER_ID, projectId, copyId, fileNames);
+    assertEquals(FILE_CONTENT1,
+        storage.downloadFile(USER_ID, copyId, FILE_NAME1, StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, copyId, COPIED_ASSET_FILE_NAME)));
+    assertTrue(storage.isGcsFile(copyId, COPIED_ASSET_FILE_NAME));
+
+    // The content outlives the project it was created for.
+    storage.deleteProject(USER_ID, projectId);
+    assertEquals(0, storage.sweepSharedBlobs(0));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, copyId, COPIED_ASSET_FILE_NAME)));
+
+    // Saving new content lets go of the old.
+    storage.uploadRawFile(copyId, COPIED_ASSET_FILE_NAME, USER_ID, true, RAW_FILE_CONTENT3);
+    assertEquals(1, storage.sweepSharedBlobs(0));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT3,
+        storage.downloadRawFile(USER_ID, copyId, COPIED_ASSET_FILE_NAME)));
+    storage.deleteProject(USER_ID, copyId);
+    assertEquals(1, storage.sweepSharedBlobs(0));
+  }
+
+  public void testConcurrentAcquiresOfSharedContent() throws Exception {
+    final String USER_ID = "1335";
+    final String USER_EMAIL = "newuser1335@test.com";
+    final int NUM_THREADS = 4;
+    storage.getUser(USER_ID, USER_EMAIL);
+    final List<Long> projectIds = Collections.synchronizedList(new ArrayList<Long>());
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < NUM_THREADS; i++) {
+      final Project copy = new Project(PROJECT_NAME + i);
+      copy.setProjectType(FAKE_PROJECT_TYPE);
+      copy.addRawFile(new RawFile(RAW_FILE_NAME1, RAW_FILE_CONTENT1));
+      copy.addRawFile(new RawFile(RAW_FILE_NAME2, RAW_FILE_CONTENT2));
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          setUpThread();
+          try {
+            start.await();
+            projectIds.add(storage.createProject(USER_ID, copy, SETTINGS));
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(Collections.emptyList(), failures);
+
+    // Every project holds a reference for each of its two assets, which have
+    // the same content.
+    List<SharedBlobData> blobs = ObjectifyService.begin().query(SharedBlobData.class).list();
+    assertEquals(1, blobs.size());
+    assertEquals(2 * NUM_THREADS, blobs.get(0).refCount);
+    for (long projectId : projectIds) {
+      assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+          storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+      storage.deleteProject(USER_ID, projectId);
+    }
+    assertEquals(1, storage.sweepSharedBlobs(0));
+  }
+
+  public void testSourcesAreCompressed() throws Exception {
+    final String USER_ID = "1340";
+    final String USER_EMAIL = "newuser1340@test.com";
+    final String BLOCKS_FILE_NAME = "src/com/domain/noname/Project1/Screen1.bky";
+    StringBuilder blocks = new StringBuilder("<xml>");
+    for (int i = 0; i < 100; i++) {
+      blocks.append("<block type=\"text\"><field name=\"TEXT\">").append(i)
+          .append("</field></block>");
+    }
+    blocks.append("</xml>");
+    byte[] content = blocks.toString().getBytes(StorageUtil.DEFAULT_CHARSET);
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCKS_FILE_NAME);
+
+    // Files saved uncompressed are compressed when they are read.
+    ObjectifyStorageIo.compressSources.setForTest(false);
+    try {
+      storage.uploadRawFile(projectId, BLOCKS_FILE_NAME, USER_ID, true, content);
+    } finally {
+      ObjectifyStorageIo.compressSources.setForTest(true);
+    }
+    assertFalse(storage.isCompressedFile(projectId, BLOCKS_FILE_NAME));
+    assertTrue(Arrays.equals(content, storage.downloadRawFile(USER_ID, projectId,
+        BLOCKS_FILE_NAME)));
+    assertTrue(storage.isCompressedFile(projectId, BLOCKS_FILE_NAME));
+    assertTrue(Arrays.equals(content, storage.downloadRawFile(USER_ID, projectId,
+        BLOCKS_FILE_NAME)));
+
+    storage.uploadRawFile(projectId, BLOCKS_FILE_NAME, USER_ID, true, content);
+    assertTrue(storage.isCompressedFile(projectId, BLOCKS_FILE_NAME));
+    assertTrue(Arrays.equals(content, storage.downloadRawFile(USER_ID, projectId,
+        BLOCKS_FILE_NAME)));
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(
+        storage.exportProjectSourceZip(USER_ID, projectId, false, false, null, false, false,
+            false, false).getContent()));
+    boolean exported = false;
+    for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+      if (entry.getName().equals(BLOCKS_FILE_NAME)) {
+        assertTrue(Arrays.equals(content, ByteStreams.toByteArray(zip)));
+        exported = true;
+      }
+    }
+    assertTrue(exported);
+
+    // Blocks files that are compressed aren't taken for empty workspaces.
+    try {
+      storage.uploadRawFile(projectId, BLOCKS_FILE_NAME, USER_ID, false, new byte[0]);
+      fail();
+    } catch (BlocksTruncatedException e) {
+      // expected
+    }
+  }
+
+  public void testCompressedGcsFileIsDowngradedDecoded() throws Exception {
+    final String USER_ID = "1346";
+    final String USER_EMAIL = "newuser1346@test.com";
+    final String BLOCKS_FILE_NAME = "src/com/domain/noname/Project1/Screen1.bky";
+    // Large enough to be stored in GCS even when compressed.
+    Random random = new Random(1346);
+    StringBuilder blocks = new StringBuilder("<xml>");
+    for (int i = 0; i < 10000; i++) {
+      blocks.append("<block type=\"text\"><field name=\"TEXT\">").append(random.nextLong())
+          .append("</field></block>");
+    }
+    blocks.append("</xml>");
+    byte[] content = blocks.toString().getBytes(StorageUtil.DEFAULT_CHARSET);
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCKS_FILE_NAME);
+    storage.uploadRawFile(projectId, BLOCKS_FILE_NAME, USER_ID, true, content);
+    assertTrue(storage.isGcsFile(projectId, BLOCKS_FILE_NAME));
+    assertTrue(storage.isCompressedFile(projectId, BLOCKS_FILE_NAME));
+
+    // Reading the file moves it out of GCS, compressed again from its content.
+    storage.useGcs = false;
+    storage.conversionEnabled = true;
+    assertTrue(Arrays.equals(content, storage.downloadRawFile(USER_ID, projectId,
+        BLOCKS_FILE_NAME)));
+    assertFalse(storage.isGcsFile(projectId, BLOCKS_FILE_NAME));
+    assertTrue(storage.isCompressedFile(projectId, BLOCKS_FILE_NAME));
+    assertTrue(Arrays.equals(content, storage.downloadRawFile(USER_ID, projectId,
+        BLOCKS_FILE_NAME)));
+  }
+
+  public void testExportReadsGcsFilesInOrder() throws Exception {
+    final String USER_ID = "1345";
+    final String USER_EMAIL = "newuser1345@test.com";
+    final String MISSING_FILE_NAME = "assets/missing.png";
+    storage.getUser(USER_ID, USER_EMAIL);
+    // More assets than are read at once, so that reads overlap with writing the zip.
+    Project assets = new Project(PROJECT_NAME);
+    assets.setProjectType(FAKE_PROJECT_TYPE);
+    assets.addTextFile(new TextFile(FILE_NAME1, FILE_CONTENT1));
+    Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+    expected.put(FILE_NAME1, FILE_CONTENT1.getBytes(StorageUtil.DEFAULT_CHARSET));
+    for (int i = 0; i < 2 * StorageTasks.MAX_PARALLELISM; i++) {
+      String fileName = String.format("assets/asset%02d.png", i);
+      byte[] content = { (byte) i, (byte) 1, (byte) 32, (byte) 255 };
+      assets.addRawFile(new RawFile(fileName, content));
+      expected.put(fileName, content);
+    }
+    long projectId = storage.createProject(USER_ID, assets, SETTINGS);
+
+    // A file whose GCS object is missing, as older zero length uploads left behind.
+    FileData missing = new FileData();
+    missing.fileName = MISSING_FILE_NAME;
+    missing.projectKey = new Key<ProjectData>(ProjectData.class, projectId);
+    missing.role = FileData.RoleEnum.SOURCE;
+    missing.userId = USER_ID;
+    missing.isGCS = true;
+    missing.gcsName = projectId + "/" + MISSING_FILE_NAME;
+    ObjectifyService.begin().put(missing);
+    expected.put(MISSING_FILE_NAME, new byte[0]);
+
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(
+        storage.exportProjectSourceZip(USER_ID, projectId, false, false, null, false, false,
+            false, false).getContent()));
+    List<String> exportedNames = new ArrayList<String>();
+    for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+      exportedNames.add(entry.getName());
+      assertTrue(entry.getName(),
+          Arrays.equals(expected.get(entry.getName()), ByteStreams.toByteArray(zip)));
+    }
+    // The files come in the order of their names, as the datastore lists them.
+    List<String> expectedNames = new ArrayList<String>(expected.keySet());
+    Collections.sort(expectedNames);
+    assertEquals(expectedNames, exportedNames);
+
+    // The missing object is an error when asked for.
+    try {
+      storage.exportProjectSourceZip(USER_ID, projectId, false, false, null, false, false,
+          false, true);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testAuthenticationIsCached() {
+    final String USER_ID = "1350";
+    final String USER_EMAIL = "newuser1350@test.com";
+    ObjectifyStorageIo.requireTos.setForTest(false);  // Only users who accepted it are cached
+    WhiteListData whiteListData = new WhiteListData();
+    whiteListData.emailLower = USER_EMAIL;
+    ObjectifyService.begin().put(whiteListData);
+
+    // What OdeAuthFilter looks up for each request.
+    User user = storage.getUser(USER_ID, USER_EMAIL);
+    assertTrue(storage.checkWhiteList(USER_EMAIL));
+    user.setIsAdmin(true);
+    Map<String, Long> warm = storage.getAuthCacheCounters();
+    for (int i = 0; i < 10; i++) {
+      assertFalse(storage.getUser(USER_ID).getIsAdmin());
+      assertTrue(storage.checkWhiteList(USER_EMAIL.toUpperCase()));
+    }
+    Map<String, Long> counters = storage.getAuthCacheCounters();
+    assertEquals(warm.get("userDatastoreReads"), counters.get("userDatastoreReads"));
+    assertEquals(warm.get("whiteListQueries"), counters.get("whiteListQueries"));
+    assertEquals(Long.valueOf(1), counters.get("whiteListLoads"));
+    assertEquals(warm.get("userCacheHits") + 10, (long) counters.get("userCacheHits"));
+    assertEquals(warm.get("whiteListHits") + 10, (long) counters.get("whiteListHits"));
+
+    // Changing the user makes it be read again.
+    storage.setUserName(USER_ID, "Name1350");
+    assertEquals("Name1350", storage.getUser(USER_ID).getUserName());
+    storage.setUserSessionId(USER_ID, "session1350");
+    assertEquals("session1350", storage.getUser(USER_ID).getSessionId());
+    assertEquals(counters.get("userDatastoreReads") + 2,
+        (long) storage.getAuthCacheCounters().get("userDatastoreReads"));
+
+    // Users added to the whitelist since it was loaded get in.
+    WhiteListData addedData = new WhiteListData();
+    addedData.emailLower = "added1350@test.com";
+    ObjectifyService.begin().put(addedData);
+    assertTrue(storage.checkWhiteList("added1350@test.com"));
+    assertFalse(storage.checkWhiteList("other1350@test.com"));
+  }
+
+  public void testWhiteListIsReloadedByOneRequestAtATime() {
+    AuthCache authCache = new AuthCache(10, 30, 0);
+    // Nothing is loaded yet, so the datastore must be asked.
+    assertFalse(authCache.isWhiteListed("a@test.com"));
+    assertTrue(authCache.claimWhiteListReload());
+    assertFalse(authCache.claimWhiteListReload());
+    authCache.abandonWhiteListReload();
+
+    // A failed load lets the next request try again.
+    assertTrue(authCache.claimWhiteListReload());
+    authCache.setWhiteList(Arrays.asList("a@test.com"));
+    assertTrue(authCache.isWhiteListed("a@test.com"));
+
+    // Once the whitelist is due to be reloaded, one request reloads it while
+    // the others keep using it.
+    try {
+      Thread.sleep(5);
+    } catch (InterruptedException e) {
+      fail();
+    }
+    assertTrue(authCache.claimWhiteListReload());
+    assertFalse(authCache.claimWhiteListReload());
+    assertTrue(authCache.isWhiteListed("a@test.com"));
+    authCache.setWhiteList(Arrays.asList("b@test.com"));
+    assertFalse(authCache.isWhiteListed("a@test.com"));
+    assertTrue(authCache.isWhiteListed("b@test.com"));
+  }
+
   public void testGetProject() {
     final String USER_ID = "1400";
     final String USER_EMAIL = "newuser1400@test.com";
@@ -0,0 +1,537 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Signs and aligns an apk in a single pass, without forking jarsigner and zipalign.
+ *
+ * <p>The entries of the unsigned apk are copied into the signed apk as they are, without
+ * recompressing them, using channel transfers. Each entry that is stored uncompressed is padded
+ * so that its data starts on a 4-byte boundary, as zipalign would do. The signature files are
+ * written at the start of the signed apk, the way jarsigner writes them.</p>
+ *
+ * <p>Zip64 archives are not supported; an apk never gets that big.</p>
+ */
+final class ApkFinisher {
+
+  // The alignment of uncompressed entries, as in "zipalign 4".
+  static final int ALIGNMENT = 4;
+
+  // The alias and password with which the build server creates keystores.
+  private static final String KEY_ALIAS = "AndroidKey";
+  private static final char[] KEYSTORE_PASSWORD = "android".toCharArray();
+
+  private static final String META_INF = "META-INF/";
+  private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  private static final String SIGNATURE_NAME = "META-INF/CERT.SF";
+  private static final String CREATED_BY = "1.0 (App Inventor)";
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  // General purpose flag bits.
+  private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+  private static final int UTF8_FLAG = 1 << 11;
+  // Version needed to extract: 1.0 for stored entries.
+  private static final int STORED_VERSION = 10;
+
+  /*
+   * An entry of the zip file, as described by its central directory header.
+   */
+  private static final class Entry {
+    String name;
+    byte[] nameBytes;
+    int versionMadeBy;
+    int versionNeeded;
+    int flags;
+    int method;
+    int time;
+    int date;
+    int crc;
+    long compressedSize;
+    long size;
+    byte[] centralExtra;
+    byte[] comment;
+    int internalAttributes;
+    int externalAttributes;
+    // Where the local header starts in the unsigned apk, and later in the signed apk.
+    long localHeaderOffset;
+    // Where the data of the entry starts in the unsigned apk.
+    long dataOffset;
+    byte[] localExtra;
+    // The content of the signature entries, which are not in the unsigned apk.
+    byte[] content;
+  }
+
+  private final PrivateKey privateKey;
+  private final X509Certificate certificate;
+
+  ApkFinisher(PrivateKey privateKey, X509Certificate certificate) {
+    this.privateKey = privateKey;
+    this.certificate = certificate;
+  }
+
+  /**
+   * Creates an ApkFinisher that signs with the key of a keystore created by the build server.
+   *
+   * @param keystore  the keystore file
+   */
+  static ApkFinisher fromKeystore(File keystore) throws IOException, GeneralSecurityException {
+    // Depending on the version of keytool that created it, the keystore is either a JKS or a
+    // PKCS12 keystore.
+    GeneralSecurityException failure = null;
+    for (String type : new String[] { "JKS", "PKCS12" }) {
+      KeyStore keyStore = KeyStore.getInstance(type);
+      InputStream in = new FileInputStream(keystore);
+      try {
+        keyStore.load(in, KEYSTORE_PASSWORD);
+      } catch (IOException e) {
+        failure = new GeneralSecurityException("Unable to load keystore", e);
+        continue;
+      } finally {
+        in.close();
+      }
+      PrivateKey key = (PrivateKey) keyStore.getKey(KEY_ALIAS, KEYSTORE_PASSWORD);
+      X509Certificate cert = (X509Certificate) keyStore.getCertificate(KEY_ALIAS);
+      if (key == null || cert == null) {
+        throw new GeneralSecurityException("No key " + KEY_ALIAS + " in keystore");
+      }
+      return new ApkFinisher(key, cert);
+    }
+    throw failure;
+  }
+
+  /**
+   * Writes a signed and aligned copy of an unsigned apk.
+   *
+   * <p>Signature files that are already in the unsigned apk are dropped.</p>
+   *
+   * @param unsignedApk  the apk written by ApkBuilder
+   * @param signedApk  the apk to write
+   */
+  void finish(File unsignedApk, File signedApk) throws IOException, GeneralSecurityException {
+    FileInputStream in = new FileInputStream(unsignedApk);
+    try {
+      FileChannel input = in.getChannel();
+      List<Entry> entries = readEntries(input);
+
+      List<Entry> signatureEntries = createSignatureEntries(unsignedApk, entries);
+      List<Entry> outputEntries = new ArrayList<Entry>(signatureEntries);
+      outputEntries.addAll(entries);
+
+      FileOutputStream out = new FileOutputStream(signedApk);
+      try {
+        writeEntries(input, out.getChannel(), outputEntries);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Reads the central directory of the unsigned apk and the local headers it points to. The
+   * entries that jarsigner would replace are left out.
+   */
+  private static List<Entry> readEntries(FileChannel input) throws IOException {
+    long fileSize = input.size();
+    int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = read(input, fileSize - tailSize, tailSize);
+    int eocd = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd < 0) {
+      throw new IOException("Not a zip file");
+    }
+    int entryCount = tail.getShort(eocd + 10) & 0xffff;
+    long centralDirectorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+    long centralDirectoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+    if (entryCount == 0xffff || centralDirectoryOffset == 0xffffffffL) {
+      throw new IOException("Zip64 files are not supported");
+    }
+
+    ByteBuffer central = read(input, centralDirectoryOffset, (int) centralDirectorySize);
+    List<Entry> entries = new ArrayList<Entry>(entryCount);
+    for (int i = 0; i < entryCount; i++) {
+      if (central.getInt() != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("Bad central directory");
+      }
+      Entry entry = new Entry();
+      entry.versionMadeBy = central.getShort() & 0xffff;
+      entry.versionNeeded = central.getShort() & 0xffff;
+      entry.flags = central.getShort() & 0xffff;
+      entry.method = central.getShort() & 0xffff;
+      entry.time = central.getShort() & 0xffff;
+      entry.date = central.getShort() & 0xffff;
+      entry.crc = central.getInt();
+      entry.compressedSize = central.getInt() & 0xffffffffL;
+      entry.size = central.getInt() & 0xffffffffL;
+      int nameLength = central.getShort() & 0xffff;
+      int extraLength = central.getShort() & 0xffff;
+      int commentLength = central.getShort() & 0xffff;
+      central.getShort();  // disk number
+      entry.internalAttributes = central.getShort() & 0xffff;
+      entry.externalAttributes = central.getInt();
+      entry.localHeaderOffset = central.getInt() & 0xffffffffL;
+      entry.nameBytes = get(central, nameLength);
+      entry.centralExtra = get(central, extraLength);
+      entry.comment = get(central, commentLength);
+      entry.name = new String(entry.nameBytes, Charsets.UTF_8);
+      if (isSignatureFile(entry.name)) {
+        continue;
+      }
+
+      ByteBuffer local = read(input, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+      if (local.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+        throw new IOException("Bad local header for " + entry.name);
+      }
+      int localNameLength = local.getShort(26) & 0xffff;
+      int localExtraLength = local.getShort(28) & 0xffff;
+      entry.localExtra = get(read(input,
+          entry.localHeaderOffset + LOCAL_HEADER_SIZE + localNameLength, localExtraLength),
+          localExtraLength);
+      entry.dataOffset =
+          entry.localHeaderOffset + LOCAL_HEADER_SIZE + localNameLength + localExtraLength;
+      // The sizes are written into the local header, so the data descriptor is not copied.
+      entry.flags &= ~DATA_DESCRIPTOR_FLAG;
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  private static boolean isSignatureFile(String name) {
+    String upperCaseName = name.toUpperCase(Locale.US);
+    if (!upperCaseName.startsWith(META_INF) || upperCaseName.indexOf('/', META_INF.length()) >= 0) {
+      return false;
+    }
+    return upperCaseName.equals(MANIFEST_NAME) || upperCaseName.endsWith(".SF")
+        || upperCaseName.endsWith(".RSA") || upperCaseName.endsWith(".DSA")
+        || upperCaseName.endsWith(".EC");
+  }
+
+  /*
+   * Creates the manifest, the signature file and the signature block for the given entries.
+   */
+  private List<Entry> createSignatureEntries(File unsignedApk, List<Entry> entries)
+      throws IOException, GeneralSecurityException {
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeAttribute(manifest, "Manifest-Version", "1.0");
+    writeAttribute(manifest, "Created-By", CREATED_BY);
+    writeNewline(manifest);
+    int mainSectionEnd = manifest.size();
+
+    ByteArrayOutputStream signatureSections = new ByteArrayOutputStream();
+    ZipFile zipFile = new ZipFile(unsignedApk);
+    try {
+      for (Entry entry : entries) {
+        if (entry.name.endsWith("/")) {
+          continue;
+        }
+        ZipEntry zipEntry = zipFile.getEntry(entry.name);
+        if (zipEntry == null) {
+          throw new IOException("Unable to read " + entry.name);
+        }
+        InputStream content = zipFile.getInputStream(zipEntry);
+        String digest;
+        try {
+          digest = digest(content);
+        } finally {
+          content.close();
+        }
+        int sectionStart = manifest.size();
+        writeAttribute(manifest, "Name", entry.name);
+        writeAttribute(manifest, "SHA1-Digest", digest);
+        writeNewline(manifest);
+
+        // The signature file holds the digest of each section of the manifest.
+        writeAttribute(signatureSections, "Name", entry.name);
+        writeAttribute(signatureSections, "SHA1-Digest",
+            digest(manifest.toByteArray(), sectionStart, manifest.size() - sectionStart));
+        writeNewline(signatureSections);
+      }
+    } finally {
+      zipFile.close();
+    }
+    byte[] manifestBytes = manifest.toByteArray();
+
+    ByteArrayOutputStream signature = new ByteArrayOutputStream();
+    writeAttribute(signature, "Signature-Version", "1.0");
+    writeAttribute(signature, "Created-By", CREATED_BY);
+    writeAttribute(signature, "SHA1-Digest-Manifest",
+        digest(manifestBytes, 0, manifestBytes.length));
+    writeAttribute(signature, "SHA1-Digest-Manifest-Main-Attributes",
+        digest(manifestBytes, 0, mainSectionEnd));
+    writeNewline(signature);
+    signatureSections.writeTo(signature);
+    byte[] signatureBytes = signature.toByteArray();
+
+    String keyAlgorithm = privateKey.getAlgorithm();
+    List<Entry> signatureEntries = new ArrayList<Entry>();
+    signatureEntries.add(newEntry(MANIFEST_NAME, manifestBytes));
+    signatureEntries.add(newEntry(SIGNATURE_NAME, signatureBytes));
+    signatureEntries.add(newEntry("META-INF/CERT." + keyAlgorithm.toUpperCase(Locale.US),
+        sign(signatureBytes, keyAlgorithm)));
+    return signatureEntries;
+  }
+
+  /*
+   * Creates the detached PKCS#7 signature of the signature file.
+   */
+  private byte[] sign(byte[] signatureFile, String keyAlgorithm)
+      throws IOException, GeneralSecurityException {
+    String signatureAlgorithm = "SHA1with" + ("EC".equals(keyAlgorithm) ? "ECDSA" : keyAlgorithm);
+    try {
+      ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm).build(privateKey);
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+              .setDirectSignature(true)
+              .build(signer, certificate));
+      generator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+      CMSSignedData signedData =
+          generator.generate(new CMSProcessableByteArray(signatureFile), false);
+      return signedData.toASN1Structure().getEncoded(ASN1Encoding.DER);
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException("Unable to sign the apk", e);
+    } catch (CMSException e) {
+      throw new GeneralSecurityException("Unable to sign the apk", e);
+    }
+  }
+
+  private static Entry newEntry(String name, byte[] content) {
+    Entry entry = new Entry();
+    entry.name = name;
+    entry.nameBytes = name.getBytes(Charsets.UTF_8);
+    entry.versionMadeBy = STORED_VERSION;
+    entry.versionNeeded = STORED_VERSION;
+    entry.flags = UTF8_FLAG;
+    entry.method = ZipEntry.STORED;
+    // 1 January 2008, as ApkBuilder has no meaningful time either.
+    entry.time = 0;
+    entry.date = ((2008 - 1980) << 9) | (1 << 5) | 1;
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    entry.crc = (int) crc.getValue();
+    entry.compressedSize = content.length;
+    entry.size = content.length;
+    entry.centralExtra = new byte[0];
+    entry.comment = new byte[0];
+    entry.localExtra = new byte[0];
+    entry.content = content;
+    return entry;
+  }
+
+  /*
+   * Writes the entries, each with its local header, followed by the central directory.
+   */
+  private static void writeEntries(FileChannel input, FileChannel output, List<Entry> entries)
+      throws IOException {
+    long offset = 0;
+    for (Entry entry : entries) {
+      // Pad the extra field of uncompressed entries so that their data is aligned.
+      int padding = 0;
+      if (entry.method == ZipEntry.STORED) {
+        long dataStart = offset + LOCAL_HEADER_SIZE + entry.nameBytes.length
+            + entry.localExtra.length;
+        padding = (int) ((ALIGNMENT - dataStart % ALIGNMENT) % ALIGNMENT);
+      }
+      ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + entry.nameBytes.length
+          + entry.localExtra.length + padding).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(LOCAL_HEADER_SIGNATURE);
+      header.putShort((short) entry.versionNeeded);
+      header.putShort((short) entry.flags);
+      header.putShort((short) entry.method);
+      header.putShort((short) entry.time);
+      header.putShort((short) entry.date);
+      header.putInt(entry.crc);
+      header.putInt((int) entry.compressedSize);
+      header.putInt((int) entry.size);
+      header.putShort((short) entry.nameBytes.length);
+      header.putShort((short) (entry.localExtra.length + padding));
+      header.put(entry.nameBytes);
+      header.put(entry.localExtra);
+      header.put(new byte[padding]);
+      header.flip();
+      write(output, header);
+
+      if (entry.content != null) {
+        write(output, ByteBuffer.wrap(entry.content));
+      } else {
+        transfer(input, entry.dataOffset, entry.compressedSize, output);
+      }
+      entry.localHeaderOffset = offset;
+      offset = output.position();
+    }
+
+    long centralDirectoryOffset = offset;
+    for (Entry entry : entries) {
+      ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + entry.nameBytes.length
+          + entry.centralExtra.length + entry.comment.length).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(CENTRAL_HEADER_SIGNATURE);
+      header.putShort((short) entry.versionMadeBy);
+      header.putShort((short) entry.versionNeeded);
+      header.putShort((short) entry.flags);
+      header.putShort((short) entry.method);
+      header.putShort((short) entry.time);
+      header.putShort((short) entry.date);
+      header.putInt(entry.crc);
+      header.putInt((int) entry.compressedSize);
+      header.putInt((int) entry.size);
+      header.putShort((short) entry.nameBytes.length);
+      header.putShort((short) entry.centralExtra.length);
+      header.putShort((short) entry.comment.length);
+      header.putShort((short) 0);  // disk number
+      header.putShort((short) entry.internalAttributes);
+      header.putInt(entry.externalAttributes);
+      header.putInt((int) entry.localHeaderOffset);
+      header.put(entry.nameBytes);
+      header.put(entry.centralExtra);
+      header.put(entry.comment);
+      header.flip();
+      write(output, header);
+    }
+    long centralDirectorySize = output.position() - centralDirectoryOffset;
+
+    ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    end.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+    end.putShort((short) 0);  // this disk
+    end.putShort((short) 0);  // disk with the central directory
+    end.putShort((short) entries.size());
+    end.putShort((short) entries.size());
+    end.putInt((int) centralDirectorySize);
+    end.putInt((int) centralDirectoryOffset);
+    end.putShort((short) 0);  // comment length
+    end.flip();
+    write(output, end);
+  }
+
+  /*
+   * Writes a manifest attribute, wrapping lines at 72 bytes as the jar file specification
+   * requires. Lines are only broken between characters.
+   */
+  private static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+    String line = name + ": " + value;
+    int lineLength = 0;
+    for (int i = 0; i < line.length(); ) {
+      int codePoint = line.codePointAt(i);
+      byte[] bytes = new String(Character.toChars(codePoint)).getBytes(Charsets.UTF_8);
+      if (lineLength + bytes.length > 72) {
+        writeNewline(out);
+        out.write(' ');
+        lineLength = 1;
+      }
+      out.write(bytes, 0, bytes.length);
+      lineLength += bytes.length;
+      i += Character.charCount(codePoint);
+    }
+    writeNewline(out);
+  }
+
+  private static void writeNewline(ByteArrayOutputStream out) {
+    out.write('\r');
+    out.write('\n');
+  }
+
+  private static String digest(InputStream in) throws IOException, GeneralSecurityException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      digest.update(buffer, 0, count);
+    }
+    return BaseEncoding.base64().encode(digest.digest());
+  }
+
+  private static String digest(byte[] bytes, int offset, int length)
+      throws GeneralSecurityException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    digest.update(bytes, offset, length);
+    return BaseEncoding.base64().encode(digest.digest());
+  }
+
+  private static ByteBuffer read(FileChannel input, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (input.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of zip file");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static byte[] get(ByteBuffer buffer, int length) {
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static void write(FileChannel output, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      output.write(buffer);
+    }
+  }
+
+  private static void transfer(FileChannel input, long position, long count, FileChannel output)
+      throws IOException {
+    while (count > 0) {
+      long transferred = input.transferTo(position, count, output);
+      if (transferred <= 0) {
+        throw new IOException("Unexpected end of zip file");
+      }
+      position += transferred;
+      count -= transferred;
+    }
+  }
+}
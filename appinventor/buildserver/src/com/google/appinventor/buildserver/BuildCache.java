@@ -0,0 +1,320 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed cache of intermediate build outputs, shared by all the builds on a build
+ * server.
+ *
+ * <p>Each entry is a directory of files, stored under a key that is a hash of everything that
+ * went into producing those files. A build that would produce the same outputs (for example,
+ * because the user pressed Build twice, or changed only one screen) copies them from the cache
+ * instead of running the tool again. The cache is bounded in size; the least recently used
+ * entries are removed first.</p>
+ *
+ * <p>The cache is disabled until {@link #configure} is called with a directory.</p>
+ */
+final class BuildCache {
+
+  /**
+   * The kinds of outputs that are cached.
+   */
+  enum Kind {
+    // The class files that Kawa produces for a single screen, or for runtime.scm.
+    KAWA("kawa"),
+    // The classes.dex files of a project.
+    DEX("dex"),
+    // The resource package produced by aapt.
+    AAPT("aapt");
+
+    private final String varName;
+
+    Kind(String varName) {
+      this.varName = varName;
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildCache.class.getName());
+
+  private static final HashFunction HASH_FUNCTION = Hashing.sha1();
+
+  // Entries that are being written are staged under this prefix and renamed into place.
+  private static final String STAGING_PREFIX = "staging-";
+
+  private static volatile File cacheDir = null;
+  private static volatile long maxBytes = 0;
+
+  // Entry directory name -> size in bytes, in least recently used order.
+  private static final LinkedHashMap<String, Long> entries =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private static long totalBytes = 0;
+
+  private static final Map<Kind, AtomicInteger> hits = new EnumMap<Kind, AtomicInteger>(Kind.class);
+  private static final Map<Kind, AtomicInteger> misses =
+      new EnumMap<Kind, AtomicInteger>(Kind.class);
+  private static final AtomicLong evictions = new AtomicLong(0);
+
+  static {
+    for (Kind kind : Kind.values()) {
+      hits.put(kind, new AtomicInteger(0));
+      misses.put(kind, new AtomicInteger(0));
+    }
+  }
+
+  private BuildCache() {
+  }
+
+  /**
+   * Enables the cache. Entries already in the directory (from an earlier run of the build server)
+   * are kept, oldest first in line for removal.
+   *
+   * @param dir  the directory where the cache is kept, or null to disable the cache
+   * @param maxSizeBytes  the maximum size of the cache on disk
+   */
+  static synchronized void configure(File dir, long maxSizeBytes) {
+    entries.clear();
+    totalBytes = 0;
+    maxBytes = maxSizeBytes;
+    if (dir == null) {
+      cacheDir = null;
+      return;
+    }
+    dir.mkdirs();
+    File[] existing = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isDirectory();
+      }
+    });
+    Arrays.sort(existing, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+      }
+    });
+    for (File entryDir : existing) {
+      if (entryDir.getName().startsWith(STAGING_PREFIX)) {
+        // Left behind by a build server that was killed while storing an entry.
+        deleteQuietly(entryDir);
+      } else {
+        long size = FileUtils.sizeOfDirectory(entryDir);
+        entries.put(entryDir.getName(), size);
+        totalBytes += size;
+      }
+    }
+    cacheDir = dir;
+    evictIfNecessary();
+    LOG.info("Build cache at " + dir + ": " + entries.size() + " entries, " + totalBytes +
+        " bytes");
+  }
+
+  static boolean isEnabled() {
+    return cacheDir != null;
+  }
+
+  /**
+   * Returns a cache key made of the given parts. Each part is length-prefixed, so that
+   * ("ab", "c") and ("a", "bc") produce different keys.
+   */
+  static String key(String... parts) {
+    Hasher hasher = HASH_FUNCTION.newHasher();
+    for (String part : parts) {
+      putString(hasher, part);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns the hash of the contents of a file.
+   */
+  static String hashFile(File file) throws IOException {
+    return Files.hash(file, HASH_FUNCTION).toString();
+  }
+
+  /**
+   * Returns the hash of the names and contents of all the files below dir. A directory that
+   * doesn't exist has the same hash as an empty one.
+   */
+  static String hashTree(File dir) throws IOException {
+    Hasher hasher = HASH_FUNCTION.newHasher();
+    putTree(hasher, dir, "");
+    return hasher.hash().toString();
+  }
+
+  private static void putString(Hasher hasher, String value) {
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    hasher.putInt(bytes.length).putBytes(bytes);
+  }
+
+  private static void putTree(Hasher hasher, File dir, String relativePath) throws IOException {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      String childPath = relativePath + "/" + child.getName();
+      putString(hasher, childPath);
+      if (child.isDirectory()) {
+        putTree(hasher, child, childPath);
+      } else {
+        putString(hasher, hashFile(child));
+      }
+    }
+  }
+
+  /**
+   * Copies the files of a cache entry into targetDir. The files are copied into a staging
+   * directory first and then renamed into place, so that a fetch that fails part way leaves
+   * nothing behind in targetDir.
+   *
+   * @return  {@code true} on a cache hit, {@code false} if there is no such entry
+   */
+  static boolean fetch(Kind kind, String key, File targetDir) {
+    File entryDir = getEntryDir(kind, key);
+    if (entryDir != null) {
+      synchronized (BuildCache.class) {
+        if (entries.get(entryDir.getName()) == null) {
+          entryDir = null;
+        }
+      }
+    }
+    // listFiles() returns null if the entry has just been evicted.
+    File[] files = entryDir == null ? null : entryDir.listFiles();
+    if (files != null) {
+      // targetDir may hold other outputs of the build, so the staging directory is made inside it
+      // (where renaming is sure to work) and only the files fetched here are removed on failure.
+      File stagingDir = new File(targetDir, STAGING_PREFIX + Thread.currentThread().getId());
+      List<File> fetched = new ArrayList<File>();
+      try {
+        stagingDir.mkdirs();
+        for (File file : files) {
+          Files.copy(file, new File(stagingDir, file.getName()));
+        }
+        for (File file : files) {
+          File target = new File(targetDir, file.getName());
+          Files.move(new File(stagingDir, file.getName()), target);
+          fetched.add(target);
+        }
+        hits.get(kind).incrementAndGet();
+        return true;
+      } catch (IOException e) {
+        // The entry was evicted while we were copying it. Treat this as a miss.
+        LOG.log(Level.INFO, "Unable to read build cache entry " + entryDir, e);
+        for (File file : fetched) {
+          file.delete();
+        }
+      } finally {
+        deleteQuietly(stagingDir);
+      }
+    }
+    misses.get(kind).incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Stores files in the cache. Any problem is logged and ignored, because the build itself has
+   * already succeeded.
+   */
+  static void store(Kind kind, String key, Iterable<File> files) {
+    File entryDir = getEntryDir(kind, key);
+    if (entryDir == null) {
+      return;
+    }
+    File stagingDir = new File(cacheDir, STAGING_PREFIX + entryDir.getName() + "-" +
+        Thread.currentThread().getId());
+    try {
+      stagingDir.mkdirs();
+      long size = 0;
+      for (File file : files) {
+        Files.copy(file, new File(stagingDir, file.getName()));
+        size += file.length();
+      }
+      synchronized (BuildCache.class) {
+        if (entries.containsKey(entryDir.getName()) || !stagingDir.renameTo(entryDir)) {
+          // Another build stored the same entry first.
+          deleteQuietly(stagingDir);
+          return;
+        }
+        entries.put(entryDir.getName(), size);
+        totalBytes += size;
+        evictIfNecessary();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store build cache entry " + entryDir, e);
+      deleteQuietly(stagingDir);
+    }
+  }
+
+  private static File getEntryDir(Kind kind, String key) {
+    File dir = cacheDir;
+    return dir == null ? null : new File(dir, kind.varName + "-" + key);
+  }
+
+  private static synchronized void evictIfNecessary() {
+    Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      it.remove();
+      totalBytes -= eldest.getValue();
+      evictions.incrementAndGet();
+      deleteQuietly(new File(cacheDir, eldest.getKey()));
+    }
+  }
+
+  private static void deleteQuietly(File dir) {
+    try {
+      FileUtils.deleteDirectory(dir);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to delete " + dir, e);
+    }
+  }
+
+  /**
+   * Adds the cache statistics to the given map of variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    if (!isEnabled()) {
+      variables.put("build-cache", "disabled");
+      return;
+    }
+    synchronized (BuildCache.class) {
+      variables.put("build-cache-entries", entries.size() + "");
+      variables.put("build-cache-size-bytes", totalBytes + "");
+    }
+    variables.put("build-cache-maximum-size-bytes", maxBytes + "");
+    variables.put("build-cache-evictions", evictions.get() + "");
+    for (Kind kind : Kind.values()) {
+      variables.put("build-cache-" + kind.varName + "-hits", hits.get(kind).get() + "");
+      variables.put("build-cache-" + kind.varName + "-misses", misses.get(kind).get() + "");
+    }
+  }
+}
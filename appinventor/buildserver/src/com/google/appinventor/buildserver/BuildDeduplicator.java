@@ -0,0 +1,358 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces identical async build requests, which users send by pressing Build again while a
+ * build is running, and remembers the results of recent builds.
+ *
+ * <p>A request is identified by a fingerprint of the files of its project, its keystore among
+ * them, and of whether it is for the Companion. A request whose fingerprint matches a build that
+ * is running waits for that build's results instead of being built, and one that matches a
+ * recent successful build gets that build's results right away. A project without a keystore
+ * gets a new one from the build, so its fingerprint also includes the user, who must never be
+ * given someone else's keystore.</p>
+ *
+ * <p>Results are zip files, which are shared by all the requests they are sent to. A zip is
+ * deleted once it is neither cached nor being sent.</p>
+ */
+final class BuildDeduplicator {
+
+  /**
+   * Sends the results of a build to one request.
+   */
+  interface Recipient {
+    /**
+     * @param resultZip  the zip with the results, or {@code null} if the build produced none
+     * @param succeeded  whether the build succeeded
+     */
+    void send(File resultZip, boolean succeeded);
+  }
+
+  /**
+   * The results of a build, which can be read until they are released.
+   */
+  static final class SharedResult {
+    final File zip;
+    final boolean succeeded;
+    private final long createdTime = System.currentTimeMillis();
+    private final long bytes;
+
+    // Guarded by lock.
+    private int readers = 0;
+    private boolean cached = false;
+
+    private SharedResult(File zip, boolean succeeded) {
+      this.zip = zip;
+      this.succeeded = succeeded;
+      this.bytes = zip.length();
+    }
+
+    /**
+     * Ends reading the results.
+     */
+    void release() {
+      synchronized (lock) {
+        readers--;
+        deleteIfUnused(this);
+      }
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildDeduplicator.class.getName());
+
+  // Entries that don't change what is built.
+  private static final String REMIX_HISTORY = "youngandroidproject/remix_history";
+
+  // Sends results to the requests that didn't run a build themselves.
+  private static final ExecutorService senders = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("result-sender-%d").build());
+
+  private static final Object lock = new Object();
+
+  private static volatile boolean enabled = false;
+  private static volatile long maxCachedBytes = 0;
+  private static volatile long maxAgeMillis = 0;
+
+  // All of the following are guarded by lock.
+  // The requests waiting for each running build, by fingerprint.
+  private static final Map<String, List<Recipient>> running = Maps.newHashMap();
+  // The results of recent builds, least recently used first.
+  private static final LinkedHashMap<String, SharedResult> cache =
+      new LinkedHashMap<String, SharedResult>(16, 0.75f, true);
+  private static long cachedBytes = 0;
+  private static int builds = 0;
+  private static int coalesced = 0;
+  private static int cacheHits = 0;
+  private static int evictions = 0;
+
+  private BuildDeduplicator() {
+  }
+
+  /**
+   * Turns deduplication on.
+   *
+   * @param maxCacheBytes  the most bytes of results to cache, or 0 to only coalesce running builds
+   * @param maxCacheAgeMillis  how long results stay cached
+   */
+  static void configure(long maxCacheBytes, long maxCacheAgeMillis) {
+    maxCachedBytes = maxCacheBytes;
+    maxAgeMillis = maxCacheAgeMillis;
+    enabled = true;
+  }
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the fingerprint of a build request.
+   *
+   * @param userName  the user who sent the request
+   * @param projectRoot  the directory where the project was extracted
+   * @param files  the extracted files
+   * @param forCompanion  whether the build is for the Companion
+   */
+  static String fingerprint(String userName, File projectRoot, List<String> files,
+      boolean forCompanion) throws IOException {
+    String rootPath = projectRoot.getPath() + File.separator;
+    SortedMap<String, String> hashes = Maps.newTreeMap();
+    for (String fileName : files) {
+      String path = fileName.startsWith(rootPath) ? fileName.substring(rootPath.length())
+          : fileName;
+      path = path.replace(File.separatorChar, '/');
+      if (!path.equals(REMIX_HISTORY)) {
+        hashes.put(path, BuildCache.hashFile(new File(fileName)));
+      }
+    }
+    List<String> parts = Lists.newArrayList();
+    parts.add(Boolean.toString(forCompanion));
+    if (!hashes.containsKey(YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION)) {
+      parts.add(userName);
+    }
+    for (Map.Entry<String, String> hash : hashes.entrySet()) {
+      parts.add(hash.getKey());
+      parts.add(hash.getValue());
+    }
+    return BuildCache.key(parts.toArray(new String[parts.size()]));
+  }
+
+  /**
+   * Arranges for the request with the given fingerprint to get the results of an identical build,
+   * if one is cached or running. Otherwise, records that the caller is about to run the build,
+   * which it must end by calling {@link #finish}.
+   *
+   * @return  {@code true} if the recipient will get the results of an identical build, or
+   *     {@code false} if the caller must run the build
+   */
+  static boolean join(String fingerprint, Recipient recipient) {
+    synchronized (lock) {
+      SharedResult result = cache.get(fingerprint);
+      if (result != null
+          && System.currentTimeMillis() - result.createdTime > maxAgeMillis) {
+        evict(fingerprint);
+        result = null;
+      }
+      if (result != null) {
+        cacheHits++;
+        sendLater(result, recipient);
+        return true;
+      }
+      List<Recipient> waiting = running.get(fingerprint);
+      if (waiting != null) {
+        coalesced++;
+        waiting.add(recipient);
+        return true;
+      }
+      builds++;
+      running.put(fingerprint, Lists.<Recipient>newArrayList());
+      return false;
+    }
+  }
+
+  /**
+   * Ends a build started after {@link #join} returned {@code false}: sends its results to the
+   * requests that joined it, and caches them if the build succeeded. The zip then belongs to
+   * the deduplicator, and is deleted once it is neither cached nor being sent.
+   *
+   * @param fingerprint  the fingerprint of the build
+   * @param resultZip  the zip with the results, or {@code null} if the build produced none
+   * @param succeeded  whether the build succeeded
+   * @return  the results, which the caller may read until it releases them, or {@code null} if
+   *     there are none
+   */
+  static SharedResult finish(String fingerprint, File resultZip, boolean succeeded) {
+    synchronized (lock) {
+      List<Recipient> waiting = running.remove(fingerprint);
+      if (waiting == null) {
+        waiting = Collections.emptyList();
+      }
+      if (resultZip == null) {
+        for (final Recipient recipient : waiting) {
+          senders.execute(new Runnable() {
+            @Override
+            public void run() {
+              recipient.send(null, false);
+            }
+          });
+        }
+        return null;
+      }
+      SharedResult result = new SharedResult(resultZip, succeeded);
+      result.readers++;
+      if (succeeded && maxCachedBytes > 0 && result.bytes <= maxCachedBytes) {
+        evict(fingerprint);
+        result.cached = true;
+        cache.put(fingerprint, result);
+        cachedBytes += result.bytes;
+        evictOldest();
+      }
+      for (Recipient recipient : waiting) {
+        sendLater(result, recipient);
+      }
+      return result;
+    }
+  }
+
+  static void addVariables(Map<String, String> variables) {
+    synchronized (lock) {
+      variables.put("dedup-enabled", enabled + "");
+      variables.put("dedup-builds", builds + "");
+      variables.put("dedup-coalesced-requests", coalesced + "");
+      variables.put("dedup-cache-hits", cacheHits + "");
+      variables.put("dedup-running-builds", running.size() + "");
+      variables.put("dedup-cached-results", cache.size() + "");
+      variables.put("dedup-cached-bytes", cachedBytes + "");
+      variables.put("dedup-evictions", evictions + "");
+    }
+  }
+
+  /**
+   * Appends the counters in the Prometheus text exposition format.
+   */
+  static void appendPrometheus(StringBuilder text) {
+    synchronized (lock) {
+      BuildMetrics.appendPrometheusValue(text, "dedup_builds_total", "counter",
+          "Async build requests that were built because no identical build was running or cached.",
+          builds);
+      BuildMetrics.appendPrometheusValue(text, "dedup_coalesced_requests_total", "counter",
+          "Async build requests that got the results of an identical running build.", coalesced);
+      BuildMetrics.appendPrometheusValue(text, "dedup_cache_hits_total", "counter",
+          "Async build requests that got the cached results of an identical build.", cacheHits);
+      BuildMetrics.appendPrometheusValue(text, "dedup_cached_bytes", "gauge",
+          "Bytes of cached build results.", cachedBytes);
+    }
+  }
+
+  /**
+   * Returns the counters, for the JSON metrics.
+   */
+  static Map<String, Long> getCounters() {
+    synchronized (lock) {
+      Map<String, Long> counters = Maps.newLinkedHashMap();
+      counters.put("builds", (long) builds);
+      counters.put("coalescedRequests", (long) coalesced);
+      counters.put("cacheHits", (long) cacheHits);
+      counters.put("cachedResults", (long) cache.size());
+      counters.put("cachedBytes", cachedBytes);
+      counters.put("evictions", (long) evictions);
+      return counters;
+    }
+  }
+
+  // Must hold lock.
+  private static void sendLater(final SharedResult result, final Recipient recipient) {
+    result.readers++;
+    senders.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          recipient.send(result.zip, result.succeeded);
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, "Unable to send build results", e);
+        } finally {
+          result.release();
+        }
+      }
+    });
+  }
+
+  // Must hold lock.
+  private static void evict(String fingerprint) {
+    SharedResult result = cache.remove(fingerprint);
+    if (result != null) {
+      uncache(result);
+    }
+  }
+
+  // Must hold lock.
+  private static void evictOldest() {
+    long now = System.currentTimeMillis();
+    for (Iterator<SharedResult> it = cache.values().iterator(); it.hasNext(); ) {
+      SharedResult result = it.next();
+      if (cachedBytes <= maxCachedBytes && now - result.createdTime <= maxAgeMillis) {
+        // The least recently used result is young enough. Older ones may remain until they are
+        // looked up.
+        break;
+      }
+      it.remove();
+      uncache(result);
+    }
+  }
+
+  // Must hold lock.
+  private static void uncache(SharedResult result) {
+    evictions++;
+    cachedBytes -= result.bytes;
+    result.cached = false;
+    deleteIfUnused(result);
+  }
+
+  // Must hold lock.
+  private static void deleteIfUnused(SharedResult result) {
+    if (result.readers == 0 && !result.cached) {
+      result.zip.delete();
+    }
+  }
+
+  /**
+   * Forgets all running builds and cached results. For tests.
+   */
+  static void reset() {
+    synchronized (lock) {
+      for (SharedResult result : cache.values()) {
+        result.cached = false;
+        deleteIfUnused(result);
+      }
+      cache.clear();
+      running.clear();
+      cachedBytes = 0;
+      builds = 0;
+      coalesced = 0;
+      cacheHits = 0;
+      evictions = 0;
+      enabled = false;
+    }
+  }
+}
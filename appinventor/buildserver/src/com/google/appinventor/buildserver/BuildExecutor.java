@@ -0,0 +1,233 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs builds, each in its own thread, with a limit on the number of simultaneous builds.
+ *
+ * <p>Builds that arrive while the limit is reached wait in a bounded queue instead of being
+ * rejected. Among waiting builds, a build of the user with the fewest running builds is started
+ * first, so that one user's builds can't take every slot while other users wait. A user can also be limited to
+ * a number of running and waiting builds.</p>
+ *
+ * <p>Builds are rejected with a {@link RejectedExecutionException} only when the queue is full
+ * or the user has reached their limit.</p>
+ */
+final class BuildExecutor {
+
+  // The estimated build time used before any build has completed.
+  private static final long DEFAULT_BUILD_MILLIS = 60 * 1000;
+
+  // The maximum number of active tasks. 0 means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of waiting tasks.
+  private final int maxQueuedTasks;
+
+  // The maximum number of active and waiting tasks of a single user. 0 means unlimited.
+  private final int maxTasksPerUser;
+
+  // All of the following are guarded by lock.
+  private final Object lock = new Object();
+  private final LinkedList<Task> queue = new LinkedList<Task>();
+  private final Map<String, Integer> activeTasksPerUser = new HashMap<String, Integer>();
+  private final Map<String, Integer> tasksPerUser = new HashMap<String, Integer>();
+  private int activeTaskCount = 0;
+  private int queuedTaskCount = 0;
+  private int maximumQueuedTaskCount = 0;
+
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger rejectedTaskCount = new AtomicInteger(0);
+  private final LatencySamples queueWaits = new LatencySamples();
+  private final LatencySamples taskTimes = new LatencySamples();
+
+  private final class Task implements Runnable {
+    final String userName;
+    final Runnable runnable;
+    final long queuedTime = System.currentTimeMillis();
+
+    Task(String userName, Runnable runnable) {
+      this.userName = userName;
+      this.runnable = runnable;
+    }
+
+    @Override
+    public void run() {
+      long startTime = System.currentTimeMillis();
+      queueWaits.record(startTime - queuedTime);
+      try {
+        runnable.run();
+      } finally {
+        taskTimes.record(System.currentTimeMillis() - startTime);
+        completedTaskCount.incrementAndGet();
+        synchronized (lock) {
+          activeTaskCount--;
+          decrement(activeTasksPerUser, userName);
+          decrement(tasksPerUser, userName);
+          startWaitingTasks();
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates a BuildExecutor.
+   *
+   * @param maxActiveTasks  the maximum number of active tasks, 0 means unlimited
+   * @param maxQueuedTasks  the maximum number of waiting tasks, 0 means that tasks are rejected
+   *     when maxActiveTasks tasks are active
+   * @param maxTasksPerUser  the maximum number of active and waiting tasks of one user, 0 means
+   *     unlimited
+   */
+  BuildExecutor(int maxActiveTasks, int maxQueuedTasks, int maxTasksPerUser) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxQueuedTasks;
+    this.maxTasksPerUser = maxTasksPerUser;
+  }
+
+  /**
+   * Starts or queues a task.
+   *
+   * @param userName  the user who requested the task
+   * @param runnable  the task
+   * @return  the estimated time until the task starts, in milliseconds
+   * @throws RejectedExecutionException  if the queue is full or the user has too many tasks
+   */
+  long execute(String userName, Runnable runnable) {
+    synchronized (lock) {
+      if (maxTasksPerUser != 0 && count(tasksPerUser, userName) >= maxTasksPerUser) {
+        rejectedTaskCount.incrementAndGet();
+        throw new RejectedExecutionException("Too many builds for " + userName);
+      }
+      if (!hasFreeSlot() && queuedTaskCount >= maxQueuedTasks) {
+        rejectedTaskCount.incrementAndGet();
+        throw new RejectedExecutionException("The build queue is full");
+      }
+      increment(tasksPerUser, userName);
+      Task task = new Task(userName, runnable);
+      queue.add(task);
+      queuedTaskCount++;
+      startWaitingTasks();
+      if (queuedTaskCount > maximumQueuedTaskCount) {
+        maximumQueuedTaskCount = queuedTaskCount;
+      }
+      return estimateWaitMillis(task);
+    }
+  }
+
+  /*
+   * Starts waiting tasks while there are free slots. Must be called with lock held.
+   */
+  private void startWaitingTasks() {
+    while (hasFreeSlot() && queuedTaskCount > 0) {
+      Task task = takeNextTask();
+      queuedTaskCount--;
+      activeTaskCount++;
+      increment(activeTasksPerUser, task.userName);
+      new Thread(task).start();
+    }
+  }
+
+  /*
+   * Removes and returns the next task to start: the oldest task of the users with the fewest
+   * active tasks. Must be called with lock held.
+   */
+  private Task takeNextTask() {
+    Task next = null;
+    int nextUserActiveTasks = Integer.MAX_VALUE;
+    for (Task task : queue) {
+      int userActiveTasks = count(activeTasksPerUser, task.userName);
+      if (userActiveTasks < nextUserActiveTasks) {
+        next = task;
+        nextUserActiveTasks = userActiveTasks;
+      }
+    }
+    if (next == null) {
+      throw new IllegalStateException("No waiting task");
+    }
+    queue.remove(next);
+    return next;
+  }
+
+  /*
+   * Estimates how long a waiting task will wait, assuming that the tasks ahead of it take as long
+   * as tasks recently did. Must be called with lock held.
+   */
+  private long estimateWaitMillis(Task task) {
+    int position = queue.indexOf(task);
+    if (position == -1) {
+      // The task has already started.
+      return 0;
+    }
+    long buildMillis = taskTimes.getCount() == 0 ? DEFAULT_BUILD_MILLIS : taskTimes.getAverage();
+    return (position / maxActiveTasks + 1) * buildMillis;
+  }
+
+  private boolean hasFreeSlot() {
+    return maxActiveTasks == 0 || activeTaskCount < maxActiveTasks;
+  }
+
+  private static int count(Map<String, Integer> counts, String userName) {
+    Integer count = counts.get(userName);
+    return count == null ? 0 : count;
+  }
+
+  private static void increment(Map<String, Integer> counts, String userName) {
+    counts.put(userName, count(counts, userName) + 1);
+  }
+
+  private static void decrement(Map<String, Integer> counts, String userName) {
+    int count = count(counts, userName) - 1;
+    if (count == 0) {
+      counts.remove(userName);
+    } else {
+      counts.put(userName, count);
+    }
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getActiveTaskCount() {
+    synchronized (lock) {
+      return activeTaskCount;
+    }
+  }
+
+  public int getQueuedTaskCount() {
+    synchronized (lock) {
+      return queuedTaskCount;
+    }
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  /**
+   * Adds the queue statistics to the given map of variables.
+   */
+  void addVariables(Map<String, String> variables) {
+    variables.put("build-queue-maximum-size", maxQueuedTasks + "");
+    variables.put("build-queue-maximum-tasks-per-user",
+        maxTasksPerUser == 0 ? "unlimited" : maxTasksPerUser + "");
+    synchronized (lock) {
+      variables.put("build-queue-depth", queuedTaskCount + "");
+      variables.put("build-queue-maximum-depth-occurred", maximumQueuedTaskCount + "");
+      variables.put("build-queue-users", tasksPerUser.size() + "");
+    }
+    variables.put("build-queue-rejected", rejectedTaskCount.get() + "");
+    queueWaits.addVariables(variables, "build-queue-wait-ms");
+    taskTimes.addVariables(variables, "build-task-ms");
+  }
+}
@@ -0,0 +1,298 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the build stages and child processes of all builds since the build server
+ * started, for the /buildserver/metrics endpoint.
+ *
+ * <p>Counts and totals are cumulative. The percentiles come from {@link LatencySamples} and so
+ * describe the most recent builds, which is what a Prometheus summary reports.</p>
+ */
+final class BuildMetrics {
+
+  // The percentiles reported for each stage and child process.
+  private static final int[] PERCENTILES = { 50, 95, 99 };
+
+  // The prefix of the Prometheus metric names.
+  private static final String PREFIX = "appinventor_buildserver_";
+
+  /*
+   * The counters kept for each build stage, with their Prometheus names and help.
+   */
+  private enum Counter {
+    BYTES_IN("bytesIn", "stage_bytes_in_total", "Bytes read by each build stage."),
+    BYTES_OUT("bytesOut", "stage_bytes_out_total", "Bytes written by each build stage."),
+    CACHE_HITS("cacheHits", "stage_cache_hits_total",
+        "Build stages whose output came from the build cache."),
+    CACHE_MISSES("cacheMisses", "stage_cache_misses_total",
+        "Cached build stages that had to run.");
+
+    final String jsonName;
+    final String metricName;
+    final String help;
+
+    Counter(String jsonName, String metricName, String help) {
+      this.jsonName = jsonName;
+      this.metricName = metricName;
+      this.help = help;
+    }
+  }
+
+  /*
+   * The statistics of one build stage.
+   */
+  private static final class StageStats {
+    final LatencySamples durations = new LatencySamples();
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong totalMillis = new AtomicLong();
+    final AtomicLong[] counters = new AtomicLong[Counter.values().length];
+
+    StageStats() {
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = new AtomicLong();
+      }
+    }
+
+    AtomicLong get(Counter counter) {
+      return counters[counter.ordinal()];
+    }
+  }
+
+  /*
+   * The statistics of one kind of child process.
+   */
+  private static final class ProcessStats {
+    final LatencySamples durations = new LatencySamples();
+    final LatencySamples peakRssKb = new LatencySamples();
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong totalMillis = new AtomicLong();
+    final AtomicLong kills = new AtomicLong();
+  }
+
+  private static final ConcurrentMap<String, StageStats> stages =
+      new ConcurrentHashMap<String, StageStats>();
+  private static final ConcurrentMap<String, ProcessStats> processes =
+      new ConcurrentHashMap<String, ProcessStats>();
+
+  private BuildMetrics() {
+  }
+
+  /**
+   * Records that a build stage ended.
+   *
+   * @param stage  the name of the stage
+   * @param millis  how long the stage took
+   * @param bytesIn  the bytes the stage read, or 0 if unknown
+   * @param bytesOut  the bytes the stage wrote, or 0 if unknown
+   * @param cacheHit  whether the output of the stage came from a cache, or {@code null} if the
+   *     stage isn't cached
+   */
+  static void recordStage(String stage, long millis, long bytesIn, long bytesOut,
+      Boolean cacheHit) {
+    StageStats stats = stages.get(stage);
+    if (stats == null) {
+      stages.putIfAbsent(stage, new StageStats());
+      stats = stages.get(stage);
+    }
+    stats.durations.record(millis);
+    stats.count.incrementAndGet();
+    stats.totalMillis.addAndGet(millis);
+    stats.get(Counter.BYTES_IN).addAndGet(bytesIn);
+    stats.get(Counter.BYTES_OUT).addAndGet(bytesOut);
+    if (cacheHit != null) {
+      stats.get(cacheHit ? Counter.CACHE_HITS : Counter.CACHE_MISSES).incrementAndGet();
+    }
+  }
+
+  /**
+   * Records that a child process exited.
+   *
+   * @param name  the kind of process, such as the name of the tool it ran
+   * @param millis  how long the process ran
+   * @param peakRssKb  the peak resident set size of the process in KB, or -1 if unknown
+   */
+  static void recordProcess(String name, long millis, long peakRssKb) {
+    recordProcess(name, millis, peakRssKb, false);
+  }
+
+  /**
+   * Records that a child process exited.
+   *
+   * @param name  the kind of process, such as the name of the tool it ran
+   * @param millis  how long the process ran
+   * @param peakRssKb  the peak resident set size of the process in KB, or -1 if unknown
+   * @param killed  whether the process was killed for exceeding its limits
+   */
+  static void recordProcess(String name, long millis, long peakRssKb, boolean killed) {
+    ProcessStats stats = processes.get(name);
+    if (stats == null) {
+      processes.putIfAbsent(name, new ProcessStats());
+      stats = processes.get(name);
+    }
+    stats.durations.record(millis);
+    if (peakRssKb >= 0) {
+      stats.peakRssKb.record(peakRssKb);
+    }
+    stats.count.incrementAndGet();
+    stats.totalMillis.addAndGet(millis);
+    if (killed) {
+      stats.kills.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the statistics as JSON, with an object per stage and per child process.
+   */
+  static JSONObject toJson() throws JSONException {
+    JSONObject stagesJson = new JSONObject();
+    for (Map.Entry<String, StageStats> entry : sorted(stages).entrySet()) {
+      StageStats stats = entry.getValue();
+      JSONObject stage = new JSONObject();
+      stage.put("count", stats.count.get());
+      stage.put("totalMillis", stats.totalMillis.get());
+      stage.put("millis", percentilesJson(stats.durations));
+      for (Counter counter : Counter.values()) {
+        stage.put(counter.jsonName, stats.get(counter).get());
+      }
+      stagesJson.put(entry.getKey(), stage);
+    }
+    JSONObject processesJson = new JSONObject();
+    for (Map.Entry<String, ProcessStats> entry : sorted(processes).entrySet()) {
+      ProcessStats stats = entry.getValue();
+      JSONObject process = new JSONObject();
+      process.put("count", stats.count.get());
+      process.put("totalMillis", stats.totalMillis.get());
+      process.put("millis", percentilesJson(stats.durations));
+      process.put("peakRssKb", percentilesJson(stats.peakRssKb));
+      process.put("kills", stats.kills.get());
+      processesJson.put(entry.getKey(), process);
+    }
+    JSONObject json = new JSONObject();
+    json.put("stages", stagesJson);
+    json.put("processes", processesJson);
+    return json;
+  }
+
+  private static JSONObject percentilesJson(LatencySamples samples) throws JSONException {
+    JSONObject json = new JSONObject();
+    for (int percent : PERCENTILES) {
+      json.put("p" + percent, samples.getPercentile(percent));
+    }
+    return json;
+  }
+
+  /**
+   * Appends the statistics to the given builder in the Prometheus text exposition format.
+   * Durations are in seconds and sizes in bytes, as Prometheus expects.
+   */
+  static void appendPrometheus(StringBuilder text) {
+    Map<String, StageStats> sortedStages = sorted(stages);
+    Map<String, ProcessStats> sortedProcesses = sorted(processes);
+
+    String name = PREFIX + "stage_duration_seconds";
+    appendHeader(text, name, "summary", "How long each build stage took.");
+    for (Map.Entry<String, StageStats> entry : sortedStages.entrySet()) {
+      StageStats stats = entry.getValue();
+      appendSummary(text, name, "stage", entry.getKey(), stats.durations, 1000.0,
+          stats.count.get(), stats.totalMillis.get() / 1000.0);
+    }
+    for (Counter counter : Counter.values()) {
+      name = PREFIX + counter.metricName;
+      appendHeader(text, name, "counter", counter.help);
+      for (Map.Entry<String, StageStats> entry : sortedStages.entrySet()) {
+        text.append(name).append("{stage=\"").append(escape(entry.getKey())).append("\"} ")
+            .append(entry.getValue().get(counter).get()).append('\n');
+      }
+    }
+
+    name = PREFIX + "child_process_duration_seconds";
+    appendHeader(text, name, "summary", "How long each kind of child process ran.");
+    for (Map.Entry<String, ProcessStats> entry : sortedProcesses.entrySet()) {
+      ProcessStats stats = entry.getValue();
+      appendSummary(text, name, "process", entry.getKey(), stats.durations, 1000.0,
+          stats.count.get(), stats.totalMillis.get() / 1000.0);
+    }
+    name = PREFIX + "child_process_peak_rss_bytes";
+    appendHeader(text, name, "gauge",
+        "Percentiles of the peak resident set size of each kind of child process.");
+    for (Map.Entry<String, ProcessStats> entry : sortedProcesses.entrySet()) {
+      LatencySamples samples = entry.getValue().peakRssKb;
+      if (samples.getCount() == 0) {
+        continue;
+      }
+      for (int percent : PERCENTILES) {
+        text.append(name).append("{process=\"").append(escape(entry.getKey()))
+            .append("\",quantile=\"").append(percent / 100.0).append("\"} ")
+            .append(samples.getPercentile(percent) * 1024).append('\n');
+      }
+    }
+    name = PREFIX + "child_process_kills_total";
+    appendHeader(text, name, "counter",
+        "Child processes killed for exceeding the limits of their build stage.");
+    for (Map.Entry<String, ProcessStats> entry : sortedProcesses.entrySet()) {
+      text.append(name).append("{process=\"").append(escape(entry.getKey())).append("\"} ")
+          .append(entry.getValue().kills.get()).append('\n');
+    }
+  }
+
+  /**
+   * Appends a metric with a single value in the Prometheus text exposition format.
+   */
+  static void appendPrometheusValue(StringBuilder text, String name, String type, String help,
+      double value) {
+    appendHeader(text, PREFIX + name, type, help);
+    text.append(PREFIX).append(name).append(' ').append(format(value)).append('\n');
+  }
+
+  /**
+   * Forgets all statistics. For tests.
+   */
+  static void reset() {
+    stages.clear();
+    processes.clear();
+  }
+
+  private static void appendSummary(StringBuilder text, String name, String label,
+      String labelValue, LatencySamples samples, double divisor, long count, double sum) {
+    String labels = label + "=\"" + escape(labelValue) + "\"";
+    for (int percent : PERCENTILES) {
+      text.append(name).append('{').append(labels).append(",quantile=\"")
+          .append(percent / 100.0).append("\"} ")
+          .append(format(samples.getPercentile(percent) / divisor)).append('\n');
+    }
+    text.append(name).append("_sum{").append(labels).append("} ").append(format(sum))
+        .append('\n');
+    text.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+  }
+
+  private static void appendHeader(StringBuilder text, String name, String type, String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static String format(double value) {
+    return value == Math.rint(value) && !Double.isInfinite(value)
+        ? Long.toString((long) value) : Double.toString(value);
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static <T> Map<String, T> sorted(Map<String, T> map) {
+    return new TreeMap<String, T>(map);
+  }
+}
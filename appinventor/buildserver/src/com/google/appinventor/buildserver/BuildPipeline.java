@@ -0,0 +1,184 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of builds that may be in each stage of the build at the same time.
+ *
+ * <p>A build only holds a slot for the stage it is currently running, so while one build is
+ * running DX another one can be compiling with Kawa and a third one can be running aapt. Each
+ * stage has its own limit; a limit of 0 means unlimited.</p>
+ *
+ * <p>Limits must be set (see {@link #setMaxConcurrency}) before any build is started.</p>
+ */
+final class BuildPipeline {
+
+  /**
+   * The stages of a build, in the order in which a build passes through them.
+   */
+  enum Stage {
+    // Each screen of a build generates its YAIL on its own, so this limits screens rather than
+    // builds. It matches the number of warm YAIL generators, so screens don't start cold ones.
+    YAIL_GENERATION("yail-generation", 2),
+    KAWA("kawa", 1),
+    DX("dx", 1),
+    AAPT("aapt", 0),
+    APK_BUILDER("apk-builder", 0),
+    // Signs and aligns the apk.
+    SIGN("sign", 0);
+
+    private final String varName;
+    // Kawa and DX processes can use a lot of memory, so by default we only launch one of each at
+    // a time.
+    private final int defaultMaxConcurrency;
+
+    Stage(String varName, int defaultMaxConcurrency) {
+      this.varName = varName;
+      this.defaultMaxConcurrency = defaultMaxConcurrency;
+    }
+
+    String getVarName() {
+      return varName;
+    }
+  }
+
+  /*
+   * The gate that a build passes through to run a single stage, along with the statistics shown
+   * on the /buildserver/vars page.
+   */
+  private static final class StageGate {
+    private final int maxConcurrency;
+    // null if the stage is unlimited.
+    private final Semaphore permits;
+
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger entered = new AtomicInteger(0);
+    private final AtomicInteger completed = new AtomicInteger(0);
+    private final AtomicLong totalWaitMillis = new AtomicLong(0);
+    private final AtomicLong maxWaitMillis = new AtomicLong(0);
+
+    StageGate(int maxConcurrency) {
+      this.maxConcurrency = maxConcurrency;
+      this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency, true) : null;
+    }
+
+    void enter() {
+      long start = System.currentTimeMillis();
+      waiting.incrementAndGet();
+      try {
+        if (permits != null) {
+          permits.acquireUninterruptibly();
+        }
+      } finally {
+        waiting.decrementAndGet();
+      }
+      active.incrementAndGet();
+      entered.incrementAndGet();
+      long waited = System.currentTimeMillis() - start;
+      totalWaitMillis.addAndGet(waited);
+      long max;
+      do {
+        max = maxWaitMillis.get();
+      } while (waited > max && !maxWaitMillis.compareAndSet(max, waited));
+    }
+
+    void exit() {
+      active.decrementAndGet();
+      completed.incrementAndGet();
+      if (permits != null) {
+        permits.release();
+      }
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildPipeline.class.getName());
+
+  private static final Map<Stage, StageGate> gates = new EnumMap<Stage, StageGate>(Stage.class);
+
+  static {
+    for (Stage stage : Stage.values()) {
+      gates.put(stage, new StageGate(stage.defaultMaxConcurrency));
+    }
+  }
+
+  private BuildPipeline() {
+  }
+
+  /**
+   * Sets the maximum number of builds that may run the given stage at the same time. This must
+   * only be called before any build is started.
+   *
+   * @param stage the stage
+   * @param maxConcurrency the maximum number of builds in the stage. 0 means unlimited.
+   */
+  static synchronized void setMaxConcurrency(Stage stage, int maxConcurrency) {
+    if (maxConcurrency < 0) {
+      throw new IllegalArgumentException("maxConcurrency must not be negative");
+    }
+    gates.put(stage, new StageGate(maxConcurrency));
+    LOG.info("Maximum simultaneous " + stage.getVarName() + " = " +
+        (maxConcurrency == 0 ? "unlimited" : maxConcurrency));
+  }
+
+  /**
+   * Waits until the current build may run the given stage. Every call must be followed by a call
+   * to {@link #exit(Stage)}, typically in a finally block.
+   */
+  static void enter(Stage stage) {
+    gates.get(stage).enter();
+  }
+
+  /**
+   * Indicates that the current build has finished running the given stage.
+   */
+  static void exit(Stage stage) {
+    gates.get(stage).exit();
+  }
+
+  static int getMaxConcurrency(Stage stage) {
+    return gates.get(stage).maxConcurrency;
+  }
+
+  static int getActiveCount(Stage stage) {
+    return gates.get(stage).active.get();
+  }
+
+  static int getQueueDepth(Stage stage) {
+    return gates.get(stage).waiting.get();
+  }
+
+  static int getCompletedCount(Stage stage) {
+    return gates.get(stage).completed.get();
+  }
+
+  /**
+   * Adds the per-stage statistics to the given map of variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    for (Stage stage : Stage.values()) {
+      StageGate gate = gates.get(stage);
+      String prefix = "stage-" + stage.getVarName() + "-";
+      int entered = gate.entered.get();
+      variables.put(prefix + "maximum-simultaneous",
+          gate.maxConcurrency == 0 ? "unlimited" : gate.maxConcurrency + "");
+      variables.put(prefix + "active", gate.active.get() + "");
+      variables.put(prefix + "queue-depth", gate.waiting.get() + "");
+      variables.put(prefix + "completed", gate.completed.get() + "");
+      variables.put(prefix + "average-wait-ms",
+          (entered == 0 ? 0 : gate.totalWaitMillis.get() / entered) + "");
+      variables.put(prefix + "maximum-wait-ms", gate.maxWaitMillis.get() + "");
+    }
+  }
+}
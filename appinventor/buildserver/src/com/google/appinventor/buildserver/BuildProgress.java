@@ -0,0 +1,178 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The progress of one build, identified by a build id.
+ *
+ * <p>Each stage the build enters is recorded with the percentage of the build that is done and
+ * the time it was entered. Callers can wait for the next stage instead of polling, which is what
+ * the /buildserver/progress endpoint does.</p>
+ *
+ * <p>Builds are kept for a while after they finish, so that a caller can still see how a build
+ * ended. Each build also has a {@link BuildTrace}, which is included in the JSON.</p>
+ */
+final class BuildProgress {
+
+  /**
+   * A stage that the build entered.
+   */
+  static final class Event {
+    final String stage;
+    final int progress;
+    final long time;
+
+    Event(String stage, int progress, long time) {
+      this.stage = stage;
+      this.progress = progress;
+      this.time = time;
+    }
+  }
+
+  // How long a finished build is kept.
+  private static final long FINISHED_RETENTION_MILLIS = 10 * 60 * 1000;
+
+  // The builds, by build id.
+  private static final Map<String, BuildProgress> builds =
+      new ConcurrentHashMap<String, BuildProgress>();
+
+  private final String buildId;
+  private final BuildTrace trace = new BuildTrace();
+
+  // All of the following are guarded by this.
+  private final List<Event> events = new ArrayList<Event>();
+  private boolean finished = false;
+  private boolean succeeded = false;
+  private long finishedTime = 0;
+
+  private BuildProgress(String buildId) {
+    this.buildId = buildId;
+  }
+
+  /**
+   * Starts recording the progress of a build, replacing any earlier build with the same id.
+   */
+  static BuildProgress start(String buildId) {
+    removeExpired();
+    BuildProgress progress = new BuildProgress(buildId);
+    progress.update("Waiting for the build to start", 10);
+    builds.put(buildId, progress);
+    return progress;
+  }
+
+  /**
+   * Returns the progress of a build, or {@code null} if there is no such build or it finished
+   * too long ago.
+   */
+  static BuildProgress get(String buildId) {
+    return builds.get(buildId);
+  }
+
+  /**
+   * Returns the number of builds whose progress is kept.
+   */
+  static int getCount() {
+    return builds.size();
+  }
+
+  private static void removeExpired() {
+    long cutoff = System.currentTimeMillis() - FINISHED_RETENTION_MILLIS;
+    for (Iterator<BuildProgress> it = builds.values().iterator(); it.hasNext(); ) {
+      BuildProgress progress = it.next();
+      synchronized (progress) {
+        if (progress.finished && progress.finishedTime < cutoff) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Records that the build entered a stage.
+   *
+   * @param stage  a description of the stage
+   * @param progress  the percentage of the build that is done
+   */
+  synchronized void update(String stage, int progress) {
+    events.add(new Event(stage, progress, System.currentTimeMillis()));
+    notifyAll();
+  }
+
+  /**
+   * Records that the build is over, including sending its results.
+   */
+  synchronized void finish(boolean succeeded) {
+    this.finished = true;
+    this.succeeded = succeeded;
+    this.finishedTime = System.currentTimeMillis();
+    notifyAll();
+  }
+
+  /**
+   * Returns the percentage of the build that is done.
+   */
+  synchronized int getProgress() {
+    return events.isEmpty() ? 0 : events.get(events.size() - 1).progress;
+  }
+
+  BuildTrace getTrace() {
+    return trace;
+  }
+
+  synchronized boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Waits until the build has entered more than the given number of stages or has finished, or
+   * until the timeout elapses.
+   *
+   * @param seenEvents  the number of stages the caller already knows about
+   * @param timeoutMillis  the maximum time to wait
+   */
+  synchronized void await(int seenEvents, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (events.size() <= seenEvents && !finished && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Returns the progress as JSON, with all of the stages the build entered so far and its trace.
+   */
+  synchronized JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("buildId", buildId);
+    json.put("progress", getProgress());
+    json.put("finished", finished);
+    if (finished) {
+      json.put("succeeded", succeeded);
+    }
+    JSONArray stages = new JSONArray();
+    for (Event event : events) {
+      JSONObject stage = new JSONObject();
+      stage.put("stage", event.stage);
+      stage.put("progress", event.progress);
+      stage.put("time", event.time);
+      stages.put(stage);
+    }
+    json.put("events", stages);
+    json.put("trace", trace.toJson());
+    return json;
+  }
+}
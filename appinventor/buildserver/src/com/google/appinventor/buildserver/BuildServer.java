@@ -7,12 +7,14 @@ package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
 
 import com.sun.grizzly.http.SelectorThread;
 import com.sun.jersey.api.container.grizzly.GrizzlyServerFactory;
 
+import org.apache.commons.io.FileUtils;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.kohsuke.args4j.CmdLineException;
@@ -20,13 +22,15 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PushbackInputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.OperatingSystemMXBean;
@@ -38,12 +42,16 @@ import java.net.URL;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import javax.ws.rs.GET;
@@ -79,6 +87,14 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that wait for one of the --maxSimultaneousBuilds to finish. 0 means that they are rejected.")
+    int maxQueuedBuilds = 20;
+
+    @Option(name = "--maxBuildsPerUser",
+      usage = "Maximum number of running and waiting builds of a single user. 0 means unlimited.")
+    int maxBuildsPerUser = 0;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -95,6 +111,99 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--dexCacheMaxMb",
+      usage = "Maximum size of the pre-dexed library cache, in MB. 0 means unlimited.")
+    int dexCacheMaxMb = 0;
+
+    @Option(name = "--dexCacheWarmUp",
+      usage = "Pre-dex the runtime and component libraries when the build server starts.")
+    boolean dexCacheWarmUp = false;
+
+    @Option(name = "--companionWarmUp",
+      usage = "Dex the libraries shared by all Companion builds when the build server starts.")
+    boolean companionWarmUp = false;
+
+    @Option(name = "--maxSimultaneousYailGeneration",
+      usage = "Maximum number of screens, over all builds, whose YAIL is generated in parallel. Keep it no larger than --yailWorkers, or the extra screens start a new process each. 0 means unlimited.")
+    int maxSimultaneousYailGeneration = 2;
+
+    @Option(name = "--maxSimultaneousKawa",
+      usage = "Maximum number of builds that can run the Kawa compiler in parallel. 0 means unlimited.")
+    int maxSimultaneousKawa = 1;
+
+    @Option(name = "--maxSimultaneousDx",
+      usage = "Maximum number of builds that can run DX in parallel. 0 means unlimited.")
+    int maxSimultaneousDx = 1;
+
+    @Option(name = "--maxSimultaneousAapt",
+      usage = "Maximum number of builds that can run aapt in parallel. 0 means unlimited.")
+    int maxSimultaneousAapt = 0;
+
+    @Option(name = "--maxSimultaneousApkBuilder",
+      usage = "Maximum number of builds that can run ApkBuilder in parallel. 0 means unlimited.")
+    int maxSimultaneousApkBuilder = 0;
+
+    @Option(name = "--maxSimultaneousSign",
+      usage = "Maximum number of builds that can sign and align their apk in parallel. " +
+          "0 means unlimited.")
+    int maxSimultaneousSign = 0;
+
+    @Option(name = "--childProcessTimeoutSeconds",
+      usage = "Time after which a Kawa, DX, aapt or YAIL generator process of a build, or a warm Kawa or YAIL worker working for it, is killed, in seconds. 0 means unlimited.")
+    int childProcessTimeoutSeconds = 0;
+
+    @Option(name = "--childProcessMaxRssMb",
+      usage = "Memory above which a Kawa, DX, aapt or YAIL generator process of a build, or a warm Kawa or YAIL worker working for it, is killed, in MB. 0 means unlimited.")
+    int childProcessMaxRssMb = 0;
+
+    @Option(name = "--kawaPartitions",
+      usage = "Maximum number of Kawa compilers that compile the screens of a single build in parallel, each using up to --childProcessRamMb of memory.")
+    int kawaPartitions = 2;
+
+    @Option(name = "--kawaWorkers",
+      usage = "Number of warm Kawa compiler processes kept between builds. 0 means a new Kawa process for every build.")
+    int kawaWorkers = 2;
+
+    @Option(name = "--kawaWorkerMaxBuilds",
+      usage = "Number of builds after which a warm Kawa compiler process is replaced.")
+    int kawaWorkerMaxBuilds = 25;
+
+    @Option(name = "--kawaWorkerMaxRetainedHeapPercent",
+      usage = "Percentage of its heap a warm Kawa compiler process may retain before it is replaced.")
+    int kawaWorkerMaxRetainedHeapPercent = 75;
+
+    @Option(name = "--yailWorkers",
+      usage = "Number of warm YAIL generator processes kept between builds. 0 means a new process for every screen.")
+    int yailWorkers = 2;
+
+    @Option(name = "--yailWorkerMaxScreens",
+      usage = "Number of screens after which a warm YAIL generator process is replaced.")
+    int yailWorkerMaxScreens = 100;
+
+    @Option(name = "--buildCacheDir",
+      usage = "the directory to cache class files, dex files and resource packages between builds")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheMaxMb",
+      usage = "Maximum size of the build cache, in MB.")
+    int buildCacheMaxMb = 2048;
+
+    @Option(name = "--resultCacheMaxMb",
+      usage = "Maximum size of the results of recent builds that are sent again to identical build requests, in MB. 0 means identical requests only share builds that are running.")
+    int resultCacheMaxMb = 256;
+
+    @Option(name = "--resultCacheMinutes",
+      usage = "How long the results of a build are sent again to identical build requests, in minutes.")
+    int resultCacheMinutes = 10;
+
+    @Option(name = "--workspaceDir",
+      usage = "the directory for the files of running builds and the runtime files they share, ideally a tmpfs mount")
+    String workspaceDir = null;
+
+    @Option(name = "--workspaceMaxMb",
+      usage = "Space that may be used on the file system of --workspaceDir before builds use the temporary directory, in MB. 0 means unlimited.")
+    int workspaceMaxMb = 0;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -109,6 +218,23 @@ public class BuildServer {
   private static final MediaType ZIP_MEDIA_TYPE =
     new MediaType("application", "zip", ImmutableMap.of("charset", "utf-8"));
 
+  // The content type of the Prometheus text exposition format.
+  private static final MediaType PROMETHEUS_TEXT_TYPE =
+    new MediaType("text", "plain", ImmutableMap.of("version", "0.0.4"));
+
+  // The response header with the estimated time until an async build starts, in milliseconds.
+  // Must match YoungAndroidProjectService.ESTIMATED_WAIT_HEADER.
+  private static final String ESTIMATED_WAIT_HEADER = "Build-Estimated-Wait-Ms";
+
+  // The response header with the id of an async build, for following its progress.
+  private static final String BUILD_ID_HEADER = "Build-Id";
+
+  // The longest time a progress request waits for the build to make progress.
+  private static final int MAX_PROGRESS_WAIT_SECONDS = 30;
+
+  // The size of the chunks in which the build results are streamed to the callback url.
+  private static final int CALLBACK_CHUNK_SIZE = 64 * 1024;
+
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
   // The number of build requests for this server run
@@ -130,11 +256,15 @@ public class BuildServer {
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static BuildExecutor buildExecutor;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
 
+  // The directory that an async request's project was extracted into. The build deletes it, but
+  // if the build never runs it will be deleted in cleanUp.
+  private File inputDir;
+
   // The built APK file for this build request, if any.
   private File outputApk;
 
@@ -232,6 +362,34 @@ public class BuildServer {
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
 
+    // Build queue
+    buildExecutor.addVariables(variables);
+    variables.put("builds-with-progress", BuildProgress.getCount() + "");
+
+    // Build stages
+    BuildPipeline.addVariables(variables);
+
+    // Child processes
+    Execution.addVariables(variables);
+
+    // Kawa compiler workers
+    KawaCompilerPool.addVariables(variables);
+
+    // YAIL generator workers
+    YailGeneratorPool.addVariables(variables);
+
+    // Build cache
+    BuildCache.addVariables(variables);
+
+    // Pre-dexed libraries
+    PreDexStore.addVariables(variables);
+
+    // Build workspace
+    BuildWorkspace.addVariables(variables);
+
+    // Identical build requests
+    BuildDeduplicator.addVariables(variables);
+
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
     for (Map.Entry<String, String> variable : variables.entrySet()) {
@@ -242,6 +400,51 @@ public class BuildServer {
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  /**
+   * Returns the statistics of the build stages and child processes, with their 50th, 95th and
+   * 99th percentiles, as JSON or, with format=prometheus, in the Prometheus text format.
+   *
+   * @param format  "json" (the default) or "prometheus"
+   */
+  @GET
+  @Path("metrics")
+  public Response metrics(@QueryParam("format") String format) throws JSONException {
+    int activeBuilds = buildExecutor.getActiveTaskCount();
+    int maxBuilds = buildExecutor.getMaxActiveTasks();
+    if ("prometheus".equals(format)) {
+      StringBuilder text = new StringBuilder();
+      BuildMetrics.appendPrometheus(text);
+      BuildMetrics.appendPrometheusValue(text, "active_builds", "gauge",
+          "Builds that are running.", activeBuilds);
+      if (maxBuilds != 0) {
+        BuildMetrics.appendPrometheusValue(text, "max_active_builds", "gauge",
+            "Builds that can run at the same time.", maxBuilds);
+      }
+      BuildMetrics.appendPrometheusValue(text, "async_build_requests_total", "counter",
+          "Async build requests received.", asyncBuildRequests.get());
+      BuildMetrics.appendPrometheusValue(text, "rejected_async_build_requests_total", "counter",
+          "Async build requests rejected.", rejectedAsyncBuildRequests.get());
+      BuildMetrics.appendPrometheusValue(text, "successful_build_requests_total", "counter",
+          "Builds that succeeded.", successfulBuildRequests.get());
+      BuildMetrics.appendPrometheusValue(text, "failed_build_requests_total", "counter",
+          "Builds that failed.", failedBuildRequests.get());
+      BuildDeduplicator.appendPrometheus(text);
+      return Response.ok(text.toString(), PROMETHEUS_TEXT_TYPE).build();
+    }
+    JSONObject json = BuildMetrics.toJson();
+    json.put("buildserverVersion", GitBuildId.getVersion());
+    json.put("activeBuilds", activeBuilds);
+    if (maxBuilds != 0) {
+      json.put("maxActiveBuilds", maxBuilds);
+    }
+    json.put("asyncBuildRequests", asyncBuildRequests.get());
+    json.put("rejectedAsyncBuildRequests", rejectedAsyncBuildRequests.get());
+    json.put("successfulBuildRequests", successfulBuildRequests.get());
+    json.put("failedBuildRequests", failedBuildRequests.get());
+    json.put("dedup", new JSONObject(BuildDeduplicator.getCounters()));
+    return Response.ok(json.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
   /**
    * Indicate that the server is shutting down.
    *
@@ -298,7 +501,7 @@ public class BuildServer {
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      build(userName, zipFile);
+      build(userName, zipFile, false);
       String attachedFilename = outputApk.getName();
       FileInputStream outputApkDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputApk);
       // Set the outputApk field to null so that it won't be deleted in cleanUp().
@@ -341,7 +544,7 @@ public class BuildServer {
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      buildAndCreateZip(userName, inputZipFile);
+      buildAndCreateZip(userName, inputZipFile, false);
       String attachedFilename = outputZip.getName();
       FileInputStream outputZipDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputZip);
       // Set the outputZip field to null so that it won't be deleted in cleanUp().
@@ -378,8 +581,15 @@ public class BuildServer {
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
-   * @param inputZipFile  The zip file representing the App Inventor source code.
-   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
+   * @param isForCompanion  "true" to build the MIT AI2 Companion.
+   * @param buildId  The id under which the progress of the build can be followed at
+   *     /buildserver/progress. If it isn't given, an id is generated.
+   * @param inputZipStream  The zip file representing the App Inventor source code. It is
+   *     extracted as it arrives, and the results are streamed back to the callbackUrl, so that
+   *     neither zip is ever held in memory.
+   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503). An OK response
+   *     has a Build-Estimated-Wait-Ms header with the estimated time until the build starts and
+   *     a Build-Id header with the build id.
    */
   @POST
   @Path("build-all-from-zip-async")
@@ -388,17 +598,17 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
-    final File inputZipFile) throws IOException {
-    // Set the inputZip field so we can delete the input zip file later in
-    // cleanUp.
-    inputZip = inputZipFile;
-    inputZip.deleteOnExit(); // In case build server is killed before cleanUp executes.
+    @QueryParam("isForCompanion") final String isForCompanion,
+    @QueryParam("buildId") String buildId,
+    InputStream inputZipStream) throws IOException {
     String requesting_host = (new URL(callbackUrlStr)).getHost();
 
-    //for the request for update part, the file should be empty
-    if (inputZip.length() == 0L) {
-      cleanUp();
-    } else {
+    //for the request for update part, the body should be empty
+    PushbackInputStream inputZipBody = new PushbackInputStream(inputZipStream);
+    int firstByte = inputZipBody.read();
+    if (firstByte != -1) {
+      inputZipBody.unread(firstByte);
+
       if (getShutdownState() == ShutdownState.DOWN) {
         LOG.info("request received while shutdown completely");
         return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Temporary build error, try again.").build();
@@ -442,58 +652,128 @@ public class BuildServer {
         }
       }
 
+      if (buildId == null || buildId.isEmpty()) {
+        buildId = UUID.randomUUID().toString();
+      }
+      final BuildProgress buildProgress = BuildProgress.start(buildId);
+      final BuildTrace trace = buildProgress.getTrace();
+
+      // Extract the project as the request body arrives, instead of saving the zip first.
+      inputDir = ProjectBuilder.createNewTempDir();
+      final List<String> inputFiles;
+      BuildTrace.Span extractSpan = trace.startSpan(BuildTrace.EXTRACT);
+      CountingInputStream countingZipBody = new CountingInputStream(inputZipBody);
+      try {
+        inputFiles = ProjectBuilder.extractProjectFiles(new ZipInputStream(countingZipBody),
+            inputDir);
+      } catch (IOException e) {
+        LOG.severe("Problems extracting the input zip: " + e.getMessage());
+        rejectedAsyncBuildRequests.incrementAndGet();
+        buildProgress.finish(false);
+        cleanUp();
+        return Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE).entity("Problems processing zip file.").build();
+      } finally {
+        extractSpan.addBytesIn(countingZipBody.getCount());
+        extractSpan.end();
+      }
+
+      final boolean forCompanion = "true".equals(isForCompanion);
+      String fingerprint = null;
+      if (BuildDeduplicator.isEnabled()) {
+        try {
+          fingerprint = BuildDeduplicator.fingerprint(userName, inputDir, inputFiles,
+              forCompanion);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to fingerprint the build request", e);
+        }
+      }
+      if (fingerprint != null
+          && BuildDeduplicator.join(fingerprint, newRecipient(callbackUrlStr, buildProgress))) {
+        // An identical build is running or has just finished, and its results will be sent.
+        LOG.info("Build " + buildId + " gets the results of an identical build");
+        buildProgress.update("Waiting for an identical build", 10);
+        cleanUp();
+        return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+          .header(ESTIMATED_WAIT_HEADER, 0)
+          .header(BUILD_ID_HEADER, buildId)
+          .entity("" + buildProgress.getProgress()).build();
+      }
+      final String buildFingerprint = fingerprint;
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
             int count = buildCount.incrementAndGet();
+            boolean succeeded = false;
+            boolean shared = false;
+            BuildTrace.setCurrent(trace);
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
+              projectBuilder.setBuildProgress(buildProgress);
+              final Result buildResult = build(userName, inputDir, inputFiles, forCompanion);
+              if (buildFingerprint == null) {
+                succeeded = postResults(callbackUrlStr, trace, new ResultZipWriter() {
+                  @Override
+                  public void write(OutputStream out) throws IOException, JSONException {
+                    writeResultZip(buildResult, out);
+                  }
+                }) && buildResult.succeeded();
+              } else {
+                // The results are written once and shared with identical requests.
+                File resultZip = File.createTempFile("result", ".zip",
+                    BuildWorkspace.getBuildsDir());
                 try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
+                  OutputStream resultZipStream =
+                      new BufferedOutputStream(new FileOutputStream(resultZip));
+                  try {
+                    writeResultZip(buildResult, resultZipStream);
+                  } finally {
+                    resultZipStream.close();
+                  }
+                } catch (IOException e) {
+                  resultZip.delete();
+                  throw e;
+                }
+                BuildDeduplicator.SharedResult result = BuildDeduplicator.finish(
+                    buildFingerprint, resultZip, buildResult.succeeded());
+                shared = true;
+                try {
+                  succeeded = postResults(callbackUrlStr, trace, copier(result.zip))
+                      && result.succeeded;
                 } finally {
-                  bufferedInputStream.close();
+                  result.release();
                 }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
               }
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
-              LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
+              LOG.severe("Exception: " + e.getMessage() + " and the number of input files is " + inputFiles.size());
             } finally {
+              if (buildFingerprint != null && !shared) {
+                // Identical requests waiting for this build get no results either.
+                BuildDeduplicator.finish(buildFingerprint, null, false);
+              }
+              // The build is only over for whoever follows its progress once the results have
+              // been sent.
+              buildProgress.finish(succeeded);
+              BuildTrace.setCurrent(null);
               cleanUp();
               checkMemory();
+              logTrace(count, trace);
               LOG.info("BUILD " + count + " FINISHED");
             }
           }
         };
+      long estimatedWaitMillis;
       try {
-        buildExecutor.execute(buildTask);
+        estimatedWaitMillis = buildExecutor.execute(userName, buildTask);
       } catch (RejectedExecutionException e) {
-        // This request was rejected because all threads in the build
-        // executor are busy.
+        // This request was rejected because the build queue is full or the user already has too
+        // many builds.
         rejectedAsyncBuildRequests.incrementAndGet();
+        if (buildFingerprint != null) {
+          BuildDeduplicator.finish(buildFingerprint, null, false);
+        }
+        buildProgress.finish(false);
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
         // means (according to rfc2616, section 10) "The server is
@@ -503,19 +783,153 @@ public class BuildServer {
         // alleviated after some delay."
         return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
       }
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+        .header(ESTIMATED_WAIT_HEADER, estimatedWaitMillis)
+        .header(BUILD_ID_HEADER, buildId)
+        .entity("" + buildProgress.getProgress()).build();
     }
+    BuildProgress buildProgress = buildId == null ? null : BuildProgress.get(buildId);
     return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
+      .entity("" + (buildProgress == null ? 0 : buildProgress.getProgress())).build();
   }
 
-  private void buildAndCreateZip(String userName, File inputZipFile)
+  /**
+   * Returns the progress of an async build as JSON: the percentage done, whether the build is over
+   * (including sending its results), and each stage the build entered with the time it entered
+   * it.
+   *
+   * Instead of polling, callers can pass the number of stages they have already seen and a wait
+   * time. The response is then held back until the build enters a new stage or is over, or until
+   * the wait time elapses.
+   *
+   * @param buildId  the build id given to (or returned by) build-all-from-zip-async
+   * @param seen  the number of stages the caller has already seen
+   * @param wait  the maximum time to wait for a new stage, in seconds
+   * @return the progress, or NOT_FOUND (404) if the build is unknown or finished long ago
+   */
+  @GET
+  @Path("progress")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response progress(@QueryParam("buildId") String buildId,
+    @QueryParam("seen") String seen, @QueryParam("wait") String wait)
+    throws JSONException, InterruptedException {
+    BuildProgress buildProgress = buildId == null ? null : BuildProgress.get(buildId);
+    if (buildProgress == null) {
+      return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("Unknown build.").build();
+    }
+    if (seen != null && wait != null) {
+      try {
+        int waitSeconds = Math.min(Integer.parseInt(wait), MAX_PROGRESS_WAIT_SECONDS);
+        buildProgress.await(Integer.parseInt(seen), waitSeconds * 1000L);
+      } catch (NumberFormatException e) {
+        // Answer right away.
+      }
+    }
+    return Response.ok(buildProgress.toJson().toString(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
+  /*
+   * Writes the zip with the results of a build.
+   */
+  private interface ResultZipWriter {
+    void write(OutputStream out) throws IOException, JSONException;
+  }
+
+  /*
+   * Streams the zip with the results of a build to the callback url of an async build request.
+   * Returns whether the callback accepted it.
+   */
+  private static boolean postResults(String callbackUrlStr, BuildTrace trace,
+    ResultZipWriter resultZipWriter) throws IOException, JSONException {
+    BuildTrace.Span sendSpan = trace.startSpan(BuildTrace.SEND_RESULTS);
+    // Stream the zip back to the callbackUrl. Without chunked streaming mode,
+    // HttpURLConnection would buffer the whole zip, APK included, in memory.
+    LOG.info("CallbackURL: " + callbackUrlStr);
+    URL callbackUrl = new URL(callbackUrlStr);
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setChunkedStreamingMode(CALLBACK_CHUNK_SIZE);
+    // Make sure we aren't misinterpreted as
+    // form-url-encoded
+    connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+    connection.setConnectTimeout(60000);
+    connection.setReadTimeout(60000);
+    CountingOutputStream countingOutputStream = new CountingOutputStream(
+      new BufferedOutputStream(connection.getOutputStream(), CALLBACK_CHUNK_SIZE));
+    try {
+      try {
+        resultZipWriter.write(countingOutputStream);
+        checkMemory();
+        countingOutputStream.flush();
+      } finally {
+        countingOutputStream.close();
+      }
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
+        // TODO(user) Maybe do some retries
+        return false;
+      }
+      return true;
+    } finally {
+      sendSpan.addBytesOut(countingOutputStream.getCount());
+      sendSpan.end();
+    }
+  }
+
+  private static ResultZipWriter copier(final File resultZip) {
+    return new ResultZipWriter() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Files.copy(resultZip, out);
+      }
+    };
+  }
+
+  /*
+   * Returns where the results of an identical build are sent for an async build request that
+   * isn't built itself.
+   */
+  private static BuildDeduplicator.Recipient newRecipient(final String callbackUrlStr,
+    final BuildProgress buildProgress) {
+    return new BuildDeduplicator.Recipient() {
+      @Override
+      public void send(File resultZip, boolean succeeded) {
+        boolean sent = false;
+        try {
+          if (resultZip != null) {
+            sent = postResults(callbackUrlStr, buildProgress.getTrace(), copier(resultZip));
+          }
+        } catch (Exception e) {
+          LOG.severe("Exception sending the results of an identical build: " + e.getMessage());
+        } finally {
+          buildProgress.finish(sent && succeeded);
+        }
+      }
+    };
+  }
+
+  private void buildAndCreateZip(String userName, File inputZipFile, boolean isForCompanion)
     throws IOException, JSONException {
-    Result buildResult = build(userName, inputZipFile);
-    boolean buildSucceeded = buildResult.succeeded();
+    Result buildResult = build(userName, inputZipFile, isForCompanion);
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
+    OutputStream outputZipStream = new BufferedOutputStream(new FileOutputStream(outputZip));
+    try {
+      writeResultZip(buildResult, outputZipStream);
+    } finally {
+      outputZipStream.close();
+    }
+  }
+
+  /*
+   * Writes the zip with the build results to the given stream, which is not closed. The APK and
+   * keystore are copied from their files as the zip is written.
+   */
+  private void writeResultZip(Result buildResult, OutputStream out)
+    throws IOException, JSONException {
+    boolean buildSucceeded = buildResult.succeeded();
+    ZipOutputStream zipOutputStream = new ZipOutputStream(out);
     if (buildSucceeded) {
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
@@ -533,8 +947,7 @@ public class BuildServer {
     PrintStream zipPrintStream = new PrintStream(zipOutputStream);
     zipPrintStream.print(buildOutputJson);
     zipPrintStream.flush();
-    zipOutputStream.flush();
-    zipOutputStream.close();
+    zipOutputStream.finish();
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -548,15 +961,31 @@ public class BuildServer {
     return buildOutputJsonObj.toString();
   }
 
-  private Result build(String userName, File zipFile) throws IOException {
+  private Result build(String userName, File zipFile, boolean isForCompanion) throws IOException {
+    createOutputDir();
+    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, isForCompanion,
+      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+    return processBuildResult(buildResult);
+  }
+
+  private Result build(String userName, File projectRoot, List<String> sourceFiles,
+    boolean isForCompanion) throws IOException {
+    createOutputDir();
+    Result buildResult = projectBuilder.build(userName, projectRoot, sourceFiles, outputDir,
+      isForCompanion, commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+    return processBuildResult(buildResult);
+  }
+
+  private void createOutputDir() {
     outputDir = Files.createTempDir();
     // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
     // executes. However, it is likely that the directory won't be empty and therefore, won't
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
-    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
-      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+  }
+
+  private Result processBuildResult(Result buildResult) {
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
@@ -573,10 +1002,24 @@ public class BuildServer {
     return buildResult;
   }
 
+  /*
+   * Logs the trace of a build, so that the stages of slow builds can be looked at later.
+   */
+  private static void logTrace(int count, BuildTrace trace) {
+    try {
+      LOG.info("BUILD " + count + " TRACE " + trace.toJson());
+    } catch (JSONException e) {
+      LOG.log(Level.WARNING, "Unable to write the build trace", e);
+    }
+  }
+
   private void cleanUp() {
     if (inputZip != null) {
       inputZip.delete();
     }
+    if (inputDir != null) {
+      FileUtils.deleteQuietly(inputDir);
+    }
     if (outputKeystore != null) {
       outputKeystore.delete();
     }
@@ -612,7 +1055,78 @@ public class BuildServer {
     }
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildExecutor = new BuildExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds, commandLineOptions.maxBuildsPerUser);
+
+    // Likewise, the stage limits must be set before the first build starts.
+    BuildPipeline.setMaxConcurrency(BuildPipeline.Stage.YAIL_GENERATION,
+        commandLineOptions.maxSimultaneousYailGeneration);
+    BuildPipeline.setMaxConcurrency(BuildPipeline.Stage.KAWA,
+        commandLineOptions.maxSimultaneousKawa);
+    BuildPipeline.setMaxConcurrency(BuildPipeline.Stage.DX,
+        commandLineOptions.maxSimultaneousDx);
+    BuildPipeline.setMaxConcurrency(BuildPipeline.Stage.AAPT,
+        commandLineOptions.maxSimultaneousAapt);
+    BuildPipeline.setMaxConcurrency(BuildPipeline.Stage.APK_BUILDER,
+        commandLineOptions.maxSimultaneousApkBuilder);
+    BuildPipeline.setMaxConcurrency(BuildPipeline.Stage.SIGN,
+        commandLineOptions.maxSimultaneousSign);
+
+    for (BuildPipeline.Stage stage : BuildPipeline.Stage.values()) {
+      Execution.setLimits(stage, commandLineOptions.childProcessTimeoutSeconds * 1000L,
+          commandLineOptions.childProcessMaxRssMb * 1024L);
+    }
+
+    Compiler.setMaxKawaPartitions(commandLineOptions.kawaPartitions);
+    KawaCompilerPool.setMaxBuildsPerWorker(commandLineOptions.kawaWorkerMaxBuilds);
+    KawaCompilerPool.setMaxRetainedHeapPercent(commandLineOptions.kawaWorkerMaxRetainedHeapPercent);
+    KawaCompilerPool.setMaxIdleWorkers(commandLineOptions.kawaWorkers);
+
+    YailGeneratorPool.setMaxScreensPerWorker(commandLineOptions.yailWorkerMaxScreens);
+    YailGeneratorPool.setMaxIdleWorkers(commandLineOptions.yailWorkers);
+
+    if (commandLineOptions.workspaceDir != null) {
+      BuildWorkspace.configure(new File(commandLineOptions.workspaceDir),
+          commandLineOptions.workspaceMaxMb * 1024L * 1024L);
+    }
+
+    BuildDeduplicator.configure(commandLineOptions.resultCacheMaxMb * 1024L * 1024L,
+        commandLineOptions.resultCacheMinutes * 60 * 1000L);
+
+    // Read the component catalog before the first build needs it.
+    ComponentCatalog.builtIn();
+
+    if (commandLineOptions.buildCacheDir != null) {
+      BuildCache.configure(new File(commandLineOptions.buildCacheDir),
+          commandLineOptions.buildCacheMaxMb * 1024L * 1024L);
+    }
+
+    PreDexStore.setMaxSizeBytes(commandLineOptions.dexCacheMaxMb * 1024L * 1024L);
+    final boolean dexCacheWarmUp =
+        commandLineOptions.dexCacheDir != null && commandLineOptions.dexCacheWarmUp;
+    if (dexCacheWarmUp || commandLineOptions.companionWarmUp) {
+      Thread warmUp = new Thread("Pre-dex warm-up") {
+        @Override
+        public void run() {
+          if (dexCacheWarmUp) {
+            try {
+              int failures = Compiler.warmUpDexCache(commandLineOptions.dexCacheDir,
+                  commandLineOptions.childProcessRamMb);
+              LOG.info("Pre-dex warm-up done, " + failures + " failures");
+            } catch (Exception e) {
+              LOG.log(Level.WARNING, "Pre-dex warm-up failed", e);
+            }
+          }
+          if (commandLineOptions.companionWarmUp) {
+            boolean ready = Compiler.warmUpCompanionBase(commandLineOptions.dexCacheDir,
+                commandLineOptions.childProcessRamMb);
+            LOG.info("Companion warm-up " + (ready ? "done" : "failed"));
+          }
+        }
+      };
+      warmUp.setDaemon(true);
+      warmUp.start();
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -0,0 +1,296 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * The trace of one build: when each stage started and ended, the bytes it read and wrote,
+ * whether its output came from the build cache, how long its parts (such as screens) took, and the child processes it ran with their peak
+ * resident set size.
+ *
+ * <p>The trace of the build that a thread is working on is available from {@link #current()},
+ * so that code deep in the build, such as {@link Execution}, can add to it without it being
+ * passed around. Every stage and child process is also added to {@link BuildMetrics}, whether or
+ * not there is a trace.</p>
+ */
+final class BuildTrace {
+
+  // The stages of a build, in order.
+  static final String EXTRACT = "extract";
+  static final String YAIL_GENERATION = "yail-generation";
+  static final String MANIFEST = "manifest";
+  static final String KAWA = "kawa";
+  static final String DX = "dx";
+  static final String AAPT = "aapt";
+  static final String APK_BUILDER = "apk-builder";
+  static final String SIGN_AND_ALIGN = "sign-and-align";
+  static final String SEND_RESULTS = "send-results";
+
+  /**
+   * A stage of a build, from {@link BuildTrace#start} or {@link BuildTrace#startSpan} until
+   * {@link #end}.
+   */
+  static final class Span {
+    final String stage;
+    final long startTime;
+
+    // All of the following are guarded by this.
+    private long endTime = 0;
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+    private Boolean cacheHit = null;
+    private final Map<String, Long> partMillis = new LinkedHashMap<String, Long>();
+
+    private Span(String stage) {
+      this.stage = stage;
+      this.startTime = System.currentTimeMillis();
+    }
+
+    synchronized Span addBytesIn(long bytes) {
+      bytesIn += bytes;
+      return this;
+    }
+
+    synchronized Span addBytesOut(long bytes) {
+      bytesOut += bytes;
+      return this;
+    }
+
+    /**
+     * Records whether the output of the stage came from the build cache.
+     */
+    synchronized Span setCacheHit(boolean cacheHit) {
+      this.cacheHit = cacheHit;
+      return this;
+    }
+
+    /**
+     * Records how long one part of the stage took, such as generating the YAIL for one screen.
+     */
+    synchronized Span addPart(String part, long millis) {
+      partMillis.put(part, millis);
+      return this;
+    }
+
+    /**
+     * Ends the stage, unless it already ended.
+     */
+    synchronized void end() {
+      if (endTime == 0) {
+        endTime = System.currentTimeMillis();
+        BuildMetrics.recordStage(stage, endTime - startTime, bytesIn, bytesOut, cacheHit);
+      }
+    }
+
+    synchronized JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("stage", stage);
+      json.put("start", startTime);
+      if (endTime != 0) {
+        json.put("end", endTime);
+        json.put("millis", endTime - startTime);
+      }
+      json.put("bytesIn", bytesIn);
+      json.put("bytesOut", bytesOut);
+      if (cacheHit != null) {
+        json.put("cacheHit", cacheHit.booleanValue());
+      }
+      if (!partMillis.isEmpty()) {
+        JSONObject parts = new JSONObject();
+        for (Map.Entry<String, Long> entry : partMillis.entrySet()) {
+          parts.put(entry.getKey(), entry.getValue().longValue());
+        }
+        json.put("parts", parts);
+      }
+      return json;
+    }
+  }
+
+  /**
+   * A child process that ran during a build.
+   */
+  static final class ChildProcess {
+    final String name;
+    final long startTime;
+    final long millis;
+    // The peak resident set size in KB, or -1 if unknown.
+    final long peakRssKb;
+    // The user and system CPU time in milliseconds, or -1 if unknown.
+    final long cpuMillis;
+    // The exit value, or -1 if the process didn't exit.
+    final int exitValue;
+    // Why the process was killed, or null if it wasn't.
+    final String killReason;
+
+    ChildProcess(String name, long startTime, long millis, long peakRssKb, long cpuMillis,
+        int exitValue, String killReason) {
+      this.name = name;
+      this.startTime = startTime;
+      this.millis = millis;
+      this.peakRssKb = peakRssKb;
+      this.cpuMillis = cpuMillis;
+      this.exitValue = exitValue;
+      this.killReason = killReason;
+    }
+
+    JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("name", name);
+      json.put("start", startTime);
+      json.put("millis", millis);
+      if (peakRssKb >= 0) {
+        json.put("peakRssKb", peakRssKb);
+      }
+      if (cpuMillis >= 0) {
+        json.put("cpuMillis", cpuMillis);
+      }
+      json.put("exitValue", exitValue);
+      if (killReason != null) {
+        json.put("killed", killReason);
+      }
+      return json;
+    }
+  }
+
+  private static final ThreadLocal<BuildTrace> current = new ThreadLocal<BuildTrace>();
+
+  // All of the following are guarded by this.
+  private final List<Span> spans = new ArrayList<Span>();
+  private final List<ChildProcess> processes = new ArrayList<ChildProcess>();
+
+  /**
+   * Returns the trace of the build that the current thread is working on, or {@code null}.
+   */
+  static BuildTrace current() {
+    return current.get();
+  }
+
+  /**
+   * Sets the trace of the build that the current thread is working on. Threads that do part of a
+   * build for another thread should set the other thread's trace while they do it, and set it
+   * back to {@code null} when they are done.
+   */
+  static void setCurrent(BuildTrace trace) {
+    if (trace == null) {
+      current.remove();
+    } else {
+      current.set(trace);
+    }
+  }
+
+  /**
+   * Returns a task that runs the given task as part of the build that the current thread is
+   * working on, for handing parts of the build to other threads.
+   */
+  static <T> Callable<T> propagate(final Callable<T> task) {
+    final BuildTrace trace = current();
+    return new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        setCurrent(trace);
+        try {
+          return task.call();
+        } finally {
+          setCurrent(null);
+        }
+      }
+    };
+  }
+
+  /**
+   * Starts a stage of the build that the current thread is working on, if any.
+   */
+  static Span start(String stage) {
+    BuildTrace trace = current();
+    return trace == null ? new Span(stage) : trace.startSpan(stage);
+  }
+
+  /**
+   * Starts a stage of this build.
+   */
+  Span startSpan(String stage) {
+    Span span = new Span(stage);
+    synchronized (this) {
+      spans.add(span);
+    }
+    return span;
+  }
+
+  /**
+   * Records that a child process ran for the build that the current thread is working on, if any.
+   *
+   * @param name  the kind of process, such as the name of the tool it ran
+   * @param startTime  when the process started
+   * @param peakRssKb  the peak resident set size of the process in KB, or -1 if unknown
+   */
+  static void recordProcess(String name, long startTime, long peakRssKb) {
+    recordProcess(name, startTime, peakRssKb, -1, 0, null);
+  }
+
+  /**
+   * Records that a child process ran for the build that the current thread is working on, if any.
+   *
+   * @param name  the kind of process, such as the name of the tool it ran
+   * @param startTime  when the process started
+   * @param peakRssKb  the peak resident set size of the process in KB, or -1 if unknown
+   * @param cpuMillis  the CPU time the process used, or -1 if unknown
+   * @param exitValue  the exit value of the process, or -1 if it didn't exit
+   * @param killReason  why the process was killed, or {@code null} if it wasn't
+   */
+  static void recordProcess(String name, long startTime, long peakRssKb, long cpuMillis,
+      int exitValue, String killReason) {
+    long millis = System.currentTimeMillis() - startTime;
+    BuildMetrics.recordProcess(name, millis, peakRssKb, killReason != null);
+    BuildTrace trace = current();
+    if (trace != null) {
+      synchronized (trace) {
+        trace.processes.add(new ChildProcess(name, startTime, millis, peakRssKb, cpuMillis,
+            exitValue, killReason));
+      }
+    }
+  }
+
+  /**
+   * Returns the spans started so far.
+   */
+  synchronized List<Span> getSpans() {
+    return new ArrayList<Span>(spans);
+  }
+
+  /**
+   * Returns the child processes recorded so far.
+   */
+  synchronized List<ChildProcess> getProcesses() {
+    return new ArrayList<ChildProcess>(processes);
+  }
+
+  /**
+   * Returns the trace as JSON, with the stages in the order they started.
+   */
+  JSONObject toJson() throws JSONException {
+    JSONArray spansJson = new JSONArray();
+    for (Span span : getSpans()) {
+      spansJson.put(span.toJson());
+    }
+    JSONArray processesJson = new JSONArray();
+    for (ChildProcess process : getProcesses()) {
+      processesJson.put(process.toJson());
+    }
+    JSONObject json = new JSONObject();
+    json.put("stages", spansJson);
+    json.put("processes", processesJson);
+    return json;
+  }
+}
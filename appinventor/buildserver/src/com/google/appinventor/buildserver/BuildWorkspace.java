@@ -0,0 +1,158 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Where builds keep their files while they run.
+ *
+ * <p>The files of each build go into a directory of their own under the workspace directory given
+ * by --workspaceDir, or under the system's temporary directory if there is none. The workspace
+ * directory is meant to be a file system of its own, such as a tmpfs mount, so its size budget is
+ * checked against the space used on that file system. While the budget is used up, new builds go
+ * to the system's temporary directory instead.</p>
+ *
+ * <p>The build server's runtime files, such as the libraries, native libraries and assets of the
+ * components, are extracted once into a resource directory next to the builds, which is kept
+ * across restarts of the same version of the build server. Builds link to them rather than copy
+ * them, so staging a file costs no disk space and no time. Linked files are shared, so builds must
+ * never write to them.</p>
+ */
+final class BuildWorkspace {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildWorkspace.class.getName());
+
+  private static final String RESOURCES_PREFIX = "resources-";
+
+  private static volatile File workspaceDir = null;
+  private static volatile long maxBytes = 0;
+
+  private static final AtomicInteger links = new AtomicInteger(0);
+  private static final AtomicInteger copies = new AtomicInteger(0);
+  private static final AtomicInteger overBudget = new AtomicInteger(0);
+
+  private BuildWorkspace() {
+  }
+
+  /**
+   * Sets the workspace directory.
+   *
+   * @param dir  the workspace directory, or {@code null} for the system's temporary directory
+   * @param maxSizeBytes  the most space that may be used on the file system of the workspace
+   *     directory before builds go to the system's temporary directory, or 0 for no limit
+   */
+  static void configure(File dir, long maxSizeBytes) {
+    if (dir != null) {
+      dir.mkdirs();
+    }
+    workspaceDir = dir;
+    maxBytes = maxSizeBytes;
+  }
+
+  /**
+   * Returns the directory under which the next build should put its files.
+   */
+  static File getBuildsDir() {
+    File dir = workspaceDir;
+    if (dir != null) {
+      if (maxBytes == 0 || dir.getTotalSpace() - dir.getFreeSpace() < maxBytes) {
+        return dir;
+      }
+      overBudget.incrementAndGet();
+    }
+    return getTempDir();
+  }
+
+  /**
+   * Returns the directory where the build server's runtime files are extracted.
+   */
+  static File getResourceDir() {
+    File dir = workspaceDir;
+    return new File(dir != null ? dir : getTempDir(),
+        RESOURCES_PREFIX + GitBuildId.getFingerprint());
+  }
+
+  /**
+   * Extracts one of the build server's runtime files into the resource directory, unless an
+   * earlier run of the same version of the build server already did.
+   *
+   * @param resourcePath  the name of the resource, such as /files/AndroidRuntime.jar
+   * @return  the extracted file
+   */
+  static File extractResource(String resourcePath) throws IOException {
+    URL resource = Compiler.class.getResource(resourcePath);
+    if (resource == null) {
+      throw new IOException("No such resource: " + resourcePath);
+    }
+    File file = new File(getResourceDir(), resourcePath);
+    URLConnection connection = resource.openConnection();
+    long length = connection.getContentLength();
+    if (file.isFile() && (length < 0 || file.length() == length)) {
+      return file;
+    }
+    // Several build servers may share the directory, so the file is renamed into place.
+    Files.createParentDirs(file);
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    try {
+      Files.copy(Resources.newInputStreamSupplier(resource), tmpFile);
+      tmpFile.setExecutable(true);
+      if (!tmpFile.renameTo(file)) {
+        throw new IOException("Unable to rename " + tmpFile + " to " + file);
+      }
+    } finally {
+      tmpFile.delete();
+    }
+    return file;
+  }
+
+  /**
+   * Puts a file into a build's directory, as a hard link if the source is on the same file system
+   * or else as a copy. The target must not be written to afterwards.
+   */
+  static void stage(File source, File target) throws IOException {
+    target.delete();
+    try {
+      java.nio.file.Files.createLink(target.toPath(), source.toPath());
+      links.incrementAndGet();
+      return;
+    } catch (IOException e) {
+      // Most likely on different file systems.
+      LOG.fine("Unable to link " + target + " to " + source + ": " + e);
+    } catch (UnsupportedOperationException e) {
+      LOG.fine("Unable to link " + target + " to " + source + ": " + e);
+    }
+    Files.copy(source, target);
+    copies.incrementAndGet();
+  }
+
+  static void addVariables(Map<String, String> variables) {
+    File dir = workspaceDir;
+    variables.put("workspace-dir", dir == null ? "none" : dir.getPath());
+    if (dir != null) {
+      variables.put("workspace-used-bytes", (dir.getTotalSpace() - dir.getFreeSpace()) + "");
+      variables.put("workspace-maximum-size-bytes", maxBytes + "");
+    }
+    variables.put("workspace-over-budget", overBudget.get() + "");
+    variables.put("workspace-staged-links", links.get() + "");
+    variables.put("workspace-staged-copies", copies.get() + "");
+  }
+
+  private static File getTempDir() {
+    return new File(System.getProperty("java.io.tmpdir"));
+  }
+}
@@ -0,0 +1,130 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The dexed libraries shared by all builds of the MIT AI2 Companion.
+ *
+ * <p>Every Companion build includes every built-in component, so all of them dex the same
+ * libraries. The base holds those libraries already dexed and merged: the Kawa, ACRA and component
+ * runtime libraries in {@link #RUNTIME_DEX}, which a build merges with its own classes into
+ * classes.dex, and the libraries of the components in classes2.dex, classes3.dex and so on, which
+ * a build copies as they are.</p>
+ *
+ * <p>A base is kept in a directory named after the key of the build server's runtime files, so a
+ * build server with another GitBuildId never uses it. It is built once, while holding a lock, into
+ * a temporary directory that is then renamed into place, so builds never see a partial base. Bases
+ * for other keys are deleted when a new one is built.</p>
+ */
+final class CompanionBase {
+
+  /**
+   * Writes the dex files of a base into a directory.
+   */
+  interface Builder {
+    boolean build(File dir);
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CompanionBase.class.getName());
+
+  /**
+   * The runtime libraries, to be merged with the classes of a build into classes.dex.
+   */
+  static final String RUNTIME_DEX = "runtime.dex";
+
+  private static final String PREFIX = "companion-";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  // Held while a base is being built, so that a burst of Companion builds builds it only once.
+  private static final Object lock = new Object();
+
+  private CompanionBase() {
+  }
+
+  /**
+   * Returns the directory of the base for the given key, running the builder first if there is no
+   * such base yet.
+   *
+   * @param parentDir  the directory where bases are kept
+   * @param key  the key of the build server's runtime files
+   * @param builder  writes the dex files of the base
+   * @return  the directory of the base, or {@code null} if the builder fails
+   */
+  static File get(File parentDir, String key, Builder builder) throws IOException {
+    File baseDir = new File(parentDir, PREFIX + key);
+    if (baseDir.isDirectory()) {
+      return baseDir;
+    }
+    synchronized (lock) {
+      if (baseDir.isDirectory()) {
+        // Another build built the base while we were waiting.
+        return baseDir;
+      }
+      deleteBases(parentDir);
+      File tmpDir = new File(parentDir, baseDir.getName() + TMP_SUFFIX);
+      Files.createParentDirs(tmpDir);
+      if (!tmpDir.mkdir()) {
+        throw new IOException("Unable to create " + tmpDir);
+      }
+      LOG.info("Building the Companion base " + baseDir.getName());
+      try {
+        if (!builder.build(tmpDir) || !tmpDir.renameTo(baseDir)) {
+          LOG.warning("Unable to build the Companion base " + baseDir.getName());
+          return null;
+        }
+      } finally {
+        if (tmpDir.exists()) {
+          FileUtils.deleteQuietly(tmpDir);
+        }
+      }
+    }
+    return baseDir;
+  }
+
+  /**
+   * Returns the number of library dex files in a base, that is classes2.dex and up.
+   */
+  static int getLibraryDexFileCount(File baseDir) {
+    int count = 0;
+    while (new File(baseDir, DexPartitioner.getDexFileName(count + 1)).exists()) {
+      count++;
+    }
+    return count;
+  }
+
+  /*
+   * Deletes all bases, including partial ones left behind by a build server that was killed.
+   */
+  private static void deleteBases(File parentDir) {
+    File[] bases = parentDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isDirectory() && file.getName().startsWith(PREFIX);
+      }
+    });
+    if (bases == null) {
+      return;
+    }
+    for (File base : bases) {
+      try {
+        FileUtils.deleteDirectory(base);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to delete the old Companion base " + base, e);
+      }
+    }
+  }
+}
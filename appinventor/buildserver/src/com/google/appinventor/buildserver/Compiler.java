@@ -6,25 +6,22 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
-import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.android.sdklib.build.ApkBuilder;
 
-import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -32,14 +29,21 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -64,11 +68,6 @@ public final class Compiler {
    * Ext == External, ext == external, EXT == EXTERNAL
    */
 
-  public static int currentProgress = 10;
-
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
-
   private static final String SLASH = File.separator;
   private static final String COLON = File.pathSeparator;
 
@@ -138,19 +137,15 @@ public final class Compiler {
 
   private static final String LINUX_AAPT_TOOL =
       "/tools/linux/aapt";
-  private static final String LINUX_ZIPALIGN_TOOL =
-      "/tools/linux/zipalign";
   private static final String MAC_AAPT_TOOL =
       "/tools/mac/aapt";
-  private static final String MAC_ZIPALIGN_TOOL =
-      "/tools/mac/zipalign";
   private static final String WINDOWS_AAPT_TOOL =
       "/tools/windows/aapt";
-  private static final String WINDOWS_ZIPALIGN_TOOL =
-      "/tools/windows/zipalign";
 
   @VisibleForTesting
   static final String YAIL_RUNTIME = RUNTIME_FILES_DIR + "runtime.scm";
+  // The name of the class that runtime.scm compiles to.
+  private static final String RUNTIME_CLASS_NAME = "runtime";
 
   private final ConcurrentMap<String, Set<String>> assetsNeeded =
       new ConcurrentHashMap<String, Set<String>>();
@@ -174,10 +169,10 @@ public final class Compiler {
       new ConcurrentHashMap<String, Set<String>>();
 
   /**
-   * Map used to hold the names and paths of resources that we've written out
-   * as temp files.
+   * Map used to hold the names and paths of resources that we've extracted
+   * into the build workspace's resource directory.
    * Don't use this map directly. Please call getResource() with one of the
-   * constants above to get the (temp file) path to a resource.
+   * constants above to get the (extracted file) path to a resource.
    */
   private static final ConcurrentMap<String, File> resources =
       new ConcurrentHashMap<String, File>();
@@ -202,41 +197,53 @@ public final class Compiler {
 
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
-  private boolean hasSecondDex = false; // True if classes2.dex should be added to the APK
+  private int dexFileCount = 1; // The number of classesN.dex files to add to the APK
+  private String componentsCacheKey;  // See getComponentsCacheKey()
+  private BuildProgress buildProgress; // Where the stages of the build are recorded, if anywhere
 
-  private JSONArray simpleCompsBuildInfo;
-  private JSONArray extCompsBuildInfo;
+  private ComponentCatalog catalog;  // The built-in components and the project's extensions
   private Set<String> simpleCompTypes;  // types needed by the project
   private Set<String> extCompTypes; // types needed by the project
 
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
 
+  // Runs the dx processes of a build in parallel: dexing the project's classes, pre-dexing
+  // libraries and merging the dex files. The number of builds running dx at the same time is
+  // limited by BuildPipeline.Stage.DX.
+  private static final ExecutorService DEX_EXECUTOR = Executors.newFixedThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors()),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dex-%d").build());
+
+  // Runs the Kawa compilers of a build that compile different screens at the same time. The
+  // number of builds running Kawa at the same time is limited by BuildPipeline.Stage.KAWA.
+  private static final ExecutorService KAWA_EXECUTOR = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("kawa-%d").build());
+
+  // See setMaxKawaPartitions()
+  private static volatile int maxKawaPartitions = 1;
+
+  // See getEnvironmentCacheKey()
+  private static String environmentCacheKey;
+
+  // Where the Companion base is kept when there is no pre-dexed library store.
+  private static File companionTempDir;
+
   /*
    * Generate the set of Android permissions needed by this project.
    */
   @VisibleForTesting
   void generatePermissions() {
-    try {
-      loadJsonInfo(permissionsNeeded, PERMISSIONS_TARGET);
-      if (project != null) {    // Only do this if we have a project (testing doesn't provide one :-( ).
-        LOG.log(Level.INFO, "usesLocation = " + project.getUsesLocation());
-        if (project.getUsesLocation().equals("True")) { // Add location permissions if any WebViewer requests it
-          Set<String> locationPermissions = Sets.newHashSet(); // via a Property.
-          // See ProjectEditor.recordLocationSettings()
-          locationPermissions.add("android.permission.ACCESS_FINE_LOCATION");
-          locationPermissions.add("android.permission.ACCESS_COARSE_LOCATION");
-          locationPermissions.add("android.permission.ACCESS_MOCK_LOCATION");
-          permissionsNeeded.put("com.google.appinventor.components.runtime.WebViewer", locationPermissions);
-        }
+    loadJsonInfo(permissionsNeeded, PERMISSIONS_TARGET);
+    if (project != null) {    // Only do this if we have a project (testing doesn't provide one :-( ).
+      LOG.log(Level.INFO, "usesLocation = " + project.getUsesLocation());
+      if (project.getUsesLocation().equals("True")) { // Add location permissions if any WebViewer requests it
+        Set<String> locationPermissions = Sets.newHashSet(); // via a Property.
+        // See ProjectEditor.recordLocationSettings()
+        locationPermissions.add("android.permission.ACCESS_FINE_LOCATION");
+        locationPermissions.add("android.permission.ACCESS_COARSE_LOCATION");
+        locationPermissions.add("android.permission.ACCESS_MOCK_LOCATION");
+        permissionsNeeded.put("com.google.appinventor.components.runtime.WebViewer", locationPermissions);
       }
-    } catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Permissions"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Permissions"));
     }
 
     int n = 0;
@@ -270,17 +277,7 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateLibNames() {
-    try {
-      loadJsonInfo(libsNeeded, LIBRARIES_TARGET);
-    } catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Libraries"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Libraries"));
-    }
+    loadJsonInfo(libsNeeded, LIBRARIES_TARGET);
 
     int n = 0;
     for (String type : libsNeeded.keySet()) {
@@ -295,17 +292,7 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateNativeLibNames() {
-    try {
-      loadJsonInfo(nativeLibsNeeded, NATIVE_TARGET);
-    } catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Native Libraries"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Native Libraries"));
-    }
+    loadJsonInfo(nativeLibsNeeded, NATIVE_TARGET);
 
     int n = 0;
     for (String type : nativeLibsNeeded.keySet()) {
@@ -320,17 +307,7 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateAssets() {
-    try {
-      loadJsonInfo(assetsNeeded, ASSETS_TARGET);
-    } catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Assets"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Assets"));
-    }
+    loadJsonInfo(assetsNeeded, ASSETS_TARGET);
 
     int n = 0;
     for (String type : assetsNeeded.keySet()) {
@@ -345,17 +322,7 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateActivities() {
-    try {
-      loadJsonInfo(activitiesNeeded, ACTIVITIES_TARGET);
-    } catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Activities"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Activities"));
-    }
+    loadJsonInfo(activitiesNeeded, ACTIVITIES_TARGET);
 
     int n = 0;
     for (String type : activitiesNeeded.keySet()) {
@@ -370,18 +337,7 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateBroadcastReceivers() {
-    try {
-      loadJsonInfo(broadcastReceiversNeeded, BROADCAST_RECEIVERS_TARGET);
-    }
-    catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "BroadcastReceivers"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "BroadcastReceivers"));
-    }
+    loadJsonInfo(broadcastReceiversNeeded, BROADCAST_RECEIVERS_TARGET);
   }
   
   /*
@@ -392,18 +348,7 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateBroadcastReceiver() {
-    try {
-      loadJsonInfo(componentBroadcastReceiver, BROADCAST_RECEIVER_TARGET);
-    }
-    catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "BroadcastReceiver"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "BroadcastReceiver"));
-    }
+    loadJsonInfo(componentBroadcastReceiver, BROADCAST_RECEIVER_TARGET);
   }
 
 
@@ -430,6 +375,7 @@ public final class Compiler {
     LOG.log(Level.INFO, "VName: " + project.getVName());
 
     // TODO(user): Use com.google.common.xml.XmlWriter
+    BuildTrace.Span span = BuildTrace.start(BuildTrace.MANIFEST);
     try {
       BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile), "UTF-8"));
       out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
@@ -612,10 +558,13 @@ public final class Compiler {
       out.write("  </application>\n");
       out.write("</manifest>\n");
       out.close();
+      span.addBytesOut(manifestFile.length());
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "manifest"));
       return false;
+    } finally {
+      span.end();
     }
 
     return true;
@@ -631,6 +580,7 @@ public final class Compiler {
    * @param userErrors stream to write user-visible error messages
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param buildProgress  where to record the stages of the build, or {@code null}
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
@@ -638,12 +588,14 @@ public final class Compiler {
   public static boolean compile(Project project, Set<String> compTypes,
                                 PrintStream out, PrintStream err, PrintStream userErrors,
                                 boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
+                                int childProcessRam, String dexCacheDir,
+                                BuildProgress buildProgress) throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
     // Create a new compiler instance for the compilation
     Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, isForCompanion,
                                      childProcessRam, dexCacheDir);
+    compiler.buildProgress = buildProgress;
 
     compiler.generateAssets();
     compiler.generateActivities();
@@ -668,7 +620,7 @@ public final class Compiler {
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
       return false;
     }
-    setProgress(15);
+    compiler.setProgress("Generating manifest file", 15);
 
     // Create anim directory and animation xml files
     out.println("________Creating animation xml");
@@ -683,7 +635,7 @@ public final class Compiler {
     if (!compiler.writeAndroidManifest(manifestFile)) {
       return false;
     }
-    setProgress(20);
+    compiler.setProgress("Compiling source files", 20);
 
     // Insert native libraries
     out.println("________Attaching native libraries");
@@ -703,7 +655,7 @@ public final class Compiler {
     if (!compiler.generateClasses(classesDir)) {
       return false;
     }
-    setProgress(35);
+    compiler.setProgress("Invoking DX", 35);
 
     // Invoke dx on class files
     out.println("________Invoking DX");
@@ -724,43 +676,38 @@ public final class Compiler {
     // Android SDK's Dex Ant task
     File tmpDir = createDirectory(buildDir, "tmp");
     String dexedClassesDir = tmpDir.getAbsolutePath();
-    if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
+    if (!compiler.runDxIfNotCached(classesDir, dexedClassesDir)) {
       return false;
     }
-    setProgress(85);
+    compiler.setProgress("Invoking AAPT", 85);
 
     // Invoke aapt to package everything up
     out.println("________Invoking AAPT");
     File deployDir = createDir(buildDir, "deploy");
     String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
         project.getProjectName() + ".ap_";
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
+    if (!compiler.runAaptPackageIfNotCached(manifestFile, resDir, tmpPackageName)) {
       return false;
     }
-    setProgress(90);
+    compiler.setProgress("Invoking ApkBuilder", 90);
 
     // Seal the apk with ApkBuilder
     out.println("________Invoking ApkBuilder");
     String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH +
         project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
+    String unsignedApkAbsolutePath = tmpDir.getAbsolutePath() + SLASH + "unsigned.apk";
+    if (!compiler.runApkBuilder(unsignedApkAbsolutePath, tmpPackageName, dexedClassesDir)) {
       return false;
     }
-    setProgress(95);
+    compiler.setProgress("Signing the apk file", 95);
 
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
+    // Sign and align the apk file
+    out.println("________Signing and aligning the apk file");
+    if (!compiler.signAndAlignApk(unsignedApkAbsolutePath, apkAbsolutePath, keystoreFilePath)) {
       return false;
     }
 
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
-      return false;
-    }
-
-    setProgress(100);
+    compiler.setProgress("Build finished", 100);
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -821,15 +768,23 @@ public final class Compiler {
    * can call System.exit(1), which will bring down our server.
    */
   private boolean runApkBuilder(String apkAbsolutePath, String zipArchive, String dexedClassesDir) {
+    BuildTrace.Span span = BuildTrace.start(BuildTrace.APK_BUILDER);
+    BuildPipeline.enter(BuildPipeline.Stage.APK_BUILDER);
     try {
       ApkBuilder apkBuilder =
           new ApkBuilder(apkAbsolutePath, zipArchive,
             dexedClassesDir + File.separator + "classes.dex", null, System.out);
-      if (hasSecondDex) {
-        apkBuilder.addFile(new File(dexedClassesDir + File.separator + "classes2.dex"),
-          "classes2.dex");
+      for (int i = 1; i < dexFileCount; i++) {
+        String dexFileName = DexPartitioner.getDexFileName(i);
+        apkBuilder.addFile(new File(dexedClassesDir + File.separator + dexFileName), dexFileName);
       }
       apkBuilder.sealApk();
+      span.addBytesIn(new File(zipArchive).length());
+      for (int i = 0; i < dexFileCount; i++) {
+        span.addBytesIn(
+            new File(dexedClassesDir, DexPartitioner.getDexFileName(i)).length());
+      }
+      span.addBytesOut(new File(apkAbsolutePath).length());
       return true;
     } catch (Exception e) {
       // This is fatal.
@@ -838,6 +793,9 @@ public final class Compiler {
       err.println("YAIL compiler - ApkBuilder failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "ApkBuilder"));
       return false;
+    } finally {
+      BuildPipeline.exit(BuildPipeline.Stage.APK_BUILDER);
+      span.end();
     }
   }
 
@@ -858,7 +816,6 @@ public final class Compiler {
     this.project = project;
 
     prepareCompTypes(compTypes);
-    readBuildInfo();
 
     this.out = out;
     this.err = err;
@@ -879,6 +836,7 @@ public final class Compiler {
    *
    */
   private boolean generateClasses(File classesDir) {
+    BuildTrace.Span span = BuildTrace.start(BuildTrace.KAWA);
     try {
       List<Project.SourceDescriptor> sources = project.getSources();
       List<String> sourceFileNames = Lists.newArrayListWithCapacity(sources.size());
@@ -915,6 +873,7 @@ public final class Compiler {
         }
         sourceFileNames.add(sourceFileName);
         classFileNames.add(classFileName);
+        span.addBytesIn(source.getFile().length());
       }
 
       if (!userCodeExists) {
@@ -961,42 +920,95 @@ public final class Compiler {
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
-      int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-Dfile.encoding=UTF-8",
-          "-mx" + mx + "M",
-          "-cp", classpath,
-          "kawa.repl",
-          "-f", yailRuntime,
-          "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
-          "-C");
-      // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
-      // source file names. The resulting .class files contain references to the source file names,
-      // including the name of the tmp directory that contains them. We may be able to avoid that
-      // by using source file names that are relative to the project root and using the project
-      // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+      String packageName = Signatures.getPackageName(project.getMainClass());
+      File packageDir = new File(classesDir, packageName.replace('.', '/'));
 
+      // Screens whose classes are in the build cache are not compiled again. Neither is
+      // runtime.scm, which compiles to the same classes for every project in the same package.
       long start = System.currentTimeMillis();
-      // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
-      // them to the protocol buffer for logging purposes. (See
-      // buildserver/ProjectBuilder.processCompilerOutout.
-      ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
-      boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      Map<String, String> cacheKeys = Maps.newLinkedHashMap();  // class name -> cache key
+      List<String> compiledSourceFileNames = Lists.newArrayList();
+      List<String> compiledClassFileNames = Lists.newArrayList();
+      boolean compileRuntime = true;
+      if (BuildCache.isEnabled()) {
+        String compilationKey = BuildCache.key(getComponentsCacheKey(), packageName);
+        for (int i = 0; i < sourceFileNames.size(); i++) {
+          File sourceFile = new File(sourceFileNames.get(i));
+          String className = Files.getNameWithoutExtension(sourceFile.getName());
+          String key = BuildCache.key(compilationKey, className, BuildCache.hashFile(sourceFile));
+          if (!BuildCache.fetch(BuildCache.Kind.KAWA, key, packageDir)) {
+            cacheKeys.put(className, key);
+            compiledSourceFileNames.add(sourceFileNames.get(i));
+            compiledClassFileNames.add(classFileNames.get(i));
+          }
+        }
+        String runtimeKey = BuildCache.key(compilationKey, RUNTIME_CLASS_NAME);
+        if (BuildCache.fetch(BuildCache.Kind.KAWA, runtimeKey, packageDir)) {
+          compileRuntime = false;
+        } else {
+          cacheKeys.put(RUNTIME_CLASS_NAME, runtimeKey);
+        }
+        span.setCacheHit(compiledSourceFileNames.isEmpty() && !compileRuntime);
+        if (compiledSourceFileNames.isEmpty() && !compileRuntime) {
+          String kawaCacheMessage = "Kawa compile time: 0 seconds, all classes from the cache";
+          out.println(kawaCacheMessage);
+          LOG.info(kawaCacheMessage);
+          return true;
+        }
+      } else {
+        compiledSourceFileNames.addAll(sourceFileNames);
+        compiledClassFileNames.addAll(classFileNames);
+      }
+
+      // The screens of a large project are split between several Kawa compilers running at the
+      // same time. Only one of them compiles runtime.scm, although all of them load it.
+      Map<String, String> classFileNamesBySource = Maps.newHashMap();
+      for (int i = 0; i < compiledSourceFileNames.size(); i++) {
+        classFileNamesBySource.put(compiledSourceFileNames.get(i), compiledClassFileNames.get(i));
+      }
+      List<String> compiledSources = Lists.newArrayList(compiledSourceFileNames);
+      if (compileRuntime) {
+        compiledSources.add(yailRuntime);
+      }
+      List<KawaCompilation> compilations = Lists.newArrayList();
+      for (List<String> partition : partitionSources(compiledSources, maxKawaPartitions)) {
+        List<String> partitionClassFileNames = Lists.newArrayList();
+        for (String sourceFileName : partition) {
+          if (classFileNamesBySource.containsKey(sourceFileName)) {
+            partitionClassFileNames.add(classFileNamesBySource.get(sourceFileName));
+          }
+        }
+        compilations.add(new KawaCompilation(classesDir, classpath, yailRuntime, packageName,
+            partition, partitionClassFileNames));
+      }
+
+      boolean kawaSuccess = true;
+      BuildPipeline.enter(BuildPipeline.Stage.KAWA);
+      try {
+        if (compilations.size() == 1) {
+          kawaSuccess = compilations.get(0).call();
+        } else {
+          List<Future<Boolean>> results = Lists.newArrayList();
+          for (KawaCompilation compilation : compilations) {
+            results.add(KAWA_EXECUTOR.submit(BuildTrace.propagate(compilation)));
+          }
+          for (Future<Boolean> result : results) {
+            kawaSuccess &= Boolean.TRUE.equals(getQuietly(result));
+          }
+        }
+      } finally {
+        BuildPipeline.exit(BuildPipeline.Stage.KAWA);
       }
       if (!kawaSuccess) {
         LOG.log(Level.SEVERE, "Kawa compile has failed.");
       }
-      String kawaOutput = kawaOutputStream.toString();
-      out.print(kawaOutput);
+      for (KawaCompilation compilation : compilations) {
+        if (compilation.output.getDroppedBytes() > 0) {
+          LOG.warning("Kawa wrote more messages than are kept, "
+              + compilation.output.getDroppedBytes() + " bytes were dropped");
+        }
+        out.print(compilation.output.toString());
+      }
       String kawaCompileTimeMessage = "Kawa compile time: " +
           ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
       out.println(kawaCompileTimeMessage);
@@ -1014,103 +1026,277 @@ public final class Compiler {
           return false;
         }
       }
+
+      if (kawaSuccess) {
+        for (Map.Entry<String, String> entry : cacheKeys.entrySet()) {
+          BuildCache.store(BuildCache.Kind.KAWA, entry.getValue(),
+              getClassFiles(packageDir, entry.getKey()));
+        }
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
       return false;
+    } finally {
+      span.end();
     }
 
     return true;
   }
 
-  private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
-    // TODO(user): maybe make a command line flag for the jarsigner location
-    String javaHome = System.getProperty("java.home");
-    // This works on Mac OS X.
-    File jarsignerFile = new File(javaHome + SLASH + "bin" +
-        SLASH + "jarsigner");
-    if (!jarsignerFile.exists()) {
-      // This works when a JDK is installed with the JRE.
-      jarsignerFile = new File(javaHome + SLASH + ".." + SLASH + "bin" +
-          SLASH + "jarsigner");
-      if (System.getProperty("os.name").startsWith("Windows")) {
-        jarsignerFile = new File(javaHome + SLASH + ".." + SLASH + "bin" +
-            SLASH + "jarsigner.exe");
-      }
-      if (!jarsignerFile.exists()) {
-        LOG.warning("YAIL compiler - could not find jarsigner.");
-        err.println("YAIL compiler - could not find jarsigner.");
-        userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-        return false;
+  /*
+   * Compiles some of the screens of the project, and maybe runtime.scm, with a warm Kawa compiler
+   * worker if possible and else with a separate Kawa process.
+   */
+  private final class KawaCompilation implements Callable<Boolean> {
+    private final File classesDir;
+    private final String classpath;
+    private final String yailRuntime;
+    private final String packageName;
+    private final List<String> sourceFileNames;
+    private final List<String> classFileNames;
+
+    // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
+    // them to the protocol buffer for logging purposes. (See
+    // buildserver/ProjectBuilder.processCompilerOutout.
+    private RingBufferOutputStream output =
+        new RingBufferOutputStream(Execution.MAX_CAPTURED_OUTPUT_BYTES);
+
+    KawaCompilation(File classesDir, String classpath, String yailRuntime, String packageName,
+        List<String> sourceFileNames, List<String> classFileNames) {
+      this.classesDir = classesDir;
+      this.classpath = classpath;
+      this.yailRuntime = yailRuntime;
+      this.packageName = packageName;
+      this.sourceFileNames = sourceFileNames;
+      this.classFileNames = classFileNames;
+    }
+
+    @Override
+    public Boolean call() {
+      List<String> kawaArgs = Lists.newArrayList();
+      int mx = childProcessRamMb - 200;
+      Collections.addAll(kawaArgs,
+          "-d", classesDir.getAbsolutePath(),
+          "-P", packageName + ".",
+          "-C");
+      // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
+      // source file names. The resulting .class files contain references to the source file names,
+      // including the name of the tmp directory that contains them. We may be able to avoid that
+      // by using source file names that are relative to the project root and using the project
+      // root as the working directory for the Kawa compiler process.
+      kawaArgs.addAll(sourceFileNames);
+
+      // Warm workers are shared between builds, so they can only be used when the class path
+      // doesn't contain any of this project's extensions.
+      if (KawaCompilerPool.isEnabled() && extCompTypes.isEmpty()) {
+        RingBufferOutputStream workerOutputStream =
+            new RingBufferOutputStream(Execution.MAX_CAPTURED_OUTPUT_BYTES);
+        try {
+          KawaCompilerPool.Outcome outcome = KawaCompilerPool.compile(getWorkerClasspath(), mx,
+              yailRuntime, kawaArgs, new PrintStream(workerOutputStream));
+          if (outcome == KawaCompilerPool.Outcome.SUCCEEDED && allFilesExist(classFileNames)) {
+            output = workerOutputStream;
+            return true;
+          } else if (outcome == KawaCompilerPool.Outcome.FAILED) {
+            // A separate Kawa process would report the same errors.
+            output = workerOutputStream;
+            return false;
+          }
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Kawa compiler worker failed to start", e);
+        }
+        // Make sure that a problem with a worker can never fail a build that a separate
+        // Kawa process would have compiled.
+        LOG.info("Kawa compiler worker failed, compiling with a separate process.");
       }
+      List<String> kawaCommandArgs = Lists.newArrayList();
+      Collections.addAll(kawaCommandArgs,
+          System.getProperty("java.home") + "/bin/java",
+          "-Dfile.encoding=UTF-8",
+          "-mx" + mx + "M",
+          "-cp", classpath,
+          "kawa.repl",
+          "-f", yailRuntime);
+      kawaCommandArgs.addAll(kawaArgs);
+      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+      return Execution.execute(null, kawaCommandLine,
+          System.out, new PrintStream(output), BuildPipeline.Stage.KAWA);
     }
+  }
 
-    String[] jarsignerCommandLine = {
-        jarsignerFile.getAbsolutePath(),
-        "-digestalg", "SHA1",
-        "-sigalg", "MD5withRSA",
-        "-keystore", keystoreAbsolutePath,
-        "-storepass", "android",
-        apkAbsolutePath,
-        "AndroidKey"
-    };
-    if (!Execution.execute(null, jarsignerCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - jarsigner execution failed.");
-      err.println("YAIL compiler - jarsigner execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-      return false;
+  /**
+   * Splits the source files to compile between at most the given number of Kawa compilers, so
+   * that each of them compiles about the same number of bytes. The files of each partition stay
+   * in their original order.
+   */
+  @VisibleForTesting
+  static List<List<String>> partitionSources(List<String> sourceFileNames, int maxPartitions) {
+    int count = Math.max(1, Math.min(maxPartitions, sourceFileNames.size()));
+    // The largest files are placed first, each into the partition with the fewest bytes so far.
+    List<Integer> bySize = Lists.newArrayList();
+    final long[] sizes = new long[sourceFileNames.size()];
+    for (int i = 0; i < sourceFileNames.size(); i++) {
+      bySize.add(i);
+      sizes[i] = new File(sourceFileNames.get(i)).length();
+    }
+    Collections.sort(bySize, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return sizes[a] != sizes[b] ? (sizes[a] > sizes[b] ? -1 : 1) : a.compareTo(b);
+      }
+    });
+    long[] partitionSizes = new long[count];
+    int[] partitionOf = new int[sourceFileNames.size()];
+    for (int i : bySize) {
+      int smallest = 0;
+      for (int p = 1; p < count; p++) {
+        if (partitionSizes[p] < partitionSizes[smallest]) {
+          smallest = p;
+        }
+      }
+      partitionOf[i] = smallest;
+      partitionSizes[smallest] += sizes[i];
+    }
+    List<List<String>> partitions = Lists.newArrayList();
+    for (int p = 0; p < count; p++) {
+      List<String> partition = Lists.newArrayList();
+      for (int i = 0; i < sourceFileNames.size(); i++) {
+        if (partitionOf[i] == p) {
+          partition.add(sourceFileNames.get(i));
+        }
+      }
+      if (!partition.isEmpty()) {
+        partitions.add(partition);
+      }
     }
+    return partitions;
+  }
+
+  /**
+   * Sets the most Kawa compilers that compile the screens of a single build at the same time.
+   */
+  static void setMaxKawaPartitions(int maxPartitions) {
+    maxKawaPartitions = Math.max(1, maxPartitions);
+  }
+
+  /*
+   * Returns the class path used by the warm Kawa compiler workers. Unlike the class path built in
+   * generateClasses, it contains the libraries of every built-in component, so that it is the
+   * same for every project without extensions and workers can be shared between builds.
+   */
+  private String getWorkerClasspath() {
+    ComponentCatalog builtIn = ComponentCatalog.builtIn();
+    Set<String> libs = Sets.newTreeSet();
+    for (Set<String> compLibs
+        : builtIn.get(builtIn.getBuiltInTypes(), LIBRARIES_TARGET).values()) {
+      libs.addAll(compLibs);
+    }
+    StringBuilder classpath = new StringBuilder()
+        .append(getResource(KAWA_RUNTIME)).append(COLON)
+        .append(getResource(ACRA_RUNTIME)).append(COLON)
+        .append(getResource(SIMPLE_ANDROID_RUNTIME_JAR)).append(COLON);
+    for (String lib : libs) {
+      classpath.append(getResource(RUNTIME_FILES_DIR + lib)).append(COLON);
+    }
+    classpath.append(getResource(ANDROID_RUNTIME));
+    return classpath.toString();
+  }
 
+  private static boolean allFilesExist(List<String> fileNames) {
+    for (String fileName : fileNames) {
+      if (!new File(fileName).exists()) {
+        return false;
+      }
+    }
     return true;
   }
 
-  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
-    // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
-    // Need to make sure assets directory exists otherwise zipalign will fail.
-    createDir(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
-    } else {
-      LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+  /*
+   * Returns the class files that Kawa produced for the given class, including its inner classes.
+   */
+  private static List<File> getClassFiles(File packageDir, String className) {
+    List<File> classFiles = Lists.newArrayList();
+    File[] files = packageDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.equals(className + ".class") || name.startsWith(className + "$")) {
+          classFiles.add(file);
+        }
+      }
     }
-    // TODO: create tmp file for zipaling result
-    String zipAlignedPath = tmpDir.getAbsolutePath() + SLASH + "zipaligned.apk";
-    // zipalign -f -v 4 infile.zip outfile.zip
-    String[] zipAlignCommandLine = {
-        getResource(zipAlignTool),
-        "-f",
-        "4",
-        apkAbsolutePath,
-        zipAlignedPath
-    };
-    long startZipAlign = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
-      err.println("YAIL compiler - ZIPALIGN execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+    return classFiles;
+  }
+
+  /*
+   * Returns the build cache key for everything that this project's build outputs depend on
+   * besides the project's own files: the build server's runtime files, the component types that
+   * the project uses and the files of its extensions, including their component_build_info.json
+   * and jars.
+   */
+  private String getComponentsCacheKey() throws IOException {
+    if (componentsCacheKey == null) {
+      List<String> parts = Lists.newArrayList(getEnvironmentCacheKey());
+      parts.addAll(Sets.newTreeSet(simpleCompTypes));
+      for (String type : Sets.newTreeSet(extCompTypes)) {
+        parts.add(type);
+        parts.add(BuildCache.hashTree(new File(getExtCompDirPath(type))));
+      }
+      componentsCacheKey = BuildCache.key(parts.toArray(new String[parts.size()]));
     }
-    if (!copyFile(zipAlignedPath, apkAbsolutePath)) {
-      LOG.warning("YAIL compiler - ZIPALIGN file copy failed.");
-      err.println("YAIL compiler - ZIPALIGN file copy failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
+    return componentsCacheKey;
+  }
+
+  /*
+   * Returns the build cache key for the build server's own runtime files. They don't change while
+   * the build server is running, so they are only hashed once.
+   */
+  private static synchronized String getEnvironmentCacheKey() throws IOException {
+    if (environmentCacheKey == null) {
+      List<String> parts = Lists.newArrayList(GitBuildId.getFingerprint());
+      for (String resource : new String[] { YAIL_RUNTIME, COMP_BUILD_INFO, KAWA_RUNTIME,
+          ACRA_RUNTIME, SIMPLE_ANDROID_RUNTIME_JAR, DX_JAR, ANDROID_RUNTIME }) {
+        parts.add(BuildCache.hashFile(new File(getResource(resource))));
+      }
+      environmentCacheKey = BuildCache.key(parts.toArray(new String[parts.size()]));
+    }
+    return environmentCacheKey;
+  }
+
+  /*
+   * Signs the apk written by ApkBuilder with the key in the keystore and aligns its uncompressed
+   * entries, writing the result to apkAbsolutePath.
+   */
+  private boolean signAndAlignApk(String unsignedApkAbsolutePath, String apkAbsolutePath,
+      String keystoreAbsolutePath) {
+    long startSign = System.currentTimeMillis();
+    BuildTrace.Span span = BuildTrace.start(BuildTrace.SIGN_AND_ALIGN);
+    BuildPipeline.enter(BuildPipeline.Stage.SIGN);
+    try {
+      ApkFinisher finisher = ApkFinisher.fromKeystore(new File(keystoreAbsolutePath));
+      File unsignedApk = new File(unsignedApkAbsolutePath);
+      File apk = new File(apkAbsolutePath);
+      finisher.finish(unsignedApk, apk);
+      span.addBytesIn(unsignedApk.length()).addBytesOut(apk.length());
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "YAIL compiler - apk signing failed.", e);
+      err.println("YAIL compiler - apk signing failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
+      return false;
+    } catch (GeneralSecurityException e) {
+      LOG.log(Level.WARNING, "YAIL compiler - apk signing failed.", e);
+      err.println("YAIL compiler - apk signing failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
       return false;
+    } finally {
+      BuildPipeline.exit(BuildPipeline.Stage.SIGN);
+      span.end();
     }
-    String zipALignTimeMessage = "ZIPALIGN time: " +
-        ((System.currentTimeMillis() - startZipAlign) / 1000.0) + " seconds";
-    out.println(zipALignTimeMessage);
-    LOG.info(zipALignTimeMessage);
+    String signTimeMessage = "Signing time: " +
+        ((System.currentTimeMillis() - startSign) / 1000.0) + " seconds";
+    out.println(signTimeMessage);
+    LOG.info(signTimeMessage);
     return true;
   }
 
@@ -1148,107 +1334,476 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runDx(File classesDir, String dexedClassesDir, boolean secondTry) {
-    List<File> libList = new ArrayList<File>();
-    List<File> inputList = new ArrayList<File>();
-    List<File> class2List = new ArrayList<File>();
-    inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
-    inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
-    inputList.add(new File(getResource(KAWA_RUNTIME)));
-    inputList.add(new File(getResource(ACRA_RUNTIME)));
-
-    for (String lib : uniqueLibsNeeded) {
-      libList.add(new File(lib));
+  /*
+   * Copies the dex files from the build cache if the same classes and libraries were dexed
+   * before, or else runs dx and stores its output in the cache.
+   */
+  private boolean runDxIfNotCached(File classesDir, String dexedClassesDir) {
+    String key = null;
+    if (BuildCache.isEnabled()) {
+      try {
+        key = getDexCacheKey(getComponentsCacheKey(), classesDir, libsNeeded);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to compute the dex cache key", e);
+      }
     }
-
-    // BEGIN DEBUG -- XXX --
-    // System.err.println("runDx -- libraries");
-    // for (File aFile : inputList) {
-    //   System.err.println(" inputList => " + aFile.getAbsolutePath());
-    // }
-    // for (File aFile : libList) {
-    //   System.err.println(" libList => " + aFile.getAbsolutePath());
-    // }
-    // END DEBUG -- XXX --
-
-    // attach the jars of external comps to the libraries list
-    for (String type : extCompTypes) {
-      String sourcePath = getExtCompDirPath(type) + SIMPLE_ANDROID_RUNTIME_JAR;
-      libList.add(new File(sourcePath));
-    }
-
-    int offset = libList.size();
-    // Note: The choice of 12 libraries is arbitrary. We note that things
-    // worked to put all libraries into the first classes.dex file when we
-    // had 16 libraries and broke at 17. So this is a conservative number
-    // to try.
-    if (!secondTry) {           // First time through, try base + 12 libraries
-      if (offset > 12)
-        offset = 12;
-    } else {
-      offset = 0;               // Add NO libraries the second time through!
+    File dexedDir = new File(dexedClassesDir);
+    BuildTrace.Span span = BuildTrace.start(BuildTrace.DX);
+    try {
+      boolean fromCache = key != null && BuildCache.fetch(BuildCache.Kind.DEX, key, dexedDir);
+      if (key != null) {
+        span.setCacheHit(fromCache);
+      }
+      if (fromCache) {
+        dexFileCount = 1;
+        while (new File(dexedDir, DexPartitioner.getDexFileName(dexFileCount)).exists()) {
+          dexFileCount++;
+        }
+        out.println("DX time: 0 seconds, dex files from the cache");
+      } else if (!runDx(classesDir, dexedClassesDir)) {
+        return false;
+      }
+      List<File> dexFiles = Lists.newArrayList();
+      for (int i = 0; i < dexFileCount; i++) {
+        File dexFile = new File(dexedDir, DexPartitioner.getDexFileName(i));
+        dexFiles.add(dexFile);
+        span.addBytesOut(dexFile.length());
+      }
+      if (key != null && !fromCache) {
+        BuildCache.store(BuildCache.Kind.DEX, key, dexFiles);
+      }
+      return true;
+    } finally {
+      span.end();
     }
-    for (int i = 0; i < offset; i++) {
-      inputList.add(libList.get(i));
+  }
+
+  /**
+   * Returns the build cache key for the dex files of a project. The libraries are named by
+   * component type and file name rather than by path, because the libraries of extensions are
+   * under the project's own directory, which is different for every build. Their contents are
+   * part of componentsCacheKey.
+   *
+   * @param componentsCacheKey  the key for the components of the project
+   * @param classesDir  the project's compiled classes
+   * @param libsNeeded  the file names of the libraries needed, by component type
+   */
+  @VisibleForTesting
+  static String getDexCacheKey(String componentsCacheKey, File classesDir,
+      Map<String, Set<String>> libsNeeded) throws IOException {
+    List<String> parts = Lists.newArrayList(componentsCacheKey, BuildCache.hashTree(classesDir));
+    for (String type : Sets.newTreeSet(libsNeeded.keySet())) {
+      for (String lib : Sets.newTreeSet(libsNeeded.get(type))) {
+        parts.add(type);
+        parts.add(lib);
+      }
     }
+    return BuildCache.key(parts.toArray(new String[parts.size()]));
+  }
 
-    if (libList.size() - offset > 0) { // Any left over for classes2?
-      for (int i = offset; i < libList.size(); i++) {
-        class2List.add(libList.get(i));
+  /*
+   * Dexes the project's classes and pre-dexes the libraries, all in parallel, and then merges them
+   * into as many dex files as needed, also in parallel. The project's classes and the runtime
+   * libraries go into classes.dex, the other libraries into classes2.dex, classes3.dex and so on,
+   * depending on how many methods and fields they have.
+   */
+  private boolean runDx(File classesDir, String dexedClassesDir) {
+    // Companion builds without extensions all need the same libraries, which are dexed only once.
+    if (isForCompanion && extCompTypes.isEmpty()) {
+      File baseDir = getCompanionBase(dexCacheDir, childProcessRamMb);
+      if (baseDir != null) {
+        return runDxOnCompanionBase(classesDir, dexedClassesDir, baseDir);
       }
     }
 
-    DexExecTask dexTask = new DexExecTask();
-    dexTask.setExecutable(getResource(DX_JAR));
-    dexTask.setOutput(dexedClassesDir + File.separator + "classes.dex");
-    dexTask.setChildProcessRamMb(childProcessRamMb);
-    if (dexCacheDir == null) {
-      dexTask.setDisableDexMerger(true);
-    } else {
-      createDir(new File(dexCacheDir));
-      dexTask.setDexedLibs(dexCacheDir);
+    List<File> mainLibs = getRuntimeLibraries();
+    List<File> otherLibs = new ArrayList<File>();
+    for (String lib : uniqueLibsNeeded) {
+      otherLibs.add(new File(lib));
+    }
+    // attach the jars of external comps to the libraries list
+    for (String type : extCompTypes) {
+      otherLibs.add(new File(getExtCompDirPath(type) + SIMPLE_ANDROID_RUNTIME_JAR));
     }
 
+    // Without a shared pre-dexed library store, the libraries are pre-dexed for this build only.
+    String preDexDir = dexCacheDir != null ? dexCacheDir
+        : dexedClassesDir + File.separator + "predex";
+    createDir(new File(preDexDir));
+
     long startDx = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      if (dxSuccess && (class2List.size() > 0)) {
-        setProgress(60);
-        dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
-        inputList = new ArrayList<File>();
-        dxSuccess = dexTask.execute(class2List);
-        setProgress(75);
-        hasSecondDex = true;
-      } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
-        LOG.info("DX execution failed, trying with fewer libraries.");
-        if (secondTry) {        // Already tried the more conservative approach!
-          LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
-          err.println("YAIL compiler - DX execution failed.");
-          userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-          return false;
-        } else {
-          return runDx(classesDir, dexedClassesDir, true);
+    BuildPipeline.enter(BuildPipeline.Stage.DX);
+    try {
+      setProgress("Dexing classes", 50);
+      final File classesJar = new File(dexedClassesDir, "project-classes.jar");
+      final DexExecTask classesTask = newDexTask(classesJar.getAbsolutePath(), preDexDir);
+      final List<File> classesInput = Lists.newArrayList(classesDir);
+      List<Future<File>> mainDexed = Lists.newArrayList();
+      mainDexed.add(DEX_EXECUTOR.submit(BuildTrace.propagate(new Callable<File>() {
+        @Override
+        public File call() {
+          return classesTask.execute(classesInput) ? classesJar : null;
         }
+      })));
+      final DexExecTask preDexTask = newDexTask(null, preDexDir);
+      for (File lib : mainLibs) {
+        mainDexed.add(DEX_EXECUTOR.submit(BuildTrace.propagate(preDex(preDexTask, lib))));
       }
-    }
-    if (!dxSuccess) {
-      LOG.warning("YAIL compiler - DX execution failed.");
-      err.println("YAIL compiler - DX execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-      return false;
+      List<Future<File>> otherDexed = Lists.newArrayList();
+      for (File lib : otherLibs) {
+        otherDexed.add(DEX_EXECUTOR.submit(BuildTrace.propagate(preDex(preDexTask, lib))));
+      }
+      List<File> mainInputs = getDexed(mainDexed);
+      List<File> otherInputs = getDexed(otherDexed);
+      if (mainInputs == null || otherInputs == null) {
+        return dxFailed("YAIL compiler - DX execution failed.");
+      }
+
+      List<List<File>> partitions;
+      try {
+        partitions = DexPartitioner.partition(mainInputs, otherInputs, DexPartitioner.MAX_IDS);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to split the dex files", e);
+        return dxFailed("YAIL compiler - " + e.getMessage());
+      }
+
+      setProgress("Merging dex files", 65);
+      List<Future<Boolean>> merges = Lists.newArrayList();
+      for (int i = 0; i < partitions.size(); i++) {
+        final DexExecTask mergeTask = newDexTask(
+            dexedClassesDir + File.separator + DexPartitioner.getDexFileName(i), preDexDir);
+        final List<File> partition = partitions.get(i);
+        merges.add(DEX_EXECUTOR.submit(BuildTrace.propagate(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return mergeTask.merge(partition);
+          }
+        })));
+      }
+      for (Future<Boolean> merge : merges) {
+        if (!Boolean.TRUE.equals(getQuietly(merge))) {
+          return dxFailed("YAIL compiler - DX execution failed.");
+        }
+      }
+      dexFileCount = partitions.size();
+    } finally {
+      BuildPipeline.exit(BuildPipeline.Stage.DX);
     }
     String dxTimeMessage = "DX time: " +
-        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds";
+        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds, " + dexFileCount +
+        " dex file(s)";
     out.println(dxTimeMessage);
     LOG.info(dxTimeMessage);
 
     return true;
   }
 
+  /*
+   * Dexes the project's classes and merges them with the runtime libraries of the Companion base
+   * into classes.dex. The other dex files are copied from the base.
+   */
+  private boolean runDxOnCompanionBase(File classesDir, String dexedClassesDir, File baseDir) {
+    long startDx = System.currentTimeMillis();
+    BuildPipeline.enter(BuildPipeline.Stage.DX);
+    try {
+      setProgress("Dexing classes", 50);
+      File classesJar = new File(dexedClassesDir, "project-classes.jar");
+      if (!newDexTask(classesJar.getAbsolutePath(), dexedClassesDir)
+          .execute(Lists.newArrayList(classesDir))) {
+        return dxFailed("YAIL compiler - DX execution failed.");
+      }
+      List<File> mainInputs =
+          Lists.newArrayList(classesJar, new File(baseDir, CompanionBase.RUNTIME_DEX));
+      int libraryDexFileCount = CompanionBase.getLibraryDexFileCount(baseDir);
+      setProgress("Merging dex files", 65);
+      try {
+        for (int i = 1; i <= libraryDexFileCount; i++) {
+          String dexFileName = DexPartitioner.getDexFileName(i);
+          BuildWorkspace.stage(new File(baseDir, dexFileName),
+              new File(dexedClassesDir, dexFileName));
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to use the Companion base", e);
+        return dxFailed("YAIL compiler - " + e.getMessage());
+      }
+      if (!newDexTask(dexedClassesDir + File.separator + DexPartitioner.getDexFileName(0),
+          dexedClassesDir).merge(mainInputs)) {
+        return dxFailed("YAIL compiler - DX execution failed.");
+      }
+      dexFileCount = 1 + libraryDexFileCount;
+    } finally {
+      BuildPipeline.exit(BuildPipeline.Stage.DX);
+    }
+    String dxTimeMessage = "DX time: " +
+        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds, " + dexFileCount +
+        " dex file(s), libraries from the Companion base";
+    out.println(dxTimeMessage);
+    LOG.info(dxTimeMessage);
+    return true;
+  }
+
+  /*
+   * Returns the directory of the Companion base for the build server's runtime files, building it
+   * first if needed, or null if it can't be built. The base is kept next to the pre-dexed
+   * libraries, or in a temporary directory if there is no pre-dexed library store.
+   */
+  private static File getCompanionBase(String dexCacheDir, final int childProcessRam) {
+    try {
+      File parentDir = dexCacheDir != null ? new File(dexCacheDir) : getCompanionTempDir();
+      final String preDexDir = dexCacheDir != null ? dexCacheDir
+          : new File(parentDir, "predex").getAbsolutePath();
+      return CompanionBase.get(parentDir, getEnvironmentCacheKey(), new CompanionBase.Builder() {
+        @Override
+        public boolean build(File dir) {
+          return buildCompanionBase(dir, preDexDir, childProcessRam);
+        }
+      });
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to get the Companion base", e);
+      return null;
+    }
+  }
+
+  private static synchronized File getCompanionTempDir() {
+    if (companionTempDir == null) {
+      companionTempDir = Files.createTempDir();
+    }
+    return companionTempDir;
+  }
+
+  /*
+   * Pre-dexes the runtime libraries and the libraries of every built-in component, all in
+   * parallel, and merges the runtime libraries into the base's runtime.dex and the other libraries
+   * into as many dex files as needed, starting with classes2.dex. Only the merge is done in the DX
+   * stage: the pre-dexed libraries go to the shared store, like those of any other build, and
+   * pre-dexing all of them takes long enough to hold up the builds waiting for the stage.
+   */
+  private static boolean buildCompanionBase(File baseDir, String preDexDir,
+      int childProcessRam) {
+    List<File> otherLibs = new ArrayList<File>();
+    for (String lib : getBuiltInLibraries()) {
+      otherLibs.add(new File(getResource(lib)));
+    }
+    createDir(new File(preDexDir));
+
+    DexExecTask preDexTask = newDexTask(null, preDexDir, childProcessRam);
+    List<Future<File>> mainDexed = Lists.newArrayList();
+    for (File lib : getRuntimeLibraries()) {
+      mainDexed.add(DEX_EXECUTOR.submit(preDex(preDexTask, lib)));
+    }
+    List<Future<File>> otherDexed = Lists.newArrayList();
+    for (File lib : otherLibs) {
+      otherDexed.add(DEX_EXECUTOR.submit(preDex(preDexTask, lib)));
+    }
+    List<File> mainInputs = getDexed(mainDexed);
+    List<File> otherInputs = getDexed(otherDexed);
+    if (mainInputs == null || otherInputs == null) {
+      return false;
+    }
+
+    List<List<File>> partitions;
+    try {
+      partitions = DexPartitioner.pack(otherInputs, DexPartitioner.MAX_IDS);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to split the dex files of the Companion base", e);
+      return false;
+    }
+    partitions.add(0, mainInputs);
+
+    BuildPipeline.enter(BuildPipeline.Stage.DX);
+    try {
+      List<Future<Boolean>> merges = Lists.newArrayList();
+      for (int i = 0; i < partitions.size(); i++) {
+        String dexFileName = i == 0 ? CompanionBase.RUNTIME_DEX
+            : DexPartitioner.getDexFileName(i);
+        final DexExecTask mergeTask = newDexTask(
+            new File(baseDir, dexFileName).getAbsolutePath(), preDexDir, childProcessRam);
+        final List<File> partition = partitions.get(i);
+        merges.add(DEX_EXECUTOR.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return mergeTask.merge(partition);
+          }
+        }));
+      }
+      boolean merged = true;
+      for (Future<Boolean> merge : merges) {
+        merged &= Boolean.TRUE.equals(getQuietly(merge));
+      }
+      return merged;
+    } finally {
+      BuildPipeline.exit(BuildPipeline.Stage.DX);
+    }
+  }
+
+  /*
+   * Returns the Kawa, ACRA and component runtime libraries, which go into classes.dex.
+   */
+  private static List<File> getRuntimeLibraries() {
+    return Lists.newArrayList(
+        new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)),
+        new File(getResource(KAWA_RUNTIME)),
+        new File(getResource(ACRA_RUNTIME)));
+  }
+
+  /*
+   * Returns the resource names of the libraries of every built-in component.
+   */
+  private static Set<String> getBuiltInLibraries() {
+    Set<String> libraries = Sets.newLinkedHashSet();
+    ComponentCatalog catalog = ComponentCatalog.builtIn();
+    for (Set<String> compLibs
+        : catalog.get(catalog.getBuiltInTypes(), LIBRARIES_TARGET).values()) {
+      for (String lib : compLibs) {
+        libraries.add(RUNTIME_FILES_DIR + lib);
+      }
+    }
+    return libraries;
+  }
+
+  private DexExecTask newDexTask(String output, String preDexDir) {
+    return newDexTask(output, preDexDir, childProcessRamMb);
+  }
+
+  private static DexExecTask newDexTask(String output, String preDexDir, int childProcessRam) {
+    DexExecTask dexTask = new DexExecTask();
+    dexTask.setExecutable(getResource(DX_JAR));
+    dexTask.setOutput(output);
+    dexTask.setChildProcessRamMb(childProcessRam);
+    dexTask.setDexedLibs(preDexDir);
+    return dexTask;
+  }
+
+  private static Callable<File> preDex(final DexExecTask dexTask, final File lib) {
+    return new Callable<File>() {
+      @Override
+      public File call() {
+        return dexTask.preDex(lib);
+      }
+    };
+  }
+
+  /*
+   * Returns the dexed files, or null if any of them could not be dexed.
+   */
+  private static List<File> getDexed(List<Future<File>> futures) {
+    List<File> dexed = new ArrayList<File>(futures.size());
+    boolean failed = false;
+    // Wait for all of them even after a failure, so that no dx process outlives the DX stage.
+    for (Future<File> future : futures) {
+      File file = getQuietly(future);
+      failed |= file == null;
+      dexed.add(file);
+    }
+    return failed ? null : dexed;
+  }
+
+  private static <T> T getQuietly(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      LOG.log(Level.WARNING, "Task failed", e.getCause());
+      return null;
+    }
+  }
+
+  private boolean dxFailed(String message) {
+    LOG.warning(message);
+    err.println(message);
+    userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+    return false;
+  }
+
+  /**
+   * Pre-dexes the Kawa, ACRA and component runtime libraries and the libraries of every built-in
+   * component, so that the first builds don't have to.
+   *
+   * @param dexCacheDir  the directory of the pre-dexed library store
+   * @param childProcessRam  maximum RAM for dx, in MBs
+   * @return  the number of libraries that could not be pre-dexed
+   */
+  public static int warmUpDexCache(String dexCacheDir, int childProcessRam)
+      throws IOException {
+    Set<String> libraries = Sets.newLinkedHashSet();
+    Collections.addAll(libraries, KAWA_RUNTIME, ACRA_RUNTIME, SIMPLE_ANDROID_RUNTIME_JAR);
+    libraries.addAll(getBuiltInLibraries());
+
+    createDir(new File(dexCacheDir));
+    DexExecTask dexTask = newDexTask(null, dexCacheDir, childProcessRam);
+    int failures = 0;
+    for (String library : libraries) {
+      // The warm-up waits its turn for every library, so that it never holds up a build for long.
+      BuildPipeline.enter(BuildPipeline.Stage.DX);
+      try {
+        if (dexTask.preDex(new File(getResource(library))) == null) {
+          failures++;
+        }
+      } finally {
+        BuildPipeline.exit(BuildPipeline.Stage.DX);
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * Builds the dex files shared by all builds of the MIT AI2 Companion, so that the first
+   * Companion build doesn't have to.
+   *
+   * @param dexCacheDir  the directory of the pre-dexed library store, or {@code null}
+   * @param childProcessRam  maximum RAM for dx, in MBs
+   * @return  whether the Companion base is ready
+   */
+  public static boolean warmUpCompanionBase(String dexCacheDir, int childProcessRam) {
+    return getCompanionBase(dexCacheDir, childProcessRam) != null;
+  }
+
+  /*
+   * Copies the resource package from the build cache if aapt packaged the same manifest,
+   * resources, assets and native libraries before, or else runs aapt and stores its output in the
+   * cache. The manifest is cheap to generate, so it isn't cached itself, only as an input here.
+   */
+  private boolean runAaptPackageIfNotCached(File manifestFile, File resDir,
+                                            String tmpPackageName) {
+    String key = null;
+    if (BuildCache.isEnabled()) {
+      try {
+        key = BuildCache.key(getEnvironmentCacheKey(),
+            new File(tmpPackageName).getName(),
+            BuildCache.hashFile(manifestFile),
+            BuildCache.hashTree(resDir),
+            BuildCache.hashTree(project.getAssetsDirectory()),
+            BuildCache.hashTree(libsDir));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to compute the aapt cache key", e);
+      }
+    }
+    File packageFile = new File(tmpPackageName);
+    BuildTrace.Span span = BuildTrace.start(BuildTrace.AAPT);
+    try {
+      boolean fromCache = key != null
+          && BuildCache.fetch(BuildCache.Kind.AAPT, key, packageFile.getParentFile());
+      if (key != null) {
+        span.setCacheHit(fromCache);
+      }
+      if (fromCache) {
+        out.println("AAPT time: 0 seconds, resource package from the cache");
+      } else if (!runAaptPackage(manifestFile, resDir, tmpPackageName)) {
+        return false;
+      } else if (key != null) {
+        BuildCache.store(BuildCache.Kind.AAPT, key, Collections.singletonList(packageFile));
+      }
+      span.addBytesOut(packageFile.length());
+      return true;
+    } finally {
+      span.end();
+    }
+  }
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     createDir(project.getAssetsDirectory());
@@ -1281,7 +1836,15 @@ public final class Compiler {
     long startAapt = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    if (!Execution.execute(null, aaptPackageCommandLine, System.out, System.err)) {
+    boolean aaptSuccess;
+    BuildPipeline.enter(BuildPipeline.Stage.AAPT);
+    try {
+      aaptSuccess = Execution.execute(null, aaptPackageCommandLine, System.out, System.err,
+          BuildPipeline.Stage.AAPT);
+    } finally {
+      BuildPipeline.exit(BuildPipeline.Stage.AAPT);
+    }
+    if (!aaptSuccess) {
       LOG.warning("YAIL compiler - AAPT execution failed.");
       err.println("YAIL compiler - AAPT execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
@@ -1328,7 +1891,7 @@ public final class Compiler {
             return false;
           }
 
-          Files.copy(new File(sourcePath), new File(targetDir, lib));
+          BuildWorkspace.stage(new File(sourcePath), new File(targetDir, lib));
         }
       }
       return true;
@@ -1364,7 +1927,7 @@ public final class Compiler {
             return false;
           }
 
-          Files.copy(new File(sourcePath), new File(targetDir, assetName));
+          BuildWorkspace.stage(new File(sourcePath), new File(targetDir, assetName));
         }
       }
       return true;
@@ -1376,8 +1939,8 @@ public final class Compiler {
   }
 
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
-   * Caches the location of the files, so we can reuse them.
+   * Extracts the given resource into the build workspace's resource directory and returns the
+   * absolute path. Caches the location of the files, so we can reuse them.
    *
    * @param resourcePath the name of the resource
    */
@@ -1385,26 +1948,7 @@ public final class Compiler {
     try {
       File file = resources.get(resourcePath);
       if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
-        } else {
-          prefix = basename;
-          suffix = "";
-        }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
-        }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
+        file = BuildWorkspace.extractResource(resourcePath);
         resources.put(resourcePath, file);
       }
       return file.getAbsolutePath();
@@ -1416,78 +1960,15 @@ public final class Compiler {
   /*
    *  Loads permissions and information on component libraries and assets.
    */
-  private void loadJsonInfo(ConcurrentMap<String, Set<String>> infoMap, String targetInfo)
-      throws IOException, JSONException {
+  private void loadJsonInfo(ConcurrentMap<String, Set<String>> infoMap, String targetInfo) {
     synchronized (infoMap) {
       if (!infoMap.isEmpty()) {
         return;
       }
-
-      JSONArray buildInfo = new JSONArray(
-          "[" + simpleCompsBuildInfo.join(",") + "," +
-          extCompsBuildInfo.join(",") + "]");
-
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject compJson = buildInfo.getJSONObject(i);
-        JSONArray infoArray = null;
-        String type = compJson.getString("type");
-        try {
-          infoArray = compJson.getJSONArray(targetInfo);
-        } catch (JSONException e) {
-          // Older compiled extensions will not have a broadcastReceiver
-          // defined. Rather then require them all to be recompiled, we
-          // treat the missing attribute as empty.
-          if (e.getMessage().contains("broadcastReceiver")) {
-            LOG.log(Level.INFO, "Component \"" + type + "\" does not have a broadcast receiver.");
-            continue;
-          } else {
-            throw e;
-          }
-        }
-
-        if (!simpleCompTypes.contains(type) && !extCompTypes.contains(type)) {
-          continue;
-        }
-
-        Set<String> infoSet = Sets.newHashSet();
-        for (int j = 0; j < infoArray.length(); ++j) {
-          String info = infoArray.getString(j);
-          infoSet.add(info);
-        }
-
-        if (!infoSet.isEmpty()) {
-          infoMap.put(type, infoSet);
-        }
-      }
+      infoMap.putAll(catalog.get(Sets.union(simpleCompTypes, extCompTypes), targetInfo));
     }
   }
 
-  /**
-   * Copy one file to another. If destination file does not exist, it is created.
-   *
-   * @param srcPath absolute path to source file
-   * @param dstPath absolute path to destination file
-   * @return  {@code true} if the copy succeeds, {@code false} otherwise
-   */
-  private static Boolean copyFile(String srcPath, String dstPath) {
-    try {
-      FileInputStream in = new FileInputStream(srcPath);
-      FileOutputStream out = new FileOutputStream(dstPath);
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
-      }
-      in.close();
-      out.close();
-    }
-    catch (IOException e) {
-      e.printStackTrace();
-      return false;
-    }
-    return true;
-  }
-
   /**
    * Creates a new directory (if it doesn't exist already).
    *
@@ -1531,62 +2012,38 @@ public final class Compiler {
     return dir;
   }
 
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
-  }
-
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
-    }
-  }
-
-  private void readBuildInfo() {
-    try {
-      simpleCompsBuildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      extCompsBuildInfo = new JSONArray();
-      for (String type : extCompTypes) {
-        // .../assets/external_comps/com.package.MyExtComp/files/component_build_info.json
-        File extCompRuntimeFileDir = new File(getExtCompDirPath(type) + RUNTIME_FILES_DIR);
-        String jsonFileName = "component_build_info.json";
-        File jsonFile = new File(extCompRuntimeFileDir, jsonFileName);
-
-        extCompsBuildInfo.put(new JSONObject(Resources.toString(
-            jsonFile.toURI().toURL(), Charsets.UTF_8)));
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
+  /*
+   * Records that the build entered a stage, if the progress of the build is being recorded.
+   */
+  private void setProgress(String stage, int increments) {
+    LOG.info("The current progress is " + increments + "%");
+    if (buildProgress != null) {
+      buildProgress.update(stage, increments);
     }
   }
 
+  /*
+   * Adds the project's extensions to the component catalog and splits the component types that
+   * the project uses into built-in components and extensions.
+   */
   private void prepareCompTypes(Set<String> neededTypes) {
-    try {
-      JSONArray buildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      Set<String> allSimpleTypes = Sets.newHashSet();
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject comp = buildInfo.getJSONObject(i);
-        allSimpleTypes.add(comp.getString("type"));
+    catalog = ComponentCatalog.builtIn();
+    if (project != null) {
+      try {
+        catalog = catalog.withExtensions(
+            new File(project.getAssetsDirectory(), EXT_COMPS_DIR_NAME));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to read the extensions", e);
+      } catch (JSONException e) {
+        LOG.log(Level.WARNING, "Unable to read the extensions", e);
       }
+    }
 
-      simpleCompTypes = Sets.newHashSet(neededTypes);
-      simpleCompTypes.retainAll(allSimpleTypes);
-
-      extCompTypes = Sets.newHashSet(neededTypes);
-      extCompTypes.removeAll(allSimpleTypes);
+    simpleCompTypes = Sets.newHashSet(neededTypes);
+    simpleCompTypes.retainAll(catalog.getBuiltInTypes());
 
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+    extCompTypes = Sets.newHashSet(neededTypes);
+    extCompTypes.removeAll(catalog.getBuiltInTypes());
   }
 
   private String getExtCompDirPath(String type) {
@@ -0,0 +1,257 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the build needs to know about each component type: the permissions, libraries, native
+ * libraries, assets, activities and broadcast receivers it needs, and the name by which the
+ * project files refer to it.
+ *
+ * <p>The catalog of the built-in components is read from simple_components_build_info.json and
+ * simple_components.json once, the first time it is needed, and never changes. The extensions of
+ * a project are added by {@link #withExtensions}, which returns a catalog that looks in the
+ * extensions first and then in the built-in catalog. Each extension is read once per version of
+ * its component_build_info.json, whatever project it comes with.</p>
+ */
+final class ComponentCatalog {
+
+  private static final String BUILD_INFO = Compiler.RUNTIME_FILES_DIR
+      + "simple_components_build_info.json";
+  private static final String COMPONENTS = Compiler.RUNTIME_FILES_DIR + "simple_components.json";
+
+  // The files of an extension, in assets/external_comps/<type>.
+  private static final String EXTENSION_BUILD_INFO = Compiler.RUNTIME_FILES_DIR.substring(1)
+      + "component_build_info.json";
+  private static final String EXTENSION_COMPONENT = "component.json";
+
+  // The most extensions kept parsed.
+  private static final int MAX_CACHED_EXTENSIONS = 1000;
+
+  /**
+   * The build information of a component type. Each target, such as "permissions" or
+   * "libraries", is the set of strings listed for it in the component's build info.
+   */
+  static final class ComponentInfo {
+    final String type;
+    private final ImmutableMap<String, ImmutableSet<String>> targets;
+
+    ComponentInfo(String type, ImmutableMap<String, ImmutableSet<String>> targets) {
+      this.type = type;
+      this.targets = targets;
+    }
+
+    /**
+     * Returns the strings listed for the given target, or an empty set if there are none. Older
+     * extensions don't list every target.
+     */
+    ImmutableSet<String> get(String target) {
+      ImmutableSet<String> values = targets.get(target);
+      return values == null ? ImmutableSet.<String>of() : values;
+    }
+
+    static ComponentInfo fromJson(JSONObject json) throws JSONException {
+      ImmutableMap.Builder<String, ImmutableSet<String>> targets = ImmutableMap.builder();
+      for (Iterator<?> keys = json.keys(); keys.hasNext(); ) {
+        String key = (String) keys.next();
+        JSONArray array = json.optJSONArray(key);
+        if (array != null) {
+          ImmutableSet.Builder<String> values = ImmutableSet.builder();
+          for (int i = 0; i < array.length(); i++) {
+            values.add(array.getString(i));
+          }
+          targets.put(key, values.build());
+        }
+      }
+      return new ComponentInfo(json.getString("type"), targets.build());
+    }
+  }
+
+  /*
+   * Holds the built-in catalog, which is read when this class is loaded.
+   */
+  private static final class BuiltIn {
+    static final ComponentCatalog CATALOG = load();
+
+    private static ComponentCatalog load() {
+      try {
+        return parse(Resources.toString(Compiler.class.getResource(BUILD_INFO), Charsets.UTF_8),
+            Resources.toString(Compiler.class.getResource(COMPONENTS), Charsets.UTF_8));
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read the component catalog", e);
+      } catch (JSONException e) {
+        throw new IllegalStateException("Unable to read the component catalog", e);
+      }
+    }
+  }
+
+  // Parsed extensions, by the hash of their component_build_info.json.
+  private static final Cache<String, ComponentInfo> extensionInfos = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_EXTENSIONS).build();
+  // The names of extensions, by the hash of their component.json.
+  private static final Cache<String, String> extensionNames = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_EXTENSIONS).build();
+
+  // The catalog this one adds to, or null for the built-in catalog.
+  private final ComponentCatalog parent;
+  private final ImmutableMap<String, ComponentInfo> infos;  // by type
+  private final ImmutableMap<String, String> types;         // by name
+
+  private ComponentCatalog(ComponentCatalog parent, ImmutableMap<String, ComponentInfo> infos,
+      ImmutableMap<String, String> types) {
+    this.parent = parent;
+    this.infos = infos;
+    this.types = types;
+  }
+
+  /**
+   * Returns the catalog of the built-in components.
+   *
+   * @throws IllegalStateException if the catalog can't be read
+   */
+  static ComponentCatalog builtIn() {
+    return BuiltIn.CATALOG;
+  }
+
+  /**
+   * Creates a catalog from the contents of simple_components_build_info.json and
+   * simple_components.json.
+   */
+  static ComponentCatalog parse(String buildInfoJson, String componentsJson)
+      throws JSONException {
+    ImmutableMap.Builder<String, ComponentInfo> infos = ImmutableMap.builder();
+    JSONArray buildInfo = new JSONArray(buildInfoJson);
+    for (int i = 0; i < buildInfo.length(); i++) {
+      ComponentInfo info = ComponentInfo.fromJson(buildInfo.getJSONObject(i));
+      infos.put(info.type, info);
+    }
+    ImmutableMap.Builder<String, String> types = ImmutableMap.builder();
+    JSONArray components = new JSONArray(componentsJson);
+    for (int i = 0; i < components.length(); i++) {
+      JSONObject component = components.getJSONObject(i);
+      types.put(component.getString("name"), component.getString("type"));
+    }
+    return new ComponentCatalog(null, infos.build(), types.build());
+  }
+
+  /**
+   * Returns a catalog with the extensions in the given directory added to this one. Each
+   * extension is a directory named after its type, with a component.json and a
+   * files/component_build_info.json.
+   *
+   * @param extensionsDir  the external_comps directory of a project, which need not exist
+   */
+  ComponentCatalog withExtensions(File extensionsDir) throws IOException, JSONException {
+    File[] extensionDirs = extensionsDir.listFiles();
+    if (extensionDirs == null || extensionDirs.length == 0) {
+      return this;
+    }
+    ImmutableMap.Builder<String, ComponentInfo> infos = ImmutableMap.builder();
+    // Two extensions may claim the same name, in which case the last one wins, as it always has.
+    Map<String, String> types = Maps.newHashMap();
+    for (File extensionDir : extensionDirs) {
+      if (!extensionDir.isDirectory()) {
+        continue;
+      }
+      String type = extensionDir.getName();
+      File buildInfoFile = new File(extensionDir, EXTENSION_BUILD_INFO);
+      if (buildInfoFile.exists()) {
+        infos.put(type, readExtensionInfo(buildInfoFile));
+      }
+      File componentFile = new File(extensionDir, EXTENSION_COMPONENT);
+      if (componentFile.exists()) {
+        types.put(readExtensionName(componentFile), type);
+      }
+    }
+    return new ComponentCatalog(this, infos.build(), ImmutableMap.copyOf(types));
+  }
+
+  private static ComponentInfo readExtensionInfo(File buildInfoFile)
+      throws IOException, JSONException {
+    String hash = Files.hash(buildInfoFile, Hashing.md5()).toString();
+    ComponentInfo info = extensionInfos.getIfPresent(hash);
+    if (info == null) {
+      info = ComponentInfo.fromJson(new JSONObject(Files.toString(buildInfoFile, Charsets.UTF_8)));
+      extensionInfos.put(hash, info);
+    }
+    return info;
+  }
+
+  private static String readExtensionName(File componentFile) throws IOException, JSONException {
+    String hash = Files.hash(componentFile, Hashing.md5()).toString();
+    String name = extensionNames.getIfPresent(hash);
+    if (name == null) {
+      name = new JSONObject(Files.toString(componentFile, Charsets.UTF_8)).getString("name");
+      extensionNames.put(hash, name);
+    }
+    return name;
+  }
+
+  /**
+   * Returns the build information of a component type, or {@code null} if the type is unknown.
+   */
+  ComponentInfo getInfo(String type) {
+    ComponentInfo info = infos.get(type);
+    return info != null || parent == null ? info : parent.getInfo(type);
+  }
+
+  /**
+   * Returns the type of the component with the given name, or {@code null} if the name is
+   * unknown.
+   */
+  String getType(String name) {
+    String type = types.get(name);
+    return type != null || parent == null ? type : parent.getType(name);
+  }
+
+  /**
+   * Returns whether the type is a built-in component, as opposed to an extension or unknown.
+   */
+  boolean isBuiltIn(String type) {
+    return parent == null ? infos.containsKey(type) : parent.isBuiltIn(type);
+  }
+
+  /**
+   * Returns the built-in component types.
+   */
+  Set<String> getBuiltInTypes() {
+    return parent == null ? infos.keySet() : parent.getBuiltInTypes();
+  }
+
+  /**
+   * Returns, for each of the given types that needs anything for the target, what it needs.
+   * Unknown types are skipped.
+   */
+  Map<String, Set<String>> get(Set<String> types, String target) {
+    ImmutableMap.Builder<String, Set<String>> result = ImmutableMap.builder();
+    for (String type : types) {
+      ComponentInfo info = getInfo(type);
+      if (info != null && !info.get(target).isEmpty()) {
+        result.put(type, info.get(target));
+      }
+    }
+    return result.build();
+  }
+}
@@ -18,18 +18,10 @@ package com.google.appinventor.buildserver;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
-
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
 
 /**
  * Dex task, modified from the Android SDK to run in BuildServer.
@@ -43,10 +35,6 @@ public class DexExecTask  {
     private boolean mVerbose = false;
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
-    private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
-
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
 
 
     /**
@@ -89,83 +77,44 @@ public class DexExecTask  {
         mChildProcessRamMb = mb;
     }
 
-    public void setDisableDexMerger(boolean disable) {
-        mDisableDexMerger = disable;
-    }
-
     private boolean preDexLibraries(List<File> inputs) {
-        if (mDisableDexMerger || inputs.size() == 1) {
+        if (inputs.size() == 1) {
             // only one input, no need to put a pre-dexed version, even if this path is
             // just a jar file (case for proguard'ed builds)
             return true;
         }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
-
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
-                        }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
-                        allSuccessful = allSuccessful && dexSuccess;
-                    } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
-                    }
-
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
+        final int count = inputs.size();
+        for (int i = 0 ; i < count; i++) {
+            File input = inputs.get(i);
+            if (input.isFile()) {
+                File dexedLib = preDex(input);
+                if (dexedLib == null) {
+                    return false;
                 }
+                // replace the input with the pre-dex libs.
+                inputs.set(i, dexedLib);
             }
-            return allSuccessful;
         }
+        return true;
     }
 
-    private String getDexFileName(File inputFile) {
-        // get the filename
-        String name = inputFile.getName();
-        // remove the extension
-        int pos = name.lastIndexOf('.');
-        if (pos != -1) {
-            name = name.substring(0, pos);
-        }
-
-        String hashed = getHashFor(inputFile);
-
-        return "dex-cached-" + hashed + ".jar";
-    }
-
-    private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
-        if (retval != null) return retval;
-        // add a hash of the original file path
+    /**
+     * Adds a library to the pre-dexed library store, unless it is already there.
+     * @param input the library.
+     * @return the pre-dexed library, or null if dx failed.
+     */
+    public File preDex(File input) {
         try {
-            HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
-            retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
-            return retval;
+            return PreDexStore.getPreDexed(new File(mDexedLibs), input, new PreDexStore.Dexer() {
+                @Override
+                public boolean dex(File library, File output) {
+                    return runDx(library, output.getAbsolutePath(), false /*showInput*/);
+                }
+            });
         } catch (IOException e) {
             e.printStackTrace();
-            return "ERROR";
+            return null;
         }
     }
 
@@ -180,6 +129,18 @@ public class DexExecTask  {
         return runDx(paths, mOutput, mVerbose /*showInputs*/);
     }
 
+    /**
+     * Merges inputs that are already dexed into the output, without pre-dexing them.
+     * @param dexedInputs the dexed inputs.
+     * @return true if dx succeeded.
+     */
+    public boolean merge(List<File> dexedInputs) {
+        System.out.println(String.format(
+                "Merging dexed files into %1$s...", mOutput));
+
+        return runDx(dexedInputs, mOutput, mVerbose /*showInputs*/);
+    }
+
     private boolean runDx(File input, String output, boolean showInputs) {
         return runDx(Collections.singleton(input), output, showInputs);
     }
@@ -218,7 +179,8 @@ public class DexExecTask  {
         String[] dxCommandLine = new String[commandLineList.size()];
         commandLineList.toArray(dxCommandLine);
 
-        boolean dxSuccess = Execution.execute(null, dxCommandLine, System.out, System.err);
+        boolean dxSuccess = Execution.execute(null, dxCommandLine, System.out, System.err,
+            BuildPipeline.Stage.DX);
         return dxSuccess;
 
     }
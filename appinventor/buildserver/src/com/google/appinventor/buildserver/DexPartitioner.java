@@ -0,0 +1,202 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Splits dexed inputs into groups that each fit into a single dex file.
+ *
+ * <p>A dex file can refer to at most 65536 methods and 65536 fields. The number of methods and
+ * fields of each input is read from the header of its dex file. The counts of the inputs in a
+ * group are added up, which overestimates the count of the merged dex file because references
+ * shared by several inputs are only counted once after merging, so a group never overflows.
+ * Inputs that must go together, or that are too big to share a dex file, are put into a group
+ * whatever their counts add up to, and dx decides whether they fit when it merges them.</p>
+ */
+final class DexPartitioner {
+
+  // The maximum number of method and field references in a dex file.
+  static final int MAX_IDS = 65536;
+
+  // Offsets in the dex file header.
+  private static final int FIELD_IDS_SIZE_OFFSET = 0x50;
+  private static final int METHOD_IDS_SIZE_OFFSET = 0x58;
+  private static final int HEADER_PREFIX_SIZE = METHOD_IDS_SIZE_OFFSET + 4;
+
+  /**
+   * The number of methods and fields referenced by a dexed input.
+   */
+  static final class IdCount {
+    final int methods;
+    final int fields;
+
+    IdCount(int methods, int fields) {
+      this.methods = methods;
+      this.fields = fields;
+    }
+  }
+
+  /*
+   * A group of inputs and the sum of their counts.
+   */
+  private static final class Group {
+    final List<File> inputs = new ArrayList<File>();
+    int methods = 0;
+    int fields = 0;
+
+    boolean fits(IdCount count, int maxIds) {
+      return inputs.isEmpty()
+          || (methods + count.methods <= maxIds && fields + count.fields <= maxIds);
+    }
+
+    void add(File input, IdCount count) {
+      inputs.add(input);
+      methods += count.methods;
+      fields += count.fields;
+    }
+  }
+
+  private DexPartitioner() {
+  }
+
+  /**
+   * Counts the methods and fields referenced by a dex file, or by all of the dex files in a jar.
+   */
+  static IdCount count(File input) throws IOException {
+    if (input.getName().endsWith(".dex")) {
+      InputStream in = new FileInputStream(input);
+      try {
+        return count(in, input.getName());
+      } finally {
+        in.close();
+      }
+    }
+    int methods = 0;
+    int fields = 0;
+    ZipFile zipFile = new ZipFile(input);
+    try {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        String name = entry.getName();
+        if (name.startsWith("classes") && name.endsWith(".dex")) {
+          InputStream in = zipFile.getInputStream(entry);
+          try {
+            IdCount count = count(in, input.getName());
+            methods += count.methods;
+            fields += count.fields;
+          } finally {
+            in.close();
+          }
+        }
+      }
+    } finally {
+      zipFile.close();
+    }
+    return new IdCount(methods, fields);
+  }
+
+  private static IdCount count(InputStream in, String name) throws IOException {
+    byte[] header = new byte[HEADER_PREFIX_SIZE];
+    if (ByteStreams.read(in, header, 0, header.length) != header.length
+        || header[0] != 'd' || header[1] != 'e' || header[2] != 'x') {
+      throw new IOException(name + " is not a dex file");
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    return new IdCount(buffer.getInt(METHOD_IDS_SIZE_OFFSET), buffer.getInt(FIELD_IDS_SIZE_OFFSET));
+  }
+
+  /**
+   * Splits the inputs into groups, one per dex file.
+   *
+   * <p>The main inputs all go into the first group, because Android loads the classes needed to
+   * start the app from classes.dex. Their counts may add up to more than a dex file holds, since
+   * they share references; merging them then tells whether they really fit. Each of the other
+   * inputs goes into the first group that has room for it, so the number of groups stays
+   * small.</p>
+   *
+   * @param mainInputs  the inputs that must go into classes.dex
+   * @param otherInputs  the other inputs
+   * @param maxIds  the maximum number of methods and of fields in a dex file
+   * @return  the groups, the first of which is for classes.dex
+   * @throws IOException  if an input can't be read
+   */
+  static List<List<File>> partition(List<File> mainInputs, List<File> otherInputs, int maxIds)
+      throws IOException {
+    List<Group> groups = new ArrayList<Group>();
+    Group main = new Group();
+    groups.add(main);
+    for (File input : mainInputs) {
+      main.add(input, count(input));
+    }
+    for (File input : otherInputs) {
+      addToFirstGroupWithRoom(groups, input, maxIds);
+    }
+    return toPartitions(groups);
+  }
+
+  /**
+   * Splits inputs that don't need to be in classes.dex into groups, one per dex file. Each input
+   * goes into the first group that has room for it.
+   *
+   * @param inputs  the inputs
+   * @param maxIds  the maximum number of methods and of fields in a dex file
+   * @return  the groups
+   * @throws IOException  if an input can't be read
+   */
+  static List<List<File>> pack(List<File> inputs, int maxIds) throws IOException {
+    List<Group> groups = new ArrayList<Group>();
+    for (File input : inputs) {
+      addToFirstGroupWithRoom(groups, input, maxIds);
+    }
+    return toPartitions(groups);
+  }
+
+  private static void addToFirstGroupWithRoom(List<Group> groups, File input, int maxIds)
+      throws IOException {
+    IdCount count = count(input);
+    Group target = null;
+    for (Group group : groups) {
+      if (group.fits(count, maxIds)) {
+        target = group;
+        break;
+      }
+    }
+    if (target == null) {
+      target = new Group();
+      groups.add(target);
+    }
+    target.add(input, count);
+  }
+
+  private static List<List<File>> toPartitions(List<Group> groups) {
+    List<List<File>> partitions = new ArrayList<List<File>>(groups.size());
+    for (Group group : groups) {
+      partitions.add(group.inputs);
+    }
+    return partitions;
+  }
+
+  /**
+   * Returns the name of the dex file for the group with the given index.
+   */
+  static String getDexFileName(int index) {
+    return index == 0 ? "classes.dex" : "classes" + (index + 1) + ".dex";
+  }
+}
@@ -6,8 +6,11 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -15,13 +18,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Utility class for command execution and I/O redirection.
  *
+ * <p>The output of child processes is copied by a shared pool of threads. A watchdog samples
+ * their resource usage, which is recorded in the build trace, and kills those that exceed the
+ * limits of their build stage (see {@link #setLimits}). The same limits apply to each request
+ * that a long-lived worker process handles for a build (see {@link #watch}).</p>
  */
 public final class Execution {
 
@@ -29,18 +48,55 @@ public final class Execution {
   private static final Logger LOG = Logger.getLogger(Execution.class.getName());
   private static final Joiner joiner = Joiner.on(" ");
 
+  /**
+   * The most output of a single stream of a child process that is kept in memory. Beyond that,
+   * only the end of the output is kept.
+   */
+  static final int MAX_CAPTURED_OUTPUT_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * The limits of the child processes of a build stage. A process that runs longer than its
+   * timeout, or whose peak resident set size grows beyond its maximum, is killed.
+   */
+  static final class Limits {
+    static final Limits NONE = new Limits(0, 0);
+
+    // 0 means no limit.
+    final long timeoutMillis;
+    final long maxRssKb;
+
+    Limits(long timeoutMillis, long maxRssKb) {
+      this.timeoutMillis = timeoutMillis;
+      this.maxRssKb = maxRssKb;
+    }
+  }
+
+  private static final Map<BuildPipeline.Stage, Limits> stageLimits =
+      Collections.synchronizedMap(new EnumMap<BuildPipeline.Stage, Limits>(
+          BuildPipeline.Stage.class));
+
+  // Copy the output of child processes. Threads are reused between processes rather than
+  // started for each one.
+  private static final ExecutorService outputReaders = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("process-output-%d").build());
+
+  // Samples the resource usage of child processes and kills those that exceed their limits.
+  private static final ScheduledExecutorService watchdogs = Executors.newScheduledThreadPool(1,
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("process-watchdog-%d").build());
+
+  private static final AtomicInteger timeouts = new AtomicInteger(0);
+  private static final AtomicInteger memoryKills = new AtomicInteger(0);
+
   /*
-   * Input stream handler used for stdout and stderr redirection.
+   * Copies the lines of a stream of a child process to a print stream.
    */
-  private static class RedirectStreamHandler extends Thread {
-    // Streams to redirect from and to
+  private static class OutputReader implements Runnable {
     private final InputStream input;
-    private final PrintWriter output;
+    private final PrintStream output;
 
-    RedirectStreamHandler(PrintWriter output, InputStream input) {
+    OutputReader(InputStream input, PrintStream output) {
       this.input = Preconditions.checkNotNull(input);
       this.output = Preconditions.checkNotNull(output);
-      start();
     }
 
     @Override
@@ -49,47 +105,269 @@ public final class Execution {
         BufferedReader reader = new BufferedReader(new InputStreamReader(input));
         String line;
         while ((line = reader.readLine()) != null) {
-            output.println(line);
+          output.println(line);
         }
       } catch (IOException ioe) {
         // OK to ignore...
         LOG.log(Level.WARNING, "____I/O Redirection failure: ", ioe);
+      } finally {
+        output.flush();
       }
     }
   }
 
   /*
-   * Input stream handler used for stdout and stderr redirection to StringBuffer
+   * Samples the resource usage of a child process and kills it if it exceeds its limits.
+   *
+   * <p>Linux reports the peak resident set size of a process as VmHWM in /proc/<pid>/status, and
+   * its CPU time in /proc/<pid>/stat. Both only go up, so the last values read before the process
+   * exits are its totals. On other systems, or if the pid of the process is unknown, they stay
+   * unknown and only the timeout is enforced.</p>
    */
-  private static class RedirectStreamToStringBuffer extends Thread {
-    // Streams to redirect from and to
-    private final InputStream input;
-    private final StringBuffer output;
+  static final class Watchdog implements Runnable {
+    private static final long SAMPLE_INTERVAL_MILLIS = 200;
+    // The kernel's clock ticks per second, which is 100 on all Linux platforms we run on.
+    private static final long TICKS_PER_SECOND = 100;
 
-    RedirectStreamToStringBuffer(StringBuffer output, InputStream input) {
-      this.input = Preconditions.checkNotNull(input);
-      this.output = Preconditions.checkNotNull(output);
-      start();
+    private final Process process;
+    private final Limits limits;
+    private final long startTime;
+    // null if the process can't be sampled.
+    private final File procDir;
+    private final ScheduledFuture<?> future;
+
+    private volatile long peakRssKb = -1;
+    private volatile long cpuMillis = -1;
+    private volatile String killReason = null;
+
+    Watchdog(Process process, Limits limits) {
+      this.process = process;
+      this.limits = limits;
+      this.startTime = System.currentTimeMillis();
+      long pid = "Linux".equals(System.getProperty("os.name")) ? getPid(process) : -1;
+      procDir = pid < 0 ? null : new File("/proc/" + pid);
+      future = watchdogs.scheduleWithFixedDelay(this, 0, SAMPLE_INTERVAL_MILLIS,
+          TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void run() {
+      // An exception would cancel the schedule, so none may escape.
       try {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-        String line;
-        while ((line = reader.readLine()) != null) {
-          output.append(line).append("\n");
+        if (procDir != null) {
+          sample();
         }
-      } catch (IOException ioe) {
-        // OK to ignore...
-        LOG.log(Level.WARNING, "____I/O Redirection failure: ", ioe);
+        if (killReason != null) {
+          return;
+        }
+        long millis = System.currentTimeMillis() - startTime;
+        if (limits.timeoutMillis > 0 && millis > limits.timeoutMillis) {
+          timeouts.incrementAndGet();
+          kill("ran for more than " + limits.timeoutMillis / 1000 + " seconds");
+        } else if (limits.maxRssKb > 0 && peakRssKb > limits.maxRssKb) {
+          memoryKills.incrementAndGet();
+          kill("used more than " + limits.maxRssKb / 1024 + " MB of memory");
+        }
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to watch a child process", e);
       }
     }
+
+    private void sample() {
+      try {
+        for (String line : Files.readLines(new File(procDir, "status"), Charsets.US_ASCII)) {
+          if (line.startsWith("VmHWM:")) {
+            peakRssKb = Long.parseLong(line.substring(6).replace("kB", "").trim());
+            break;
+          }
+        }
+        // The fields after the parenthesized command name start with the third, the state. The
+        // 14th and 15th are the user and system CPU time in clock ticks.
+        String stat = Files.toString(new File(procDir, "stat"), Charsets.US_ASCII);
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+        long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        cpuMillis = ticks * 1000 / TICKS_PER_SECOND;
+      } catch (IOException e) {
+        // The process has exited.
+      } catch (NumberFormatException e) {
+        // Not the format we know.
+      } catch (IndexOutOfBoundsException e) {
+        // Not the format we know.
+      }
+    }
+
+    private void kill(String reason) {
+      killReason = reason;
+      LOG.warning("Killing a child process that " + reason);
+      process.destroy();
+    }
+
+    /**
+     * Stops watching the process, which has exited or finished its request.
+     */
+    void finish() {
+      future.cancel(false);
+    }
+
+    /**
+     * Returns why the process was killed, or null if it wasn't.
+     */
+    String getKillReason() {
+      return killReason;
+    }
   }
 
   private Execution() {
   }
 
+  /*
+   * Returns the pid of a process: from Process.pid() on Java 9 and later, or from the private pid
+   * field of the UNIXProcess class before that. Returns -1 if neither is there.
+   */
+  private static long getPid(Process process) {
+    try {
+      Method pidMethod = Process.class.getMethod("pid");
+      return ((Number) pidMethod.invoke(process)).longValue();
+    } catch (Exception e) {
+      // Not Java 9 or later.
+    }
+    try {
+      Field pidField = process.getClass().getDeclaredField("pid");
+      pidField.setAccessible(true);
+      return pidField.getInt(process);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /*
+   * Returns a short name for the tool that a command runs, for the build trace: the jar or main
+   * class for java commands, and the file name of the executable for others.
+   */
+  static String getProcessName(String[] command) {
+    String executable = new File(command[0]).getName();
+    if (!executable.equals("java") && !executable.equals("java.exe")) {
+      return executable;
+    }
+    for (int i = 1; i < command.length; i++) {
+      String arg = command[i];
+      if (arg.equals("-jar") && i + 1 < command.length) {
+        return Files.getNameWithoutExtension(command[i + 1]);
+      } else if (arg.equals("-cp") || arg.equals("-classpath")) {
+        i++;
+      } else if (!arg.startsWith("-")) {
+        return arg;
+      }
+    }
+    return executable;
+  }
+
+  /**
+   * Returns whether a child JVM needs -Djava.security.manager=allow to trap System.exit, as the
+   * compiler workers do. Starting with Java 12, a security manager can only be installed at run time if the JVM was
+   * started with -Djava.security.manager=allow. Earlier versions don't know that value.
+   */
+  static boolean requiresSecurityManagerOptIn() {
+    String version = System.getProperty("java.specification.version");
+    if (version.startsWith("1.")) {
+      return false;
+    }
+    try {
+      return Integer.parseInt(version) >= 12;
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Sets the limits of the child processes that the given stage runs.
+   *
+   * @param stage  the build stage
+   * @param timeoutMillis  how long a process may run, or 0 for no limit
+   * @param maxRssKb  the most memory a process may use, in KB, or 0 for no limit
+   */
+  static void setLimits(BuildPipeline.Stage stage, long timeoutMillis, long maxRssKb) {
+    stageLimits.put(stage, new Limits(timeoutMillis, maxRssKb));
+  }
+
+  /**
+   * Returns the limits of the child processes that the given stage runs.
+   */
+  static Limits getLimits(BuildPipeline.Stage stage) {
+    Limits limits = stage == null ? null : stageLimits.get(stage);
+    return limits == null ? Limits.NONE : limits;
+  }
+
+  /**
+   * Starts enforcing the limits of the given build stage on a long-lived child process, such as a
+   * warm compiler worker, while it handles one request. The process is killed if the request
+   * takes longer than the timeout, or if the process uses more memory than allowed. The caller
+   * must call {@link Watchdog#finish} when the request ends.
+   */
+  static Watchdog watch(Process process, BuildPipeline.Stage stage) {
+    return new Watchdog(process, getLimits(stage));
+  }
+
+  static void addVariables(Map<String, String> variables) {
+    variables.put("child-process-timeouts", timeouts.get() + "");
+    variables.put("child-process-memory-kills", memoryKills.get() + "");
+  }
+
+  /*
+   * Starts a command, with its standard error merged into its standard output if they both go
+   * to the same stream, copies its output, and waits for it to exit while enforcing the limits
+   * of the given stage. Records the process in the build trace and metrics.
+   *
+   * Returns the exit value of the process. A process that was killed has failed, so the reason
+   * is written to err.
+   */
+  private static int run(File workingDir, String[] command, PrintStream out, PrintStream err,
+      BuildPipeline.Stage stage) throws IOException, InterruptedException {
+    ProcessBuilder processBuilder = new ProcessBuilder(command)
+        .directory(workingDir)
+        .redirectErrorStream(out == err);
+    long start = System.currentTimeMillis();
+    Process process = processBuilder.start();
+    // The process doesn't read any input.
+    process.getOutputStream().close();
+    Future<?> outReader = outputReaders.submit(new OutputReader(process.getInputStream(), out));
+    Future<?> errReader = out == err ? null
+        : outputReaders.submit(new OutputReader(process.getErrorStream(), err));
+    Watchdog watchdog = new Watchdog(process, getLimits(stage));
+    int exitValue = -1;
+    boolean exited = false;
+    try {
+      exitValue = process.waitFor();
+      exited = true;
+      awaitReader(outReader);
+      awaitReader(errReader);
+    } finally {
+      watchdog.finish();
+      if (!exited) {
+        // Interrupted while waiting, so nothing would ever wait for the process.
+        process.destroy();
+      }
+      BuildTrace.recordProcess(getProcessName(command), start, watchdog.peakRssKb,
+          watchdog.cpuMillis, exitValue, watchdog.killReason);
+    }
+    if (watchdog.killReason != null) {
+      err.println("Killed " + getProcessName(command) + " because it " + watchdog.killReason);
+      return exitValue == 0 ? -1 : exitValue;
+    }
+    return exitValue;
+  }
+
+  private static void awaitReader(Future<?> reader) throws InterruptedException {
+    if (reader == null) {
+      return;
+    }
+    try {
+      reader.get();
+    } catch (ExecutionException e) {
+      LOG.log(Level.WARNING, "____I/O Redirection failure: ", e.getCause());
+    }
+  }
+
   /**
    * Executes a command in a command shell.
    *
@@ -101,6 +379,22 @@ public final class Execution {
    */
   public static boolean execute(File workingDir, String[] command, PrintStream out,
       PrintStream err) {
+    return execute(workingDir, command, out, err, null);
+  }
+
+  /**
+   * Executes a command in a command shell, killing it if it exceeds the limits of the given
+   * build stage.
+   *
+   * @param workingDir  working directory for the command
+   * @param command  command to execute and its arguments
+   * @param out  standard output stream to redirect to
+   * @param err  standard error stream to redirect to
+   * @param stage  the build stage that runs the command, or {@code null} for no limits
+   * @return  {@code true} if the command succeeds, {@code false} otherwise
+   */
+  static boolean execute(File workingDir, String[] command, PrintStream out, PrintStream err,
+      BuildPipeline.Stage stage) {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
     if (System.getProperty("os.name").startsWith("Windows")){
     	for(int i =0; i < command.length; i++){
@@ -108,10 +402,10 @@ public final class Execution {
     	}
     }
     try {
-      Process process = Runtime.getRuntime().exec(command, null, workingDir);
-      new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
-      new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      return run(workingDir, command, out, err, stage) == 0;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
@@ -130,17 +424,47 @@ public final class Execution {
    */
   public static int execute(File workingDir, String[] command, StringBuffer out,
       StringBuffer err) throws IOException {
+    return execute(workingDir, command, out, err, null);
+  }
+
+  /**
+   * Executes a command, redirects standard output and standard error to string buffers, and
+   * returns the process's exit code. The command is killed if it exceeds the limits of the given
+   * build stage. Only the last {@link #MAX_CAPTURED_OUTPUT_BYTES} of each stream are kept. The
+   * standard output is the result of the command, so a command that writes more than that fails.
+   *
+   * @param workingDir  working directory for the command
+   * @param command  command to execute and its arguments
+   * @param out  standard output stream to redirect to
+   * @param err  standard error stream to redirect to
+   * @param stage  the build stage that runs the command, or {@code null} for no limits
+   * @return  the exit code of the process
+   */
+  static int execute(File workingDir, String[] command, StringBuffer out, StringBuffer err,
+      BuildPipeline.Stage stage) throws IOException {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
-    Process process = Runtime.getRuntime().exec(command, null, workingDir);
-    Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
-    Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
+    RingBufferOutputStream outBuffer = new RingBufferOutputStream(MAX_CAPTURED_OUTPUT_BYTES);
+    RingBufferOutputStream errBuffer = new RingBufferOutputStream(MAX_CAPTURED_OUTPUT_BYTES);
+    int exitValue = -1;
     try {
-      process.waitFor();
-      outThread.join();
-      errThread.join();
+      exitValue = run(workingDir, command, new PrintStream(outBuffer),
+          new PrintStream(errBuffer), stage);
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
-    return process.exitValue();
+    if (errBuffer.getDroppedBytes() > 0) {
+      LOG.warning(getProcessName(command) + " wrote more error output than is kept, "
+          + errBuffer.getDroppedBytes() + " bytes were dropped");
+    }
+    out.append(outBuffer.toString());
+    err.append(errBuffer.toString());
+    if (outBuffer.getDroppedBytes() > 0) {
+      LOG.warning(getProcessName(command) + " wrote more output than is kept, "
+          + outBuffer.getDroppedBytes() + " bytes were dropped");
+      err.append("\n" + getProcessName(command) + " wrote more than "
+          + MAX_CAPTURED_OUTPUT_BYTES + " bytes of output\n");
+      return exitValue == 0 ? -1 : exitValue;
+    }
+    return exitValue;
   }
 }
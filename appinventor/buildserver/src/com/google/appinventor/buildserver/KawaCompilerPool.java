@@ -0,0 +1,379 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of long-lived Kawa compiler processes.
+ *
+ * <p>Starting a JVM, loading the Kawa runtime and loading runtime.scm takes several seconds and
+ * used to be paid by every build. Each worker (see {@link KawaCompilerWorker}) pays it once and
+ * then compiles one build at a time. Workers are only reused for builds with exactly the same
+ * class path and heap size, and are retired after a number of builds or once the heap they retain
+ * grows too large. Each compilation is held to the limits of the Kawa build stage, and a worker
+ * that exceeds them is killed.</p>
+ *
+ * <p>The pool is disabled until {@link #setMaxIdleWorkers} is called with a positive number.</p>
+ */
+final class KawaCompilerPool {
+
+  /**
+   * The outcome of a compilation by a worker.
+   */
+  enum Outcome {
+    // Kawa compiled the sources.
+    SUCCEEDED,
+    // Kawa reported compile errors, or the worker was killed for exceeding the stage limits. A
+    // separate Kawa process would fail the same way.
+    FAILED,
+    // The worker crashed, so the sources still need to be compiled.
+    UNAVAILABLE
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  // The maximum number of idle workers to keep around. 0 means that the pool is disabled.
+  private static volatile int maxIdleWorkers = 0;
+
+  // The number of builds after which a worker is retired.
+  private static volatile int maxBuildsPerWorker = 25;
+
+  // The percentage of its maximum heap that a worker may retain before it is retired.
+  private static volatile int maxRetainedHeapPercent = 75;
+
+  // Idle workers, most recently used first.
+  private static final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+
+  private static final AtomicInteger startedWorkers = new AtomicInteger(0);
+  private static final AtomicInteger retiredWorkers = new AtomicInteger(0);
+  private static final AtomicInteger workerCompilations = new AtomicInteger(0);
+
+  /*
+   * The build server side of a KawaCompilerWorker process.
+   */
+  private static final class Worker {
+    // Marks the end of the worker's standard error.
+    private static final String EOF = new String("EOF");
+
+    private final String key;
+    private final int maxHeapMb;
+    private final Process process;
+    private final Writer stdin;
+    private final BufferedReader stdout;
+    private final BlockingQueue<String> stderrLines = new LinkedBlockingQueue<String>();
+    private int builds = 0;
+    private boolean alive = true;
+
+    Worker(String key, String classpath, int maxHeapMb, String yailRuntime) throws IOException {
+      this.key = key;
+      this.maxHeapMb = maxHeapMb;
+      List<String> command = Lists.newArrayList(
+          System.getProperty("java.home") + "/bin/java",
+          "-Dfile.encoding=UTF-8");
+      if (Execution.requiresSecurityManagerOptIn()) {
+        command.add("-Djava.security.manager=allow");
+      }
+      Collections.addAll(command,
+          "-mx" + maxHeapMb + "M",
+          "-cp", classpath,
+          KawaCompilerWorker.class.getName(),
+          yailRuntime);
+      process = new ProcessBuilder(command).start();
+      stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), "UTF-8"));
+      stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+      Thread stderrReader = new Thread("Kawa worker stderr") {
+        @Override
+        public void run() {
+          try {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getErrorStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+              stderrLines.add(line);
+            }
+          } catch (IOException e) {
+            // The worker is gone. Treated the same as the end of the stream.
+          } finally {
+            stderrLines.add(EOF);
+          }
+        }
+      };
+      stderrReader.setDaemon(true);
+      stderrReader.start();
+
+      // Wait until the worker has loaded runtime.scm.
+      Execution.Watchdog watchdog = Execution.watch(process, BuildPipeline.Stage.KAWA);
+      String line;
+      try {
+        line = readReply(System.out);
+      } finally {
+        watchdog.finish();
+      }
+      if (!KawaCompilerWorker.READY.equals(line)) {
+        copyMessages(null);
+        destroy();
+        throw new IOException("Kawa compiler worker failed to start");
+      }
+      copyMessages(null);
+      startedWorkers.incrementAndGet();
+    }
+
+    /*
+     * Sends one compile request to the worker and copies the compiler messages to err.
+     */
+    Outcome compile(List<String> kawaArgs, PrintStream err) {
+      builds++;
+      Execution.Watchdog watchdog = Execution.watch(process, BuildPipeline.Stage.KAWA);
+      try {
+        stdin.write(KawaCompilerWorker.COMPILE + " " + kawaArgs.size() + "\n");
+        for (String arg : kawaArgs) {
+          stdin.write(arg + "\n");
+        }
+        stdin.flush();
+        String reply;
+        try {
+          reply = readReply(System.out);
+        } finally {
+          watchdog.finish();
+        }
+        copyMessages(err);
+        if (watchdog.getKillReason() != null) {
+          err.println("Killed the Kawa compiler worker because it " + watchdog.getKillReason());
+          alive = false;
+          return Outcome.FAILED;
+        }
+        if (reply == null) {
+          LOG.warning("Kawa compiler worker exited unexpectedly");
+          alive = false;
+          return Outcome.UNAVAILABLE;
+        }
+        String[] parts = reply.split(" ");
+        long retainedHeapBytes = Long.parseLong(parts[2]);
+        if (retainedHeapBytes * 100 > (long) maxHeapMb * 1024 * 1024 * maxRetainedHeapPercent) {
+          LOG.info("Retiring Kawa compiler worker, retained heap = " + retainedHeapBytes);
+          alive = false;
+        }
+        return Integer.parseInt(parts[1]) == KawaCompilerWorker.STATUS_OK
+            ? Outcome.SUCCEEDED : Outcome.FAILED;
+      } catch (IOException e) {
+        watchdog.finish();
+        LOG.log(Level.WARNING, "Kawa compiler worker failure", e);
+        copyMessages(err);
+        alive = false;
+        if (watchdog.getKillReason() != null) {
+          err.println("Killed the Kawa compiler worker because it " + watchdog.getKillReason());
+          return Outcome.FAILED;
+        }
+        return Outcome.UNAVAILABLE;
+      }
+    }
+
+    /*
+     * Reads the worker's standard output up to the next reply, forwarding everything else to out.
+     * Returns null if the worker has exited.
+     */
+    private String readReply(PrintStream out) throws IOException {
+      String line;
+      while ((line = stdout.readLine()) != null) {
+        if (line.equals(KawaCompilerWorker.READY) ||
+            line.startsWith(KawaCompilerWorker.DONE + " ")) {
+          return line;
+        }
+        out.println(line);
+      }
+      return null;
+    }
+
+    /*
+     * Copies the worker's standard error up to the end of the current request to err, or drops it
+     * if err is null.
+     */
+    private void copyMessages(PrintStream err) {
+      try {
+        String line;
+        while ((line = stderrLines.take()) != EOF) {
+          if (line.equals(KawaCompilerWorker.END_OF_OUTPUT)) {
+            return;
+          }
+          if (err != null) {
+            err.println(line);
+          }
+        }
+        // Leave the marker for anyone else who reads the stream after it has ended.
+        stderrLines.add(EOF);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    boolean isReusable() {
+      return alive && builds < maxBuildsPerWorker;
+    }
+
+    void destroy() {
+      alive = false;
+      try {
+        stdin.close();
+      } catch (IOException e) {
+        // The process is going away anyway.
+      }
+      process.destroy();
+    }
+  }
+
+  private KawaCompilerPool() {
+  }
+
+  /**
+   * Sets the maximum number of idle workers kept between builds. 0 disables the pool.
+   */
+  static void setMaxIdleWorkers(int max) {
+    maxIdleWorkers = max;
+    if (max == 0) {
+      shutdown();
+    }
+  }
+
+  /**
+   * Sets the number of builds after which a worker is replaced by a new one.
+   */
+  static void setMaxBuildsPerWorker(int max) {
+    maxBuildsPerWorker = max;
+  }
+
+  /**
+   * Sets the percentage of its maximum heap that a worker may retain after garbage collection
+   * before it is replaced by a new one.
+   */
+  static void setMaxRetainedHeapPercent(int percent) {
+    maxRetainedHeapPercent = percent;
+  }
+
+  static boolean isEnabled() {
+    return maxIdleWorkers > 0;
+  }
+
+  /**
+   * Compiles with a warm Kawa worker. This is equivalent to running
+   * {@code java -mx<maxHeapMb>M -cp <classpath> kawa.repl -f <yailRuntime> <kawaArgs>}.
+   *
+   * @param classpath  the class path of the Kawa compiler
+   * @param maxHeapMb  the maximum heap of the Kawa compiler, in MB
+   * @param yailRuntime  the path of runtime.scm
+   * @param kawaArgs  the arguments that follow {@code -f <yailRuntime>} on the Kawa command line
+   * @param err  stream where the compiler messages are written
+   * @return  whether the compilation succeeded, failed, or must be done another way because the
+   *     worker crashed
+   * @throws IOException  if no worker could be started
+   */
+  static Outcome compile(String classpath, int maxHeapMb, String yailRuntime,
+                         List<String> kawaArgs, PrintStream err) throws IOException {
+    String key = maxHeapMb + File.pathSeparator + yailRuntime + File.pathSeparator + classpath;
+    Worker worker = takeIdleWorker(key);
+    if (worker == null) {
+      worker = new Worker(key, getWorkerClasspath() + File.pathSeparator + classpath,
+          maxHeapMb, yailRuntime);
+    }
+    workerCompilations.incrementAndGet();
+    Outcome outcome = Outcome.UNAVAILABLE;
+    try {
+      outcome = worker.compile(kawaArgs, err);
+    } finally {
+      returnWorker(worker);
+    }
+    return outcome;
+  }
+
+  private static Worker takeIdleWorker(String key) {
+    synchronized (idleWorkers) {
+      for (Iterator<Worker> it = idleWorkers.iterator(); it.hasNext(); ) {
+        Worker worker = it.next();
+        if (worker.key.equals(key)) {
+          it.remove();
+          return worker;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static void returnWorker(Worker worker) {
+    Worker evicted = null;
+    if (worker.isReusable() && isEnabled()) {
+      synchronized (idleWorkers) {
+        idleWorkers.addFirst(worker);
+        if (idleWorkers.size() > maxIdleWorkers) {
+          evicted = idleWorkers.removeLast();
+        }
+      }
+    } else {
+      evicted = worker;
+    }
+    if (evicted != null) {
+      retiredWorkers.incrementAndGet();
+      evicted.destroy();
+    }
+  }
+
+  /**
+   * Stops all idle workers.
+   */
+  static void shutdown() {
+    synchronized (idleWorkers) {
+      for (Worker worker : idleWorkers) {
+        worker.destroy();
+      }
+      idleWorkers.clear();
+    }
+  }
+
+  /*
+   * Returns the class path entry that contains KawaCompilerWorker, which is BuildServer.jar when
+   * running in the build server.
+   */
+  private static String getWorkerClasspath() throws IOException {
+    try {
+      return new File(KawaCompilerWorker.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (Exception e) {
+      throw new IOException("Unable to locate " + KawaCompilerWorker.class.getName(), e);
+    }
+  }
+
+  /**
+   * Adds the pool statistics to the given map of variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    variables.put("kawa-worker-pool-maximum-idle", maxIdleWorkers + "");
+    synchronized (idleWorkers) {
+      variables.put("kawa-worker-pool-idle", idleWorkers.size() + "");
+    }
+    variables.put("kawa-worker-pool-started", startedWorkers.get() + "");
+    variables.put("kawa-worker-pool-retired", retiredWorkers.get() + "");
+    variables.put("kawa-worker-pool-compilations", workerCompilations.get() + "");
+  }
+}
@@ -0,0 +1,163 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.Flushable;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.Permission;
+
+/**
+ * Main entry point of a long-lived Kawa compiler process, see {@link KawaCompilerPool}.
+ *
+ * <p>The worker loads the YAIL runtime once, at startup, and then compiles one request at a time.
+ * It talks to the build server over its standard streams:</p>
+ * <ul>
+ * <li>Standard input carries the requests. A request is a line {@code COMPILE <n>} followed by
+ *     the n arguments to pass to Kawa, one per line.</li>
+ * <li>Standard output carries {@link #READY} once the runtime is loaded, and a line
+ *     {@code DONE <status> <retained heap bytes>} after each request. Any other line is output
+ *     written by Kawa.</li>
+ * <li>Standard error carries the compiler messages, exactly as a {@code kawa.repl} process would
+ *     write them. Each request's messages end with a {@link #END_OF_OUTPUT} line.</li>
+ * </ul>
+ *
+ * <p>Kawa exits the process when a source file has compile errors. The worker traps the exit and
+ * replies with {@link #STATUS_FAILED} instead, so that it can go on compiling. A worker that
+ * does exit has crashed.</p>
+ *
+ * <p>This class runs with the Kawa compiler's class path, so it must only depend on the JDK. Kawa
+ * itself is not on the build server's class path and is called through reflection.</p>
+ */
+public final class KawaCompilerWorker {
+  static final String READY = "KAWA-WORKER-READY";
+  static final String COMPILE = "COMPILE";
+  static final String DONE = "KAWA-WORKER-DONE";
+  static final String END_OF_OUTPUT = "KAWA-WORKER-END-OF-OUTPUT";
+
+  static final int STATUS_OK = 0;
+  static final int STATUS_FAILED = 1;
+
+  // gnu.mapping.OutPort.errDefault(), where Kawa writes its messages.
+  private static Method errDefault;
+
+  /*
+   * Thrown in place of exiting the JVM.
+   */
+  private static class ExitTrappedException extends SecurityException {
+    private final int status;
+
+    ExitTrappedException(int status) {
+      this.status = status;
+    }
+  }
+
+  private KawaCompilerWorker() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of runtime.scm
+   */
+  public static void main(String[] args) throws Exception {
+    PrintStream out = System.out;
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+
+    Method processArgs = Class.forName("kawa.repl")
+        .getMethod("processArgs", String[].class, int.class, int.class);
+    Object moduleManager = Class.forName("gnu.expr.ModuleManager")
+        .getMethod("getInstance").invoke(null);
+    Method clearModules = moduleManager.getClass().getMethod("clear");
+    errDefault = Class.forName("gnu.mapping.OutPort").getMethod("errDefault");
+
+    System.setSecurityManager(new SecurityManager() {
+      @Override
+      public void checkPermission(Permission perm) {
+        // Everything is allowed, except exiting.
+      }
+
+      @Override
+      public void checkPermission(Permission perm, Object context) {
+      }
+
+      @Override
+      public void checkExit(int status) {
+        throw new ExitTrappedException(status);
+      }
+    });
+
+    processArgs.invoke(null, new String[] { "-f", args[0] }, 0, 2);
+    endOfOutput();
+    out.println(READY);
+    out.flush();
+
+    String request;
+    while ((request = in.readLine()) != null) {
+      if (!request.startsWith(COMPILE + " ")) {
+        continue;
+      }
+      int count = Integer.parseInt(request.substring(COMPILE.length() + 1).trim());
+      String[] kawaArgs = new String[count];
+      for (int i = 0; i < count; i++) {
+        kawaArgs[i] = in.readLine();
+      }
+
+      int status = STATUS_OK;
+      try {
+        // Forget the modules compiled for earlier builds, so that every module (including the
+        // runtime) is written to this build's classes directory.
+        clearModules.invoke(moduleManager);
+        processArgs.invoke(null, kawaArgs, 0, kawaArgs.length);
+      } catch (InvocationTargetException e) {
+        if (e.getCause() instanceof ExitTrappedException) {
+          // Kawa has already written the compile errors.
+          status = ((ExitTrappedException) e.getCause()).status == 0 ? STATUS_OK : STATUS_FAILED;
+        } else {
+          e.getCause().printStackTrace();
+          status = STATUS_FAILED;
+        }
+      } catch (Throwable e) {
+        e.printStackTrace();
+        status = STATUS_FAILED;
+      }
+      endOfOutput();
+      out.println(DONE + " " + status + " " + getRetainedHeapBytes());
+      out.flush();
+    }
+  }
+
+  private static void endOfOutput() throws Exception {
+    System.out.flush();
+    ((Flushable) errDefault.invoke(null)).flush();
+    System.err.println(END_OF_OUTPUT);
+    System.err.flush();
+  }
+
+  /*
+   * Returns the heap that was still in use after the most recent garbage collection, which is a
+   * good measure of how much the worker has accumulated without having to force a collection.
+   */
+  private static long getRetainedHeapBytes() {
+    long retained = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        MemoryUsage usage = pool.getCollectionUsage();
+        if (usage != null) {
+          retained += usage.getUsed();
+        }
+      }
+    }
+    return retained;
+  }
+}
@@ -0,0 +1,81 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The most recent latencies of some operation, for reporting percentiles on /buildserver/vars.
+ *
+ * <p>Only a fixed number of samples is kept, so the percentiles describe recent behavior rather
+ * than everything since the build server started.</p>
+ */
+final class LatencySamples {
+  private static final int DEFAULT_CAPACITY = 1000;
+
+  private final long[] samples;
+  private int count = 0;  // The number of samples recorded, capped at samples.length.
+  private int next = 0;   // Where the next sample goes.
+  private long total = 0; // The sum of the samples currently kept.
+
+  LatencySamples() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  LatencySamples(int capacity) {
+    samples = new long[capacity];
+  }
+
+  synchronized void record(long millis) {
+    if (count == samples.length) {
+      total -= samples[next];
+    } else {
+      count++;
+    }
+    samples[next] = millis;
+    total += millis;
+    next = (next + 1) % samples.length;
+  }
+
+  /**
+   * Returns the number of samples kept.
+   */
+  synchronized int getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the average of the samples kept, or 0 if there are none.
+   */
+  synchronized long getAverage() {
+    return count == 0 ? 0 : total / count;
+  }
+
+  /**
+   * Returns the smallest sample that is greater than or equal to the given percentage of the
+   * samples kept, or 0 if there are none.
+   */
+  synchronized long getPercentile(int percent) {
+    if (count == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percent / 100.0 * count) - 1;
+    return sorted[Math.max(0, Math.min(index, count - 1))];
+  }
+
+  /**
+   * Adds the 50th, 95th and 99th percentiles to the given map of variables, named
+   * {@code <prefix>-p50} and so on.
+   */
+  void addVariables(Map<String, String> variables, String prefix) {
+    for (int percent : new int[] { 50, 95, 99 }) {
+      variables.put(prefix + "-p" + percent, getPercentile(percent) + "");
+    }
+  }
+}
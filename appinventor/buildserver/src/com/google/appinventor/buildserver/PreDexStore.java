@@ -0,0 +1,226 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+/**
+ * The store of pre-dexed libraries shared by all builds, kept in the directory given by
+ * --dexCacheDir.
+ *
+ * <p>A pre-dexed library is named after the MD5 hash of the library, so the same jar is only
+ * dexed once, whatever its path. Libraries that are already in the store are used without any
+ * locking. A missing library is dexed while holding one of a fixed number of locks, picked by the
+ * library's name, into a temporary file that is then renamed into place, so builds never see a
+ * partial file and builds that need different libraries rarely wait for each other.</p>
+ *
+ * <p>The store can be bounded in size, in which case the least recently used libraries are
+ * deleted. A library that was used recently is never deleted, because a build may be about to
+ * pass it to dx.</p>
+ */
+final class PreDexStore {
+
+  /**
+   * Runs dx on a single library.
+   */
+  interface Dexer {
+    boolean dex(File input, File output);
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(PreDexStore.class.getName());
+
+  private static final String PREFIX = "dex-cached-";
+  private static final String SUFFIX = ".jar";
+
+  // Pre-dexed libraries used within this time are never evicted.
+  private static final long EVICTION_GRACE_MILLIS = 10 * 60 * 1000;
+
+  // The number of library hashes remembered. Extension libraries have a different path in every
+  // build, so the hashes are forgotten from time to time.
+  private static final int MAX_REMEMBERED_HASHES = 1000;
+
+  // The maximum size of the store. 0 means unlimited.
+  private static volatile long maxBytes = 0;
+
+  // The hashes of the libraries that have been seen before, by absolute path.
+  private static final ConcurrentMap<String, HashedFile> hashes =
+      new ConcurrentHashMap<String, HashedFile>();
+
+  // The number of locks that libraries being dexed are spread over.
+  private static final int LOCK_STRIPES = 64;
+
+  // Held while a library is being dexed, by path of the pre-dexed library. A fixed number of
+  // locks is shared by all libraries, so that no lock is left behind for each library ever dexed.
+  private static final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+  private static final AtomicInteger hits = new AtomicInteger(0);
+  private static final AtomicInteger misses = new AtomicInteger(0);
+  private static final AtomicInteger failures = new AtomicInteger(0);
+  private static final AtomicInteger evictions = new AtomicInteger(0);
+
+  /*
+   * The hash of a file, valid as long as the file's length and modification time don't change.
+   */
+  private static final class HashedFile {
+    final long length;
+    final long lastModified;
+    final String hash;
+
+    HashedFile(long length, long lastModified, String hash) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+
+  private PreDexStore() {
+  }
+
+  /**
+   * Sets the maximum size of the store, in bytes. 0 means unlimited.
+   */
+  static void setMaxSizeBytes(long max) {
+    maxBytes = max;
+  }
+
+  /**
+   * Returns the pre-dexed form of a library, running the dexer first if the store doesn't have it
+   * yet.
+   *
+   * @param storeDir  the directory of the store
+   * @param input  the library
+   * @param dexer  runs dx on the library
+   * @return  the pre-dexed library, or {@code null} if dx fails
+   */
+  static File getPreDexed(File storeDir, File input, Dexer dexer) throws IOException {
+    File dexedLib = new File(storeDir, PREFIX + getHashFor(input) + SUFFIX);
+    if (dexedLib.isFile()) {
+      hits.incrementAndGet();
+      System.out.println(String.format("Using Pre-Dexed %1$s <- %2$s",
+          dexedLib.getName(), input.getAbsolutePath()));
+      dexedLib.setLastModified(System.currentTimeMillis());
+      return dexedLib;
+    }
+
+    Lock lock = locks.get(dexedLib.getPath());
+    lock.lock();
+    try {
+      if (dexedLib.isFile()) {
+        // Another build dexed the library while we were waiting.
+        hits.incrementAndGet();
+        return dexedLib;
+      }
+      misses.incrementAndGet();
+      System.out.println(String.format("Pre-Dexing %1$s -> %2$s",
+          input.getAbsolutePath(), dexedLib.getName()));
+      File tmpLib = new File(storeDir, dexedLib.getName() + "." +
+          Thread.currentThread().getId() + ".tmp");
+      try {
+        if (!dexer.dex(input, tmpLib) || !tmpLib.renameTo(dexedLib)) {
+          failures.incrementAndGet();
+          return null;
+        }
+      } finally {
+        tmpLib.delete();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (maxBytes > 0) {
+      evict(storeDir, maxBytes);
+    }
+    return dexedLib;
+  }
+
+  /**
+   * Deletes the least recently used pre-dexed libraries until the store is no larger than
+   * maxSizeBytes, except for libraries used within the last few minutes.
+   *
+   * @return  the number of libraries deleted
+   */
+  static synchronized int evict(File storeDir, long maxSizeBytes) {
+    File[] dexedLibs = storeDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+      }
+    });
+    if (dexedLibs == null) {
+      return 0;
+    }
+    long totalBytes = 0;
+    for (File dexedLib : dexedLibs) {
+      totalBytes += dexedLib.length();
+    }
+    Arrays.sort(dexedLibs, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+      }
+    });
+    long cutoff = System.currentTimeMillis() - EVICTION_GRACE_MILLIS;
+    int evicted = 0;
+    for (File dexedLib : dexedLibs) {
+      if (totalBytes <= maxSizeBytes || dexedLib.lastModified() > cutoff) {
+        break;
+      }
+      long length = dexedLib.length();
+      if (dexedLib.delete()) {
+        LOG.info("Evicted pre-dexed library " + dexedLib.getName());
+        totalBytes -= length;
+        evicted++;
+      }
+    }
+    evictions.addAndGet(evicted);
+    return evicted;
+  }
+
+  /*
+   * Returns the MD5 hash of a library. The runtime libraries are hashed once per build server
+   * instead of once per build, because their temporary files don't change.
+   */
+  private static String getHashFor(File input) throws IOException {
+    String path = input.getAbsolutePath();
+    long length = input.length();
+    long lastModified = input.lastModified();
+    HashedFile hashed = hashes.get(path);
+    if (hashed == null || hashed.length != length || hashed.lastModified != lastModified) {
+      hashed = new HashedFile(length, lastModified,
+          Files.hash(input, Hashing.md5()).toString());
+      if (hashes.size() >= MAX_REMEMBERED_HASHES) {
+        hashes.clear();
+      }
+      hashes.put(path, hashed);
+    }
+    return hashed.hash;
+  }
+
+  /**
+   * Adds the store statistics to the given map of variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    variables.put("pre-dex-maximum-size-bytes", maxBytes + "");
+    variables.put("pre-dex-hits", hits.get() + "");
+    variables.put("pre-dex-misses", misses.get() + "");
+    variables.put("pre-dex-failures", failures.get() + "");
+    variables.put("pre-dex-evictions", evictions.get() + "");
+  }
+}
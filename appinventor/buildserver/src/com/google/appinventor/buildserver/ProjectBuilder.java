@@ -13,21 +13,21 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
-import com.google.common.io.InputSupplier;
-import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -35,11 +35,17 @@ import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FileUtils;
 
@@ -53,6 +59,20 @@ public final class ProjectBuilder {
   private File outputApk;
   private File outputKeystore;
   private boolean saveKeystore;
+  private BuildProgress buildProgress;
+
+  // Generates the YAIL for the screens of a project in parallel. The number of generations that
+  // actually run at the same time is limited by BuildPipeline.Stage.YAIL_GENERATION.
+  private static final ExecutorService YAIL_GENERATION_EXECUTOR = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("yail-generation-%d").build());
+
+  // Extracts the files of a project from a zip that is already on disk in parallel.
+  private static final ExecutorService EXTRACT_EXECUTOR = Executors.newFixedThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors()),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("extract-%d").build());
+
+  // The most bytes written by a single transfer when extracting a file.
+  private static final long EXTRACT_CHUNK_SIZE = 1024 * 1024;
 
   // Logging support
   private static final Logger LOG = Logger.getLogger(ProjectBuilder.class.getName());
@@ -75,9 +95,6 @@ public final class ProjectBuilder {
   private static final String CODEBLOCKS_SOURCE_EXTENSION =
       YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION;
 
-  private static final String ALL_COMPONENT_TYPES =
-      Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
-
   public File getOutputApk() {
     return outputApk;
   }
@@ -87,8 +104,16 @@ public final class ProjectBuilder {
   }
 
   /**
-   * Creates a new directory beneath the system's temporary directory (as
-   * defined by the {@code java.io.tmpdir} system property), and returns its
+   * Sets where the stages of the next build are recorded.
+   */
+  void setBuildProgress(BuildProgress buildProgress) {
+    this.buildProgress = buildProgress;
+  }
+
+  /**
+   * Creates a new directory beneath the build workspace directory, or the
+   * system's temporary directory (as defined by the {@code java.io.tmpdir}
+   * system property) if there is none or it is full, and returns its
    * name. The name of the directory will contain the current time (in millis),
    * and a random number.
    *
@@ -99,8 +124,8 @@ public final class ProjectBuilder {
    * @return the newly-created directory
    * @throws IllegalStateException if the directory could not be created
    */
-  private static File createNewTempDir() {
-    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+  static File createNewTempDir() {
+    File baseDir = BuildWorkspace.getBuildsDir();
     String baseNamePrefix = System.currentTimeMillis() + "_" + Math.random() + "-";
 
     final int TEMP_DIR_ATTEMPTS = 10000;
@@ -120,21 +145,40 @@ public final class ProjectBuilder {
 
   Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
                int childProcessRam, String dexCachePath) {
+    // Download project files into a temporary directory
+    File projectRoot = createNewTempDir();
+    List<String> sourceFiles;
+    try {
+      sourceFiles = extractProjectFiles(inputZip, projectRoot);
+    } catch (IOException e) {
+      LOG.severe("unexpected problem extracting project file from zip");
+      FileUtils.deleteQuietly(projectRoot);
+      return Result.createFailingResult("", "Problems processing zip file.");
+    }
+    return build(userName, projectRoot, sourceFiles, outputDir, isForCompanion, childProcessRam,
+        dexCachePath);
+  }
+
+  /**
+   * Builds a project whose files have already been extracted, for example by
+   * {@link #extractProjectFiles(ZipInputStream, File)} while the request was arriving.
+   * The project root is deleted when the build is done.
+   */
+  Result build(String userName, File projectRoot, List<String> sourceFiles, File outputDir,
+               boolean isForCompanion, int childProcessRam, String dexCachePath) {
     try {
-      // Download project files into a temporary directory
-      File projectRoot = createNewTempDir();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
-        List<String> sourceFiles;
-        try {
-          sourceFiles = extractProjectFiles(inputZip, projectRoot);
-        } catch (IOException e) {
-          LOG.severe("unexpected problem extracting project file from zip");
-          return Result.createFailingResult("", "Problems processing zip file.");
-        }
-
         try {
-          genYailFilesIfNecessary(sourceFiles);
+          if (buildProgress != null) {
+            buildProgress.update("Generating YAIL", 10);
+          }
+          BuildTrace.Span span = BuildTrace.start(BuildTrace.YAIL_GENERATION);
+          try {
+            genYailFilesIfNecessary(sourceFiles, span);
+          } finally {
+            span.end();
+          }
         } catch (YailGenerationException e) {
           // Note that we're using a special result code here for the case of a Yail gen error.
           return new Result(Result.YAIL_GENERATION_ERROR, "", e.getMessage(), e.getFormName());
@@ -169,7 +213,7 @@ public final class ProjectBuilder {
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+                             keyStorePath, childProcessRam, dexCachePath, buildProgress);
         console.close();
         userErrors.close();
 
@@ -208,7 +252,12 @@ public final class ProjectBuilder {
     }
   }
 
-  private void genYailFilesIfNecessary(List<String> sourceFiles)
+  /*
+   * Generates the missing .yail files. The screens are generated in parallel; if several fail,
+   * the first one (in the order of sourceFiles) is reported. The time each screen took is added
+   * to the given span.
+   */
+  private void genYailFilesIfNecessary(List<String> sourceFiles, final BuildTrace.Span span)
       throws IOException, YailGenerationException {
     // Filter out the files that aren't really source files (i.e. that don't end in .scm or .yail)
     Collection<String> formAndYailSourceFiles = Collections2.filter(
@@ -219,55 +268,158 @@ public final class ProjectBuilder {
             return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
           }
         });
+    List<Future<File>> generations = Lists.newArrayList();
     for (String sourceFile : formAndYailSourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
-        String rootPath = sourceFile.substring(0, sourceFile.length()
+        final String rootPath = sourceFile.substring(0, sourceFile.length()
                                                   - FORM_PROPERTIES_EXTENSION.length());
         String yailFilePath = rootPath + YAIL_EXTENSION;
         // Note: Famous last words: The following contains() makes this method O(n**2) but n should
         // be pretty small.
         if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+          generations.add(YAIL_GENERATION_EXECUTOR.submit(BuildTrace.propagate(
+              new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                  return generateYail(rootPath, span);
+                }
+              })));
         }
       }
     }
+    try {
+      for (Future<File> generation : generations) {
+        try {
+          generation.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof YailGenerationException) {
+            throw (YailGenerationException) cause;
+          } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while generating YAIL", e);
+    } finally {
+      // Don't leave generations running after the build has given up.
+      for (Future<File> generation : generations) {
+        generation.cancel(false);
+      }
+    }
   }
 
-  private static Set<String> getAllComponentTypes() throws IOException {
-    Set<String> compSet = Sets.newHashSet();
-    String[] components = Resources.toString(
-        ProjectBuilder.class.getResource(ALL_COMPONENT_TYPES), Charsets.UTF_8).split("\n");
-    for (String component : components) {
-      compSet.add(component);
-    }
-    return compSet;
+  private static Set<String> getAllComponentTypes() {
+    return Sets.newHashSet(ComponentCatalog.builtIn().getBuiltInTypes());
   }
 
-  private ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
+  private ArrayList<String> extractProjectFiles(final ZipFile inputZip, File projectRoot)
       throws IOException {
     ArrayList<String> projectFileNames = Lists.newArrayList();
+    List<Future<Long>> extractions = Lists.newArrayList();
     Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
     while (inputZipEnumeration.hasMoreElements()) {
-      ZipEntry zipEntry = inputZipEnumeration.nextElement();
-      final InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
+      final ZipEntry zipEntry = inputZipEnumeration.nextElement();
+      final File extractedFile = new File(projectRoot, zipEntry.getName());
+      extractions.add(EXTRACT_EXECUTOR.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws IOException {
+          Files.createParentDirs(extractedFile);
+          InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
+          try {
+            return extract(extractedInputStream, extractedFile);
+          } finally {
+            extractedInputStream.close();
+          }
+        }
+      }));
+      projectFileNames.add(extractedFile.getPath());
+    }
+    long bytes = 0;
+    try {
+      for (Future<Long> extraction : extractions) {
+        try {
+          bytes += extraction.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting the project", e);
+    } finally {
+      for (Future<Long> extraction : extractions) {
+        extraction.cancel(false);
+      }
+    }
+    LOG.info("extracted " + projectFileNames.size() + " files, " + bytes + " bytes, into "
+        + projectRoot.getAbsolutePath());
+    return projectFileNames;
+  }
+
+  /*
+   * Writes the rest of the stream to the file through a channel, and returns the number of bytes
+   * written.
+   */
+  private static long extract(InputStream in, File file) throws IOException {
+    ReadableByteChannel source = Channels.newChannel(in);
+    FileChannel target = new FileOutputStream(file).getChannel();
+    try {
+      long position = 0;
+      long transferred;
+      while ((transferred = target.transferFrom(source, position, EXTRACT_CHUNK_SIZE)) > 0) {
+        position += transferred;
+      }
+      return position;
+    } finally {
+      target.close();
+    }
+  }
+
+  /**
+   * Extracts the project files from a zip that is read as it arrives, so that the zip is never
+   * stored or held in memory as a whole.
+   *
+   * @return the paths of the extracted files
+   */
+  static List<String> extractProjectFiles(ZipInputStream inputZip, File projectRoot)
+      throws IOException {
+    List<String> projectFileNames = Lists.newArrayList();
+    long bytes = 0;
+    for (ZipEntry zipEntry = inputZip.getNextEntry(); zipEntry != null;
+         zipEntry = inputZip.getNextEntry()) {
       File extractedFile = new File(projectRoot, zipEntry.getName());
-      LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
-      Files.createParentDirs(extractedFile); // Do I need this?
-      Files.copy(
-          new InputSupplier<InputStream>() {
-            public InputStream getInput() throws IOException {
-              return extractedInputStream;
-            }
-          },
-          extractedFile);
+      Files.createParentDirs(extractedFile);
+      // The zip stream ends each entry, so the rest of the stream is this entry.
+      bytes += extract(inputZip, extractedFile);
       projectFileNames.add(extractedFile.getPath());
     }
+    LOG.info("extracted " + projectFileNames.size() + " files, " + bytes + " bytes, into "
+        + projectRoot.getAbsolutePath());
     return projectFileNames;
   }
 
+  /*
+   * Returns the types of the components used by the project. In ode code, component names are
+   * used to identify a component though the variables storing component names appear to be
+   * "type". While there's no harm in ode, here in build server, they need to be separated, so the
+   * names are mapped to types, aka fully qualified names, with the component catalog.
+   */
   private static Set<String> getComponentTypes(List<String> files, File assetsDir)
       throws IOException, JSONException {
-    Map<String, String> nameTypeMap = createNameTypeMap(assetsDir);
+    ComponentCatalog catalog = ComponentCatalog.builtIn()
+        .withExtensions(new File(assetsDir, "external_comps"));
 
     Set<String> componentTypes = Sets.newHashSet();
     for (String f : files) {
@@ -276,53 +428,13 @@ public final class ProjectBuilder {
         String scmContent = new String(Files.toByteArray(scmFile),
             PathUtil.DEFAULT_CHARSET);
         for (String compName : getTypesFromScm(scmContent)) {
-          componentTypes.add(nameTypeMap.get(compName));
+          componentTypes.add(catalog.getType(compName));
         }
       }
     }
     return componentTypes;
   }
 
-  /**
-   * In ode code, component names are used to identify a component though the
-   * variables storing component names appear to be "type". While there's no
-   * harm in ode, here in build server, they need to be separated.
-   * This method returns a name-type map, mapping the component names used in
-   * ode to the corresponding type, aka fully qualified name. The type will be
-   * used to build apk.
-   */
-  private static Map<String, String> createNameTypeMap(File assetsDir)
-      throws IOException, JSONException {
-    Map<String, String> nameTypeMap = Maps.newHashMap();
-
-    JSONArray simpleCompsJson = new JSONArray(Resources.toString(ProjectBuilder.
-        class.getResource("/files/simple_components.json"), Charsets.UTF_8));
-    for (int i = 0; i < simpleCompsJson.length(); ++i) {
-      JSONObject simpleCompJson = simpleCompsJson.getJSONObject(i);
-      nameTypeMap.put(simpleCompJson.getString("name"),
-          simpleCompJson.getString("type"));
-    }
-
-    File extCompsDir = new File(assetsDir, "external_comps");
-    if (!extCompsDir.exists()) {
-      return nameTypeMap;
-    }
-
-    for (File extCompDir : extCompsDir.listFiles()) {
-      if (!extCompDir.isDirectory()) {
-        continue;
-      }
-
-      File extCompJsonFile = new File (extCompDir, "component.json");
-      JSONObject extCompJson = new JSONObject(Resources.toString(
-          extCompJsonFile.toURI().toURL(), Charsets.UTF_8));
-      nameTypeMap.put(extCompJson.getString("name"),
-          extCompJson.getString("type"));
-    }
-
-    return nameTypeMap;
-  }
-
   static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
       throws IOException {
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
@@ -464,47 +576,86 @@ public final class ProjectBuilder {
     return new Project(projectRoot.getAbsolutePath() + "/" + PROJECT_PROPERTIES_FILE_NAME);
   }
 
-  private File generateYail(String rootName) throws IOException, YailGenerationException {
+  private File generateYail(String rootName, BuildTrace.Span span)
+      throws IOException, YailGenerationException {
     String formPropertiesPath = rootName + FORM_PROPERTIES_EXTENSION;
     String codeblocksSourcePath = rootName + CODEBLOCKS_SOURCE_EXTENSION;
     String yailPath = rootName + YAIL_EXTENSION;
+    String yailGeneratorJar =
+        Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar");
+    String formName = PathUtil.trimOffExtension(PathUtil.basename(formPropertiesPath));
 
-    String[] commandLine = {
-      System.getProperty("java.home") + "/bin/java",
-      "-mx1024M",
-      "-jar",
-      Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar"),
-      new File(formPropertiesPath).getAbsolutePath(),
-      new File(codeblocksSourcePath).getAbsolutePath(),
-      yailPath
-    };
     StringBuffer out = new StringBuffer();
     StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
+    int exitValue = 0;
+    long start = System.currentTimeMillis();
+    BuildPipeline.enter(BuildPipeline.Stage.YAIL_GENERATION);
+    try {
+      boolean generatedByWorker = false;
+      if (YailGeneratorPool.isEnabled()) {
+        try {
+          YailGeneratorPool.Generation generation = YailGeneratorPool.generate(yailGeneratorJar,
+              new File(formPropertiesPath).getAbsolutePath(),
+              new File(codeblocksSourcePath).getAbsolutePath(),
+              yailPath);
+          exitValue = generation.exitCode;
+          out.append(generation.out);
+          err.append(generation.err);
+          generatedByWorker = true;
+        } catch (IOException e) {
+          LOG.warning("YAIL generator worker failed for form " + formName +
+              ", generating with a separate process: " + e.getMessage());
+        }
+      }
+      if (!generatedByWorker) {
+        String[] commandLine = {
+          System.getProperty("java.home") + "/bin/java",
+          "-mx1024M",
+          "-jar",
+          yailGeneratorJar,
+          new File(formPropertiesPath).getAbsolutePath(),
+          new File(codeblocksSourcePath).getAbsolutePath(),
+          yailPath
+        };
+        exitValue = Execution.execute(null, commandLine, out, err,
+            BuildPipeline.Stage.YAIL_GENERATION);
+      }
+    } finally {
+      BuildPipeline.exit(BuildPipeline.Stage.YAIL_GENERATION);
+    }
+    long millis = System.currentTimeMillis() - start;
+    span.addPart(formName, millis);
+    YailGeneratorPool.recordScreenTime(millis);
+    LOG.info("YAIL generation time for " + formName + ": " + (millis / 1000.0) + " seconds");
+    return writeGeneratedYail(formName, yailPath, exitValue, out.toString(), err.toString());
+  }
+
+  /*
+   * Writes the YAIL that the generator printed for a screen, or throws for its exit value: 1 means
+   * that the screen can't be generated for legitimate reasons, such as empty sockets, and any
+   * other value is unexpected.
+   */
+  @VisibleForTesting
+  static File writeGeneratedYail(String formName, String yailPath, int exitValue, String out,
+      String err) throws IOException, YailGenerationException {
     if (exitValue == 0) {
-      String generatedYailString = out.toString();
       File generatedYailFile = new File(yailPath);
-      Files.write(generatedYailString, generatedYailFile, Charsets.UTF_8);
+      Files.write(out, generatedYailFile, Charsets.UTF_8);
       return generatedYailFile;
+    } else if (exitValue == 1) {
+      throw new YailGenerationException("Unable to generate code for " + formName + "."
+          + "\n -- err is " + err
+          + "\n -- out is" + out,
+          formName);
     } else {
-      String formName = PathUtil.trimOffExtension(PathUtil.basename(formPropertiesPath));
-      if (exitValue == 1) {
-        // Failed to generate yail for legitimate reasons, such as empty sockets.
-        throw new YailGenerationException("Unable to generate code for " + formName + "."
-            + "\n -- err is " + err.toString()
-            + "\n -- out is" + out.toString(),
-            formName);
-      } else {
-        // Any other exit value is unexpected.
-        throw new RuntimeException("YailGenerator for form " + formName
-            + " exited with code " + exitValue
-            + "\n -- err is " + err.toString()
-            + "\n -- out is" + out.toString());
-      }
+      throw new RuntimeException("YailGenerator for form " + formName
+          + " exited with code " + exitValue
+          + "\n -- err is " + err
+          + "\n -- out is" + out);
     }
   }
 
-  private static class YailGenerationException extends Exception {
+  static class YailGenerationException extends Exception {
     // The name of the form being built when an error occurred
     private final String formName;
 
@@ -520,8 +671,4 @@ public final class ProjectBuilder {
       return formName;
     }
   }
-
-  public int getProgress() {
-    return Compiler.getProgress();
-  }
 }
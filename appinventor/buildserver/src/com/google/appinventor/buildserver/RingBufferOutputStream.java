@@ -0,0 +1,114 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream that keeps only the last bytes written to it, so that the output of a chatty
+ * child process takes a bounded amount of memory. The end of the output is kept because that is
+ * where tools report why they failed.
+ *
+ * <p>The buffer starts small and grows with the output up to the capacity, since most processes
+ * write far less than the capacity.</p>
+ */
+final class RingBufferOutputStream extends OutputStream {
+
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+
+  private final int capacity;
+  // Shorter than the capacity until more than that has been written. Only wraps around once it
+  // has grown to the capacity.
+  private byte[] buffer;
+  // The total number of bytes written. The next byte goes to buffer[written % buffer.length].
+  private long written = 0;
+
+  /**
+   * Creates a stream that keeps the given number of bytes.
+   */
+  RingBufferOutputStream(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    buffer = new byte[Math.min(capacity, INITIAL_BUFFER_SIZE)];
+  }
+
+  @Override
+  public synchronized void write(int b) {
+    ensureRoom(1);
+    buffer[(int) (written % buffer.length)] = (byte) b;
+    written++;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) {
+    ensureRoom(len);
+    if (len >= buffer.length) {
+      // Only the end of b is kept.
+      off += len - buffer.length;
+      written += len - buffer.length;
+      len = buffer.length;
+    }
+    int start = (int) (written % buffer.length);
+    int first = Math.min(len, buffer.length - start);
+    System.arraycopy(b, off, buffer, start, first);
+    System.arraycopy(b, off + first, buffer, 0, len - first);
+    written += len;
+  }
+
+  /*
+   * Grows the buffer, if it is shorter than the capacity, so that the given number of bytes can
+   * be written without dropping any that could be kept.
+   */
+  private void ensureRoom(int len) {
+    if (buffer.length < capacity && written + len > buffer.length) {
+      long size = Math.max(written + len, 2L * buffer.length);
+      byte[] grown = new byte[(int) Math.min(capacity, size)];
+      System.arraycopy(buffer, 0, grown, 0, (int) written);
+      buffer = grown;
+    }
+  }
+
+  /**
+   * Returns the number of bytes written to the stream.
+   */
+  synchronized long getWrittenBytes() {
+    return written;
+  }
+
+  /**
+   * Returns the number of bytes that were written but are no longer kept.
+   */
+  synchronized long getDroppedBytes() {
+    return Math.max(0, written - capacity);
+  }
+
+  /**
+   * Returns the bytes that are kept, oldest first.
+   */
+  synchronized byte[] toByteArray() {
+    if (written <= buffer.length) {
+      byte[] bytes = new byte[(int) written];
+      System.arraycopy(buffer, 0, bytes, 0, bytes.length);
+      return bytes;
+    }
+    byte[] bytes = new byte[buffer.length];
+    int start = (int) (written % buffer.length);
+    System.arraycopy(buffer, start, bytes, 0, buffer.length - start);
+    System.arraycopy(buffer, 0, bytes, buffer.length - start, start);
+    return bytes;
+  }
+
+  /**
+   * Returns the bytes that are kept as a string in the platform's default charset. Whether any
+   * were dropped is up to the caller to report, see {@link #getDroppedBytes}.
+   */
+  @Override
+  public synchronized String toString() {
+    return new String(toByteArray());
+  }
+}
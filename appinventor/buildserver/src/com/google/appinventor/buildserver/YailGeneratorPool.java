@@ -0,0 +1,296 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A pool of long-lived YAIL generator processes.
+ *
+ * <p>Each worker (see {@link YailGeneratorWorker}) loads YailGenerator.jar once and then
+ * generates the YAIL for one screen at a time, so a project with many screens no longer pays for
+ * a JVM startup per screen. Several workers can run at once, one per screen being generated.
+ * Each screen is held to the limits of the YAIL generation build stage, and a worker that exceeds
+ * them is killed.</p>
+ *
+ * <p>The pool is disabled until {@link #setMaxIdleWorkers} is called with a positive number.</p>
+ */
+final class YailGeneratorPool {
+
+  /**
+   * The outcome of generating the YAIL for one screen, as the YailGenerator.jar process would
+   * have reported it.
+   */
+  static final class Generation {
+    final int exitCode;
+    final String out;
+    final String err;
+
+    Generation(int exitCode, String out, String err) {
+      this.exitCode = exitCode;
+      this.out = out;
+      this.err = err;
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(YailGeneratorPool.class.getName());
+
+  // Same as the -mx option used for a YailGenerator.jar process.
+  private static final int MAX_HEAP_MB = 1024;
+
+  // The maximum number of idle workers to keep around. 0 means that the pool is disabled.
+  private static volatile int maxIdleWorkers = 0;
+
+  // The number of screens after which a worker is retired.
+  private static volatile int maxScreensPerWorker = 100;
+
+  private static final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+
+  private static final AtomicInteger startedWorkers = new AtomicInteger(0);
+  private static final AtomicInteger retiredWorkers = new AtomicInteger(0);
+
+  // Per-screen timings, whether or not the pool is enabled.
+  private static final AtomicInteger generatedScreens = new AtomicInteger(0);
+  private static final AtomicLong totalScreenMillis = new AtomicLong(0);
+  private static final AtomicLong maxScreenMillis = new AtomicLong(0);
+
+  /*
+   * The build server side of a YailGeneratorWorker process.
+   */
+  private static final class Worker {
+    private final String jarPath;
+    private final Process process;
+    private final OutputStream stdin;
+    private final DataInputStream stdout;
+    private int screens = 0;
+    private boolean alive = true;
+
+    Worker(String jarPath) throws IOException {
+      this.jarPath = jarPath;
+      List<String> command = Lists.newArrayList(System.getProperty("java.home") + "/bin/java");
+      if (Execution.requiresSecurityManagerOptIn()) {
+        command.add("-Djava.security.manager=allow");
+      }
+      command.add("-mx" + MAX_HEAP_MB + "M");
+      command.add("-cp");
+      command.add(getWorkerClasspath() + File.pathSeparator + jarPath);
+      command.add(YailGeneratorWorker.class.getName());
+      command.add(jarPath);
+      ProcessBuilder processBuilder = new ProcessBuilder(command);
+      // Only replies are written to stdout; anything the worker itself prints goes to the log.
+      processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+      process = processBuilder.start();
+      LOG.info("Started YAIL generator worker for " + jarPath);
+      stdin = process.getOutputStream();
+      stdout = new DataInputStream(process.getInputStream());
+      startedWorkers.incrementAndGet();
+    }
+
+    Generation generate(String formPath, String blocksPath, String yailPath)
+        throws IOException {
+      screens++;
+      Execution.Watchdog watchdog = Execution.watch(process, BuildPipeline.Stage.YAIL_GENERATION);
+      try {
+        String separator = YailGeneratorWorker.SEPARATOR;
+        String request = YailGeneratorWorker.GENERATE + separator + formPath + separator +
+            blocksPath + separator + yailPath + "\n";
+        stdin.write(request.getBytes("UTF-8"));
+        stdin.flush();
+
+        String[] reply = readLine().split(" ");
+        if (reply.length != 4 || !reply[0].equals(YailGeneratorWorker.DONE)) {
+          throw new IOException("Unexpected reply from YAIL generator worker");
+        }
+        int exitCode = Integer.parseInt(reply[1]);
+        byte[] out = new byte[Integer.parseInt(reply[2])];
+        byte[] err = new byte[Integer.parseInt(reply[3])];
+        stdout.readFully(out);
+        stdout.readFully(err);
+        return new Generation(exitCode, new String(out, "UTF-8"), new String(err, "UTF-8"));
+      } catch (IOException e) {
+        alive = false;
+        if (watchdog.getKillReason() != null) {
+          // A separate process would be killed too, so this is the outcome.
+          return new Generation(-1, "",
+              "Killed the YAIL generator worker because it " + watchdog.getKillReason());
+        }
+        throw e;
+      } catch (NumberFormatException e) {
+        alive = false;
+        throw new IOException("Unexpected reply from YAIL generator worker", e);
+      } finally {
+        watchdog.finish();
+      }
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = stdout.read()) != '\n') {
+        if (b == -1) {
+          throw new EOFException("YAIL generator worker exited");
+        }
+        line.write(b);
+      }
+      return line.toString("UTF-8");
+    }
+
+    boolean isReusable() {
+      return alive && screens < maxScreensPerWorker;
+    }
+
+    void destroy() {
+      alive = false;
+      try {
+        stdin.close();
+      } catch (IOException e) {
+        // The process is going away anyway.
+      }
+      process.destroy();
+    }
+  }
+
+  private YailGeneratorPool() {
+  }
+
+  /**
+   * Sets the maximum number of idle workers kept between screens. 0 disables the pool.
+   */
+  static void setMaxIdleWorkers(int max) {
+    maxIdleWorkers = max;
+    if (max == 0) {
+      shutdown();
+    }
+  }
+
+  /**
+   * Sets the number of screens after which a worker is replaced by a new one.
+   */
+  static void setMaxScreensPerWorker(int max) {
+    maxScreensPerWorker = max;
+  }
+
+  static boolean isEnabled() {
+    return maxIdleWorkers > 0;
+  }
+
+  /**
+   * Generates the YAIL for one screen with a warm worker. This is equivalent to running
+   * {@code java -jar <yailGeneratorJar> <formPath> <blocksPath> <yailPath>}.
+   *
+   * @throws IOException if the worker could not be started or stopped unexpectedly
+   */
+  static Generation generate(String yailGeneratorJar, String formPath, String blocksPath,
+                             String yailPath) throws IOException {
+    Worker worker = takeIdleWorker(yailGeneratorJar);
+    if (worker == null) {
+      worker = new Worker(yailGeneratorJar);
+    }
+    try {
+      return worker.generate(formPath, blocksPath, yailPath);
+    } finally {
+      returnWorker(worker);
+    }
+  }
+
+  /**
+   * Records how long it took to generate the YAIL for one screen.
+   */
+  static void recordScreenTime(long millis) {
+    generatedScreens.incrementAndGet();
+    totalScreenMillis.addAndGet(millis);
+    long max;
+    do {
+      max = maxScreenMillis.get();
+    } while (millis > max && !maxScreenMillis.compareAndSet(max, millis));
+  }
+
+  private static Worker takeIdleWorker(String jarPath) {
+    synchronized (idleWorkers) {
+      for (Worker worker : idleWorkers) {
+        if (worker.jarPath.equals(jarPath)) {
+          idleWorkers.remove(worker);
+          return worker;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static void returnWorker(Worker worker) {
+    Worker evicted = null;
+    if (worker.isReusable() && isEnabled()) {
+      synchronized (idleWorkers) {
+        idleWorkers.addFirst(worker);
+        if (idleWorkers.size() > maxIdleWorkers) {
+          evicted = idleWorkers.removeLast();
+        }
+      }
+    } else {
+      evicted = worker;
+    }
+    if (evicted != null) {
+      retiredWorkers.incrementAndGet();
+      evicted.destroy();
+    }
+  }
+
+  /**
+   * Stops all idle workers.
+   */
+  static void shutdown() {
+    synchronized (idleWorkers) {
+      for (Worker worker : idleWorkers) {
+        worker.destroy();
+      }
+      idleWorkers.clear();
+    }
+  }
+
+  /*
+   * Returns the class path entry that contains YailGeneratorWorker, which is BuildServer.jar when
+   * running in the build server.
+   */
+  private static String getWorkerClasspath() throws IOException {
+    try {
+      return new File(YailGeneratorWorker.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (Exception e) {
+      throw new IOException("Unable to locate " + YailGeneratorWorker.class.getName(), e);
+    }
+  }
+
+  /**
+   * Adds the pool statistics and the per-screen timings to the given map of variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    variables.put("yail-worker-pool-maximum-idle", maxIdleWorkers + "");
+    synchronized (idleWorkers) {
+      variables.put("yail-worker-pool-idle", idleWorkers.size() + "");
+    }
+    variables.put("yail-worker-pool-started", startedWorkers.get() + "");
+    variables.put("yail-worker-pool-retired", retiredWorkers.get() + "");
+    int screens = generatedScreens.get();
+    variables.put("yail-generation-screens", screens + "");
+    variables.put("yail-generation-average-ms",
+        (screens == 0 ? 0 : totalScreenMillis.get() / screens) + "");
+    variables.put("yail-generation-maximum-ms", maxScreenMillis.get() + "");
+  }
+}
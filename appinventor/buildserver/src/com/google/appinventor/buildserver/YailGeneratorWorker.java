@@ -0,0 +1,129 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.Permission;
+import java.util.jar.JarFile;
+
+/**
+ * Main entry point of a long-lived YAIL generator process, see {@link YailGeneratorPool}.
+ *
+ * <p>The worker loads YailGenerator.jar once and then runs its main class once per request, as if
+ * it had been started with {@code java -jar YailGenerator.jar <form> <blocks> <yail>}. The exit
+ * code that the generator passes to {@code System.exit} is trapped and reported back instead of
+ * ending the worker.</p>
+ *
+ * <p>Requests are read from standard input, one per line: {@code GENERATE} followed by the three
+ * arguments, separated by tabs. Each reply, written to standard output, is a line
+ * {@code DONE <exit code> <output bytes> <error bytes>} followed by the generator's standard
+ * output and standard error, encoded as UTF-8.</p>
+ *
+ * <p>This class runs with YailGenerator.jar's class path, so it must only depend on the JDK.</p>
+ */
+public final class YailGeneratorWorker {
+  static final String GENERATE = "GENERATE";
+  static final String DONE = "YAIL-WORKER-DONE";
+  static final String SEPARATOR = "\t";
+
+  // The exit code reported when the generator throws instead of exiting. This is the exit code of
+  // a JVM whose main method throws.
+  static final int EXIT_CODE_EXCEPTION = 1;
+
+  /*
+   * Thrown in place of exiting the JVM.
+   */
+  private static class ExitTrappedException extends SecurityException {
+    private final int status;
+
+    ExitTrappedException(int status) {
+      this.status = status;
+    }
+  }
+
+  private YailGeneratorWorker() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of YailGenerator.jar
+   */
+  public static void main(String[] args) throws Exception {
+    PrintStream protocolOut = System.out;
+    PrintStream originalErr = System.err;
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+
+    JarFile jar = new JarFile(args[0]);
+    String mainClassName;
+    try {
+      mainClassName = jar.getManifest().getMainAttributes().getValue("Main-Class");
+    } finally {
+      jar.close();
+    }
+    Method generatorMain = Class.forName(mainClassName).getMethod("main", String[].class);
+
+    System.setSecurityManager(new SecurityManager() {
+      @Override
+      public void checkPermission(Permission perm) {
+        // Everything is allowed, except exiting.
+      }
+
+      @Override
+      public void checkPermission(Permission perm, Object context) {
+      }
+
+      @Override
+      public void checkExit(int status) {
+        throw new ExitTrappedException(status);
+      }
+    });
+
+    String request;
+    while ((request = in.readLine()) != null) {
+      String[] parts = request.split(SEPARATOR);
+      if (parts.length != 4 || !parts[0].equals(GENERATE)) {
+        continue;
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      PrintStream capturedOut = new PrintStream(out, true, "UTF-8");
+      PrintStream capturedErr = new PrintStream(err, true, "UTF-8");
+      System.setOut(capturedOut);
+      System.setErr(capturedErr);
+      int exitCode = 0;
+      try {
+        generatorMain.invoke(null, (Object) new String[] { parts[1], parts[2], parts[3] });
+      } catch (InvocationTargetException e) {
+        if (e.getCause() instanceof ExitTrappedException) {
+          exitCode = ((ExitTrappedException) e.getCause()).status;
+        } else {
+          e.getCause().printStackTrace(capturedErr);
+          exitCode = EXIT_CODE_EXCEPTION;
+        }
+      } catch (ExitTrappedException e) {
+        exitCode = e.status;
+      } finally {
+        capturedOut.flush();
+        capturedErr.flush();
+        System.setOut(protocolOut);
+        System.setErr(originalErr);
+      }
+      byte[] outBytes = out.toByteArray();
+      byte[] errBytes = err.toByteArray();
+      protocolOut.print(DONE + " " + exitCode + " " + outBytes.length + " " + errBytes.length +
+          "\n");
+      protocolOut.write(outBytes);
+      protocolOut.write(errBytes);
+      protocolOut.flush();
+    }
+  }
+}
@@ -0,0 +1,210 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ApkFinisher class.
+ */
+public class ApkFinisherTest extends TestCase {
+  private static final String LONG_NAME = "assets/" + Strings.repeat("long", 30) + ".txt";
+
+  private File tmpDir;
+  private KeyPair keyPair;
+  private X509Certificate certificate;
+  private final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    keyPair = generator.generateKeyPair();
+    X500Name name = new X500Name("CN=App Inventor");
+    certificate = new JcaX509CertificateConverter().getCertificate(
+        new JcaX509v3CertificateBuilder(name, BigInteger.ONE, new Date(),
+            new Date(System.currentTimeMillis() + 86400000L), name, keyPair.getPublic())
+            .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+    contents.put("a.png", new byte[] { 1, 2, 3, 4, 5 });
+    contents.put("resources.arsc", new byte[] { 6, 7, 8 });
+    contents.put("classes.dex", Strings.repeat("dex", 1000).getBytes("UTF-8"));
+    contents.put(LONG_NAME, "text".getBytes("UTF-8"));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testSignedApkIsAligned() throws Exception {
+    File signedApk = finish(new ApkFinisher(keyPair.getPrivate(), certificate));
+
+    // Walk the local headers from the start, as Android does when it maps stored entries.
+    ByteBuffer apk = ByteBuffer.wrap(Files.toByteArray(signedApk)).order(ByteOrder.LITTLE_ENDIAN);
+    int storedEntries = 0;
+    int offset = 0;
+    while (apk.getInt(offset) == 0x04034b50) {
+      assertEquals(0, apk.getShort(offset + 6) & (1 << 3));
+      int method = apk.getShort(offset + 8);
+      int compressedSize = apk.getInt(offset + 18);
+      int dataOffset = offset + 30 + apk.getShort(offset + 26) + apk.getShort(offset + 28);
+      if (method == ZipEntry.STORED) {
+        assertEquals(0, dataOffset % ApkFinisher.ALIGNMENT);
+        storedEntries++;
+      }
+      offset = dataOffset + compressedSize;
+    }
+    // The three signature files, two stored entries and the directory.
+    assertEquals(6, storedEntries);
+
+    ZipFile zipFile = new ZipFile(signedApk);
+    try {
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        InputStream in = zipFile.getInputStream(zipFile.getEntry(entry.getKey()));
+        assertTrue(Arrays.equals(entry.getValue(), ByteStreams.toByteArray(in)));
+        in.close();
+      }
+      assertNull(zipFile.getEntry("META-INF/OLD.SF"));
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  public void testSignedApkIsSigned() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    keyStore.load(null, null);
+    keyStore.setKeyEntry("AndroidKey", keyPair.getPrivate(), "android".toCharArray(),
+        new Certificate[] { certificate });
+    File keystoreFile = new File(tmpDir, "android.keystore");
+    FileOutputStream out = new FileOutputStream(keystoreFile);
+    keyStore.store(out, "android".toCharArray());
+    out.close();
+
+    File signedApk = finish(ApkFinisher.fromKeystore(keystoreFile));
+
+    ZipFile zipFile = new ZipFile(signedApk);
+    try {
+      byte[] manifestBytes = read(zipFile, "META-INF/MANIFEST.MF");
+      byte[] signatureBytes = read(zipFile, "META-INF/CERT.SF");
+      byte[] signatureBlock = read(zipFile, "META-INF/CERT.RSA");
+
+      Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      assertEquals(contents.size(), manifest.getEntries().size());
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        Attributes attributes = manifest.getAttributes(entry.getKey());
+        assertEquals(sha1(entry.getValue()), attributes.getValue("SHA1-Digest"));
+      }
+
+      Manifest signature = new Manifest(new ByteArrayInputStream(signatureBytes));
+      assertEquals(sha1(manifestBytes),
+          signature.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+      assertEquals(contents.size(), signature.getEntries().size());
+
+      CMSSignedData signedData =
+          new CMSSignedData(new CMSProcessableByteArray(signatureBytes), signatureBlock);
+      SignerInformation signer =
+          (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+      assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  /*
+   * Writes an unsigned apk with the test contents, as ApkBuilder would, and finishes it.
+   */
+  private File finish(ApkFinisher finisher) throws Exception {
+    File unsignedApk = new File(tmpDir, "unsigned.apk");
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(unsignedApk));
+    zip.putNextEntry(storedEntry("assets/", new byte[0]));
+    zip.closeEntry();
+    zip.putNextEntry(storedEntry("a.png", contents.get("a.png")));
+    zip.write(contents.get("a.png"));
+    zip.closeEntry();
+    zip.putNextEntry(new ZipEntry("classes.dex"));
+    zip.write(contents.get("classes.dex"));
+    zip.closeEntry();
+    zip.putNextEntry(storedEntry("resources.arsc", contents.get("resources.arsc")));
+    zip.write(contents.get("resources.arsc"));
+    zip.closeEntry();
+    zip.putNextEntry(new ZipEntry(LONG_NAME));
+    zip.write(contents.get(LONG_NAME));
+    zip.closeEntry();
+    zip.putNextEntry(new ZipEntry("META-INF/OLD.SF"));
+    zip.write("Signature-Version: 1.0\r\n".getBytes("UTF-8"));
+    zip.closeEntry();
+    zip.close();
+
+    File signedApk = new File(tmpDir, "signed.apk");
+    finisher.finish(unsignedApk, signedApk);
+    return signedApk;
+  }
+
+  private static ZipEntry storedEntry(String name, byte[] content) {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(content.length);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    entry.setCrc(crc.getValue());
+    return entry;
+  }
+
+  private static byte[] read(ZipFile zipFile, String name) throws Exception {
+    ZipEntry entry = zipFile.getEntry(name);
+    assertNotNull(name, entry);
+    InputStream in = zipFile.getInputStream(entry);
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String sha1(byte[] bytes) throws Exception {
+    return BaseEncoding.base64().encode(MessageDigest.getInstance("SHA-1").digest(bytes));
+  }
+}
@@ -0,0 +1,125 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests BuildCache class.
+ */
+public class BuildCacheTest extends TestCase {
+  private File tmpDir;
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    cacheDir = new File(tmpDir, "cache");
+    BuildCache.configure(cacheDir, 1024);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildCache.configure(null, 0);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testStoredFilesAreFetched() throws Exception {
+    File classFile = write("Screen1.class", "classes");
+    String key = BuildCache.key("Screen1", BuildCache.hashFile(classFile));
+    int hits = getCounter("build-cache-kawa-hits");
+    int misses = getCounter("build-cache-kawa-misses");
+
+    File targetDir = new File(tmpDir, "build");
+    assertFalse(BuildCache.fetch(BuildCache.Kind.KAWA, key, targetDir));
+    BuildCache.store(BuildCache.Kind.KAWA, key, Collections.singletonList(classFile));
+    assertTrue(BuildCache.fetch(BuildCache.Kind.KAWA, key, targetDir));
+
+    assertEquals("classes", Files.toString(new File(targetDir, "Screen1.class"), Charsets.UTF_8));
+    assertEquals(hits + 1, getCounter("build-cache-kawa-hits"));
+    assertEquals(misses + 1, getCounter("build-cache-kawa-misses"));
+  }
+
+  public void testFailedFetchLeavesNothingBehind() throws Exception {
+    File classFile = write("Screen1.class", "classes");
+    File otherFile = write("Screen2.class", "other classes");
+    BuildCache.store(BuildCache.Kind.KAWA, "screens", Arrays.asList(classFile, otherFile));
+    // Replace one of the files of the entry with something that can't be copied.
+    File brokenFile = new File(cacheDir, "kawa-screens/Screen2.class");
+    assertTrue(brokenFile.delete());
+    assertTrue(brokenFile.mkdir());
+    File targetDir = new File(tmpDir, "build");
+    targetDir.mkdir();
+    File builtFile = new File(targetDir, "Screen3.class");
+    Files.write("built", builtFile, Charsets.UTF_8);
+
+    assertFalse(BuildCache.fetch(BuildCache.Kind.KAWA, "screens", targetDir));
+
+    // Only the file that was already there is left.
+    assertEquals(Collections.singletonList("Screen3.class"),
+        Arrays.asList(targetDir.list()));
+  }
+
+  public void testKeyDependsOnContents() throws Exception {
+    File dir = new File(tmpDir, "assets");
+    dir.mkdir();
+    String empty = BuildCache.hashTree(dir);
+    write("assets/kitty.png", "meow");
+    String kitty = BuildCache.hashTree(dir);
+    write("assets/kitty.png", "purr");
+
+    assertFalse(empty.equals(kitty));
+    assertFalse(kitty.equals(BuildCache.hashTree(dir)));
+    assertFalse(BuildCache.key("ab", "c").equals(BuildCache.key("a", "bc")));
+  }
+
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    // Each entry is 400 bytes, so only two of them fit in the cache.
+    File file = write("classes.dex", new String(new char[400]));
+    BuildCache.store(BuildCache.Kind.DEX, "first", Collections.singletonList(file));
+    BuildCache.store(BuildCache.Kind.DEX, "second", Collections.singletonList(file));
+    File targetDir = new File(tmpDir, "build");
+    assertTrue(BuildCache.fetch(BuildCache.Kind.DEX, "first", targetDir));
+
+    BuildCache.store(BuildCache.Kind.DEX, "third", Collections.singletonList(file));
+
+    assertTrue(BuildCache.fetch(BuildCache.Kind.DEX, "first", targetDir));
+    assertFalse(BuildCache.fetch(BuildCache.Kind.DEX, "second", targetDir));
+    assertTrue(BuildCache.fetch(BuildCache.Kind.DEX, "third", targetDir));
+    assertEquals(2, getCounter("build-cache-entries"));
+  }
+
+  public void testEntriesSurviveRestart() throws Exception {
+    File file = write("Project.ap_", "resources");
+    BuildCache.store(BuildCache.Kind.AAPT, "key", Collections.singletonList(file));
+
+    BuildCache.configure(cacheDir, 1024);
+
+    assertTrue(BuildCache.fetch(BuildCache.Kind.AAPT, "key", new File(tmpDir, "build")));
+  }
+
+  private File write(String name, String contents) throws Exception {
+    File file = new File(tmpDir, name);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private static int getCounter(String name) {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    BuildCache.addVariables(variables);
+    return Integer.parseInt(variables.get(name));
+  }
+}
@@ -0,0 +1,171 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildDeduplicator.
+ */
+public class BuildDeduplicatorTest extends TestCase {
+
+  /*
+   * Remembers what it was sent.
+   */
+  private static class TestRecipient implements BuildDeduplicator.Recipient {
+    final CountDownLatch sent = new CountDownLatch(1);
+    volatile String contents;
+    volatile boolean succeeded;
+
+    @Override
+    public void send(File resultZip, boolean succeeded) {
+      try {
+        contents = resultZip == null ? null : Files.toString(resultZip, Charsets.UTF_8);
+      } catch (Exception e) {
+        contents = "unreadable";
+      }
+      this.succeeded = succeeded;
+      sent.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(sent.await(10, TimeUnit.SECONDS));
+    }
+  }
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = Files.createTempDir();
+    BuildDeduplicator.reset();
+    BuildDeduplicator.configure(1024 * 1024, 60 * 1000);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildDeduplicator.reset();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  public void testFingerprint() throws Exception {
+    File project = new File(dir, "project");
+    List<String> files = ImmutableList.of(
+        path(project, "src/Screen1.scm", "scm"),
+        path(project, "youngandroidproject/project.properties", "properties"),
+        path(project, "android.keystore", "keystore"));
+    String fingerprint = BuildDeduplicator.fingerprint("user", project, files, false);
+
+    // The order of the files and the remix history don't matter, and neither does the user when
+    // there is a keystore.
+    File other = new File(dir, "other");
+    List<String> otherFiles = ImmutableList.of(
+        path(other, "youngandroidproject/remix_history", "history"),
+        path(other, "android.keystore", "keystore"),
+        path(other, "youngandroidproject/project.properties", "properties"),
+        path(other, "src/Screen1.scm", "scm"));
+    assertEquals(fingerprint, BuildDeduplicator.fingerprint("other", other, otherFiles, false));
+
+    assertFalse(fingerprint.equals(BuildDeduplicator.fingerprint("user", project, files, true)));
+    write(other, "android.keystore", "another keystore");
+    assertFalse(fingerprint.equals(
+        BuildDeduplicator.fingerprint("other", other, otherFiles, false)));
+  }
+
+  public void testFingerprintWithoutKeystoreIncludesTheUser() throws Exception {
+    File project = new File(dir, "project");
+    List<String> files = ImmutableList.of(path(project, "src/Screen1.scm", "scm"));
+    assertFalse(BuildDeduplicator.fingerprint("user", project, files, false).equals(
+        BuildDeduplicator.fingerprint("other", project, files, false)));
+  }
+
+  public void testIdenticalRequestsShareABuild() throws Exception {
+    assertFalse(BuildDeduplicator.join("f", new TestRecipient()));
+    TestRecipient follower = new TestRecipient();
+    assertTrue(BuildDeduplicator.join("f", follower));
+
+    File resultZip = write(dir, "result.zip", "results");
+    BuildDeduplicator.SharedResult result = BuildDeduplicator.finish("f", resultZip, true);
+    follower.await();
+    assertEquals("results", follower.contents);
+    assertTrue(follower.succeeded);
+    result.release();
+
+    // The results are cached.
+    TestRecipient late = new TestRecipient();
+    assertTrue(BuildDeduplicator.join("f", late));
+    late.await();
+    assertEquals("results", late.contents);
+    assertEquals(Long.valueOf(1), BuildDeduplicator.getCounters().get("builds"));
+    assertEquals(Long.valueOf(1), BuildDeduplicator.getCounters().get("coalescedRequests"));
+    assertEquals(Long.valueOf(1), BuildDeduplicator.getCounters().get("cacheHits"));
+  }
+
+  public void testFailedBuildsAreNotCached() throws Exception {
+    assertFalse(BuildDeduplicator.join("f", new TestRecipient()));
+    TestRecipient follower = new TestRecipient();
+    assertTrue(BuildDeduplicator.join("f", follower));
+    File resultZip = write(dir, "result.zip", "errors");
+    BuildDeduplicator.finish("f", resultZip, false).release();
+    follower.await();
+    assertEquals("errors", follower.contents);
+    assertFalse(follower.succeeded);
+
+    // Another request runs the build again, and the results are deleted once they are sent.
+    assertFalse(BuildDeduplicator.join("f", new TestRecipient()));
+    for (int i = 0; i < 100 && resultZip.exists(); i++) {
+      Thread.sleep(100);
+    }
+    assertFalse(resultZip.exists());
+  }
+
+  public void testRequestsWaitingForABuildWithoutResultsGetNone() throws Exception {
+    assertFalse(BuildDeduplicator.join("f", new TestRecipient()));
+    TestRecipient follower = new TestRecipient();
+    assertTrue(BuildDeduplicator.join("f", follower));
+    assertNull(BuildDeduplicator.finish("f", null, false));
+    follower.await();
+    assertNull(follower.contents);
+    assertFalse(follower.succeeded);
+  }
+
+  public void testOldestResultsAreEvicted() throws Exception {
+    BuildDeduplicator.configure(10, 60 * 1000);
+    assertFalse(BuildDeduplicator.join("a", new TestRecipient()));
+    File a = write(dir, "a.zip", "123456");
+    BuildDeduplicator.finish("a", a, true).release();
+    assertTrue(a.exists());
+
+    assertFalse(BuildDeduplicator.join("b", new TestRecipient()));
+    File b = write(dir, "b.zip", "789012");
+    BuildDeduplicator.finish("b", b, true).release();
+    assertFalse(a.exists());
+    assertTrue(b.exists());
+    assertFalse(BuildDeduplicator.join("a", new TestRecipient()));
+  }
+
+  private static String path(File parent, String name, String contents) throws Exception {
+    return write(parent, name, contents).getPath();
+  }
+
+  private static File write(File parent, String name, String contents) throws Exception {
+    File file = new File(parent, name);
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+}
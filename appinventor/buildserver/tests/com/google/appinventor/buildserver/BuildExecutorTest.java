@@ -0,0 +1,135 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildExecutor class.
+ */
+public class BuildExecutorTest extends TestCase {
+  private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+  public void testAdditionalTaskIsRejectedWithoutQueue() throws Exception {
+    // Create the BuildExecutor with capacity 10 and no queue.
+    int maxCapacity = 10;
+    BuildExecutor executor = new BuildExecutor(maxCapacity, 0, 0);
+
+    // Execute the maximum number of tasks, which will all wait until I release them.
+    CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < maxCapacity; i++) {
+      assertEquals(0, executor.execute("user" + i, new Task("task" + i, release)));
+    }
+
+    // Now the executor should be at maximum capacity.
+    assertEquals(maxCapacity, executor.getActiveTaskCount());
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute("user", new Task("rejected", null));
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    release.countDown();
+  }
+
+  public void testTaskWaitsInQueue() throws Exception {
+    BuildExecutor executor = new BuildExecutor(1, 1, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute("alice", new Task("first", release));
+
+    assertTrue(executor.execute("bob", new Task("second", null)) > 0);
+    assertEquals(1, executor.getQueuedTaskCount());
+    try {
+      executor.execute("carol", new Task("rejected", null));
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected, the queue is full
+    }
+
+    release.countDown();
+    waitForCompletedTasks(executor, 2);
+    assertEquals(0, executor.getQueuedTaskCount());
+    assertEquals(2, started.size());
+  }
+
+  public void testUserWithFewestRunningBuildsStartsFirst() throws Exception {
+    BuildExecutor executor = new BuildExecutor(2, 10, 0);
+    CountDownLatch releaseAlice = new CountDownLatch(1);
+    CountDownLatch releaseCarol = new CountDownLatch(1);
+    executor.execute("alice", new Task("alice1", releaseAlice));
+    executor.execute("carol", new Task("carol1", releaseCarol));
+    executor.execute("alice", new Task("alice2", null));
+    executor.execute("bob", new Task("bob1", null));
+
+    // Alice still has a build running, so Bob's build goes first although it came later.
+    releaseCarol.countDown();
+    waitForCompletedTasks(executor, 2);
+    assertEquals("bob1", started.get(2));
+
+    releaseAlice.countDown();
+    waitForCompletedTasks(executor, 4);
+  }
+
+  public void testTooManyBuildsForOneUserAreRejected() throws Exception {
+    BuildExecutor executor = new BuildExecutor(1, 10, 2);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute("alice", new Task("alice1", release));
+    executor.execute("alice", new Task("alice2", null));
+    try {
+      executor.execute("alice", new Task("alice3", null));
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    executor.execute("bob", new Task("bob1", null));
+
+    release.countDown();
+    waitForCompletedTasks(executor, 3);
+  }
+
+  private static void waitForCompletedTasks(BuildExecutor executor, int count) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (executor.getCompletedTaskCount() < count) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /*
+   * Records that it started and then waits until released, if there is a release latch.
+   */
+  private class Task implements Runnable {
+    private final String name;
+    private final CountDownLatch release;
+
+    Task(String name, CountDownLatch release) {
+      this.name = name;
+      this.release = release;
+    }
+
+    @Override
+    public void run() {
+      started.add(name);
+      if (release != null) {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildPipeline class.
+ */
+public class BuildPipelineTest extends TestCase {
+  private static final BuildPipeline.Stage STAGE = BuildPipeline.Stage.AAPT;
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildPipeline.setMaxConcurrency(STAGE, 0);
+  }
+
+  public void testStageLimitQueuesAdditionalBuilds() throws Exception {
+    int maxConcurrency = 2;
+    BuildPipeline.setMaxConcurrency(STAGE, maxConcurrency);
+
+    // Start one more build than the stage allows. They all wait until I count down the signal.
+    CountDownLatch signal = new CountDownLatch(1);
+    Thread[] builds = new Thread[maxConcurrency + 1];
+    for (int i = 0; i < builds.length; i++) {
+      builds[i] = new Thread(new StageThatWaitsForSignal(signal));
+      builds[i].start();
+    }
+
+    waitFor(maxConcurrency, 1);
+    assertEquals(maxConcurrency, BuildPipeline.getActiveCount(STAGE));
+    assertEquals(1, BuildPipeline.getQueueDepth(STAGE));
+
+    // Let the builds finish. The queued build should get its turn.
+    signal.countDown();
+    for (Thread build : builds) {
+      build.join();
+    }
+    assertEquals(0, BuildPipeline.getActiveCount(STAGE));
+    assertEquals(0, BuildPipeline.getQueueDepth(STAGE));
+    assertEquals(builds.length, BuildPipeline.getCompletedCount(STAGE));
+
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    BuildPipeline.addVariables(variables);
+    assertEquals("2", variables.get("stage-aapt-maximum-simultaneous"));
+    assertEquals("0", variables.get("stage-aapt-queue-depth"));
+    assertEquals("3", variables.get("stage-aapt-completed"));
+  }
+
+  public void testUnlimitedStageNeverQueues() throws Exception {
+    BuildPipeline.setMaxConcurrency(STAGE, 0);
+    for (int i = 0; i < 20; i++) {
+      BuildPipeline.enter(STAGE);
+    }
+    assertEquals(20, BuildPipeline.getActiveCount(STAGE));
+    assertEquals(0, BuildPipeline.getQueueDepth(STAGE));
+    for (int i = 0; i < 20; i++) {
+      BuildPipeline.exit(STAGE);
+    }
+    assertEquals(0, BuildPipeline.getActiveCount(STAGE));
+  }
+
+  private static void waitFor(int active, int queued) throws InterruptedException {
+    for (int i = 0; i < 500; i++) {
+      if (BuildPipeline.getActiveCount(STAGE) == active &&
+          BuildPipeline.getQueueDepth(STAGE) == queued) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private static class StageThatWaitsForSignal implements Runnable {
+    private final CountDownLatch signal;
+    private StageThatWaitsForSignal(CountDownLatch signal) {
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      BuildPipeline.enter(STAGE);
+      try {
+        signal.await();
+      } catch (InterruptedException e) {
+        // ignored
+      } finally {
+        BuildPipeline.exit(STAGE);
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildProgress class.
+ */
+public class BuildProgressTest extends TestCase {
+
+  public void testStagesAreRecordedPerBuild() throws Exception {
+    BuildProgress first = BuildProgress.start("first");
+    BuildProgress second = BuildProgress.start("second");
+    first.update("Invoking DX", 35);
+
+    assertSame(first, BuildProgress.get("first"));
+    assertEquals(35, first.getProgress());
+    assertEquals(10, second.getProgress());
+    assertNull(BuildProgress.get("unknown"));
+
+    JSONObject json = first.toJson();
+    assertEquals("first", json.getString("buildId"));
+    assertFalse(json.getBoolean("finished"));
+    JSONArray events = json.getJSONArray("events");
+    assertEquals(2, events.length());
+    assertEquals("Invoking DX", events.getJSONObject(1).getString("stage"));
+    assertEquals(35, events.getJSONObject(1).getInt("progress"));
+  }
+
+  public void testAwaitReturnsWhenTheBuildMakesProgress() throws Exception {
+    final BuildProgress progress = BuildProgress.start("await");
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          // ignored
+        }
+        progress.update("Compiling source files", 20);
+      }
+    }.start();
+
+    long start = System.currentTimeMillis();
+    progress.await(1, 10000);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(20, progress.getProgress());
+  }
+
+  public void testAwaitReturnsWhenTheBuildIsOver() throws Exception {
+    BuildProgress progress = BuildProgress.start("over");
+    progress.finish(true);
+
+    long start = System.currentTimeMillis();
+    progress.await(1, 10000);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertTrue(progress.isFinished());
+    assertTrue(progress.toJson().getBoolean("succeeded"));
+  }
+}
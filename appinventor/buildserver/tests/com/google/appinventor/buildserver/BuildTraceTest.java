@@ -0,0 +1,159 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildTrace and BuildMetrics classes.
+ */
+public class BuildTraceTest extends TestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    BuildMetrics.reset();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildTrace.setCurrent(null);
+    BuildMetrics.reset();
+  }
+
+  public void testSpansAreAddedToTheCurrentTrace() throws Exception {
+    BuildTrace trace = new BuildTrace();
+    BuildTrace.setCurrent(trace);
+    BuildTrace.Span span = BuildTrace.start(BuildTrace.DX);
+    span.addBytesIn(10).addBytesOut(20).setCacheHit(false);
+    span.end();
+    // Ending a span twice doesn't count it twice.
+    span.end();
+    BuildTrace.start(BuildTrace.AAPT).setCacheHit(true).end();
+
+    JSONArray stages = trace.toJson().getJSONArray("stages");
+    assertEquals(2, stages.length());
+    JSONObject dx = stages.getJSONObject(0);
+    assertEquals("dx", dx.getString("stage"));
+    assertEquals(10, dx.getLong("bytesIn"));
+    assertEquals(20, dx.getLong("bytesOut"));
+    assertFalse(dx.getBoolean("cacheHit"));
+    assertTrue(dx.has("millis"));
+
+    JSONObject metrics = BuildMetrics.toJson().getJSONObject("stages");
+    assertEquals(1, metrics.getJSONObject("dx").getLong("count"));
+    assertEquals(1, metrics.getJSONObject("dx").getLong("cacheMisses"));
+    assertEquals(1, metrics.getJSONObject("aapt").getLong("cacheHits"));
+  }
+
+  public void testPartsAreAddedToTheSpan() throws Exception {
+    BuildTrace trace = new BuildTrace();
+    BuildTrace.setCurrent(trace);
+    BuildTrace.Span span = BuildTrace.start(BuildTrace.YAIL_GENERATION);
+    span.addPart("Screen1", 120).addPart("Screen2", 80);
+    span.end();
+
+    JSONObject parts = trace.toJson().getJSONArray("stages").getJSONObject(0)
+        .getJSONObject("parts");
+    assertEquals(120, parts.getLong("Screen1"));
+    assertEquals(80, parts.getLong("Screen2"));
+  }
+
+  public void testSpansWithoutTraceOnlyGoToTheMetrics() throws Exception {
+    BuildTrace.start(BuildTrace.KAWA).end();
+    assertEquals(1,
+        BuildMetrics.toJson().getJSONObject("stages").getJSONObject("kawa").getLong("count"));
+  }
+
+  public void testPropagatedTasksAddToTheTrace() throws Exception {
+    BuildTrace trace = new BuildTrace();
+    BuildTrace.setCurrent(trace);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(BuildTrace.propagate(new Callable<Void>() {
+        @Override
+        public Void call() {
+          BuildTrace.start(BuildTrace.DX).end();
+          BuildTrace.recordProcess("dx", System.currentTimeMillis(), 1234);
+          return null;
+        }
+      })).get();
+      // The worker thread doesn't keep the trace after the task.
+      assertNull(executor.submit(new Callable<BuildTrace>() {
+        @Override
+        public BuildTrace call() {
+          return BuildTrace.current();
+        }
+      }).get());
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, trace.getSpans().size());
+    List<BuildTrace.ChildProcess> processes = trace.getProcesses();
+    assertEquals(1, processes.size());
+    assertEquals("dx", processes.get(0).name);
+    assertEquals(1234, processes.get(0).peakRssKb);
+  }
+
+  public void testExecutionRecordsChildProcesses() throws Exception {
+    if (!"Linux".equals(System.getProperty("os.name"))) {
+      return;
+    }
+    BuildTrace trace = new BuildTrace();
+    BuildTrace.setCurrent(trace);
+    assertTrue(Execution.execute(null, new String[] { "/bin/sh", "-c", "sleep 0.5" },
+        System.out, System.err));
+
+    List<BuildTrace.ChildProcess> processes = trace.getProcesses();
+    assertEquals(1, processes.size());
+    assertEquals("sh", processes.get(0).name);
+    assertTrue(processes.get(0).peakRssKb > 0);
+  }
+
+  public void testProcessNames() {
+    assertEquals("aapt", Execution.getProcessName(new String[] { "/sdk/aapt", "package" }));
+    assertEquals("YailGenerator", Execution.getProcessName(new String[] {
+        "/jre/bin/java", "-mx1024M", "-jar", "/files/YailGenerator.jar", "a", "b" }));
+    assertEquals("kawa.repl", Execution.getProcessName(new String[] {
+        "/jre/bin/java", "-mx1024M", "-cp", "a.jar:b.jar", "kawa.repl", "-f", "runtime.scm" }));
+  }
+
+  public void testPrometheusText() throws Exception {
+    BuildMetrics.recordStage(BuildTrace.DX, 2000, 1, 2, true);
+    BuildMetrics.recordStage(BuildTrace.DX, 4000, 1, 2, false);
+    BuildMetrics.recordProcess("kawa.repl", 1500, 1000);
+
+    StringBuilder text = new StringBuilder();
+    BuildMetrics.appendPrometheus(text);
+    String prometheus = text.toString();
+    assertTrue(prometheus, prometheus.contains(
+        "# TYPE appinventor_buildserver_stage_duration_seconds summary\n"));
+    assertTrue(prometheus, prometheus.contains(
+        "appinventor_buildserver_stage_duration_seconds{stage=\"dx\",quantile=\"0.5\"} 2\n"));
+    assertTrue(prometheus, prometheus.contains(
+        "appinventor_buildserver_stage_duration_seconds{stage=\"dx\",quantile=\"0.99\"} 4\n"));
+    assertTrue(prometheus, prometheus.contains(
+        "appinventor_buildserver_stage_duration_seconds_sum{stage=\"dx\"} 6\n"));
+    assertTrue(prometheus, prometheus.contains(
+        "appinventor_buildserver_stage_duration_seconds_count{stage=\"dx\"} 2\n"));
+    assertTrue(prometheus, prometheus.contains(
+        "appinventor_buildserver_stage_bytes_out_total{stage=\"dx\"} 4\n"));
+    assertTrue(prometheus, prometheus.contains(
+        "appinventor_buildserver_stage_cache_hits_total{stage=\"dx\"} 1\n"));
+    assertTrue(prometheus, prometheus.contains(
+        "appinventor_buildserver_child_process_duration_seconds{process=\"kawa.repl\","
+        + "quantile=\"0.95\"} 1.5\n"));
+    assertTrue(prometheus, prometheus.contains(
+        "appinventor_buildserver_child_process_peak_rss_bytes{process=\"kawa.repl\","
+        + "quantile=\"0.5\"} 1024000\n"));
+  }
+}
@@ -0,0 +1,66 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildWorkspace class.
+ */
+public class BuildWorkspaceTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildWorkspace.configure(null, 0);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testBuildsGoToTheWorkspace() throws Exception {
+    BuildWorkspace.configure(tmpDir, 0);
+    assertEquals(tmpDir, BuildWorkspace.getBuildsDir());
+  }
+
+  public void testBuildsGoToTheTemporaryDirectoryWhenTheWorkspaceIsFull() throws Exception {
+    BuildWorkspace.configure(tmpDir, 1);
+    assertEquals(new File(System.getProperty("java.io.tmpdir")), BuildWorkspace.getBuildsDir());
+  }
+
+  public void testStagedFilesAreLinked() throws Exception {
+    File source = new File(tmpDir, "source.so");
+    Files.write("native", source, Charsets.UTF_8);
+    File target = new File(tmpDir, "target.so");
+    Files.write("stale", target, Charsets.UTF_8);
+
+    BuildWorkspace.stage(source, target);
+    assertEquals("native", Files.toString(target, Charsets.UTF_8));
+    assertTrue(java.nio.file.Files.isSameFile(source.toPath(), target.toPath()));
+  }
+
+  public void testResourcesAreExtractedOnce() throws Exception {
+    BuildWorkspace.configure(tmpDir, 0);
+    String resourcePath = "/com/google/appinventor/buildserver/BuildWorkspace.class";
+    File file = BuildWorkspace.extractResource(resourcePath);
+    assertEquals(new File(BuildWorkspace.getResourceDir(), resourcePath), file);
+    assertTrue(file.length() > 0);
+
+    long lastModified = file.lastModified();
+    file.setLastModified(lastModified - 10000);
+    assertEquals(file, BuildWorkspace.extractResource(resourcePath));
+    assertEquals(lastModified - 10000, file.lastModified());
+  }
+}
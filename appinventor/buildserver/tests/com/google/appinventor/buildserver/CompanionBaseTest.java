@@ -0,0 +1,83 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests CompanionBase class.
+ */
+public class CompanionBaseTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testBaseIsBuiltOnce() throws Exception {
+    CountingBuilder builder = new CountingBuilder(true);
+    File baseDir = CompanionBase.get(tmpDir, "key1", builder);
+    assertEquals(baseDir, CompanionBase.get(tmpDir, "key1", builder));
+    assertEquals(1, builder.builds.get());
+    assertTrue(new File(baseDir, CompanionBase.RUNTIME_DEX).isFile());
+    assertEquals(2, CompanionBase.getLibraryDexFileCount(baseDir));
+  }
+
+  public void testBaseForAnotherKeyIsDeleted() throws Exception {
+    File oldBaseDir = CompanionBase.get(tmpDir, "key1", new CountingBuilder(true));
+    File newBaseDir = CompanionBase.get(tmpDir, "key2", new CountingBuilder(true));
+    assertFalse(oldBaseDir.exists());
+    assertTrue(newBaseDir.isDirectory());
+  }
+
+  public void testFailedBuildLeavesNothingBehind() throws Exception {
+    assertNull(CompanionBase.get(tmpDir, "key1", new CountingBuilder(false)));
+    assertEquals(0, tmpDir.listFiles().length);
+
+    // The next build tries again.
+    CountingBuilder builder = new CountingBuilder(true);
+    assertNotNull(CompanionBase.get(tmpDir, "key1", builder));
+    assertEquals(1, builder.builds.get());
+  }
+
+  /*
+   * Writes a runtime.dex, a classes2.dex and a classes3.dex.
+   */
+  private static class CountingBuilder implements CompanionBase.Builder {
+    final AtomicInteger builds = new AtomicInteger();
+    private final boolean succeed;
+
+    CountingBuilder(boolean succeed) {
+      this.succeed = succeed;
+    }
+
+    @Override
+    public boolean build(File dir) {
+      builds.incrementAndGet();
+      try {
+        Files.write(new byte[1], new File(dir, CompanionBase.RUNTIME_DEX));
+        Files.write(new byte[1], new File(dir, DexPartitioner.getDexFileName(1)));
+        Files.write(new byte[1], new File(dir, DexPartitioner.getDexFileName(2)));
+      } catch (IOException e) {
+        return false;
+      }
+      return succeed;
+    }
+  }
+}
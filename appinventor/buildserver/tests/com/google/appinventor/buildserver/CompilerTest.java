@@ -6,10 +6,18 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -115,4 +123,63 @@ public class CompilerTest extends TestCase {
     // Finally, test for the name attribute of the <intent-filter>'s <action> subelement
     assertTrue(activityElementString.contains("name=\"android.intent.action.MAIN\""));
   }
+
+  public void testPartitionSources() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      String big = writeFile(dir, "Big.yail", 100);
+      String medium = writeFile(dir, "Medium.yail", 60);
+      String small1 = writeFile(dir, "Small1.yail", 30);
+      String small2 = writeFile(dir, "Small2.yail", 30);
+      List<String> sources = ImmutableList.of(small1, big, small2, medium);
+
+      List<List<String>> partitions = Compiler.partitionSources(sources, 2);
+      assertEquals(2, partitions.size());
+      assertEquals(ImmutableList.of(big), partitions.get(0));
+      // The order of the sources is kept within a partition.
+      assertEquals(ImmutableList.of(small1, small2, medium), partitions.get(1));
+
+      assertEquals(ImmutableList.of(sources), Compiler.partitionSources(sources, 1));
+      assertEquals(4, Compiler.partitionSources(sources, 10).size());
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  public void testRebuiltExtensionProjectHitsTheDexCache() throws Exception {
+    String extension = "com.example.Extension";
+    Map<String, Set<String>> libsNeeded = ImmutableMap.<String, Set<String>>of(
+        extension, ImmutableSet.of("library.jar"),
+        "com.google.appinventor.components.runtime.Twitter", ImmutableSet.of("twitter4j.jar"));
+    File dir = Files.createTempDir();
+    try {
+      BuildCache.configure(new File(dir, "cache"), 1024 * 1024);
+      // The same project built twice, each time in a directory of its own.
+      String[] keys = new String[2];
+      for (int build = 0; build < 2; build++) {
+        File projectDir = new File(dir, "build" + build);
+        File extensionDir = new File(projectDir, "assets/external_comps/" + extension);
+        writeFile(new File(extensionDir, "files"), "library.jar", 10);
+        File classesDir = new File(projectDir, "classes");
+        writeFile(classesDir, "Screen1.class", 20);
+        String componentsKey = BuildCache.key(extension, BuildCache.hashTree(extensionDir));
+        keys[build] = Compiler.getDexCacheKey(componentsKey, classesDir, libsNeeded);
+      }
+      File dexFile = new File(dir, "classes.dex");
+      Files.write(new byte[30], dexFile);
+      BuildCache.store(BuildCache.Kind.DEX, keys[0], ImmutableList.of(dexFile));
+
+      assertTrue(BuildCache.fetch(BuildCache.Kind.DEX, keys[1], new File(dir, "dexed")));
+    } finally {
+      BuildCache.configure(null, 0);
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static String writeFile(File dir, String name, int size) throws Exception {
+    dir.mkdirs();
+    File file = new File(dir, name);
+    Files.write(new byte[size], file);
+    return file.getPath();
+  }
 }
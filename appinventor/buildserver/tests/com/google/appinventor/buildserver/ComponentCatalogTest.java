@@ -0,0 +1,106 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ComponentCatalog class.
+ */
+public class ComponentCatalogTest extends TestCase {
+  private static final String BUTTON = "com.google.appinventor.components.runtime.Button";
+  private static final String TEXTING = "com.google.appinventor.components.runtime.Texting";
+  private static final String EXTENSION = "com.example.Extension";
+
+  private static final String BUILD_INFO = "["
+      + "{\"type\": \"" + BUTTON + "\", \"permissions\": [], \"libraries\": []},"
+      + "{\"type\": \"" + TEXTING + "\", \"permissions\": [\"android.permission.SEND_SMS\"],"
+      + " \"broadcastReceivers\": [\"a,b\"], \"libraries\": [\"sms.jar\"]}]";
+  private static final String COMPONENTS = "["
+      + "{\"name\": \"Button\", \"type\": \"" + BUTTON + "\"},"
+      + "{\"name\": \"Texting\", \"type\": \"" + TEXTING + "\"}]";
+
+  private File extensionsDir;
+  private ComponentCatalog builtIn;
+
+  @Override
+  protected void setUp() throws Exception {
+    extensionsDir = Files.createTempDir();
+    builtIn = ComponentCatalog.parse(BUILD_INFO, COMPONENTS);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(extensionsDir);
+  }
+
+  public void testBuiltInComponents() {
+    assertEquals(ImmutableSet.of(BUTTON, TEXTING), builtIn.getBuiltInTypes());
+    assertEquals(TEXTING, builtIn.getType("Texting"));
+    assertNull(builtIn.getType("Extension"));
+    assertEquals(ImmutableSet.of("android.permission.SEND_SMS"),
+        builtIn.getInfo(TEXTING).get("permissions"));
+    // Targets that a component doesn't list are empty.
+    assertTrue(builtIn.getInfo(BUTTON).get("broadcastReceivers").isEmpty());
+  }
+
+  public void testGetSkipsComponentsWithoutTheTarget() {
+    Map<String, Set<String>> libraries =
+        builtIn.get(ImmutableSet.of(BUTTON, TEXTING, EXTENSION), "libraries");
+    assertEquals(1, libraries.size());
+    assertEquals(ImmutableSet.of("sms.jar"), libraries.get(TEXTING));
+  }
+
+  public void testExtensionsAreLayeredOnTheBuiltInComponents() throws Exception {
+    writeExtension("[\"android.permission.INTERNET\"]");
+    ComponentCatalog catalog = builtIn.withExtensions(extensionsDir);
+
+    assertEquals(EXTENSION, catalog.getType("Extension"));
+    assertEquals(BUTTON, catalog.getType("Button"));
+    assertFalse(catalog.isBuiltIn(EXTENSION));
+    assertTrue(catalog.isBuiltIn(BUTTON));
+    assertEquals(ImmutableSet.of(BUTTON, TEXTING), catalog.getBuiltInTypes());
+    assertEquals(ImmutableSet.of("android.permission.INTERNET"),
+        catalog.getInfo(EXTENSION).get("permissions"));
+    // The built-in catalog doesn't change.
+    assertNull(builtIn.getInfo(EXTENSION));
+  }
+
+  public void testChangedExtensionIsReadAgain() throws Exception {
+    writeExtension("[\"android.permission.INTERNET\"]");
+    ComponentCatalog.ComponentInfo first = builtIn.withExtensions(extensionsDir)
+        .getInfo(EXTENSION);
+    // The same build info is only parsed once.
+    assertSame(first, builtIn.withExtensions(extensionsDir).getInfo(EXTENSION));
+
+    writeExtension("[\"android.permission.CAMERA\"]");
+    assertEquals(ImmutableSet.of("android.permission.CAMERA"),
+        builtIn.withExtensions(extensionsDir).getInfo(EXTENSION).get("permissions"));
+  }
+
+  public void testMissingExtensionsDirectory() throws Exception {
+    assertSame(builtIn, builtIn.withExtensions(new File(extensionsDir, "external_comps")));
+  }
+
+  private void writeExtension(String permissions) throws Exception {
+    File extensionDir = new File(extensionsDir, EXTENSION);
+    File buildInfo = new File(extensionDir, "files/component_build_info.json");
+    Files.createParentDirs(buildInfo);
+    Files.write("{\"type\": \"" + EXTENSION + "\", \"permissions\": " + permissions
+        + ", \"libraries\": []}", buildInfo, Charsets.UTF_8);
+    Files.write("{\"name\": \"Extension\", \"type\": \"" + EXTENSION + "\"}",
+        new File(extensionDir, "component.json"), Charsets.UTF_8);
+  }
+}
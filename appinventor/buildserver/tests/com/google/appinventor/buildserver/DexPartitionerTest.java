@@ -0,0 +1,127 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests DexPartitioner class.
+ */
+public class DexPartitionerTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testCountReadsTheDexHeader() throws Exception {
+    DexPartitioner.IdCount count = DexPartitioner.count(dexedJar("lib", 1234, 567));
+    assertEquals(1234, count.methods);
+    assertEquals(567, count.fields);
+  }
+
+  public void testSmallInputsShareClassesDex() throws Exception {
+    File classes = dexedJar("classes", 100, 100);
+    File lib1 = dexedJar("lib1", 100, 100);
+    File lib2 = dexedJar("lib2", 100, 100);
+
+    List<List<File>> partitions = DexPartitioner.partition(Lists.newArrayList(classes),
+        Lists.newArrayList(lib1, lib2), 1000);
+    assertEquals(1, partitions.size());
+    assertEquals(Lists.newArrayList(classes, lib1, lib2), partitions.get(0));
+  }
+
+  public void testInputsArePackedIntoAsFewDexFilesAsPossible() throws Exception {
+    File classes = dexedJar("classes", 600, 10);
+    File big1 = dexedJar("big1", 700, 10);
+    File small = dexedJar("small", 300, 10);
+    // Too many fields to share a dex file with anything else.
+    File big2 = dexedJar("big2", 10, 995);
+    File tiny = dexedJar("tiny", 100, 100);
+
+    List<List<File>> partitions = DexPartitioner.partition(Lists.newArrayList(classes),
+        Lists.newArrayList(big1, small, big2, tiny), 1000);
+    assertEquals(3, partitions.size());
+    assertEquals(Lists.newArrayList(classes, small, tiny), partitions.get(0));
+    assertEquals(Lists.newArrayList(big1), partitions.get(1));
+    assertEquals(Lists.newArrayList(big2), partitions.get(2));
+  }
+
+  public void testMainInputsAlwaysGoIntoClassesDex() throws Exception {
+    // Their counts add up to too many methods, but shared references may make them fit, which
+    // merging them tells.
+    File runtime = dexedJar("runtime", 600, 10);
+    File classes = dexedJar("classes", 600, 10);
+    File lib = dexedJar("lib", 100, 10);
+    List<List<File>> partitions = DexPartitioner.partition(Lists.newArrayList(runtime, classes),
+        Lists.newArrayList(lib), 1000);
+    assertEquals(2, partitions.size());
+    assertEquals(Lists.newArrayList(runtime, classes), partitions.get(0));
+    assertEquals(Lists.newArrayList(lib), partitions.get(1));
+  }
+
+  public void testInputTooBigForADexFileGetsItsOwn() throws Exception {
+    File huge = dexedJar("huge", 1200, 10);
+    File small = dexedJar("small", 300, 10);
+    List<List<File>> partitions = DexPartitioner.pack(Lists.newArrayList(huge, small), 1000);
+    assertEquals(2, partitions.size());
+    assertEquals(Lists.newArrayList(huge), partitions.get(0));
+    assertEquals(Lists.newArrayList(small), partitions.get(1));
+  }
+
+  public void testLibrariesArePackedWithoutClassesDex() throws Exception {
+    File big = dexedJar("big", 700, 10);
+    File small = dexedJar("small", 300, 10);
+    File tiny = dexedJar("tiny", 100, 100);
+
+    List<List<File>> partitions =
+        DexPartitioner.pack(Lists.newArrayList(big, tiny, small), 1000);
+    assertEquals(2, partitions.size());
+    assertEquals(Lists.newArrayList(big, tiny), partitions.get(0));
+    assertEquals(Lists.newArrayList(small), partitions.get(1));
+  }
+
+  public void testDexFileNames() {
+    assertEquals("classes.dex", DexPartitioner.getDexFileName(0));
+    assertEquals("classes2.dex", DexPartitioner.getDexFileName(1));
+    assertEquals("classes3.dex", DexPartitioner.getDexFileName(2));
+  }
+
+  /*
+   * Writes a jar with a classes.dex whose header declares the given number of methods and fields.
+   */
+  private File dexedJar(String name, int methods, int fields) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(0x70).order(ByteOrder.LITTLE_ENDIAN);
+    header.put("dex\n035\0".getBytes("US-ASCII"));
+    header.putInt(0x50, fields);
+    header.putInt(0x58, methods);
+    File jar = new File(tmpDir, name + ".jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    out.putNextEntry(new ZipEntry("classes.dex"));
+    out.write(header.array());
+    out.close();
+    return jar;
+  }
+}
@@ -0,0 +1,88 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests Execution.
+ */
+public class ExecutionTest extends TestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    BuildMetrics.reset();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Execution.setLimits(BuildPipeline.Stage.KAWA, 0, 0);
+    BuildTrace.setCurrent(null);
+    BuildMetrics.reset();
+  }
+
+  public void testOutputGoesToStringBuffers() throws Exception {
+    if (!isUnix()) {
+      return;
+    }
+    StringBuffer out = new StringBuffer();
+    StringBuffer err = new StringBuffer();
+    int exitValue = Execution.execute(null,
+        new String[] { "/bin/sh", "-c", "echo out; echo err >&2; exit 3" }, out, err);
+    assertEquals(3, exitValue);
+    assertEquals("out\n", out.toString());
+    assertEquals("err\n", err.toString());
+  }
+
+  public void testSameStreamGetsBothOutputs() throws Exception {
+    if (!isUnix()) {
+      return;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, true);
+    assertTrue(Execution.execute(null,
+        new String[] { "/bin/sh", "-c", "echo one; echo two >&2; echo three" }, out, out));
+    assertEquals("one\ntwo\nthree\n", bytes.toString());
+  }
+
+  public void testRunawayProcessIsKilled() throws Exception {
+    if (!isUnix()) {
+      return;
+    }
+    BuildTrace trace = new BuildTrace();
+    BuildTrace.setCurrent(trace);
+    Execution.setLimits(BuildPipeline.Stage.KAWA, 500, 0);
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    long start = System.currentTimeMillis();
+    assertFalse(Execution.execute(null, new String[] { "/bin/sh", "-c", "exec sleep 30" },
+        System.out, new PrintStream(err, true), BuildPipeline.Stage.KAWA));
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    assertTrue(err.toString(), err.toString().contains("ran for more than"));
+
+    List<BuildTrace.ChildProcess> processes = trace.getProcesses();
+    assertEquals(1, processes.size());
+    assertNotNull(processes.get(0).killReason);
+    assertEquals(1, BuildMetrics.toJson().getJSONObject("processes").getJSONObject("sh")
+        .getLong("kills"));
+  }
+
+  public void testProcessesOfOtherStagesAreNotLimited() throws Exception {
+    if (!isUnix()) {
+      return;
+    }
+    Execution.setLimits(BuildPipeline.Stage.KAWA, 100, 0);
+    assertTrue(Execution.execute(null, new String[] { "/bin/sh", "-c", "sleep 0.5" },
+        System.out, System.err, BuildPipeline.Stage.DX));
+  }
+
+  private static boolean isUnix() {
+    return !System.getProperty("os.name").startsWith("Windows");
+  }
+}
@@ -0,0 +1,117 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests KawaCompilerPool class.
+ */
+public class KawaCompilerPoolTest extends TestCase {
+  private File tmpDir;
+  private String kawaClasspath;
+  private String runtime;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    kawaClasspath = new File(Class.forName("kawa.repl").getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).getAbsolutePath();
+    // The worker loads the runtime once, so the macro must be usable by every compilation.
+    runtime = write("runtime.scm",
+        "(define-syntax twice (syntax-rules () ((_ x) (* 2 x))))\n");
+    KawaCompilerPool.setMaxIdleWorkers(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    KawaCompilerPool.setMaxIdleWorkers(0);
+    Execution.setLimits(BuildPipeline.Stage.KAWA, 0, 0);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testWorkerIsReusedAcrossBuilds() throws Exception {
+    String screen = write("Screen1.scm", "(define (go) (twice 21))\n");
+    int started = getCounter("kawa-worker-pool-started");
+    int compilations = getCounter("kawa-worker-pool-compilations");
+
+    for (String build : new String[] { "build1", "build2" }) {
+      File classesDir = new File(tmpDir, build);
+      classesDir.mkdir();
+      assertEquals(KawaCompilerPool.Outcome.SUCCEEDED, compile(classesDir, screen, System.err));
+      assertTrue(new File(classesDir, "appinventor/test/Screen1.class").exists());
+      assertTrue(new File(classesDir, "appinventor/test/runtime.class").exists());
+    }
+
+    assertEquals(started + 1, getCounter("kawa-worker-pool-started"));
+    assertEquals(compilations + 2, getCounter("kawa-worker-pool-compilations"));
+  }
+
+  public void testCompileErrorKeepsWorker() throws Exception {
+    String broken = write("Broken.scm", "(define (go) (twice 21)\n");
+    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+    int started = getCounter("kawa-worker-pool-started");
+
+    assertEquals(KawaCompilerPool.Outcome.FAILED,
+        compile(tmpDir, broken, new PrintStream(messages)));
+    assertTrue(messages.toString().contains("Broken.scm:1:1:"));
+    assertEquals(1, getCounter("kawa-worker-pool-idle"));
+
+    // The same worker goes on compiling.
+    String screen = write("Screen1.scm", "(define (go) (twice 21))\n");
+    assertEquals(KawaCompilerPool.Outcome.SUCCEEDED, compile(tmpDir, screen, System.err));
+    assertTrue(new File(tmpDir, "appinventor/test/Screen1.class").exists());
+    assertEquals(started + 1, getCounter("kawa-worker-pool-started"));
+  }
+
+  public void testWorkerThatExceedsTheLimitsIsKilled() throws Exception {
+    if (!"Linux".equals(System.getProperty("os.name"))) {
+      return;  // The memory of a process is only known on Linux.
+    }
+    String screen = write("Screen1.scm", "(define (go) (twice 21))\n");
+    assertEquals(KawaCompilerPool.Outcome.SUCCEEDED, compile(tmpDir, screen, System.err));
+    int idle = getCounter("kawa-worker-pool-idle");
+    assertEquals(1, idle);
+
+    // No JVM fits in 1 MB.
+    Execution.setLimits(BuildPipeline.Stage.KAWA, 0, 1024);
+    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+    assertEquals(KawaCompilerPool.Outcome.FAILED,
+        compile(tmpDir, screen, new PrintStream(messages)));
+    assertTrue(messages.toString().contains("Killed the Kawa compiler worker because it used more"));
+    assertEquals(0, getCounter("kawa-worker-pool-idle"));
+  }
+
+  private KawaCompilerPool.Outcome compile(File classesDir, String screen, PrintStream err)
+      throws Exception {
+    return KawaCompilerPool.compile(kawaClasspath, 256, runtime,
+        Lists.newArrayList("-d", classesDir.getAbsolutePath(), "-P", "appinventor.test.",
+            "-C", screen, runtime), err);
+  }
+
+  private String write(String name, String contents) throws Exception {
+    File file = new File(tmpDir, name);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file.getAbsolutePath();
+  }
+
+  private static int getCounter(String name) {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    KawaCompilerPool.addVariables(variables);
+    return Integer.parseInt(variables.get(name));
+  }
+}
@@ -0,0 +1,138 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests PreDexStore class.
+ */
+public class PreDexStoreTest extends TestCase {
+  private File tmpDir;
+  private File storeDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    storeDir = new File(tmpDir, "dexCache");
+    storeDir.mkdir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testLibraryIsDexedOnceByConcurrentBuilds() throws Exception {
+    final File library = write("kawa.jar", "kawa");
+    final CountingDexer dexer = new CountingDexer();
+    final CountDownLatch start = new CountDownLatch(1);
+    final File[] results = new File[4];
+    Thread[] builds = new Thread[results.length];
+    for (int i = 0; i < builds.length; i++) {
+      final int build = i;
+      builds[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            results[build] = PreDexStore.getPreDexed(storeDir, library, dexer);
+          } catch (Exception e) {
+            // results[build] stays null.
+          }
+        }
+      };
+      builds[i].start();
+    }
+    start.countDown();
+    for (Thread build : builds) {
+      build.join();
+    }
+
+    assertEquals(1, dexer.count.get());
+    for (File result : results) {
+      assertEquals(results[0], result);
+    }
+    assertEquals("dexed kawa", Files.toString(results[0], Charsets.UTF_8));
+  }
+
+  public void testSameContentsShareThePreDexedLibrary() throws Exception {
+    CountingDexer dexer = new CountingDexer();
+    File first = PreDexStore.getPreDexed(storeDir, write("a/twitter4j.jar", "twitter"), dexer);
+    File second = PreDexStore.getPreDexed(storeDir, write("b/twitter4j.jar", "twitter"), dexer);
+
+    assertEquals(first, second);
+    assertEquals(1, dexer.count.get());
+  }
+
+  public void testFailedDexLeavesNothingBehind() throws Exception {
+    PreDexStore.Dexer failingDexer = new PreDexStore.Dexer() {
+      @Override
+      public boolean dex(File input, File output) {
+        try {
+          // dx may leave a partial output behind when it fails.
+          Files.write("partial", output, Charsets.UTF_8);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return false;
+      }
+    };
+
+    assertNull(PreDexStore.getPreDexed(storeDir, write("acra.jar", "acra"), failingDexer));
+    assertEquals(0, storeDir.list().length);
+  }
+
+  public void testEvictionKeepsRecentlyUsedLibraries() throws Exception {
+    CountingDexer dexer = new CountingDexer();
+    File old = PreDexStore.getPreDexed(storeDir, write("old.jar", "old"), dexer);
+    File recent = PreDexStore.getPreDexed(storeDir, write("recent.jar", "recent"), dexer);
+    File recentToo = PreDexStore.getPreDexed(storeDir, write("recentToo.jar", "recentToo"), dexer);
+    long anHourAgo = System.currentTimeMillis() - 60 * 60 * 1000;
+    old.setLastModified(anHourAgo);
+
+    assertEquals(1, PreDexStore.evict(storeDir, 0));
+
+    assertFalse(old.exists());
+    assertTrue(recent.exists());
+    assertTrue(recentToo.exists());
+  }
+
+  private File write(String name, String contents) throws Exception {
+    File file = new File(tmpDir, name);
+    file.getParentFile().mkdirs();
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+
+  /*
+   * Writes "dexed " followed by the contents of the input, slowly.
+   */
+  private static class CountingDexer implements PreDexStore.Dexer {
+    final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public boolean dex(File input, File output) {
+      count.incrementAndGet();
+      try {
+        Thread.sleep(100);
+        Files.write("dexed " + Files.toString(input, Charsets.UTF_8), output, Charsets.UTF_8);
+        return true;
+      } catch (Exception e) {
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests how ProjectBuilder treats the outcome of generating the YAIL for a screen.
+ */
+public class ProjectBuilderTest extends TestCase {
+  private File tmpDir;
+  private String yailPath;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    yailPath = new File(tmpDir, "Screen1.yail").getAbsolutePath();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testYailIsWrittenOnSuccess() throws Exception {
+    File yail = ProjectBuilder.writeGeneratedYail("Screen1", yailPath, 0, "(yail)", "");
+    assertEquals("(yail)", Files.toString(yail, Charsets.UTF_8));
+  }
+
+  public void testExitCodeOneIsAYailGenerationError() throws Exception {
+    try {
+      ProjectBuilder.writeGeneratedYail("Screen1", yailPath, 1, "", "empty socket");
+      fail();
+    } catch (ProjectBuilder.YailGenerationException e) {
+      assertEquals("Screen1", e.getFormName());
+      assertTrue(e.getMessage().contains("empty socket"));
+    }
+    assertFalse(new File(yailPath).exists());
+  }
+
+  public void testOtherExitCodesAreUnexpected() throws Exception {
+    for (int exitValue : new int[] { -1, 2, 137 }) {
+      try {
+        ProjectBuilder.writeGeneratedYail("Screen1", yailPath, exitValue, "", "killed");
+        fail();
+      } catch (ProjectBuilder.YailGenerationException e) {
+        fail();
+      } catch (RuntimeException e) {
+        assertTrue(e.getMessage().contains("exited with code " + exitValue));
+      }
+    }
+    assertFalse(new File(yailPath).exists());
+  }
+}
@@ -0,0 +1,62 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests RingBufferOutputStream.
+ */
+public class RingBufferOutputStreamTest extends TestCase {
+
+  public void testKeepsEverythingUpToCapacity() throws Exception {
+    RingBufferOutputStream out = new RingBufferOutputStream(8);
+    out.write("abc".getBytes());
+    out.write('d');
+    assertEquals("abcd", out.toString());
+    assertEquals(0, out.getDroppedBytes());
+  }
+
+  public void testKeepsTheEnd() throws Exception {
+    RingBufferOutputStream out = new RingBufferOutputStream(4);
+    out.write("abc".getBytes());
+    out.write("defg".getBytes(), 1, 2);
+    out.write('h');
+    assertEquals("cefh", new String(out.toByteArray()));
+    assertEquals(2, out.getDroppedBytes());
+    assertEquals(6, out.getWrittenBytes());
+    // The dropped bytes are up to the caller to report.
+    assertEquals("cefh", out.toString());
+  }
+
+  public void testGrowsUpToCapacity() throws Exception {
+    RingBufferOutputStream out = new RingBufferOutputStream(20000);
+    byte[] bytes = new byte[15000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    for (byte b : bytes) {
+      out.write(b);
+    }
+    assertTrue(Arrays.equals(bytes, out.toByteArray()));
+    out.write(bytes, 0, 10000);
+    assertEquals(5000, out.getDroppedBytes());
+    byte[] kept = out.toByteArray();
+    assertEquals(20000, kept.length);
+    assertEquals(bytes[5000], kept[0]);
+    assertEquals(bytes[9999], kept[19999]);
+  }
+
+  public void testLargeWrite() throws Exception {
+    RingBufferOutputStream out = new RingBufferOutputStream(3);
+    out.write('a');
+    out.write("0123456789".getBytes());
+    assertEquals("789", new String(out.toByteArray()));
+    assertEquals(8, out.getDroppedBytes());
+  }
+}
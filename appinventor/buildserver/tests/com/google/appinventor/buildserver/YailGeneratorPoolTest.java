@@ -0,0 +1,139 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests YailGeneratorPool and YailGeneratorWorker classes.
+ */
+public class YailGeneratorPoolTest extends TestCase {
+  private File tmpDir;
+  private String generatorJar;
+
+  /**
+   * Stands in for the main class of YailGenerator.jar. The form file says what to do: print the
+   * YAIL, exit with a code, or throw.
+   */
+  public static final class FakeGenerator {
+    public static void main(String[] args) throws Exception {
+      String form = new String(java.nio.file.Files.readAllBytes(new File(args[0]).toPath()),
+          "UTF-8").trim();
+      if (form.startsWith("exit ")) {
+        System.err.println("exiting");
+        System.exit(Integer.parseInt(form.substring(5)));
+      } else if (form.equals("throw")) {
+        throw new IllegalStateException("generator bug");
+      }
+      System.out.print("(yail " + form + ")");
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    generatorJar = makeGeneratorJar();
+    YailGeneratorPool.setMaxIdleWorkers(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    YailGeneratorPool.setMaxIdleWorkers(0);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testWorkerIsReusedAcrossScreens() throws Exception {
+    int started = getCounter("yail-worker-pool-started");
+
+    YailGeneratorPool.Generation screen1 = generate("Screen1", "Screen1");
+    assertEquals(0, screen1.exitCode);
+    assertEquals("(yail Screen1)", screen1.out);
+    YailGeneratorPool.Generation screen2 = generate("Screen2", "Screen2");
+    assertEquals(0, screen2.exitCode);
+    assertEquals("(yail Screen2)", screen2.out);
+
+    assertEquals(started + 1, getCounter("yail-worker-pool-started"));
+    assertEquals(1, getCounter("yail-worker-pool-idle"));
+  }
+
+  public void testExitsAndExceptionsAreReportedAndKeepTheWorker() throws Exception {
+    int started = getCounter("yail-worker-pool-started");
+
+    YailGeneratorPool.Generation exited = generate("Exits", "exit 1");
+    assertEquals(1, exited.exitCode);
+    assertEquals("", exited.out);
+    assertEquals("exiting", exited.err.trim());
+
+    YailGeneratorPool.Generation crashed = generate("Throws", "throw");
+    assertEquals(YailGeneratorWorker.EXIT_CODE_EXCEPTION, crashed.exitCode);
+    assertTrue(crashed.err.contains("generator bug"));
+
+    // The worker outlives both and goes on generating.
+    assertEquals(0, generate("Screen1", "Screen1").exitCode);
+    assertEquals(started + 1, getCounter("yail-worker-pool-started"));
+  }
+
+  public void testWorkerIsRetiredAfterMaxScreens() throws Exception {
+    int started = getCounter("yail-worker-pool-started");
+    YailGeneratorPool.setMaxScreensPerWorker(1);
+    try {
+      generate("Screen1", "Screen1");
+      generate("Screen2", "Screen2");
+    } finally {
+      YailGeneratorPool.setMaxScreensPerWorker(100);
+    }
+    assertEquals(started + 2, getCounter("yail-worker-pool-started"));
+  }
+
+  private YailGeneratorPool.Generation generate(String name, String form) throws Exception {
+    File formFile = new File(tmpDir, name + ".scm");
+    Files.write(form, formFile, Charsets.UTF_8);
+    return YailGeneratorPool.generate(generatorJar, formFile.getAbsolutePath(),
+        new File(tmpDir, name + ".bky").getAbsolutePath(),
+        new File(tmpDir, name + ".yail").getAbsolutePath());
+  }
+
+  // Makes a jar like YailGenerator.jar, whose main class is FakeGenerator.
+  private String makeGeneratorJar() throws Exception {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, FakeGenerator.class.getName());
+    File jar = new File(tmpDir, "YailGenerator.jar");
+    String classFile = FakeGenerator.class.getName().replace('.', '/') + ".class";
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+    InputStream in = FakeGenerator.class.getClassLoader().getResourceAsStream(classFile);
+    try {
+      out.putNextEntry(new JarEntry(classFile));
+      ByteStreams.copy(in, out);
+      out.closeEntry();
+    } finally {
+      in.close();
+      out.close();
+    }
+    return jar.getAbsolutePath();
+  }
+
+  private static int getCounter(String name) {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    YailGeneratorPool.addVariables(variables);
+    return Integer.parseInt(variables.get(name));
+  }
+}
@@ -0,0 +1,188 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The projects that a benchmark sends to the build server, as the zips that App Engine would
+ * send.
+ *
+ * <p>A corpus directory may hold .aia files, which are sent as they are, and directories with the
+ * .scm and .bky files of the screens of a project, such as the samples in
+ * blocklyeditor/tests/com/google/appinventor/blocklyeditor/data, which are wrapped into a project.
+ * Large projects, with many screens of many components and blocks, can also be generated.</p>
+ */
+final class BenchmarkCorpus {
+
+  private static final String PACKAGE = "appinventor.ai_bench";
+
+  /**
+   * A project of the corpus.
+   */
+  static final class Project {
+    final String name;
+    final byte[] zip;
+
+    Project(String name, byte[] zip) {
+      this.name = name;
+      this.zip = zip;
+    }
+  }
+
+  private final List<Project> projects = Lists.newArrayList();
+
+  /**
+   * Adds the .aia files and the directories of screen files in the given directory.
+   */
+  void addDirectory(File dir) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Unable to list " + dir);
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      if (file.isFile() && file.getName().endsWith(".aia")) {
+        String name = file.getName().substring(0, file.getName().length() - ".aia".length());
+        projects.add(new Project(name, Files.toByteArray(file)));
+      } else if (file.isDirectory()) {
+        Map<String, byte[]> screenFiles = Maps.newTreeMap();
+        for (File screenFile : file.listFiles()) {
+          String fileName = screenFile.getName();
+          if (fileName.endsWith(".scm") || fileName.endsWith(".bky")) {
+            screenFiles.put(fileName, Files.toByteArray(screenFile));
+          }
+        }
+        if (!screenFiles.isEmpty()) {
+          String name = toProjectName(file.getName());
+          projects.add(new Project(name, zipProject(name, screenFiles)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds generated projects.
+   *
+   * @param count  the number of projects
+   * @param screens  the number of screens of each project
+   * @param components  the number of buttons, and of labels, on each screen, each button having a
+   *     Click event handler that sets the text of a label
+   */
+  void addGenerated(int count, int screens, int components) throws IOException {
+    for (int i = 1; i <= count; i++) {
+      String name = "Generated" + i;
+      projects.add(new Project(name, zipProject(name, generateScreens(screens, components))));
+    }
+  }
+
+  List<Project> getProjects() {
+    return Collections.unmodifiableList(projects);
+  }
+
+  /*
+   * Writes the zip of a project with the given screen files and a project.properties.
+   */
+  static byte[] zipProject(String name, Map<String, byte[]> screenFiles) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ZipOutputStream zip = new ZipOutputStream(bytes);
+    zip.putNextEntry(new ZipEntry("youngandroidproject/project.properties"));
+    zip.write(("main=" + PACKAGE + "." + name + ".Screen1\n"
+        + "name=" + name + "\n"
+        + "assets=../assets\n"
+        + "source=../src\n"
+        + "build=../build\n"
+        + "versioncode=1\n"
+        + "versionname=1.0\n"
+        + "useslocation=False\n"
+        + "aname=" + name + "\n").getBytes(Charsets.UTF_8));
+    String sourceDir = "src/" + PACKAGE.replace('.', '/') + "/" + name + "/";
+    for (Map.Entry<String, byte[]> screenFile : screenFiles.entrySet()) {
+      zip.putNextEntry(new ZipEntry(sourceDir + screenFile.getKey()));
+      zip.write(screenFile.getValue());
+    }
+    zip.close();
+    return bytes.toByteArray();
+  }
+
+  /*
+   * Returns the .scm and .bky files of the given number of screens.
+   */
+  static Map<String, byte[]> generateScreens(int screens, int components) {
+    Map<String, byte[]> screenFiles = Maps.newTreeMap();
+    for (int screen = 1; screen <= screens; screen++) {
+      String screenName = "Screen" + screen;
+      StringBuilder scm = new StringBuilder();
+      scm.append("#|\n$JSON\n{\"YaVersion\":\"76\",\"Source\":\"Form\",\"Properties\":{")
+          .append("\"$Name\":\"").append(screenName).append("\",\"$Type\":\"Form\",")
+          .append("\"$Version\":\"10\",\"Uuid\":\"0\",\"Title\":\"").append(screenName)
+          .append("\",\"$Components\":[");
+      StringBuilder bky = new StringBuilder("<xml>\n");
+      for (int i = 1; i <= components; i++) {
+        if (i > 1) {
+          scm.append(',');
+        }
+        scm.append("{\"$Name\":\"Button").append(i).append("\",\"$Type\":\"Button\",")
+            .append("\"$Version\":\"5\",\"Uuid\":\"").append(2 * i - 1)
+            .append("\",\"Text\":\"Button ").append(i).append("\"},")
+            .append("{\"$Name\":\"Label").append(i).append("\",\"$Type\":\"Label\",")
+            .append("\"$Version\":\"2\",\"Uuid\":\"").append(2 * i).append("\"}");
+        bky.append("  <block type=\"Button").append(i).append("_Click\" x=\"10\" y=\"")
+            .append(100 * i).append("\">\n")
+            .append("    <title name=\"COMPONENT_SELECTOR\">Button").append(i)
+            .append("</title>\n")
+            .append("    <statement name=\"DO\">\n")
+            .append("      <block type=\"Label").append(i)
+            .append("_setproperty\" inline=\"false\">\n")
+            .append("        <mutation yailtype=\"text\"></mutation>\n")
+            .append("        <title name=\"COMPONENT_SELECTOR\">Label").append(i)
+            .append("</title>\n")
+            .append("        <title name=\"PROP\">Text</title>\n")
+            .append("        <value name=\"VALUE\">\n")
+            .append("          <block type=\"text\">\n")
+            .append("            <title name=\"TEXT\">").append(screenName)
+            .append(" button ").append(i).append("</title>\n")
+            .append("          </block>\n")
+            .append("        </value>\n")
+            .append("      </block>\n")
+            .append("    </statement>\n")
+            .append("  </block>\n");
+      }
+      scm.append("]}}\n|#");
+      bky.append("</xml>\n");
+      screenFiles.put(screenName + ".scm", scm.toString().getBytes(Charsets.UTF_8));
+      screenFiles.put(screenName + ".bky", bky.toString().getBytes(Charsets.UTF_8));
+    }
+    return screenFiles;
+  }
+
+  /*
+   * Turns a directory name into a project name, which must be a valid Java identifier.
+   */
+  private static String toProjectName(String dirName) {
+    StringBuilder name = new StringBuilder();
+    for (char c : dirName.toCharArray()) {
+      name.append(Character.isJavaIdentifierPart(c) ? c : '_');
+    }
+    if (name.length() == 0 || !Character.isJavaIdentifierStart(name.charAt(0))) {
+      name.insert(0, 'P');
+    }
+    return name.toString();
+  }
+}
@@ -0,0 +1,98 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BenchmarkCorpus class.
+ */
+public class BenchmarkCorpusTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testSampleDirectoriesAreWrappedIntoProjects() throws Exception {
+    File sample = new File(tmpDir, "hello-purr");
+    sample.mkdir();
+    Files.write("#|\n$JSON\n{}\n|#", new File(sample, "Screen1.scm"), Charsets.UTF_8);
+    Files.write("<xml></xml>", new File(sample, "Screen1.bky"), Charsets.UTF_8);
+    Files.write(new byte[] { 1, 2, 3 }, new File(tmpDir, "Quiz.aia"));
+
+    BenchmarkCorpus corpus = new BenchmarkCorpus();
+    corpus.addDirectory(tmpDir);
+    List<BenchmarkCorpus.Project> projects = corpus.getProjects();
+    assertEquals(2, projects.size());
+    assertEquals("Quiz", projects.get(0).name);
+    assertEquals(3, projects.get(0).zip.length);
+
+    assertEquals("hello_purr", projects.get(1).name);
+    Map<String, String> entries = unzip(projects.get(1).zip);
+    assertEquals(Lists.newArrayList("youngandroidproject/project.properties",
+        "src/appinventor/ai_bench/hello_purr/Screen1.bky",
+        "src/appinventor/ai_bench/hello_purr/Screen1.scm"),
+        Lists.newArrayList(entries.keySet()));
+    assertTrue(entries.get("youngandroidproject/project.properties")
+        .contains("main=appinventor.ai_bench.hello_purr.Screen1\n"));
+  }
+
+  public void testGeneratedProjectsHaveTheirScreensAndBlocks() throws Exception {
+    BenchmarkCorpus corpus = new BenchmarkCorpus();
+    corpus.addGenerated(2, 3, 5);
+    assertEquals(2, corpus.getProjects().size());
+
+    Map<String, String> entries = unzip(corpus.getProjects().get(1).zip);
+    // project.properties and a .scm and a .bky per screen
+    assertEquals(7, entries.size());
+    String scm = entries.get("src/appinventor/ai_bench/Generated2/Screen3.scm");
+    assertTrue(scm.contains("\"$Name\":\"Screen3\""));
+    assertTrue(scm.contains("\"$Name\":\"Label5\""));
+    String bky = entries.get("src/appinventor/ai_bench/Generated2/Screen3.bky");
+    assertTrue(bky.contains("<block type=\"Button5_Click\""));
+  }
+
+  public void testPercentile() {
+    List<Long> samples = Lists.newArrayList();
+    for (long i = 1; i <= 200; i++) {
+      samples.add(i);
+    }
+    assertEquals(100, BuildLoadBenchmark.percentile(samples, 50));
+    assertEquals(198, BuildLoadBenchmark.percentile(samples, 99));
+    assertEquals(0, BuildLoadBenchmark.percentile(Lists.<Long>newArrayList(), 50));
+  }
+
+  private static Map<String, String> unzip(byte[] zip) throws IOException {
+    Map<String, String> entries = Maps.newLinkedHashMap();
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip));
+    for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+      entries.put(entry.getName(), new String(ByteStreams.toByteArray(in), Charsets.UTF_8));
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,513 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a corpus of projects to a running build server through build-all-from-zip-async, receives
+ * the results in place of App Engine, and reports the throughput, the latency of the builds and
+ * of each build stage, the rejection rate and the peak resident set size.
+ *
+ * <p>Requests either come from a fixed number of clients that each send their next request once
+ * the results of the previous one arrived (--concurrency), or arrive at random at a given average
+ * rate whatever the build server is doing (--rate). Everything runs on the local machine, so runs
+ * with different build server options can be compared. For example:</p>
+ *
+ * <pre>
+ *   ant RunLocalBuildServer &amp;
+ *   ant RunBuildServerBenchmark -Dbenchmark.args="--requests 200 --concurrency 16"
+ * </pre>
+ */
+public final class BuildLoadBenchmark {
+
+  static class CommandLineOptions {
+    @Option(name = "--buildServer",
+      usage = "the url of the build server")
+    String buildServer = "http://localhost:9990";
+
+    @Option(name = "--corpus",
+      usage = "a directory of .aia files and of directories of .scm and .bky files")
+    File corpus = null;
+
+    @Option(name = "--generatedProjects",
+      usage = "Number of large projects to generate and add to the corpus.")
+    int generatedProjects = 0;
+
+    @Option(name = "--generatedScreens",
+      usage = "Number of screens of each generated project.")
+    int generatedScreens = 10;
+
+    @Option(name = "--generatedComponents",
+      usage = "Number of buttons and of labels on each screen of a generated project.")
+    int generatedComponents = 20;
+
+    @Option(name = "--requests",
+      usage = "Number of build requests to send.")
+    int requests = 50;
+
+    @Option(name = "--concurrency",
+      usage = "Number of clients that each wait for their build before sending the next one.")
+    int concurrency = 4;
+
+    @Option(name = "--rate",
+      usage = "Average number of build requests per minute, sent whether or not earlier builds are done. 0 means use --concurrency.")
+    double rate = 0;
+
+    @Option(name = "--users",
+      usage = "Number of different user names to send the requests as.")
+    int users = 100;
+
+    @Option(name = "--companionPercent",
+      usage = "Percentage of the requests that build the MIT AI2 Companion.")
+    int companionPercent = 0;
+
+    @Option(name = "--timeoutSeconds",
+      usage = "How long to wait for the results of a build.")
+    int timeoutSeconds = 600;
+
+    @Option(name = "--buildServerPid",
+      usage = "The process id of the build server, to report its peak resident set size.")
+    int buildServerPid = 0;
+
+    @Option(name = "--jsonReport",
+      usage = "a file to also write the report to, as JSON")
+    File jsonReport = null;
+  }
+
+  // The percentiles reported.
+  private static final int[] PERCENTILES = { 50, 95, 99 };
+
+  private static final String END_TO_END = "end-to-end";
+
+  private final CommandLineOptions options;
+  private final List<BenchmarkCorpus.Project> projects;
+  private final CallbackReceiver receiver;
+  private final Random random = new Random(0);
+
+  private final List<CallbackReceiver.Build> accepted =
+      Collections.synchronizedList(Lists.<CallbackReceiver.Build>newArrayList());
+  private final AtomicInteger sent = new AtomicInteger();
+  private final AtomicInteger rejected = new AtomicInteger();
+  private final AtomicInteger errors = new AtomicInteger();
+  private final AtomicLong peakRssKb = new AtomicLong(-1);
+
+  private BuildLoadBenchmark(CommandLineOptions options, List<BenchmarkCorpus.Project> projects)
+      throws IOException {
+    this.options = options;
+    this.projects = projects;
+    this.receiver = new CallbackReceiver();
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions options = new CommandLineOptions();
+    CmdLineParser cmdLineParser = new CmdLineParser(options);
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    BenchmarkCorpus corpus = new BenchmarkCorpus();
+    if (options.corpus != null) {
+      corpus.addDirectory(options.corpus);
+    }
+    corpus.addGenerated(options.generatedProjects, options.generatedScreens,
+        options.generatedComponents);
+    if (corpus.getProjects().isEmpty()) {
+      System.err.println("The corpus is empty. Use --corpus or --generatedProjects.");
+      System.exit(1);
+    }
+
+    BuildLoadBenchmark benchmark = new BuildLoadBenchmark(options, corpus.getProjects());
+    try {
+      JSONObject report = benchmark.run();
+      if (options.jsonReport != null) {
+        Files.write(report.toString(2), options.jsonReport, Charsets.UTF_8);
+      }
+    } finally {
+      benchmark.receiver.stop();
+    }
+    System.exit(0);
+  }
+
+  /*
+   * Sends the requests, waits for their results and prints the report.
+   */
+  private JSONObject run() throws Exception {
+    System.out.println("Sending " + options.requests + " requests with " + projects.size()
+        + " projects to " + options.buildServer);
+    Thread rssSampler = startRssSampler();
+    long start = System.currentTimeMillis();
+    if (options.rate > 0) {
+      runOpenLoop();
+    } else {
+      runClosedLoop();
+    }
+    long end = System.currentTimeMillis();
+    if (rssSampler != null) {
+      rssSampler.interrupt();
+    }
+    return report(end - start);
+  }
+
+  /*
+   * Sends requests at random times, at the average rate, and then waits for all the results.
+   */
+  private void runOpenLoop() throws InterruptedException {
+    ExecutorService senders = Executors.newCachedThreadPool();
+    double meanGapMillis = 60000.0 / options.rate;
+    for (int i = 0; i < options.requests; i++) {
+      final int index = i;
+      senders.execute(new Runnable() {
+        @Override
+        public void run() {
+          send(index);
+        }
+      });
+      // Poisson arrivals.
+      Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * meanGapMillis));
+    }
+    senders.shutdown();
+    senders.awaitTermination(options.timeoutSeconds, TimeUnit.SECONDS);
+    long deadline = System.currentTimeMillis() + options.timeoutSeconds * 1000L;
+    for (CallbackReceiver.Build build : snapshot()) {
+      build.done.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /*
+   * Runs the clients, each sending its next request when the results of its last one arrived.
+   */
+  private void runClosedLoop() throws InterruptedException {
+    final AtomicInteger next = new AtomicInteger();
+    ExecutorService clients = Executors.newFixedThreadPool(options.concurrency);
+    for (int i = 0; i < options.concurrency; i++) {
+      clients.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int index = next.getAndIncrement(); index < options.requests;
+               index = next.getAndIncrement()) {
+            CallbackReceiver.Build build = send(index);
+            if (build != null) {
+              try {
+                build.done.await(options.timeoutSeconds, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                return;
+              }
+            }
+          }
+        }
+      });
+    }
+    clients.shutdown();
+    clients.awaitTermination((long) options.requests * options.timeoutSeconds, TimeUnit.SECONDS);
+  }
+
+  /*
+   * Sends a request and returns the build, or null if the build server didn't accept it.
+   */
+  private CallbackReceiver.Build send(int index) {
+    BenchmarkCorpus.Project project = projects.get(index % projects.size());
+    String buildId = "benchmark-" + System.currentTimeMillis() + "-" + index;
+    boolean forCompanion = index % 100 < options.companionPercent;
+    CallbackReceiver.Build build =
+        new CallbackReceiver.Build(buildId, project.name, System.currentTimeMillis());
+    receiver.expect(build);
+    sent.incrementAndGet();
+    try {
+      URL url = new URL(options.buildServer + "/buildserver/build-all-from-zip-async"
+          + "?uname=" + encode("benchmark" + (index % options.users))
+          + "&callback=" + encode(receiver.getCallbackUrl(buildId))
+          + "&isForCompanion=" + forCompanion
+          + "&buildId=" + encode(buildId));
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.setFixedLengthStreamingMode(project.zip.length);
+      connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(project.zip);
+      } finally {
+        out.close();
+      }
+      int responseCode = connection.getResponseCode();
+      if (responseCode == HttpURLConnection.HTTP_OK) {
+        accepted.add(build);
+        return build;
+      } else if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+        rejected.incrementAndGet();
+      } else {
+        System.err.println("Request " + index + " failed with " + responseCode);
+        errors.incrementAndGet();
+      }
+    } catch (IOException e) {
+      System.err.println("Request " + index + " failed: " + e);
+      errors.incrementAndGet();
+    }
+    return null;
+  }
+
+  /*
+   * Prints the report and returns it as JSON.
+   */
+  private JSONObject report(long millis) throws JSONException {
+    List<CallbackReceiver.Build> builds = snapshot();
+    int succeeded = 0;
+    int failed = 0;
+    int timedOut = 0;
+    Map<String, List<Long>> latencies = Maps.newLinkedHashMap();
+    latencies.put(END_TO_END, Lists.<Long>newArrayList());
+    int missingTraces = 0;
+    for (CallbackReceiver.Build build : builds) {
+      if (build.done.getCount() > 0) {
+        timedOut++;
+        continue;
+      }
+      if (build.succeeded) {
+        succeeded++;
+      } else {
+        failed++;
+      }
+      latencies.get(END_TO_END).add(build.callbackTime - build.submitTime);
+      if (!addStageLatencies(build.buildId, latencies)) {
+        missingTraces++;
+      }
+    }
+
+    JSONObject report = new JSONObject();
+    report.put("sent", sent.get());
+    report.put("accepted", builds.size());
+    report.put("rejected", rejected.get());
+    report.put("errors", errors.get());
+    report.put("succeeded", succeeded);
+    report.put("failed", failed);
+    report.put("timedOut", timedOut);
+    report.put("seconds", millis / 1000.0);
+    double buildsPerMinute = (succeeded + failed) * 60000.0 / Math.max(1, millis);
+    report.put("buildsPerMinute", buildsPerMinute);
+    double rejectionRate = sent.get() == 0 ? 0 : (double) rejected.get() / sent.get();
+    report.put("rejectionRate", rejectionRate);
+
+    System.out.println();
+    System.out.println(String.format("Requests: %d sent, %d accepted, %d rejected (%.1f%%), "
+        + "%d errors", sent.get(), builds.size(), rejected.get(), rejectionRate * 100,
+        errors.get()));
+    System.out.println(String.format("Builds: %d succeeded, %d failed, %d timed out",
+        succeeded, failed, timedOut));
+    System.out.println(String.format("Throughput: %.2f builds/minute over %.1f seconds",
+        buildsPerMinute, millis / 1000.0));
+
+    System.out.println();
+    System.out.println(String.format("%-20s %8s %8s %8s %8s", "Latency (ms)", "count", "p50",
+        "p95", "p99"));
+    JSONObject latenciesJson = new JSONObject();
+    for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+      List<Long> samples = entry.getValue();
+      Collections.sort(samples);
+      JSONObject json = new JSONObject();
+      json.put("count", samples.size());
+      StringBuilder line = new StringBuilder(String.format("%-20s %8d", entry.getKey(),
+          samples.size()));
+      for (int percent : PERCENTILES) {
+        long value = percentile(samples, percent);
+        json.put("p" + percent, value);
+        line.append(String.format(" %8d", value));
+      }
+      latenciesJson.put(entry.getKey(), json);
+      System.out.println(line);
+    }
+    if (missingTraces > 0) {
+      System.out.println("(" + missingTraces + " builds had no trace)");
+    }
+    report.put("latencyMillis", latenciesJson);
+
+    System.out.println();
+    if (peakRssKb.get() >= 0) {
+      System.out.println("Peak RSS of the build server: " + peakRssKb.get() + " KB");
+      report.put("buildServerPeakRssKb", peakRssKb.get());
+    }
+    JSONObject processes = getChildProcessPeakRss();
+    if (processes != null) {
+      for (Iterator<?> names = processes.keys(); names.hasNext(); ) {
+        String name = (String) names.next();
+        System.out.println("Peak RSS of " + name + " (p99 since the build server started): "
+            + processes.getLong(name) + " KB");
+      }
+      report.put("childProcessPeakRssKb", processes);
+    }
+    return report;
+  }
+
+  /*
+   * Adds the time each stage of a build took, from the build's trace, and returns whether the
+   * build server still had the trace.
+   */
+  private boolean addStageLatencies(String buildId, Map<String, List<Long>> latencies) {
+    JSONObject progress = getJson("/buildserver/progress?buildId=" + encode(buildId));
+    if (progress == null || progress.optJSONObject("trace") == null) {
+      return false;
+    }
+    JSONArray stages = progress.optJSONObject("trace").optJSONArray("stages");
+    Map<String, Long> stageMillis = Maps.newLinkedHashMap();
+    for (int i = 0; stages != null && i < stages.length(); i++) {
+      JSONObject stage = stages.optJSONObject(i);
+      if (stage != null && stage.has("millis")) {
+        String name = stage.optString("stage");
+        Long total = stageMillis.get(name);
+        stageMillis.put(name, (total == null ? 0 : total) + stage.optLong("millis"));
+      }
+    }
+    for (Map.Entry<String, Long> entry : stageMillis.entrySet()) {
+      List<Long> samples = latencies.get(entry.getKey());
+      if (samples == null) {
+        samples = Lists.newArrayList();
+        latencies.put(entry.getKey(), samples);
+      }
+      samples.add(entry.getValue());
+    }
+    return true;
+  }
+
+  /*
+   * Returns the 99th percentile of the peak resident set size of each kind of child process, in
+   * KB, from the build server's metrics.
+   */
+  private JSONObject getChildProcessPeakRss() throws JSONException {
+    JSONObject metrics = getJson("/buildserver/metrics");
+    if (metrics == null || metrics.optJSONObject("processes") == null) {
+      return null;
+    }
+    JSONObject processes = metrics.getJSONObject("processes");
+    JSONObject peakRss = new JSONObject();
+    for (Iterator<?> names = processes.keys(); names.hasNext(); ) {
+      String name = (String) names.next();
+      JSONObject rss = processes.getJSONObject(name).optJSONObject("peakRssKb");
+      if (rss != null) {
+        peakRss.put(name, rss.optLong("p99"));
+      }
+    }
+    return peakRss;
+  }
+
+  /*
+   * Samples the resident set size of the build server every 200 milliseconds and keeps the
+   * largest, if the build server's process id is known and the system has /proc.
+   */
+  private Thread startRssSampler() {
+    final File status = new File("/proc/" + options.buildServerPid + "/status");
+    if (options.buildServerPid == 0 || !status.isFile()) {
+      return null;
+    }
+    Thread sampler = new Thread("RSS sampler") {
+      @Override
+      public void run() {
+        try {
+          while (!isInterrupted()) {
+            for (String line : Files.readLines(status, Charsets.UTF_8)) {
+              if (line.startsWith("VmRSS:")) {
+                long kb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                if (kb > peakRssKb.get()) {
+                  peakRssKb.set(kb);
+                }
+              }
+            }
+            Thread.sleep(200);
+          }
+        } catch (IOException e) {
+          // The build server exited.
+        } catch (InterruptedException e) {
+          // The benchmark is over.
+        }
+      }
+    };
+    sampler.setDaemon(true);
+    sampler.start();
+    return sampler;
+  }
+
+  private JSONObject getJson(String path) {
+    try {
+      HttpURLConnection connection =
+          (HttpURLConnection) new URL(options.buildServer + path).openConnection();
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        return null;
+      }
+      InputStream in = connection.getInputStream();
+      try {
+        return new JSONObject(new String(ByteStreams.toByteArray(in), Charsets.UTF_8));
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    } catch (JSONException e) {
+      return null;
+    }
+  }
+
+  private List<CallbackReceiver.Build> snapshot() {
+    synchronized (accepted) {
+      return Lists.newArrayList(accepted);
+    }
+  }
+
+  /*
+   * Returns the nearest-rank percentile of sorted samples, or 0 if there are none.
+   */
+  static long percentile(List<Long> sortedSamples, int percent) {
+    if (sortedSamples.isEmpty()) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percent / 100.0 * sortedSamples.size());
+    return sortedSamples.get(Math.max(0, rank - 1));
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Receives the results of builds from the build server, as App Engine's ReceiveBuildServlet
+ * would, and notes when each build's results arrived and whether the build produced an apk.
+ */
+final class CallbackReceiver implements HttpHandler {
+
+  private static final String PATH = "/callback/";
+
+  /**
+   * A build request and, once they arrive, its results.
+   */
+  static final class Build {
+    final String buildId;
+    final String projectName;
+    final long submitTime;
+    final CountDownLatch done = new CountDownLatch(1);
+
+    // Set before done is counted down.
+    volatile long callbackTime = 0;
+    volatile boolean succeeded = false;
+    volatile long resultBytes = 0;
+
+    Build(String buildId, String projectName, long submitTime) {
+      this.buildId = buildId;
+      this.projectName = projectName;
+      this.submitTime = submitTime;
+    }
+  }
+
+  private final HttpServer server;
+  private final ConcurrentMap<String, Build> builds = new ConcurrentHashMap<String, Build>();
+
+  CallbackReceiver() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(PATH, this);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  /**
+   * Returns the callback url for the given build.
+   */
+  String getCallbackUrl(String buildId) {
+    return "http://localhost:" + server.getAddress().getPort() + PATH + buildId;
+  }
+
+  /**
+   * Expects the results of a build.
+   */
+  void expect(Build build) {
+    builds.put(build.buildId, build);
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    String buildId = exchange.getRequestURI().getPath().substring(PATH.length());
+    Build build = builds.remove(buildId);
+    boolean succeeded = false;
+    long bytes = 0;
+    try {
+      ZipInputStream zip = new ZipInputStream(exchange.getRequestBody());
+      byte[] buffer = new byte[8192];
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        succeeded |= entry.getName().endsWith(".apk");
+        for (int n = zip.read(buffer); n != -1; n = zip.read(buffer)) {
+          bytes += n;
+        }
+      }
+      drain(exchange.getRequestBody());
+    } catch (IOException e) {
+      // A broken result counts as a failed build.
+      succeeded = false;
+    } finally {
+      exchange.sendResponseHeaders(build == null ? 404 : 200, -1);
+      exchange.close();
+    }
+    if (build != null) {
+      build.succeeded = succeeded;
+      build.resultBytes = bytes;
+      build.callbackTime = System.currentTimeMillis();
+      build.done.countDown();
+    }
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    while (in.read(buffer) != -1) {
+      // Skip whatever follows the zip.
+    }
+  }
+}